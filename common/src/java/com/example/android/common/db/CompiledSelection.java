@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, compiled form of a {@link SelectionBuilder}: a table, a projection map and a
+ * selection template whose '?' slots are bound when it is executed.
+ *
+ * <p>The SQL of each query, update and delete is built once and reused. Updates and deletes can
+ * also be executed through the compiled statements of a {@link StatementCache}, which belongs to
+ * one thread, for example for the length of a batch. Compile a selection once for each route of a
+ * content provider and keep it in a static field:
+ *
+ * <pre>
+ *     private static final CompiledSelection ENTRY_BY_ID = new SelectionBuilder()
+ *             .table(FeedContract.Entry.TABLE_NAME)
+ *             .where(FeedContract.Entry._ID + "=?")
+ *             .compile();
+ *
+ *     Cursor c = ENTRY_BY_ID.query(db, projection, sortOrder, id);
+ * </pre>
+ *
+ * <p>When a caller supplies its own selection, use {@link #newBuilder(String...)} instead, as
+ * arbitrary selections are not cached.
+ *
+ * This class is thread safe.
+ */
+public final class CompiledSelection {
+    private static final String TAG = "basicsyncadapter";
+
+    /**
+     * Number of different projections and orders, and of different sets of updated columns,
+     * that are cached. Others are built every time.
+     */
+    private static final int MAX_CACHED_SQL = 8;
+
+    private final String mTable;
+    private final Map<String, String> mProjectionMap;
+    private final String mSelection;
+    private final int mArgCount;
+    private final String mDeleteSql;
+
+    // Guarded by this
+    private final ArrayList<QuerySql> mQuerySql = new ArrayList<QuerySql>();
+    private final ArrayList<UpdateSql> mUpdateSql = new ArrayList<UpdateSql>();
+
+    /**
+     * SQL of a query with one projection and order.
+     */
+    private static class QuerySql {
+        final String[] columns;
+        final String orderBy;
+        final String sql;
+
+        QuerySql(String[] columns, String orderBy, String sql) {
+            this.columns = columns;
+            this.orderBy = orderBy;
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * SQL of an update of one set of columns, with the columns in the order they are bound.
+     */
+    private static class UpdateSql {
+        final Set<String> columnSet;
+        final String[] columns;
+        final String sql;
+
+        UpdateSql(Set<String> columnSet, String[] columns, String sql) {
+            this.columnSet = columnSet;
+            this.columns = columns;
+            this.sql = sql;
+        }
+    }
+
+    CompiledSelection(String table, Map<String, String> projectionMap, String selection) {
+        mTable = table;
+        mProjectionMap = Collections.unmodifiableMap(new HashMap<String, String>(projectionMap));
+        mSelection = selection;
+        int argCount = 0;
+        for (int i = 0; i < selection.length(); i++) {
+            if (selection.charAt(i) == '?') {
+                argCount++;
+            }
+        }
+        mArgCount = argCount;
+        mDeleteSql = "DELETE FROM " + mTable + getWhereClause();
+    }
+
+    /**
+     * @return Number of '?' slots in the selection template.
+     */
+    public int getArgCount() {
+        return mArgCount;
+    }
+
+    /**
+     * @return Selection template, without arguments.
+     */
+    public String getSelection() {
+        return mSelection;
+    }
+
+    /**
+     * Create a builder with the table, projection map and selection of this compiled form, for
+     * adding further clauses.
+     *
+     * @param selectionArgs Values for the '?' slots of the selection template.
+     * @return New builder
+     */
+    public SelectionBuilder newBuilder(String... selectionArgs) {
+        checkArgs(selectionArgs);
+        final SelectionBuilder builder = new SelectionBuilder().table(mTable);
+        for (Map.Entry<String, String> entry : mProjectionMap.entrySet()) {
+            builder.putProjection(entry.getKey(), entry.getValue());
+        }
+        return builder.where(mSelection, selectionArgs);
+    }
+
+    /**
+     * Execute query ({@code SELECT}) against database.
+     *
+     * @param db Database to query.
+     * @param columns Database projection (column list) to return, must be non-null.
+     * @param orderBy How to order the rows, formatted as an SQL ORDER BY clause (excluding the
+     *                ORDER BY itself). Passing null will use the default sort order, which may be
+     *                unordered.
+     * @param selectionArgs Values for the '?' slots of the selection template.
+     * @return A {@link Cursor} object, which is positioned before the first entry.
+     */
+    public Cursor query(SQLiteDatabase db, String[] columns, String orderBy,
+            String... selectionArgs) {
+        checkArgs(selectionArgs);
+        final String sql = getQuerySql(columns, orderBy);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "query() " + sql + " " + Arrays.toString(selectionArgs));
+        }
+        return db.rawQuery(sql, selectionArgs);
+    }
+
+    /**
+     * Execute an {@code UPDATE} against a database. SQLiteDatabase keeps the compiled statement
+     * of each connection, so the SQL is not compiled again every time.
+     *
+     * @param db Database to update.
+     * @param values A map from column names to new column values. null is a valid value that will
+     *               be translated to NULL
+     * @param selectionArgs Values for the '?' slots of the selection template.
+     * @return The number of rows affected.
+     */
+    public int update(SQLiteDatabase db, ContentValues values, String... selectionArgs) {
+        checkArgs(selectionArgs);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "update() " + mTable + " " + mSelection + " "
+                    + Arrays.toString(selectionArgs));
+        }
+        return db.update(mTable, values, TextUtils.isEmpty(mSelection) ? null : mSelection,
+                selectionArgs);
+    }
+
+    /**
+     * Execute an {@code UPDATE} against the database of a statement cache.
+     *
+     * @param cache Statements of the database to update.
+     * @param values A map from column names to new column values. null is a valid value that will
+     *               be translated to NULL
+     * @param selectionArgs Values for the '?' slots of the selection template.
+     * @return The number of rows affected.
+     */
+    public int update(StatementCache cache, ContentValues values, String... selectionArgs) {
+        checkArgs(selectionArgs);
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        final UpdateSql update = getUpdateSql(values.keySet());
+        if (update == null) {
+            // Too many different sets of columns to cache them all
+            return cache.getDatabase().update(mTable, values, mSelection, selectionArgs);
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "update() " + update.sql + " " + Arrays.toString(selectionArgs));
+        }
+        final SQLiteStatement statement = cache.get(update.sql);
+        statement.clearBindings();
+        final int numColumns = update.columns.length;
+        for (int i = 0; i < numColumns; i++) {
+            bind(statement, i + 1, values.get(update.columns[i]));
+        }
+        for (int i = 0; i < mArgCount; i++) {
+            bind(statement, numColumns + i + 1, selectionArgs[i]);
+        }
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Execute {@code DELETE} against a database.
+     *
+     * @param db Database to delete from.
+     * @param selectionArgs Values for the '?' slots of the selection template.
+     * @return The number of rows affected.
+     */
+    public int delete(SQLiteDatabase db, String... selectionArgs) {
+        checkArgs(selectionArgs);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "delete() " + mDeleteSql + " " + Arrays.toString(selectionArgs));
+        }
+        return db.delete(mTable, TextUtils.isEmpty(mSelection) ? null : mSelection,
+                selectionArgs);
+    }
+
+    /**
+     * Execute {@code DELETE} against the database of a statement cache.
+     *
+     * @param cache Statements of the database to delete from.
+     * @param selectionArgs Values for the '?' slots of the selection template.
+     * @return The number of rows affected.
+     */
+    public int delete(StatementCache cache, String... selectionArgs) {
+        checkArgs(selectionArgs);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "delete() " + mDeleteSql + " " + Arrays.toString(selectionArgs));
+        }
+        final SQLiteStatement statement = cache.get(mDeleteSql);
+        statement.clearBindings();
+        for (int i = 0; i < mArgCount; i++) {
+            bind(statement, i + 1, selectionArgs[i]);
+        }
+        return statement.executeUpdateDelete();
+    }
+
+    private void checkArgs(String[] selectionArgs) {
+        final int count = selectionArgs != null ? selectionArgs.length : 0;
+        if (count != mArgCount) {
+            throw new IllegalArgumentException("Expected " + mArgCount
+                    + " selection arguments, got " + count);
+        }
+    }
+
+    private String getWhereClause() {
+        return TextUtils.isEmpty(mSelection) ? "" : " WHERE " + mSelection;
+    }
+
+    private synchronized String getQuerySql(String[] columns, String orderBy) {
+        for (int i = 0; i < mQuerySql.size(); i++) {
+            final QuerySql query = mQuerySql.get(i);
+            if (Arrays.equals(query.columns, columns) && TextUtils.equals(query.orderBy, orderBy)) {
+                return query.sql;
+            }
+        }
+        String[] mapped = null;
+        if (columns != null) {
+            mapped = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                final String target = mProjectionMap.get(columns[i]);
+                mapped[i] = target != null ? target : columns[i];
+            }
+        }
+        final String sql = SQLiteQueryBuilder.buildQueryString(false, mTable, mapped,
+                TextUtils.isEmpty(mSelection) ? null : mSelection, null, null, orderBy, null);
+        if (mQuerySql.size() < MAX_CACHED_SQL) {
+            // Copy the projection, as the caller may change its array
+            mQuerySql.add(new QuerySql(columns != null ? columns.clone() : null, orderBy, sql));
+        }
+        return sql;
+    }
+
+    private synchronized UpdateSql getUpdateSql(Set<String> columnSet) {
+        for (int i = 0; i < mUpdateSql.size(); i++) {
+            final UpdateSql update = mUpdateSql.get(i);
+            if (update.columnSet.equals(columnSet)) {
+                return update;
+            }
+        }
+        if (mUpdateSql.size() == MAX_CACHED_SQL) {
+            return null;
+        }
+        final String[] columns = columnSet.toArray(new String[columnSet.size()]);
+        final StringBuilder sql = new StringBuilder("UPDATE ").append(mTable).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(columns[i]).append("=?");
+        }
+        sql.append(getWhereClause());
+        final UpdateSql update = new UpdateSql(
+                Collections.unmodifiableSet(new HashSet<String>(columnSet)),
+                columns, sql.toString());
+        mUpdateSql.add(update);
+        return update;
+    }
+
+    /**
+     * Bind a value of a {@link ContentValues} to a statement, with the same type as
+     * {@link SQLiteDatabase#insert} and {@link SQLiteDatabase#update} would bind it.
+     */
+    public static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledSelection[table=" + mTable + ", selection=" + mSelection + "]";
+    }
+}
@@ -88,6 +88,9 @@ import java.util.Map;
  * the mapToTable() function. The map() function is used to insert a count based on specific
  * criteria, executed as a sub-query.
  *
+ * <p>A builder used on a hot path, such as a content provider route, can be turned into a
+ * reusable {@link CompiledSelection} with compile().
+ *
  * This class is <em>not</em> thread safe.
  */
 public class SelectionBuilder {
@@ -227,6 +230,33 @@ public class SelectionBuilder {
         return this;
     }
 
+    /**
+     * Add an entry that has already been through map() or mapToTable().
+     */
+    SelectionBuilder putProjection(String column, String target) {
+        mProjectionMap.put(column, target);
+        return this;
+    }
+
+    /**
+     * Compile the table, projection map and selection into an immutable form that can be
+     * executed many times, with different arguments, without building its SQL again.
+     *
+     * <p>The selection must not have any arguments yet. Each '?' in it becomes a slot that is
+     * bound when the compiled selection is executed, so '?' must not appear in string literals.
+     *
+     * @return Compiled selection
+     * @throws IllegalStateException if table not set, or arguments were given
+     */
+    public CompiledSelection compile() {
+        assertTable();
+        if (!mSelectionArgs.isEmpty()) {
+            throw new IllegalStateException("Arguments are bound when executing a compiled"
+                    + " selection");
+        }
+        return new CompiledSelection(mTable, mProjectionMap, getSelection());
+    }
+
     /**
      * Return selection string based on current internal state.
      *
@@ -323,7 +353,9 @@ public class SelectionBuilder {
                         String having, String orderBy, String limit) {
         assertTable();
         if (columns != null) mapColumns(columns);
-        Log.v(TAG, "query(columns=" + Arrays.toString(columns) + ") " + this);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "query(columns=" + Arrays.toString(columns) + ") " + this);
+        }
         return db.query(mTable, columns, getSelection(), getSelectionArgs(), groupBy, having,
                 orderBy, limit);
     }
@@ -338,7 +370,9 @@ public class SelectionBuilder {
      */
     public int update(SQLiteDatabase db, ContentValues values) {
         assertTable();
-        Log.v(TAG, "update() " + this);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "update() " + this);
+        }
         return db.update(mTable, values, getSelection(), getSelectionArgs());
     }
 
@@ -350,7 +384,9 @@ public class SelectionBuilder {
      */
     public int delete(SQLiteDatabase db) {
         assertTable();
-        Log.v(TAG, "delete() " + this);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "delete() " + this);
+        }
         return db.delete(mTable, getSelection(), getSelectionArgs());
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+
+/**
+ * Compiled {@link SQLiteStatement}s of one database, by SQL.
+ *
+ * <p>Statements are compiled the first time they are needed and kept until {@link #close()}, so
+ * only statements built from a fixed set of SQL, such as those of a {@link CompiledSelection},
+ * should be cached here.
+ *
+ * <p>A statement holds its bound arguments, so a cache must only be used by one thread, for
+ * example by a batch for as long as it runs. Do not share a cache between threads by locking its
+ * statements: a thread would wait for the database connection while holding the lock, and the
+ * thread that has the connection, in a transaction, may be the next one to need the lock.
+ */
+public class StatementCache {
+    private final SQLiteDatabase mDatabase;
+    private final HashMap<String, SQLiteStatement> mStatements =
+            new HashMap<String, SQLiteStatement>();
+
+    /**
+     * @param db Database to compile statements for.
+     */
+    public StatementCache(SQLiteDatabase db) {
+        mDatabase = db;
+    }
+
+    /**
+     * @return The database the statements are compiled for.
+     */
+    public SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Return the compiled statement for some SQL, compiling it if needed.
+     *
+     * @param sql SQL statement that does not return rows, or returns a single value.
+     * @return Compiled statement, which must not be closed by the caller.
+     */
+    public SQLiteStatement get(String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = mDatabase.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Close every cached statement.
+     */
+    public void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+}
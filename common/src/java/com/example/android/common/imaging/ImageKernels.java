@@ -0,0 +1,409 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.imaging;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Image kernels that run on the CPU, for use where RenderScript is not available.
+ *
+ * <p>The kernels work on ARGB_8888 pixels packed into ints, as returned by
+ * {@link android.graphics.Bitmap#getPixels}, and give the same results as the RenderScript
+ * saturation kernel of BasicRenderScript and the blur, 5x5 convolve and color matrix intrinsics,
+ * up to rounding. Pixels outside the image are clamped to the nearest edge pixel.
+ *
+ * <p>Each image is split into bands of rows that are filtered in parallel on a
+ * {@link ForkJoinPool}, which needs API level 21. All arithmetic inside the loops is fixed point.
+ */
+public class ImageKernels {
+
+    // Fixed point precision of the kernel weights, in bits
+    private static final int SHIFT = 12;
+    private static final int ONE = 1 << SHIFT;
+    private static final int HALF = ONE >> 1;
+
+    // Blur weights need more precision: a radius of 25 has 51 taps
+    private static final int BLUR_SHIFT = 16;
+    private static final int BLUR_ONE = 1 << BLUR_SHIFT;
+    private static final int BLUR_HALF = BLUR_ONE >> 1;
+
+    // Rec. 601 luma, as used by saturation.rs
+    private static final int LUMA_R = 19595;
+    private static final int LUMA_G = 38470;
+    private static final int LUMA_B = 7471;
+
+    /**
+     * Largest blur radius, the same as for ScriptIntrinsicBlur.
+     */
+    public static final float MAX_BLUR_RADIUS = 25.f;
+
+    // Bands smaller than this are not split any further
+    private static final int MIN_BAND_PIXELS = 16 * 1024;
+
+    // Shared by every instance made with the default constructor, so that creating kernels in
+    // each Activity does not leave a pool of threads behind
+    private static ForkJoinPool sSharedPool;
+
+    private final ForkJoinPool mPool;
+
+    /**
+     * Create kernels that run on a pool with one thread per CPU, shared by the whole process.
+     */
+    public ImageKernels() {
+        this(getSharedPool());
+    }
+
+    /**
+     * @param pool The pool that runs the kernels
+     */
+    public ImageKernels(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    private static synchronized ForkJoinPool getSharedPool() {
+        if (sSharedPool == null) {
+            sSharedPool = new ForkJoinPool();
+        }
+        return sSharedPool;
+    }
+
+    /**
+     * Change the saturation of an image, as saturation.rs does.
+     *
+     * @param saturation 0 for grayscale, 1 for the original colors, and higher to saturate
+     */
+    public void saturation(final int[] in, final int[] out, final int width, int height,
+            float saturation) {
+        checkSize(in, out, width, height);
+        final int s = toFixed(saturation);
+        forEachBand(width, height, new Kernel() {
+            @Override
+            public void run(int startRow, int endRow) {
+                for (int i = startRow * width, end = endRow * width; i < end; i++) {
+                    final int p = in[i];
+                    final int r = (p >> 16) & 0xff;
+                    final int g = (p >> 8) & 0xff;
+                    final int b = p & 0xff;
+                    final int mono = (LUMA_R * r + LUMA_G * g + LUMA_B * b + (1 << 15)) >> 16;
+                    out[i] = (p & 0xff000000)
+                            | clamp(mono + (((r - mono) * s + HALF) >> SHIFT)) << 16
+                            | clamp(mono + (((g - mono) * s + HALF) >> SHIFT)) << 8
+                            | clamp(mono + (((b - mono) * s + HALF) >> SHIFT));
+                }
+            }
+        });
+    }
+
+    /**
+     * Gaussian blur, as ScriptIntrinsicBlur does. The blur is done in two passes, along rows and
+     * then along columns. {@code in} and {@code out} may be the same array.
+     *
+     * @param radius The blur radius, greater than 0 and at most {@link #MAX_BLUR_RADIUS}
+     */
+    public void blur(final int[] in, final int[] out, final int width, final int height,
+            float radius) {
+        checkSize(in, out, width, height);
+        if (radius <= 0 || radius > MAX_BLUR_RADIUS) {
+            throw new IllegalArgumentException("Blur radius out of range: " + radius);
+        }
+        final int[] weights = getBlurWeights(radius);
+        final int r = weights.length / 2;
+        final int[] temp = new int[width * height];
+
+        forEachBand(width, height, new Kernel() {
+            @Override
+            public void run(int startRow, int endRow) {
+                for (int y = startRow; y < endRow; y++) {
+                    blurRow(in, temp, y * width, width, weights, r);
+                }
+            }
+        });
+
+        forEachBand(width, height, new Kernel() {
+            @Override
+            public void run(int startRow, int endRow) {
+                // Sum whole rows at a time, so the inner loop reads memory in order
+                final int[] sumA = new int[width];
+                final int[] sumR = new int[width];
+                final int[] sumG = new int[width];
+                final int[] sumB = new int[width];
+                for (int y = startRow; y < endRow; y++) {
+                    for (int k = -r; k <= r; k++) {
+                        final int w = weights[k + r];
+                        final int row = clampIndex(y + k, height) * width;
+                        for (int x = 0; x < width; x++) {
+                            final int p = temp[row + x];
+                            sumA[x] += (p >>> 24) * w;
+                            sumR[x] += ((p >> 16) & 0xff) * w;
+                            sumG[x] += ((p >> 8) & 0xff) * w;
+                            sumB[x] += (p & 0xff) * w;
+                        }
+                    }
+                    final int offset = y * width;
+                    for (int x = 0; x < width; x++) {
+                        out[offset + x] = pack(
+                                (sumA[x] + BLUR_HALF) >> BLUR_SHIFT,
+                                (sumR[x] + BLUR_HALF) >> BLUR_SHIFT,
+                                (sumG[x] + BLUR_HALF) >> BLUR_SHIFT,
+                                (sumB[x] + BLUR_HALF) >> BLUR_SHIFT);
+                        sumA[x] = sumR[x] = sumG[x] = sumB[x] = 0;
+                    }
+                }
+            }
+        });
+    }
+
+    private static void blurRow(int[] in, int[] out, int offset, int width, int[] weights,
+            int r) {
+        for (int x = 0; x < width; x++) {
+            int a = BLUR_HALF, red = BLUR_HALF, g = BLUR_HALF, b = BLUR_HALF;
+            if (x >= r && x < width - r) {
+                // Away from the edges there is no need to clamp
+                for (int k = 0, i = offset + x - r; k < weights.length; k++, i++) {
+                    final int p = in[i];
+                    final int w = weights[k];
+                    a += (p >>> 24) * w;
+                    red += ((p >> 16) & 0xff) * w;
+                    g += ((p >> 8) & 0xff) * w;
+                    b += (p & 0xff) * w;
+                }
+            } else {
+                for (int k = 0; k < weights.length; k++) {
+                    final int p = in[offset + clampIndex(x + k - r, width)];
+                    final int w = weights[k];
+                    a += (p >>> 24) * w;
+                    red += ((p >> 16) & 0xff) * w;
+                    g += ((p >> 8) & 0xff) * w;
+                    b += (p & 0xff) * w;
+                }
+            }
+            out[offset + x] = pack(a >> BLUR_SHIFT, red >> BLUR_SHIFT, g >> BLUR_SHIFT,
+                    b >> BLUR_SHIFT);
+        }
+    }
+
+    /**
+     * Gaussian weights for a radius, worked out the same way as for ScriptIntrinsicBlur, in fixed
+     * point. The weights add up to exactly {@link #BLUR_ONE}.
+     */
+    static int[] getBlurWeights(float radius) {
+        final int r = (int) Math.ceil(radius);
+        final double sigma = 0.4 * radius + 0.6;
+        final double[] gaussian = new double[2 * r + 1];
+        double total = 0;
+        for (int k = -r; k <= r; k++) {
+            gaussian[k + r] = Math.exp(-(k * k) / (2 * sigma * sigma));
+            total += gaussian[k + r];
+        }
+        final int[] weights = new int[2 * r + 1];
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (int) Math.round(gaussian[i] / total * BLUR_ONE);
+            sum += weights[i];
+        }
+        // Put the rounding error in the middle, so a flat image stays flat
+        weights[r] += BLUR_ONE - sum;
+        return weights;
+    }
+
+    /**
+     * 5x5 convolution, as ScriptIntrinsicConvolve5x5 does. All four channels are filtered.
+     * {@code in} and {@code out} must be different arrays.
+     *
+     * @param coefficients 25 weights, row by row
+     */
+    public void convolve5x5(final int[] in, final int[] out, final int width, final int height,
+            float[] coefficients) {
+        checkSize(in, out, width, height);
+        if (in == out) {
+            throw new IllegalArgumentException("Cannot convolve in place");
+        }
+        if (coefficients.length != 25) {
+            throw new IllegalArgumentException("Need 25 coefficients, got "
+                    + coefficients.length);
+        }
+        final int[] weights = new int[25];
+        for (int i = 0; i < 25; i++) {
+            weights[i] = toFixed(coefficients[i]);
+        }
+
+        forEachBand(width, height, new Kernel() {
+            @Override
+            public void run(int startRow, int endRow) {
+                // Column of each tap, clamped to the image
+                final int[] columns = new int[width + 4];
+                for (int x = 0; x < columns.length; x++) {
+                    columns[x] = clampIndex(x - 2, width);
+                }
+                final int[] rows = new int[5];
+                for (int y = startRow; y < endRow; y++) {
+                    for (int k = 0; k < 5; k++) {
+                        rows[k] = clampIndex(y + k - 2, height) * width;
+                    }
+                    for (int x = 0; x < width; x++) {
+                        int a = HALF, r = HALF, g = HALF, b = HALF;
+                        for (int ky = 0, i = 0; ky < 5; ky++) {
+                            final int row = rows[ky];
+                            for (int kx = 0; kx < 5; kx++, i++) {
+                                final int p = in[row + columns[x + kx]];
+                                final int w = weights[i];
+                                a += (p >>> 24) * w;
+                                r += ((p >> 16) & 0xff) * w;
+                                g += ((p >> 8) & 0xff) * w;
+                                b += (p & 0xff) * w;
+                            }
+                        }
+                        out[y * width + x] = pack(clamp(a >> SHIFT), clamp(r >> SHIFT),
+                                clamp(g >> SHIFT), clamp(b >> SHIFT));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Multiply each pixel by a 4x4 color matrix and add a vector, as ScriptIntrinsicColorMatrix
+     * does. {@code in} and {@code out} may be the same array.
+     *
+     * @param matrix 16 values, row by row; row 0 gives red, 1 green, 2 blue and 3 alpha, and
+     *               column 0 is multiplied by red, 1 by green, 2 by blue and 3 by alpha. This is
+     *               the transpose of how a Matrix4f is set up for the intrinsic.
+     * @param add    4 values for red, green, blue and alpha, in the range 0 to 1, or null
+     */
+    public void colorMatrix(final int[] in, final int[] out, final int width, int height,
+            float[] matrix, float[] add) {
+        checkSize(in, out, width, height);
+        if (matrix.length != 16 || (add != null && add.length != 4)) {
+            throw new IllegalArgumentException("Need a 4x4 matrix and 4 values to add");
+        }
+        final int[] m = new int[16];
+        for (int i = 0; i < 16; i++) {
+            m[i] = toFixed(matrix[i]);
+        }
+        final int[] offsets = new int[4];
+        for (int i = 0; i < 4; i++) {
+            offsets[i] = HALF + (add != null ? toFixed(add[i] * 255.f) : 0);
+        }
+
+        forEachBand(width, height, new Kernel() {
+            @Override
+            public void run(int startRow, int endRow) {
+                for (int i = startRow * width, end = endRow * width; i < end; i++) {
+                    final int p = in[i];
+                    final int a = p >>> 24;
+                    final int r = (p >> 16) & 0xff;
+                    final int g = (p >> 8) & 0xff;
+                    final int b = p & 0xff;
+                    out[i] = pack(
+                            clamp((m[12] * r + m[13] * g + m[14] * b + m[15] * a + offsets[3])
+                                    >> SHIFT),
+                            clamp((m[0] * r + m[1] * g + m[2] * b + m[3] * a + offsets[0])
+                                    >> SHIFT),
+                            clamp((m[4] * r + m[5] * g + m[6] * b + m[7] * a + offsets[1])
+                                    >> SHIFT),
+                            clamp((m[8] * r + m[9] * g + m[10] * b + m[11] * a + offsets[2])
+                                    >> SHIFT));
+                }
+            }
+        });
+    }
+
+    /**
+     * Like {@link #colorMatrix(int[], int[], int, int, float[], float[])}, for a 3x3 matrix that
+     * leaves alpha alone.
+     *
+     * @param matrix 9 values, row by row
+     */
+    public void colorMatrix3(int[] in, int[] out, int width, int height, float[] matrix) {
+        if (matrix.length != 9) {
+            throw new IllegalArgumentException("Need a 3x3 matrix");
+        }
+        colorMatrix(in, out, width, height, new float[]{
+                matrix[0], matrix[1], matrix[2], 0,
+                matrix[3], matrix[4], matrix[5], 0,
+                matrix[6], matrix[7], matrix[8], 0,
+                0, 0, 0, 1,
+        }, null);
+    }
+
+    /**
+     * Work done on a band of rows.
+     */
+    private interface Kernel {
+        void run(int startRow, int endRow);
+    }
+
+    private void forEachBand(int width, int height, Kernel kernel) {
+        final int minRows = Math.max(1, MIN_BAND_PIXELS / Math.max(1, width));
+        mPool.invoke(new BandTask(kernel, 0, height, minRows));
+    }
+
+    /**
+     * Splits a band of rows in half until it is small enough to run.
+     */
+    private static class BandTask extends RecursiveAction {
+        private final Kernel mKernel;
+        private final int mStartRow;
+        private final int mEndRow;
+        private final int mMinRows;
+
+        BandTask(Kernel kernel, int startRow, int endRow, int minRows) {
+            mKernel = kernel;
+            mStartRow = startRow;
+            mEndRow = endRow;
+            mMinRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEndRow - mStartRow <= mMinRows) {
+                mKernel.run(mStartRow, mEndRow);
+                return;
+            }
+            final int middle = (mStartRow + mEndRow) >>> 1;
+            invokeAll(new BandTask(mKernel, mStartRow, middle, mMinRows),
+                    new BandTask(mKernel, middle, mEndRow, mMinRows));
+        }
+    }
+
+    private static void checkSize(int[] in, int[] out, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad size " + width + "x" + height);
+        }
+        final int pixels = width * height;
+        if (in.length < pixels || out.length < pixels) {
+            throw new IllegalArgumentException("Buffers are smaller than " + width + "x" + height);
+        }
+    }
+
+    private static int toFixed(float value) {
+        return Math.round(value * ONE);
+    }
+
+    private static int clampIndex(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static int pack(int a, int r, int g, int b) {
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+}
@@ -24,27 +24,40 @@ import java.util.TreeMap;
  * Events may be written in any order.
  * Events will be read in sorted order.
  * Events with the same timestamp will be read in the order they were added.
- * 
+ *
  * Only one Thread can write into the buffer.
  * And only one Thread can read from the buffer.
+ *
+ * The storage is provided by an {@link EventBuffer}. By default events are kept
+ * in a TreeMap. Pass a {@link TimingWheelEventBuffer} to the constructor for
+ * a lock-free buffer that does not allocate when adding events.
  */
 public class EventScheduler {
     private static final long NANOS_PER_MILLI = 1000000;
 
-    private final Object lock = new Object();
-    private SortedMap<Long, FastEventQueue> mEventBuffer;
+    private final EventBuffer mEventBuffer;
     // This does not have to be guarded. It is only set by the writing thread.
     // If the reader sees a null right before being set then that is OK.
     private FastEventQueue mEventPool = null;
     private static final int MAX_POOL_SIZE = 200;
+    private int mMaxPoolSize = MAX_POOL_SIZE;
+    // Only written by the thread that returns events to the pool.
+    private volatile long mPoolDiscardCount;
 
     public EventScheduler() {
-        mEventBuffer = new TreeMap<Long, FastEventQueue>();
+        this(new SortedEventBuffer());
+    }
+
+    /**
+     * @param eventBuffer storage used to sort the events by timestamp
+     */
+    public EventScheduler(EventBuffer eventBuffer) {
+        mEventBuffer = eventBuffer;
     }
 
     // If we keep at least one node in the list then it can be atomic
     // and non-blocking.
-    private class FastEventQueue {
+    private static class FastEventQueue {
         // One thread takes from the beginning of the list.
         volatile SchedulableEvent mFirst;
         // A second thread returns events to the end of the list.
@@ -92,7 +105,8 @@ public class EventScheduler {
      */
     public static class SchedulableEvent {
         private long mTimestamp;
-        private SchedulableEvent mNext = null;
+        // Used to link events in the pool and in the EventBuffer.
+        SchedulableEvent mNext = null;
 
         /**
          * @param timestamp
@@ -130,6 +144,16 @@ public class EventScheduler {
         return event;
     }
 
+    /**
+     * Only the thread that removes events should call this. Events returned
+     * by another thread can only make the count grow.
+     *
+     * @return number of events that removeEventfromPool() can return
+     */
+    protected int getAvailablePoolEventCount() {
+        return (mEventPool == null) ? 0 : Math.max(0, mEventPool.size() - 1);
+    }
+
     /**
      * Return events to a pool so they can be reused.
      *
@@ -140,11 +164,34 @@ public class EventScheduler {
             mEventPool = new FastEventQueue(event);
         // If we already have enough items in the pool then just
         // drop the event. This prevents unbounded memory leaks.
-        } else if (mEventPool.size() < MAX_POOL_SIZE) {
+        } else if (mEventPool.size() < mMaxPoolSize) {
             mEventPool.add(event);
+        } else {
+            mPoolDiscardCount++;
         }
     }
 
+    /**
+     * Set the number of events that can be held in the pool.
+     * Call this before events are added to the pool.
+     *
+     * @param maxPoolSize
+     */
+    public void setMaxPoolSize(int maxPoolSize) {
+        mMaxPoolSize = maxPoolSize;
+    }
+
+    public int getMaxPoolSize() {
+        return mMaxPoolSize;
+    }
+
+    /**
+     * @return number of events dropped because the pool was full
+     */
+    public long getPoolDiscardCount() {
+        return mPoolDiscardCount;
+    }
+
     /**
      * Add an event to the scheduler. Events with the same time will be
      * processed in order.
@@ -152,34 +199,7 @@ public class EventScheduler {
      * @param event
      */
     public void add(SchedulableEvent event) {
-        synchronized (lock) {
-            FastEventQueue list = mEventBuffer.get(event.getTimestamp());
-            if (list == null) {
-                long lowestTime = mEventBuffer.isEmpty() ? Long.MAX_VALUE
-                        : mEventBuffer.firstKey();
-                list = new FastEventQueue(event);
-                mEventBuffer.put(event.getTimestamp(), list);
-                // If the event we added is earlier than the previous earliest
-                // event then notify any threads waiting for the next event.
-                if (event.getTimestamp() < lowestTime) {
-                    lock.notify();
-                }
-            } else {
-                list.add(event);
-            }
-        }
-    }
-
-    // Caller must synchronize on lock before calling.
-    private SchedulableEvent removeNextEventLocked(long lowestTime) {
-        SchedulableEvent event;
-        FastEventQueue list = mEventBuffer.get(lowestTime);
-        // Remove list from tree if this is the last node.
-        if ((list.size() == 1)) {
-            mEventBuffer.remove(lowestTime);
-        }
-        event = list.remove();
-        return event;
+        mEventBuffer.add(event);
     }
 
     /**
@@ -189,18 +209,7 @@ public class EventScheduler {
      * @return next event or null if none ready
      */
     public SchedulableEvent getNextEvent(long time) {
-        SchedulableEvent event = null;
-        synchronized (lock) {
-            if (!mEventBuffer.isEmpty()) {
-                long lowestTime = mEventBuffer.firstKey();
-                // Is it time for this list to be processed?
-                if (lowestTime <= time) {
-                    event = removeNextEventLocked(lowestTime);
-                }
-            }
-        }
-        // Log.i(TAG, "getNextEvent: event = " + event);
-        return event;
+        return mEventBuffer.getNextEvent(time);
     }
 
     /**
@@ -212,32 +221,117 @@ public class EventScheduler {
      * @throws InterruptedException
      */
     public SchedulableEvent waitNextEvent() throws InterruptedException {
-        SchedulableEvent event = null;
-        while (true) {
-            long millisToWait = Integer.MAX_VALUE;
+        return mEventBuffer.waitNextEvent();
+    }
+
+    /**
+     * Sorted storage for SchedulableEvents.
+     * One thread calls add() and one other thread reads the events.
+     */
+    public interface EventBuffer {
+        /**
+         * Add an event. Events with the same time must be read in the order
+         * they were added.
+         */
+        void add(SchedulableEvent event);
+
+        /**
+         * @return earliest event with a timestamp at or before time, or null
+         */
+        SchedulableEvent getNextEvent(long time);
+
+        /**
+         * Wait until the earliest event is due according to System.nanoTime().
+         */
+        SchedulableEvent waitNextEvent() throws InterruptedException;
+    }
+
+    /**
+     * Original EventBuffer that keeps a TreeMap of FastEventQueues,
+     * one per timestamp, guarded by a single lock.
+     */
+    public static class SortedEventBuffer implements EventBuffer {
+        private final Object lock = new Object();
+        private SortedMap<Long, FastEventQueue> mEventBuffer
+                = new TreeMap<Long, FastEventQueue>();
+
+        @Override
+        public void add(SchedulableEvent event) {
+            synchronized (lock) {
+                FastEventQueue list = mEventBuffer.get(event.getTimestamp());
+                if (list == null) {
+                    long lowestTime = mEventBuffer.isEmpty() ? Long.MAX_VALUE
+                            : mEventBuffer.firstKey();
+                    list = new FastEventQueue(event);
+                    mEventBuffer.put(event.getTimestamp(), list);
+                    // If the event we added is earlier than the previous earliest
+                    // event then notify any threads waiting for the next event.
+                    if (event.getTimestamp() < lowestTime) {
+                        lock.notify();
+                    }
+                } else {
+                    list.add(event);
+                }
+            }
+        }
+
+        // Caller must synchronize on lock before calling.
+        private SchedulableEvent removeNextEventLocked(long lowestTime) {
+            SchedulableEvent event;
+            FastEventQueue list = mEventBuffer.get(lowestTime);
+            // Remove list from tree if this is the last node.
+            if ((list.size() == 1)) {
+                mEventBuffer.remove(lowestTime);
+            }
+            event = list.remove();
+            return event;
+        }
+
+        @Override
+        public SchedulableEvent getNextEvent(long time) {
+            SchedulableEvent event = null;
             synchronized (lock) {
                 if (!mEventBuffer.isEmpty()) {
-                    long now = System.nanoTime();
                     long lowestTime = mEventBuffer.firstKey();
-                    // Is it time for the earliest list to be processed?
-                    if (lowestTime <= now) {
+                    // Is it time for this list to be processed?
+                    if (lowestTime <= time) {
                         event = removeNextEventLocked(lowestTime);
-                        break;
-                    } else {
-                        // Figure out how long to sleep until next event.
-                        long nanosToWait = lowestTime - now;
-                        // Add 1 millisecond so we don't wake up before it is
-                        // ready.
-                        millisToWait = 1 + (nanosToWait / NANOS_PER_MILLI);
-                        // Clip 64-bit value to 32-bit max.
-                        if (millisToWait > Integer.MAX_VALUE) {
-                            millisToWait = Integer.MAX_VALUE;
+                    }
+                }
+            }
+            // Log.i(TAG, "getNextEvent: event = " + event);
+            return event;
+        }
+
+        @Override
+        public SchedulableEvent waitNextEvent() throws InterruptedException {
+            SchedulableEvent event = null;
+            while (true) {
+                long millisToWait = Integer.MAX_VALUE;
+                synchronized (lock) {
+                    if (!mEventBuffer.isEmpty()) {
+                        long now = System.nanoTime();
+                        long lowestTime = mEventBuffer.firstKey();
+                        // Is it time for the earliest list to be processed?
+                        if (lowestTime <= now) {
+                            event = removeNextEventLocked(lowestTime);
+                            break;
+                        } else {
+                            // Figure out how long to sleep until next event.
+                            long nanosToWait = lowestTime - now;
+                            // Add 1 millisecond so we don't wake up before it is
+                            // ready.
+                            millisToWait = 1 + (nanosToWait / NANOS_PER_MILLI);
+                            // Clip 64-bit value to 32-bit max.
+                            if (millisToWait > Integer.MAX_VALUE) {
+                                millisToWait = Integer.MAX_VALUE;
+                            }
                         }
                     }
+                    lock.wait((int) millisToWait);
                 }
-                lock.wait((int) millisToWait);
             }
+            return event;
         }
-        return event;
     }
 }
@@ -18,9 +18,17 @@ package com.example.android.common.midi;
 
 import android.media.midi.MidiReceiver;
 import android.media.midi.MidiSender;
+import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Utility class for dispatching MIDI data to a list of {@link MidiReceiver}s.
@@ -28,11 +36,57 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * to its receiver list. Any receivers that throw an exception upon receiving data will
  * be automatically removed from the receiver list, but no IOException will be returned
  * from the dispatcher's {@link MidiReceiver#onReceive} in that case.
+ *
+ * By default every receiver is called synchronously. In asynchronous mode
+ * each message is copied once into a shared byte arena. Every receiver has
+ * its own bounded queue of records that point into the arena and its own
+ * thread that delivers them, so a slow receiver does not hold up the others.
+ * The overflow policy decides what happens when a queue or the arena is full.
+ * Call {@link #close()} to stop the delivery threads.
  */
 public final class MidiDispatcher extends MidiReceiver {
+    private static final String TAG = "MidiDispatcher";
+
+    /** Discard the oldest queued message to make room. */
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+    /**
+     * Keep only the latest value of each controller, pitch bend and pressure
+     * message. Other messages are handled like OVERFLOW_DROP_OLDEST. A kept
+     * value is dropped if a newer message for the same controller is queued.
+     */
+    public static final int OVERFLOW_COALESCE = 1;
+    /** Wait for the slow receiver to catch up. */
+    public static final int OVERFLOW_BLOCK = 2;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_ARENA_SIZE = 64 * 1024;
+
+    // Slots in the coalescing table.
+    private static final int COALESCE_CONTROLLERS = 0;
+    private static final int COALESCE_PITCH_BEND = 16 * 128;
+    private static final int COALESCE_CHANNEL_PRESSURE = COALESCE_PITCH_BEND + 16;
+    private static final int COALESCE_TABLE_SIZE = COALESCE_CHANNEL_PRESSURE + 16;
+
+    // Count of a queued record that asks the receiver to flush.
+    private static final int FLUSH_RECORD = -1;
 
     private final CopyOnWriteArrayList<MidiReceiver> mReceivers
             = new CopyOnWriteArrayList<MidiReceiver>();
+    private final CopyOnWriteArrayList<AsyncReceiver> mAsyncReceivers
+            = new CopyOnWriteArrayList<AsyncReceiver>();
+
+    private final boolean mAsync;
+    private final int mQueueCapacity;
+    private final int mOverflowPolicy;
+    private final byte[] mArena;
+    private final int mArenaMask;
+    // Absolute position of the next byte to write. Only used by the writer.
+    private long mArenaWritePosition;
+    // Counts deliveries so that a blocked writer can tell if it missed one.
+    private final AtomicLong mDeliverySequence = new AtomicLong();
+    private final ConcurrentLinkedQueue<Thread> mBlockedWriters
+            = new ConcurrentLinkedQueue<Thread>();
+    private volatile boolean mClosed;
 
     private final MidiSender mSender = new MidiSender() {
         /**
@@ -43,6 +97,11 @@ public final class MidiDispatcher extends MidiReceiver {
         @Override
         public void onConnect(MidiReceiver receiver) {
             mReceivers.add(receiver);
+            if (mAsync && !mClosed) {
+                AsyncReceiver asyncReceiver = new AsyncReceiver(receiver);
+                mAsyncReceivers.add(asyncReceiver);
+                asyncReceiver.start();
+            }
         }
 
         /**
@@ -53,9 +112,51 @@ public final class MidiDispatcher extends MidiReceiver {
         @Override
         public void onDisconnect(MidiReceiver receiver) {
             mReceivers.remove(receiver);
+            if (mAsync) {
+                removeAsyncReceiver(receiver);
+            }
         }
     };
 
+    /**
+     * Create a dispatcher that calls every receiver synchronously.
+     */
+    public MidiDispatcher() {
+        mAsync = false;
+        mQueueCapacity = 0;
+        mOverflowPolicy = OVERFLOW_DROP_OLDEST;
+        mArena = null;
+        mArenaMask = 0;
+    }
+
+    /**
+     * Create a dispatcher that delivers to each receiver on its own thread.
+     *
+     * @param queueCapacity maximum number of messages queued per receiver,
+     *        rounded up to a power of two
+     * @param arenaSize number of bytes shared by all queued messages,
+     *        rounded up to a power of two
+     * @param overflowPolicy OVERFLOW_DROP_OLDEST, OVERFLOW_COALESCE or
+     *        OVERFLOW_BLOCK
+     */
+    public MidiDispatcher(int queueCapacity, int arenaSize, int overflowPolicy) {
+        if (overflowPolicy < OVERFLOW_DROP_OLDEST || overflowPolicy > OVERFLOW_BLOCK) {
+            throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+        }
+        mAsync = true;
+        mQueueCapacity = roundUpToPowerOfTwo(queueCapacity);
+        mOverflowPolicy = overflowPolicy;
+        mArena = new byte[roundUpToPowerOfTwo(arenaSize)];
+        mArenaMask = mArena.length - 1;
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
     /**
      * Returns the number of {@link MidiReceiver}s this dispatcher contains.
      * @return the number of receivers
@@ -74,9 +175,47 @@ public final class MidiDispatcher extends MidiReceiver {
         return mSender;
     }
 
+    /**
+     * @return true if messages are delivered on a thread per receiver
+     */
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * @return queues for each receiver in asynchronous mode, with their
+     *         lag and drop counts
+     */
+    public Iterable<AsyncReceiver> getAsyncReceivers() {
+        return mAsyncReceivers;
+    }
+
+    /**
+     * Stop and wait for the delivery threads. Messages that are still queued
+     * are discarded and writers that are waiting for room return. After this
+     * the dispatcher no longer delivers in asynchronous mode.
+     */
+    public void close() {
+        mClosed = true;
+        List<AsyncReceiver> asyncReceivers = new ArrayList<AsyncReceiver>(mAsyncReceivers);
+        mAsyncReceivers.removeAll(asyncReceivers);
+        for (AsyncReceiver asyncReceiver : asyncReceivers) {
+            asyncReceiver.stop();
+        }
+        for (AsyncReceiver asyncReceiver : asyncReceivers) {
+            if (!asyncReceiver.join()) {
+                break;
+            }
+        }
+    }
+
     @Override
     public void onSend(byte[] msg, int offset, int count, long timestamp) throws IOException {
-       for (MidiReceiver receiver : mReceivers) {
+        if (mAsync) {
+            dispatchAsync(msg, offset, count, timestamp);
+            return;
+        }
+        for (MidiReceiver receiver : mReceivers) {
             try {
                 receiver.send(msg, offset, count, timestamp);
             } catch (IOException e) {
@@ -86,10 +225,488 @@ public final class MidiDispatcher extends MidiReceiver {
         }
     }
 
+    /**
+     * In asynchronous mode the pending messages are discarded and each
+     * receiver is flushed on its own thread, after the message it is
+     * delivering.
+     */
     @Override
     public void flush() throws IOException {
-       for (MidiReceiver receiver : mReceivers) {
+        if (mAsync) {
+            flushAsync();
+            return;
+        }
+        for (MidiReceiver receiver : mReceivers) {
             receiver.flush();
-       }
+        }
+    }
+
+    private synchronized void flushAsync() {
+        long now = System.nanoTime();
+        for (AsyncReceiver asyncReceiver : mAsyncReceivers) {
+            asyncReceiver.discardPending();
+            asyncReceiver.enqueue(mArenaWritePosition, FLUSH_RECORD, 0, now, null, 0, -1);
+        }
+    }
+
+    private void removeAsyncReceiver(MidiReceiver receiver) {
+        for (AsyncReceiver asyncReceiver : mAsyncReceivers) {
+            if (asyncReceiver.mReceiver == receiver) {
+                mAsyncReceivers.remove(asyncReceiver);
+                asyncReceiver.stop();
+            }
+        }
+    }
+
+    private void dispatchAsync(byte[] msg, int offset, int count, long timestamp) {
+        while (true) {
+            // Read before trying so that a delivery in between is not missed.
+            long sequence = mDeliverySequence.get();
+            if (tryDispatchAsync(msg, offset, count, timestamp)) {
+                return;
+            }
+            waitForDelivery(sequence);
+        }
+    }
+
+    /**
+     * Park the writer, without holding the dispatcher's lock, until a
+     * receiver delivers another message or is stopped.
+     */
+    private void waitForDelivery(long sequence) {
+        Thread thread = Thread.currentThread();
+        mBlockedWriters.add(thread);
+        while (mDeliverySequence.get() == sequence && !mClosed) {
+            LockSupport.park(this);
+        }
+        mBlockedWriters.remove(thread);
+    }
+
+    private void onDelivered() {
+        mDeliverySequence.incrementAndGet();
+        for (Thread thread : mBlockedWriters) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Messages may come from more than one thread so serialize the writers.
+     *
+     * @return false if a receiver still needs the space, the caller should
+     *         wait for a delivery and try again
+     */
+    private synchronized boolean tryDispatchAsync(byte[] msg, int offset, int count,
+            long timestamp) {
+        if (count > mArena.length) {
+            for (AsyncReceiver asyncReceiver : mAsyncReceivers) {
+                asyncReceiver.mDroppedCount.incrementAndGet();
+            }
+            return true;
+        }
+        if (mAsyncReceivers.isEmpty()) {
+            return true;
+        }
+        // Keep each message contiguous in the arena so it can be delivered
+        // without copying.
+        long position = mArenaWritePosition;
+        int physical = (int) (position & mArenaMask);
+        if (physical + count > mArena.length) {
+            position += mArena.length - physical;
+            physical = 0;
+        }
+        long end = position + count;
+        // Bytes before this position are about to be overwritten.
+        long reclaimBefore = end - mArena.length;
+        for (AsyncReceiver asyncReceiver : mAsyncReceivers) {
+            if (!asyncReceiver.releaseArena(reclaimBefore)
+                    || !asyncReceiver.hasRoom()) {
+                return false;
+            }
+        }
+        System.arraycopy(msg, offset, mArena, physical, count);
+        mArenaWritePosition = end;
+
+        int coalesceIndex = (mOverflowPolicy == OVERFLOW_COALESCE)
+                ? getCoalesceIndex(msg, offset, count) : -1;
+        long now = System.nanoTime();
+        for (AsyncReceiver asyncReceiver : mAsyncReceivers) {
+            asyncReceiver.enqueue(position, count, timestamp, now, msg, offset,
+                    coalesceIndex);
+        }
+        return true;
+    }
+
+    /**
+     * @return slot in the coalescing table, or -1 if the message should not
+     *         be coalesced
+     */
+    private static int getCoalesceIndex(byte[] msg, int offset, int count) {
+        int status = msg[offset] & 0xFF;
+        int command = status & 0xF0;
+        int channel = status & 0x0F;
+        if (command == (MidiConstants.STATUS_CONTROL_CHANGE & 0xFF) && count == 3) {
+            return COALESCE_CONTROLLERS + (channel * 128) + (msg[offset + 1] & 0x7F);
+        } else if (command == (MidiConstants.STATUS_PITCH_BEND & 0xFF) && count == 3) {
+            return COALESCE_PITCH_BEND + channel;
+        } else if (command == (MidiConstants.STATUS_CHANNEL_PRESSURE & 0xFF) && count == 2) {
+            return COALESCE_CHANNEL_PRESSURE + channel;
+        }
+        return -1;
+    }
+
+    /**
+     * Queue of messages for one receiver in asynchronous mode.
+     *
+     * The dispatcher writes records at the tail. The delivery thread claims
+     * records at the head with a compare-and-set. The dispatcher may also
+     * advance the head to drop old records, so a record is only delivered
+     * by whoever wins the compare-and-set.
+     */
+    public final class AsyncReceiver {
+        private static final long NOT_BUSY = Long.MAX_VALUE;
+        private final MidiReceiver mReceiver;
+        private final long[] mPositions = new long[mQueueCapacity];
+        private final int[] mCounts = new int[mQueueCapacity];
+        private final long[] mTimestamps = new long[mQueueCapacity];
+        private final long[] mEnqueueTimes = new long[mQueueCapacity];
+        private final int mMask = mQueueCapacity - 1;
+        private final AtomicLong mHead = new AtomicLong();
+        private volatile long mTail;
+        // Arena position of the record being delivered.
+        private volatile long mBusyPosition = NOT_BUSY;
+        private volatile boolean mWaiting;
+        private volatile boolean mGo = true;
+        private Thread mThread;
+
+        // Latest values of coalesced messages, packed as (status << 16)
+        // | (data1 << 8) | data2 | COALESCE_VALID, or zero if empty.
+        private static final int COALESCE_VALID = 1 << 24;
+        private final AtomicIntegerArray mCoalesced;
+        private final AtomicLongArray mCoalescedTimestamps;
+        private final AtomicLong mCoalescedPending = new AtomicLong();
+        // Set when a flush record is dropped to make room.
+        private volatile boolean mFlushPending;
+        private final byte[] mCoalesceBuffer = new byte[3];
+
+        private final AtomicLong mDroppedCount = new AtomicLong();
+        private volatile long mDeliveredCount;
+        private volatile long mCoalescedCount;
+        private volatile long mLastLagNanos;
+        private volatile long mMaxLagNanos;
+
+        AsyncReceiver(MidiReceiver receiver) {
+            mReceiver = receiver;
+            boolean coalesce = (mOverflowPolicy == OVERFLOW_COALESCE);
+            mCoalesced = coalesce ? new AtomicIntegerArray(COALESCE_TABLE_SIZE) : null;
+            mCoalescedTimestamps = coalesce ? new AtomicLongArray(COALESCE_TABLE_SIZE) : null;
+        }
+
+        public MidiReceiver getReceiver() {
+            return mReceiver;
+        }
+
+        /**
+         * @return number of messages waiting to be delivered
+         */
+        public int getQueueDepth() {
+            return (int) (mTail - mHead.get());
+        }
+
+        public long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        /**
+         * @return number of messages discarded because the queue or
+         *         the arena was full
+         */
+        public long getDroppedCount() {
+            return mDroppedCount.get();
+        }
+
+        /**
+         * @return number of controller messages replaced by a newer value
+         */
+        public long getCoalescedCount() {
+            return mCoalescedCount;
+        }
+
+        /**
+         * @return nanoseconds between queueing and delivering the last message
+         */
+        public long getLastLagNanos() {
+            return mLastLagNanos;
+        }
+
+        public long getMaxLagNanos() {
+            return mMaxLagNanos;
+        }
+
+        public void resetMaxLag() {
+            mMaxLagNanos = 0;
+        }
+
+        void start() {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliverLoop();
+                }
+            }, TAG + " " + mReceiver);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        void stop() {
+            mGo = false;
+            if (mThread != null) {
+                LockSupport.unpark(mThread);
+            }
+            // A writer may be waiting for this receiver.
+            onDelivered();
+        }
+
+        /**
+         * Wait for the delivery thread to finish, unless it is the caller.
+         *
+         * @return false if the caller was interrupted
+         */
+        boolean join() {
+            if (mThread == null || mThread == Thread.currentThread()) {
+                return true;
+            }
+            try {
+                mThread.join();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        void discardPending() {
+            long head;
+            do {
+                head = mHead.get();
+            } while (head < mTail && !mHead.compareAndSet(head, mTail));
+            if (mCoalesced != null) {
+                for (int i = 0; i < COALESCE_TABLE_SIZE; i++) {
+                    clearCoalesced(i);
+                }
+            }
+        }
+
+        /**
+         * Forget the kept value of a coalesced message.
+         *
+         * @return true if there was one
+         */
+        private boolean clearCoalesced(int coalesceIndex) {
+            if (mCoalesced.getAndSet(coalesceIndex, 0) != 0) {
+                mCoalescedPending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Called after the dispatcher advanced the head past a record.
+         */
+        private void onDropped(long head) {
+            if (mCounts[(int) (head & mMask)] == FLUSH_RECORD) {
+                mFlushPending = true;
+            } else {
+                mDroppedCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * Called by the dispatcher before it overwrites the arena.
+         * Drop records that use bytes before the position.
+         *
+         * @return false if a record that uses them is being delivered, or
+         *         is queued and the policy is OVERFLOW_BLOCK
+         */
+        boolean releaseArena(long position) {
+            while (true) {
+                long head = mHead.get();
+                if (head < mTail && mPositions[(int) (head & mMask)] < position) {
+                    if (mOverflowPolicy == OVERFLOW_BLOCK && mGo) {
+                        return false;
+                    } else if (mHead.compareAndSet(head, head + 1)) {
+                        onDropped(head);
+                    }
+                } else {
+                    return mBusyPosition >= position || !mGo;
+                }
+            }
+        }
+
+        /**
+         * @return false if the queue is full and the policy is OVERFLOW_BLOCK
+         */
+        boolean hasRoom() {
+            return mOverflowPolicy != OVERFLOW_BLOCK || !mGo
+                    || mTail - mHead.get() < mQueueCapacity;
+        }
+
+        void enqueue(long position, int count, long timestamp, long now,
+                byte[] msg, int offset, int coalesceIndex) {
+            long tail = mTail;
+            while (tail - mHead.get() >= mQueueCapacity) {
+                if (coalesceIndex >= 0) {
+                    int packed = COALESCE_VALID | ((msg[offset] & 0xFF) << 16)
+                            | ((msg[offset + 1] & 0x7F) << 8)
+                            | ((count > 2) ? (msg[offset + 2] & 0x7F) : 0);
+                    mCoalescedTimestamps.set(coalesceIndex, timestamp);
+                    if (mCoalesced.getAndSet(coalesceIndex, packed) != 0) {
+                        mCoalescedCount++;
+                    } else {
+                        mCoalescedPending.incrementAndGet();
+                    }
+                    wakeUp();
+                    return;
+                }
+                // With OVERFLOW_BLOCK the writer waited for room unless
+                // this receiver was stopped.
+                long head = mHead.get();
+                if (tail - head >= mQueueCapacity
+                        && mHead.compareAndSet(head, head + 1)) {
+                    onDropped(head);
+                }
+            }
+            // This message is newer than any value kept for its controller.
+            if (coalesceIndex >= 0 && clearCoalesced(coalesceIndex)) {
+                mCoalescedCount++;
+            }
+            int index = (int) (tail & mMask);
+            mPositions[index] = position;
+            mCounts[index] = count;
+            mTimestamps[index] = timestamp;
+            mEnqueueTimes[index] = now;
+            mTail = tail + 1;
+            wakeUp();
+        }
+
+        private void wakeUp() {
+            if (mWaiting) {
+                LockSupport.unpark(mThread);
+            }
+        }
+
+        private void deliverLoop() {
+            while (mGo) {
+                if (mFlushPending) {
+                    mFlushPending = false;
+                    deliverFlush();
+                    continue;
+                }
+                if (deliverNext()) {
+                    continue;
+                }
+                if (mCoalesced != null && mCoalescedPending.get() > 0) {
+                    deliverCoalesced();
+                    continue;
+                }
+                mWaiting = true;
+                if (mHead.get() == mTail && (mCoalesced == null
+                        || mCoalescedPending.get() == 0) && !mFlushPending && mGo) {
+                    LockSupport.park(this);
+                }
+                mWaiting = false;
+            }
+        }
+
+        /**
+         * @return true if a record was claimed
+         */
+        private boolean deliverNext() {
+            while (true) {
+                long head = mHead.get();
+                if (head >= mTail) {
+                    return false;
+                }
+                int index = (int) (head & mMask);
+                long position = mPositions[index];
+                int count = mCounts[index];
+                long timestamp = mTimestamps[index];
+                long enqueueTime = mEnqueueTimes[index];
+                // Protect the bytes before claiming the record.
+                mBusyPosition = position;
+                if (mHead.compareAndSet(head, head + 1)) {
+                    if (count == FLUSH_RECORD) {
+                        mBusyPosition = NOT_BUSY;
+                        onDelivered();
+                        deliverFlush();
+                        return true;
+                    }
+                    try {
+                        mReceiver.send(mArena, (int) (position & mArenaMask),
+                                count, timestamp);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Receiver failed, removing it.", e);
+                        mReceivers.remove(mReceiver);
+                        removeAsyncReceiver(mReceiver);
+                    } finally {
+                        mBusyPosition = NOT_BUSY;
+                        onDelivered();
+                    }
+                    updateLag(enqueueTime);
+                    return true;
+                }
+                // The dispatcher dropped it first, try the next one. It may
+                // have seen the bytes as busy, so tell it they are free.
+                mBusyPosition = NOT_BUSY;
+                onDelivered();
+            }
+        }
+
+        private void deliverFlush() {
+            try {
+                mReceiver.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Receiver failed, removing it.", e);
+                mReceivers.remove(mReceiver);
+                removeAsyncReceiver(mReceiver);
+            }
+        }
+
+        /**
+         * Deliver the kept values with the timestamp of the message that
+         * set them. Messages queued later have already replaced them.
+         */
+        private void deliverCoalesced() {
+            for (int i = 0; i < COALESCE_TABLE_SIZE
+                    && mCoalescedPending.get() > 0; i++) {
+                long timestamp = mCoalescedTimestamps.get(i);
+                int packed = mCoalesced.getAndSet(i, 0);
+                if (packed == 0) {
+                    continue;
+                }
+                mCoalescedPending.decrementAndGet();
+                mCoalesceBuffer[0] = (byte) (packed >> 16);
+                mCoalesceBuffer[1] = (byte) (packed >> 8);
+                mCoalesceBuffer[2] = (byte) packed;
+                int count = MidiConstants.getBytesPerMessage(mCoalesceBuffer[0]);
+                try {
+                    mReceiver.send(mCoalesceBuffer, 0, count, timestamp);
+                } catch (IOException e) {
+                    Log.e(TAG, "Receiver failed, removing it.", e);
+                    mReceivers.remove(mReceiver);
+                    removeAsyncReceiver(mReceiver);
+                    return;
+                }
+                mDeliveredCount++;
+            }
+        }
+
+        private void updateLag(long enqueueTime) {
+            long lag = System.nanoTime() - enqueueTime;
+            mLastLagNanos = lag;
+            if (lag > mMaxLagNanos) {
+                mMaxLagNanos = lag;
+            }
+            mDeliveredCount++;
+        }
     }
 }
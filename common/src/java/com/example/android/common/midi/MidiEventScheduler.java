@@ -22,6 +22,14 @@ import java.io.IOException;
 
 /**
  * Add MIDI Events to an EventScheduler
+ *
+ * By default events that do not fit in the pool are allocated on demand.
+ * In slab mode all of the events are preallocated and share one byte array.
+ * Long messages such as SysEx are split into pieces with the same timestamp.
+ * If the slab does not have room for the whole message then it is dropped
+ * and counted instead of allocating memory. Use it with a
+ * {@link TimingWheelEventBuffer} so that the receiving thread does not
+ * allocate at all.
  */
 public class MidiEventScheduler extends EventScheduler {
     private static final String TAG = "MidiEventScheduler";
@@ -29,6 +37,52 @@ public class MidiEventScheduler extends EventScheduler {
     // This pool increases performance by about 14%.
     private final static int POOL_EVENT_SIZE = 16;
     private MidiReceiver mReceiver = new SchedulingReceiver();
+    // Shared storage for all events in slab mode, or null.
+    private final byte[] mSlab;
+    private final int mSlabCapacity;
+
+    // These are only written by the receiving thread.
+    private volatile long mPoolHitCount;
+    private volatile long mPoolMissCount;
+    private volatile long mDropCount;
+
+    public MidiEventScheduler() {
+        super();
+        mSlab = null;
+        mSlabCapacity = 0;
+    }
+
+    /**
+     * @param eventBuffer storage for the scheduled events,
+     *        for example a {@link TimingWheelEventBuffer}
+     */
+    public MidiEventScheduler(EventBuffer eventBuffer) {
+        super(eventBuffer);
+        mSlab = null;
+        mSlabCapacity = 0;
+    }
+
+    /**
+     * Create a scheduler in slab mode.
+     *
+     * @param eventBuffer storage for the scheduled events
+     * @param slabCapacity maximum number of events that can be scheduled
+     *        at once, each holding up to 16 bytes
+     */
+    public MidiEventScheduler(EventBuffer eventBuffer, int slabCapacity) {
+        super(eventBuffer);
+        if (slabCapacity <= 0) {
+            throw new IllegalArgumentException("slabCapacity must be positive");
+        }
+        mSlabCapacity = slabCapacity;
+        // The pool always keeps one event so allocate an extra slot.
+        int numSlots = slabCapacity + 1;
+        mSlab = new byte[numSlots * POOL_EVENT_SIZE];
+        setMaxPoolSize(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            super.addEventToPool(new MidiEvent(mSlab, i * POOL_EVENT_SIZE));
+        }
+    }
 
     private class SchedulingReceiver extends MidiReceiver
     {
@@ -39,15 +93,20 @@ public class MidiEventScheduler extends EventScheduler {
         @Override
         public void onSend(byte[] msg, int offset, int count, long timestamp)
                 throws IOException {
-            MidiEvent event = createScheduledEvent(msg, offset, count, timestamp);
-            if (event != null) {
-                add(event);
+            if (mSlab != null) {
+                scheduleInSlab(msg, offset, count, timestamp);
+            } else {
+                MidiEvent event = createScheduledEvent(msg, offset, count, timestamp);
+                if (event != null) {
+                    add(event);
+                }
             }
         }
     }
 
     public static class MidiEvent extends SchedulableEvent {
         public int count = 0;
+        public int offset = 0;
         public byte[] data;
 
         private MidiEvent(int count) {
@@ -62,11 +121,18 @@ public class MidiEventScheduler extends EventScheduler {
             this.count = count;
         }
 
+        // Event that refers to a slot in a shared slab.
+        private MidiEvent(byte[] slab, int offset) {
+            super(0);
+            data = slab;
+            this.offset = offset;
+        }
+
         @Override
         public String toString() {
             String text = "Event: ";
             for (int i = 0; i < count; i++) {
-                text += data[i] + ", ";
+                text += data[offset + i] + ", ";
             }
             return text;
         }
@@ -80,10 +146,14 @@ public class MidiEventScheduler extends EventScheduler {
         MidiEvent event;
         if (count > POOL_EVENT_SIZE) {
             event = new MidiEvent(msg, offset, count, timestamp);
+            mPoolMissCount++;
         } else {
             event = (MidiEvent) removeEventfromPool();
             if (event == null) {
                 event = new MidiEvent(POOL_EVENT_SIZE);
+                mPoolMissCount++;
+            } else {
+                mPoolHitCount++;
             }
             System.arraycopy(msg, offset, event.data, 0, count);
             event.count = count;
@@ -92,6 +162,32 @@ public class MidiEventScheduler extends EventScheduler {
         return event;
     }
 
+    /**
+     * Copy the message into slab events, splitting it if needed. If the slab
+     * does not have room for every piece then the whole message is dropped,
+     * so a truncated SysEx is never delivered.
+     */
+    private void scheduleInSlab(byte[] msg, int offset, int count,
+            long timestamp) {
+        int numChunks = (count + POOL_EVENT_SIZE - 1) / POOL_EVENT_SIZE;
+        if (numChunks > getAvailablePoolEventCount()) {
+            mDropCount++;
+            return;
+        }
+        while (count > 0) {
+            // Cannot be null because we checked the pool above.
+            MidiEvent event = (MidiEvent) removeEventfromPool();
+            mPoolHitCount++;
+            int chunk = Math.min(count, POOL_EVENT_SIZE);
+            System.arraycopy(msg, offset, event.data, event.offset, chunk);
+            event.count = chunk;
+            event.setTimestamp(timestamp);
+            add(event);
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
     /**
      * Return events to a pool so they can be reused.
      *
@@ -102,12 +198,52 @@ public class MidiEventScheduler extends EventScheduler {
         // Make sure the event is suitable for the pool.
         if (event instanceof MidiEvent) {
             MidiEvent midiEvent = (MidiEvent) event;
-            if (midiEvent.data.length == POOL_EVENT_SIZE) {
+            if (mSlab != null) {
+                if (midiEvent.data == mSlab) {
+                    super.addEventToPool(event);
+                }
+            } else if (midiEvent.data.length == POOL_EVENT_SIZE) {
                 super.addEventToPool(event);
             }
         }
     }
 
+    /**
+     * @return true if all events are preallocated in a slab
+     */
+    public boolean isSlabMode() {
+        return mSlab != null;
+    }
+
+    /**
+     * @return maximum number of events in the slab, or zero if not in slab mode
+     */
+    public int getSlabCapacity() {
+        return mSlabCapacity;
+    }
+
+    /**
+     * @return number of events that were taken from the pool
+     */
+    public long getPoolHitCount() {
+        return mPoolHitCount;
+    }
+
+    /**
+     * @return number of events that had to be allocated because the pool
+     *         was empty or the message was too big
+     */
+    public long getPoolMissCount() {
+        return mPoolMissCount;
+    }
+
+    /**
+     * @return number of messages that were dropped because the slab was full
+     */
+    public long getDropCount() {
+        return mDropCount;
+    }
+
     /**
      * This MidiReceiver will write date to the scheduling buffer.
      * @return the MidiReceiver
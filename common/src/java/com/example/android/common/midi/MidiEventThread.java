@@ -36,9 +36,9 @@ public class MidiEventThread extends MidiEventScheduler {
                 try {
                     MidiEvent event = (MidiEvent) waitNextEvent();
                     try {
-                        Log.i(TAG, "Fire event " + event.data[0] + " at "
+                        Log.i(TAG, "Fire event " + event.data[event.offset] + " at "
                                 + event.getTimestamp());
-                        mDispatcher.send(event.data, 0,
+                        mDispatcher.send(event.data, event.offset,
                                 event.count, event.getTimestamp());
                     } catch (IOException e) {
                         e.printStackTrace();
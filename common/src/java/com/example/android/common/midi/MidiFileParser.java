@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi;
+
+import android.media.midi.MidiReceiver;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Read a Standard MIDI File and send its events to a MidiReceiver.
+ *
+ * Format 0 and 1 files are supported. The events of all tracks are merged
+ * and sent in time order. The timestamp of each event is the time in
+ * nanoseconds from the start of the file, based on the tempo map.
+ * Meta events are not sent.
+ */
+public class MidiFileParser {
+    private static final int HEADER_ID = 0x4D546864; // "MThd"
+    private static final int TRACK_ID = 0x4D54726B; // "MTrk"
+    private static final int META_EVENT = 0xFF;
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int META_SET_TEMPO = 0x51;
+    private static final int DEFAULT_MICROS_PER_BEAT = 500000; // 120 BPM
+    private static final long NANOS_PER_MICRO = 1000;
+    private static final long NANOS_PER_SECOND = 1000000000;
+
+    private static class FileEvent {
+        final long tick;
+        final int order; // keeps events with the same tick in file order
+        final byte[] data; // null for tempo changes
+        final int microsPerBeat;
+
+        FileEvent(long tick, int order, byte[] data, int microsPerBeat) {
+            this.tick = tick;
+            this.order = order;
+            this.data = data;
+            this.microsPerBeat = microsPerBeat;
+        }
+    }
+
+    private MidiFileParser() {
+    }
+
+    /**
+     * Parse the file and send every event to the receiver.
+     *
+     * @param input Standard MIDI File data
+     * @param receiver receives events with a timestamp in nanoseconds
+     * @return duration of the file in nanoseconds
+     * @throws IOException if the file cannot be read or is not a MIDI file
+     */
+    public static long parse(InputStream input, MidiReceiver receiver)
+            throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != HEADER_ID) {
+            throw new IOException("Not a Standard MIDI File");
+        }
+        int headerLength = in.readInt();
+        in.readUnsignedShort(); // format, tracks are merged anyway
+        int numTracks = in.readUnsignedShort();
+        int division = in.readUnsignedShort();
+        skipFully(in, headerLength - 6);
+
+        // Ticks are converted to nanoseconds, so check the division first.
+        boolean smpte = (division & 0x8000) != 0;
+        double nanosPerTick;
+        if (smpte) {
+            int framesPerSecond = -((byte) (division >> 8));
+            int ticksPerFrame = division & 0xFF;
+            if (framesPerSecond <= 0 || ticksPerFrame == 0) {
+                throw new IOException("Bad SMPTE division " + framesPerSecond
+                        + " frames per second, " + ticksPerFrame + " ticks per frame");
+            }
+            nanosPerTick = (double) NANOS_PER_SECOND
+                    / (framesPerSecond * ticksPerFrame);
+        } else {
+            if (division == 0) {
+                throw new IOException("Bad division of 0 ticks per beat");
+            }
+            nanosPerTick = (double) DEFAULT_MICROS_PER_BEAT * NANOS_PER_MICRO
+                    / division;
+        }
+
+        ArrayList<FileEvent> events = new ArrayList<FileEvent>();
+        int tracksRead = 0;
+        while (tracksRead < numTracks) {
+            int chunkId = in.readInt();
+            int chunkLength = in.readInt();
+            if (chunkLength < 0) {
+                throw new IOException("Bad chunk length " + chunkLength);
+            }
+            if (chunkId == TRACK_ID) {
+                byte[] track = new byte[chunkLength];
+                in.readFully(track);
+                readTrack(track, events);
+                tracksRead++;
+            } else {
+                // Unknown chunks must be ignored.
+                skipFully(in, chunkLength);
+            }
+        }
+
+        Collections.sort(events, new Comparator<FileEvent>() {
+            @Override
+            public int compare(FileEvent a, FileEvent b) {
+                if (a.tick != b.tick) {
+                    return (a.tick < b.tick) ? -1 : 1;
+                }
+                return a.order - b.order;
+            }
+        });
+
+        // Convert ticks to nanoseconds while following the tempo changes.
+        long lastTick = 0;
+        double nanos = 0.0;
+        for (FileEvent event : events) {
+            nanos += (event.tick - lastTick) * nanosPerTick;
+            lastTick = event.tick;
+            if (event.data == null) {
+                if (!smpte) {
+                    nanosPerTick = (double) event.microsPerBeat
+                            * NANOS_PER_MICRO / division;
+                }
+            } else {
+                receiver.send(event.data, 0, event.data.length, (long) nanos);
+            }
+        }
+        return (long) nanos;
+    }
+
+    private static void readTrack(byte[] track, ArrayList<FileEvent> events)
+            throws IOException {
+        int[] position = new int[1];
+        long tick = 0;
+        int runningStatus = 0;
+        while (position[0] < track.length) {
+            tick += readVariableLength(track, position);
+            checkAvailable(track, position, 1);
+            int status = track[position[0]] & 0xFF;
+            if (status >= 0x80) {
+                position[0]++;
+            } else if (runningStatus != 0) {
+                status = runningStatus;
+            } else {
+                throw new IOException("Data byte without status at "
+                        + position[0]);
+            }
+            if (status >= 0xF0) {
+                // SysEx and meta events cancel running status.
+                runningStatus = 0;
+            }
+
+            if (status == META_EVENT) {
+                checkAvailable(track, position, 1);
+                int type = track[position[0]++] & 0xFF;
+                int length = (int) readVariableLength(track, position);
+                checkAvailable(track, position, length);
+                if (type == META_SET_TEMPO && length == 3) {
+                    int p = position[0];
+                    int micros = ((track[p] & 0xFF) << 16)
+                            | ((track[p + 1] & 0xFF) << 8) | (track[p + 2] & 0xFF);
+                    events.add(new FileEvent(tick, events.size(), null, micros));
+                }
+                position[0] += length;
+                if (type == META_END_OF_TRACK) {
+                    break;
+                }
+            } else if (status == (MidiConstants.STATUS_SYSTEM_EXCLUSIVE & 0xFF)) {
+                // The length does not include the F0 status byte.
+                int length = (int) readVariableLength(track, position);
+                checkAvailable(track, position, length);
+                byte[] data = new byte[length + 1];
+                data[0] = MidiConstants.STATUS_SYSTEM_EXCLUSIVE;
+                System.arraycopy(track, position[0], data, 1, length);
+                position[0] += length;
+                events.add(new FileEvent(tick, events.size(), data, 0));
+            } else if (status == (MidiConstants.STATUS_END_SYSEX & 0xFF)) {
+                // Escape sequence, send the bytes as they are.
+                int length = (int) readVariableLength(track, position);
+                checkAvailable(track, position, length);
+                byte[] data = new byte[length];
+                System.arraycopy(track, position[0], data, 0, length);
+                position[0] += length;
+                events.add(new FileEvent(tick, events.size(), data, 0));
+            } else {
+                int length = MidiConstants.getBytesPerMessage((byte) status);
+                checkAvailable(track, position, length - 1);
+                byte[] data = new byte[length];
+                data[0] = (byte) status;
+                System.arraycopy(track, position[0], data, 1, length - 1);
+                position[0] += length - 1;
+                if (status < 0xF0) {
+                    runningStatus = status;
+                }
+                events.add(new FileEvent(tick, events.size(), data, 0));
+            }
+        }
+    }
+
+    /**
+     * Read a variable length quantity, which is at most 4 bytes.
+     */
+    private static long readVariableLength(byte[] track, int[] position)
+            throws IOException {
+        long value = 0;
+        int b;
+        int numBytes = 0;
+        do {
+            if (++numBytes > 4) {
+                throw new IOException("Variable length quantity too long at "
+                        + position[0]);
+            }
+            checkAvailable(track, position, 1);
+            b = track[position[0]++] & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void checkAvailable(byte[] track, int[] position, int count)
+            throws IOException {
+        if (count > track.length - position[0]) {
+            throw new IOException("Unexpected end of track at " + position[0]);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int count)
+            throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of MIDI file");
+            }
+            count -= skipped;
+        }
+    }
+}
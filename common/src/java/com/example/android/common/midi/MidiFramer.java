@@ -20,6 +20,7 @@ import android.media.midi.MidiReceiver;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Convert stream of arbitrary MIDI bytes into discrete messages.
@@ -29,8 +30,22 @@ import java.io.IOException;
  * System Exclusive messages may be posted in pieces.
  *
  * Resolves Running Status and interleaved System Real-Time messages.
+ * Runs of data bytes are scanned in bulk. Complete messages with a status
+ * byte are sent straight from the input buffer.
+ *
+ * If a {@link MessageBatchReceiver} is used instead of a MidiReceiver then
+ * all of the messages found in one input buffer are delivered together in
+ * a single call.
  */
 public class MidiFramer extends MidiReceiver {
+    // Message length for every status byte, zero for data bytes.
+    private static final byte[] MESSAGE_LENGTHS = new byte[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            MESSAGE_LENGTHS[i] = (byte) MidiConstants.getBytesPerMessage((byte) i);
+        }
+    }
+
     private MidiReceiver mReceiver;
     private byte[] mBuffer = new byte[3];
     private int mCount;
@@ -38,8 +53,41 @@ public class MidiFramer extends MidiReceiver {
     private int mNeeded;
     private boolean mInSysEx;
 
+    // Used when delivering messages in batches.
+    private final MessageBatchReceiver mBatchReceiver;
+    private byte[] mBatchData;
+    private int[] mBatchOffsets;
+    private int[] mBatchCounts;
+    private int mBatchSize;
+    private int mNumBatched;
+
+    /**
+     * Receives all of the messages framed from one input buffer.
+     */
+    public interface MessageBatchReceiver {
+        /**
+         * The arrays are reused after this returns so do not keep them.
+         *
+         * @param data bytes of all the messages
+         * @param offsets start of each message in data
+         * @param counts number of bytes in each message
+         * @param numMessages number of messages in the batch
+         * @param timestamp timestamp of the input buffer
+         */
+        void onMessages(byte[] data, int[] offsets, int[] counts,
+                int numMessages, long timestamp) throws IOException;
+    }
+
     public MidiFramer(MidiReceiver receiver) {
         mReceiver = receiver;
+        mBatchReceiver = null;
+    }
+
+    public MidiFramer(MessageBatchReceiver batchReceiver) {
+        mBatchReceiver = batchReceiver;
+        mBatchData = new byte[256];
+        mBatchOffsets = new int[64];
+        mBatchCounts = new int[64];
     }
 
     /*
@@ -48,65 +96,149 @@ public class MidiFramer extends MidiReceiver {
     @Override
     public void onSend(byte[] data, int offset, int count, long timestamp)
             throws IOException {
+        final int end = offset + count;
         int sysExStartOffset = (mInSysEx ? offset : -1);
+        mNumBatched = 0;
+        mBatchSize = 0;
 
-        for (int i = 0; i < count; i++) {
-            final byte currentByte = data[offset];
+        int i = offset;
+        while (i < end) {
+            final byte currentByte = data[i];
             final int currentInt = currentByte & 0xFF;
-            if (currentInt >= 0x80) { // status byte?
-                if (currentInt < 0xF0) { // channel message?
-                    mRunningStatus = currentByte;
-                    mCount = 1;
-                    mNeeded = MidiConstants.getBytesPerMessage(currentByte) - 1;
-                } else if (currentInt < 0xF8) { // system common?
-                    if (currentInt == 0xF0 /* SysEx Start */) {
-                        // Log.i(TAG, "SysEx Start");
-                        mInSysEx = true;
-                        sysExStartOffset = offset;
-                    } else if (currentInt == 0xF7 /* SysEx End */) {
-                        // Log.i(TAG, "SysEx End");
-                        if (mInSysEx) {
-                            mReceiver.send(data, sysExStartOffset,
-                                offset - sysExStartOffset + 1, timestamp);
-                            mInSysEx = false;
-                            sysExStartOffset = -1;
-                        }
-                    } else {
-                        mBuffer[0] = currentByte;
-                        mRunningStatus = 0;
-                        mCount = 1;
-                        mNeeded = MidiConstants.getBytesPerMessage(currentByte) - 1;
+            if (currentInt < 0x80) { // data byte
+                if (mInSysEx || mNeeded == 0) {
+                    // SysEx data is sent in pieces, and data bytes that do
+                    // not follow a status byte are ignored, so skip the run.
+                    i = skipDataBytes(data, i + 1, end);
+                    continue;
+                }
+                if (mCount == 1 && mRunningStatus != 0) {
+                    i = frameRunningStatus(data, i, end, timestamp);
+                    if (i == end || data[i] < 0) {
+                        continue;
                     }
-                } else { // real-time?
-                    // Single byte message interleaved with other data.
-                    if (mInSysEx) {
-                        mReceiver.send(data, sysExStartOffset,
-                                offset - sysExStartOffset, timestamp);
-                        sysExStartOffset = offset + 1;
+                }
+                // Part of a message that is not complete in this run.
+                mBuffer[mCount++] = data[i];
+                if (--mNeeded == 0) {
+                    if (mRunningStatus != 0) {
+                        mBuffer[0] = mRunningStatus;
                     }
-                    mReceiver.send(data, offset, 1, timestamp);
+                    emit(mBuffer, 0, mCount, timestamp);
+                    mNeeded = MESSAGE_LENGTHS[mBuffer[0] & 0xFF] - 1;
+                    mCount = 1;
                 }
-            } else { // data byte
-                if (!mInSysEx) {
-                    mBuffer[mCount++] = currentByte;
-                    if (--mNeeded == 0) {
-                        if (mRunningStatus != 0) {
-                            mBuffer[0] = mRunningStatus;
-                        }
-                        mReceiver.send(mBuffer, 0, mCount, timestamp);
-                        mNeeded = MidiConstants.getBytesPerMessage(mBuffer[0]) - 1;
-                        mCount = 1;
+                i++;
+            } else if (currentInt < 0xF0) { // channel message
+                mRunningStatus = currentByte;
+                mCount = 1;
+                mNeeded = MESSAGE_LENGTHS[currentInt] - 1;
+                if (!mInSysEx && i + mNeeded < end && isDataRun(data, i + 1, mNeeded)) {
+                    // Send the whole message straight from the input.
+                    emit(data, i, mNeeded + 1, timestamp);
+                    i += mNeeded + 1;
+                } else {
+                    i++;
+                }
+            } else if (currentInt < 0xF8) { // system common
+                if (currentInt == 0xF0 /* SysEx Start */) {
+                    mInSysEx = true;
+                    sysExStartOffset = i;
+                } else if (currentInt == 0xF7 /* SysEx End */) {
+                    if (mInSysEx) {
+                        emit(data, sysExStartOffset, i - sysExStartOffset + 1, timestamp);
+                        mInSysEx = false;
+                        sysExStartOffset = -1;
                     }
+                } else {
+                    mBuffer[0] = currentByte;
+                    mRunningStatus = 0;
+                    mCount = 1;
+                    mNeeded = MESSAGE_LENGTHS[currentInt] - 1;
+                    if (mNeeded == 0) {
+                        // Single byte message such as Tune Request.
+                        emit(mBuffer, 0, 1, timestamp);
+                    }
+                }
+                i++;
+            } else { // real-time
+                // Single byte message interleaved with other data.
+                if (mInSysEx) {
+                    emit(data, sysExStartOffset, i - sysExStartOffset, timestamp);
+                    sysExStartOffset = i + 1;
                 }
+                emit(data, i, 1, timestamp);
+                i++;
             }
-            ++offset;
         }
 
         // send any accumulatedSysEx data
-        if (sysExStartOffset >= 0 && sysExStartOffset < offset) {
-            mReceiver.send(data, sysExStartOffset,
-                    offset - sysExStartOffset, timestamp);
+        if (sysExStartOffset >= 0 && sysExStartOffset < end) {
+            emit(data, sysExStartOffset, end - sysExStartOffset, timestamp);
+        }
+
+        if (mNumBatched > 0) {
+            mBatchReceiver.onMessages(mBatchData, mBatchOffsets, mBatchCounts,
+                    mNumBatched, timestamp);
+        }
+    }
+
+    /**
+     * @return index of the first status byte at or after start, or end
+     */
+    private static int skipDataBytes(byte[] data, int start, int end) {
+        while (start < end && data[start] >= 0) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return true if the one or two bytes at start are data bytes
+     */
+    private static boolean isDataRun(byte[] data, int start, int length) {
+        // Data bytes are the only ones with the top bit clear.
+        return (data[start] | data[start + length - 1]) >= 0;
+    }
+
+    /**
+     * Emit the complete messages that use running status at the start of a
+     * run of data bytes.
+     *
+     * @return index of the first byte that is not part of a complete message
+     */
+    private int frameRunningStatus(byte[] data, int start, int end, long timestamp)
+            throws IOException {
+        final int length = mNeeded;
+        mBuffer[0] = mRunningStatus;
+        while (start + length <= end && isDataRun(data, start, length)) {
+            mBuffer[1] = data[start];
+            mBuffer[length] = data[start + length - 1];
+            emit(mBuffer, 0, length + 1, timestamp);
+            start += length;
+        }
+        return start;
+    }
+
+    private void emit(byte[] data, int offset, int count, long timestamp)
+            throws IOException {
+        if (mBatchReceiver == null) {
+            mReceiver.send(data, offset, count, timestamp);
+            return;
+        }
+        if (mNumBatched == mBatchOffsets.length) {
+            mBatchOffsets = Arrays.copyOf(mBatchOffsets, mNumBatched * 2);
+            mBatchCounts = Arrays.copyOf(mBatchCounts, mNumBatched * 2);
+        }
+        if (mBatchSize + count > mBatchData.length) {
+            mBatchData = Arrays.copyOf(mBatchData,
+                    Math.max(mBatchData.length * 2, mBatchSize + count));
         }
+        System.arraycopy(data, offset, mBatchData, mBatchSize, count);
+        mBatchOffsets[mNumBatched] = mBatchSize;
+        mBatchCounts[mNumBatched] = count;
+        mNumBatched++;
+        mBatchSize += count;
     }
 
 }
@@ -33,7 +33,7 @@ import java.io.IOException;
  */
 public class MidiOutputPortSelector extends MidiPortSelector {
     private MidiOutputPort mOutputPort;
-    private MidiDispatcher mDispatcher = new MidiDispatcher();
+    private final MidiDispatcher mDispatcher;
     private MidiDevice mOpenDevice;
 
     /**
@@ -43,7 +43,20 @@ public class MidiOutputPortSelector extends MidiPortSelector {
      */
     public MidiOutputPortSelector(MidiManager midiManager, Activity activity,
             int spinnerId) {
+        this(midiManager, activity, spinnerId, new MidiDispatcher());
+    }
+
+    /**
+     * @param midiManager
+     * @param activity
+     * @param spinnerId ID from the layout resource
+     * @param dispatcher sends the messages from the selected port to the
+     *        connected receivers. The caller closes it.
+     */
+    public MidiOutputPortSelector(MidiManager midiManager, Activity activity,
+            int spinnerId, MidiDispatcher dispatcher) {
         super(midiManager, activity, spinnerId, MidiDeviceInfo.PortInfo.TYPE_OUTPUT);
+        mDispatcher = dispatcher;
     }
 
     @Override
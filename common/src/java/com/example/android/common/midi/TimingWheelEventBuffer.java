@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi;
+
+import com.example.android.common.midi.EventScheduler.EventBuffer;
+import com.example.android.common.midi.EventScheduler.SchedulableEvent;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventBuffer based on a hierarchical timing wheel.
+ *
+ * The writing thread pushes events onto a lock-free inbox. The reading thread
+ * moves them from the inbox into a timing wheel that only it touches, so no
+ * locks are needed. Events are linked through their own mNext field so
+ * nothing is allocated when events are added or removed.
+ *
+ * The wheel has three levels of 256 slots. A level 0 slot covers 2^16
+ * nanoseconds, about 65 microseconds, and is kept sorted by timestamp.
+ * Events that are further in the future are cascaded down when their slot
+ * comes up. Events beyond the reach of the wheel wait in an overflow list.
+ *
+ * The reader sleeps using LockSupport.parkNanos() so it can wake up with
+ * sub-millisecond precision.
+ */
+public class TimingWheelEventBuffer implements EventBuffer {
+    private static final int TICK_SHIFT = 16; // nanoseconds per tick = 65536
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int NUM_LEVELS = 3;
+
+    // Written by the writing thread, emptied by the reading thread.
+    private final AtomicReference<SchedulableEvent> mInbox
+            = new AtomicReference<SchedulableEvent>();
+    // Deadline of the sleeping reader, or Long.MIN_VALUE if it is awake.
+    private volatile long mWakeTime = Long.MIN_VALUE;
+    private volatile Thread mReaderThread;
+
+    // Everything below is only accessed by the reading thread.
+    private final SchedulableEvent[][] mHeads
+            = new SchedulableEvent[NUM_LEVELS][WHEEL_SIZE];
+    private final SchedulableEvent[][] mTails
+            = new SchedulableEvent[NUM_LEVELS][WHEEL_SIZE];
+    private final int[] mLevelCounts = new int[NUM_LEVELS];
+    private SchedulableEvent mOverflowHead;
+    private SchedulableEvent mOverflowTail;
+    private int mOverflowCount;
+    private long mCurrentTick;
+    private int mCount;
+
+    @Override
+    public void add(SchedulableEvent event) {
+        SchedulableEvent head;
+        do {
+            head = mInbox.get();
+            event.mNext = head;
+        } while (!mInbox.compareAndSet(head, event));
+        // If the reader is sleeping past this event then wake it up.
+        // The reader checks the inbox after setting mWakeTime so we cannot
+        // both miss each other.
+        if (event.getTimestamp() < mWakeTime) {
+            Thread reader = mReaderThread;
+            if (reader != null) {
+                LockSupport.unpark(reader);
+            }
+        }
+    }
+
+    @Override
+    public SchedulableEvent getNextEvent(long time) {
+        drainInbox(time);
+        return removeNextEvent(time);
+    }
+
+    @Override
+    public SchedulableEvent waitNextEvent() throws InterruptedException {
+        mReaderThread = Thread.currentThread();
+        while (true) {
+            long now = System.nanoTime();
+            drainInbox(now);
+            SchedulableEvent event = removeNextEvent(now);
+            if (event != null) {
+                return event;
+            }
+            long wakeTime = (mCount == 0) ? Long.MAX_VALUE : findWakeTime();
+            mWakeTime = wakeTime;
+            if (mInbox.get() == null) {
+                if (wakeTime == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    long nanosToWait = wakeTime - System.nanoTime();
+                    if (nanosToWait > 0) {
+                        LockSupport.parkNanos(this, nanosToWait);
+                    }
+                }
+            }
+            mWakeTime = Long.MIN_VALUE;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * @return number of events that have been moved into the wheel
+     */
+    public int size() {
+        return mCount;
+    }
+
+    private static long toTick(long time) {
+        return time >> TICK_SHIFT;
+    }
+
+    private static long toTime(long tick) {
+        return tick << TICK_SHIFT;
+    }
+
+    /**
+     * Move events from the inbox into the wheel.
+     * The inbox is a stack so reverse it first to keep the order of events
+     * that have the same timestamp.
+     */
+    private void drainInbox(long now) {
+        SchedulableEvent event = mInbox.getAndSet(null);
+        if (event == null) {
+            return;
+        }
+        if (mCount == 0) {
+            // Nothing is pending so we can jump straight to the current time.
+            mCurrentTick = toTick(now);
+        }
+        SchedulableEvent reversed = null;
+        while (event != null) {
+            SchedulableEvent next = event.mNext;
+            event.mNext = reversed;
+            reversed = event;
+            event = next;
+        }
+        while (reversed != null) {
+            SchedulableEvent next = reversed.mNext;
+            insert(reversed);
+            mCount++;
+            reversed = next;
+        }
+    }
+
+    private void insert(SchedulableEvent event) {
+        long tick = toTick(event.getTimestamp());
+        long delta = tick - mCurrentTick;
+        if (delta < WHEEL_SIZE) {
+            // Late events go in the current slot. It is sorted so they
+            // will come out first.
+            if (delta < 0) {
+                tick = mCurrentTick;
+            }
+            insertSorted((int) (tick & WHEEL_MASK), event);
+        } else if (delta < (1L << (2 * WHEEL_BITS))) {
+            append(1, (int) ((tick >> WHEEL_BITS) & WHEEL_MASK), event);
+        } else if (delta < (1L << (3 * WHEEL_BITS))) {
+            append(2, (int) ((tick >> (2 * WHEEL_BITS)) & WHEEL_MASK), event);
+        } else {
+            event.mNext = null;
+            if (mOverflowTail == null) {
+                mOverflowHead = event;
+            } else {
+                mOverflowTail.mNext = event;
+            }
+            mOverflowTail = event;
+            mOverflowCount++;
+        }
+    }
+
+    // Insert after any events with the same or an earlier timestamp.
+    private void insertSorted(int index, SchedulableEvent event) {
+        SchedulableEvent[] heads = mHeads[0];
+        SchedulableEvent[] tails = mTails[0];
+        long timestamp = event.getTimestamp();
+        SchedulableEvent tail = tails[index];
+        mLevelCounts[0]++;
+        if (tail == null) {
+            event.mNext = null;
+            heads[index] = event;
+            tails[index] = event;
+        } else if (tail.getTimestamp() <= timestamp) {
+            event.mNext = null;
+            tail.mNext = event;
+            tails[index] = event;
+        } else if (heads[index].getTimestamp() > timestamp) {
+            event.mNext = heads[index];
+            heads[index] = event;
+        } else {
+            SchedulableEvent previous = heads[index];
+            while (previous.mNext.getTimestamp() <= timestamp) {
+                previous = previous.mNext;
+            }
+            event.mNext = previous.mNext;
+            previous.mNext = event;
+        }
+    }
+
+    private void append(int level, int index, SchedulableEvent event) {
+        event.mNext = null;
+        SchedulableEvent tail = mTails[level][index];
+        if (tail == null) {
+            mHeads[level][index] = event;
+        } else {
+            tail.mNext = event;
+        }
+        mTails[level][index] = event;
+        mLevelCounts[level]++;
+    }
+
+    /**
+     * Advance the wheel up to the given time and remove the earliest event
+     * if it is due.
+     */
+    private SchedulableEvent removeNextEvent(long time) {
+        if (mCount == 0) {
+            return null;
+        }
+        long targetTick = toTick(time);
+        while (true) {
+            int index = (int) (mCurrentTick & WHEEL_MASK);
+            SchedulableEvent event = mHeads[0][index];
+            if (event != null) {
+                if (event.getTimestamp() > time) {
+                    return null;
+                }
+                mHeads[0][index] = event.mNext;
+                if (event.mNext == null) {
+                    mTails[0][index] = null;
+                }
+                event.mNext = null;
+                mLevelCounts[0]--;
+                mCount--;
+                return event;
+            }
+            if (mCurrentTick >= targetTick) {
+                return null;
+            }
+            if (mLevelCounts[0] == 0) {
+                // Skip empty level 0 slots up to the next cascade.
+                mCurrentTick = Math.min(mCurrentTick | WHEEL_MASK, targetTick);
+                if (mCurrentTick >= targetTick) {
+                    return null;
+                }
+            }
+            advance();
+        }
+    }
+
+    // Move to the next tick and cascade higher levels when we cross them.
+    private void advance() {
+        mCurrentTick++;
+        if ((mCurrentTick & WHEEL_MASK) != 0) {
+            return;
+        }
+        long tick2 = mCurrentTick >> WHEEL_BITS;
+        if ((tick2 & WHEEL_MASK) == 0) {
+            long tick3 = tick2 >> WHEEL_BITS;
+            if ((tick3 & WHEEL_MASK) == 0 && mOverflowCount > 0) {
+                SchedulableEvent event = mOverflowHead;
+                mOverflowHead = null;
+                mOverflowTail = null;
+                mOverflowCount = 0;
+                reinsert(event);
+            }
+            cascade(2, (int) (tick3 & WHEEL_MASK));
+        }
+        cascade(1, (int) (tick2 & WHEEL_MASK));
+    }
+
+    private void cascade(int level, int index) {
+        SchedulableEvent event = mHeads[level][index];
+        if (event == null) {
+            return;
+        }
+        mHeads[level][index] = null;
+        mTails[level][index] = null;
+        while (event != null) {
+            mLevelCounts[level]--;
+            SchedulableEvent next = event.mNext;
+            insert(event);
+            event = next;
+        }
+    }
+
+    private void reinsert(SchedulableEvent event) {
+        while (event != null) {
+            SchedulableEvent next = event.mNext;
+            insert(event);
+            event = next;
+        }
+    }
+
+    /**
+     * @return time of the earliest event in level 0, or the time when the
+     *         next level 1 slot will be cascaded if that is sooner. Events in
+     *         higher levels may be due before later events in level 0, so we
+     *         must wake up at the cascade to find out. Package-private for
+     *         tests.
+     */
+    long findWakeTime() {
+        long wakeTime = Long.MAX_VALUE;
+        if (mLevelCounts[0] > 0) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                SchedulableEvent event = mHeads[0][(int) ((mCurrentTick + i) & WHEEL_MASK)];
+                if (event != null) {
+                    wakeTime = event.getTimestamp();
+                    break;
+                }
+            }
+        }
+        if (mLevelCounts[1] > 0 || mLevelCounts[2] > 0 || mOverflowCount > 0) {
+            wakeTime = Math.min(wakeTime, toTime((mCurrentTick | WHEEL_MASK) + 1));
+        }
+        return wakeTime;
+    }
+}
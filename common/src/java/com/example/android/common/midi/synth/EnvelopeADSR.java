@@ -16,6 +16,8 @@
 
 package com.example.android.common.midi.synth;
 
+import java.util.Arrays;
+
 /**
  * Very simple Attack, Decay, Sustain, Release envelope with linear ramps.
  *
@@ -104,6 +106,65 @@ public class EnvelopeADSR extends SynthUnit {
         return mCurrent;
     }
 
+    @Override
+    public void renderBlock(float[] output, int numFrames) {
+        float current = mCurrent;
+        int i = 0;
+        while (i < numFrames) {
+            switch (mSstate) {
+            case ATTACK:
+                while (i < numFrames) {
+                    current += mAttackRate;
+                    if (current > 1.0f) {
+                        current = 1.0f;
+                        output[i++] = current;
+                        mSstate = DECAY;
+                        break;
+                    }
+                    output[i++] = current;
+                }
+                break;
+            case DECAY:
+                while (i < numFrames) {
+                    current -= mDecayRate;
+                    if (current < mSustainLevel) {
+                        current = mSustainLevel;
+                        output[i++] = current;
+                        mSstate = SUSTAIN;
+                        break;
+                    }
+                    output[i++] = current;
+                }
+                break;
+            case RELEASE:
+                while (i < numFrames) {
+                    current -= mRreleaseRate;
+                    if (current < 0.0f) {
+                        current = 0.0f;
+                        output[i++] = current;
+                        mSstate = FINISHED;
+                        break;
+                    }
+                    output[i++] = current;
+                }
+                break;
+            default:
+                // Level is constant for the rest of the block.
+                Arrays.fill(output, i, numFrames, current);
+                i = numFrames;
+                break;
+            }
+        }
+        mCurrent = current;
+    }
+
+    /**
+     * @return current level of the envelope
+     */
+    public float getLevel() {
+        return mCurrent;
+    }
+
     public boolean isDone() {
         return mSstate == FINISHED;
     }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi.synth;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Audio output that writes raw little-endian float PCM to a file
+ * instead of an AudioTrack. Writes do not block on an audio device so
+ * it can be used for offline rendering.
+ *
+ * Optionally a WAV header is written so the file can be opened by
+ * other tools. Float data is not PCM so the header has the extended fmt
+ * chunk and a fact chunk. The sizes in the header are filled in by stop().
+ */
+public class FileAudioOutput extends SimpleAudioOutput {
+
+    private static final String TAG = "FileAudioOutput";
+    // RIFF header, then fmt, fact and data chunk headers.
+    private static final int WAV_HEADER_SIZE = 12 + (8 + 18) + (8 + 4) + 8;
+    private static final short WAVE_FORMAT_IEEE_FLOAT = 3;
+    private final File mFile;
+    private final boolean mWriteWaveHeader;
+    private FileChannel mChannel;
+    private ByteBuffer mByteBuffer;
+    private int mFrameRate;
+    private long mFramesWritten;
+
+    /**
+     * @param file file to create or overwrite when start() is called
+     */
+    public FileAudioOutput(File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param file file to create or overwrite when start() is called
+     * @param writeWaveHeader true to write a WAV file, false for raw PCM
+     */
+    public FileAudioOutput(File file, boolean writeWaveHeader) {
+        super();
+        mFile = file;
+        mWriteWaveHeader = writeWaveHeader;
+    }
+
+    @Override
+    public void start(int frameRate) {
+        stop();
+        mFrameRate = frameRate;
+        mFramesWritten = 0;
+        try {
+            mChannel = new FileOutputStream(mFile).getChannel();
+            if (mWriteWaveHeader) {
+                // Write a placeholder that is updated when we stop.
+                writeFully(createWaveHeader(0), 0);
+                mChannel.position(WAV_HEADER_SIZE);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open " + mFile, e);
+        }
+    }
+
+    @Override
+    public int write(float[] buffer, int offset, int length) {
+        if (mChannel == null) {
+            return -1;
+        }
+        int numBytes = length * BYTES_PER_SAMPLE;
+        if (mByteBuffer == null || mByteBuffer.capacity() < numBytes) {
+            mByteBuffer = ByteBuffer.allocateDirect(numBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mByteBuffer.clear();
+        mByteBuffer.asFloatBuffer().put(buffer, offset, length);
+        mByteBuffer.limit(numBytes);
+        try {
+            while (mByteBuffer.hasRemaining()) {
+                mChannel.write(mByteBuffer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write to " + mFile, e);
+            return -1;
+        }
+        mFramesWritten += length / SAMPLES_PER_FRAME;
+        return length;
+    }
+
+    @Override
+    public void stop() {
+        if (mChannel != null) {
+            try {
+                if (mWriteWaveHeader) {
+                    writeFully(createWaveHeader(mFramesWritten * BYTES_PER_FRAME), 0);
+                }
+                mChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close " + mFile, e);
+            }
+            mChannel = null;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    private ByteBuffer createWaveHeader(long dataSize) {
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        header.putInt((int) (WAV_HEADER_SIZE - 8 + dataSize));
+        header.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        header.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        header.putInt(18); // size of fmt chunk
+        header.putShort(WAVE_FORMAT_IEEE_FLOAT);
+        header.putShort((short) SAMPLES_PER_FRAME);
+        header.putInt(mFrameRate);
+        header.putInt(mFrameRate * BYTES_PER_FRAME);
+        header.putShort((short) BYTES_PER_FRAME);
+        header.putShort((short) (BYTES_PER_SAMPLE * 8));
+        header.putShort((short) 0); // no extension
+        header.put((byte) 'f').put((byte) 'a').put((byte) 'c').put((byte) 't');
+        header.putInt(4); // size of fact chunk
+        header.putInt((int) (dataSize / BYTES_PER_FRAME)); // frames
+        header.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        header.putInt((int) dataSize);
+        header.flip();
+        return header;
+    }
+
+    @Override
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @return number of frames written since start()
+     */
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+}
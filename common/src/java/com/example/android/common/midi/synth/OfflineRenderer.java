@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi.synth;
+
+import android.media.midi.MidiReceiver;
+import android.util.Log;
+
+import com.example.android.common.midi.MidiFileParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Render MIDI through a SynthEngine as fast as possible, without an audio
+ * device.
+ *
+ * Events are recorded by sending them to this receiver, with timestamps in
+ * nanoseconds, or by reading a Standard MIDI File. Then render() plays
+ * them through the engine and writes the audio to an output such as a
+ * {@link FileAudioOutput}. Events are applied at the start of the buffer
+ * that contains them, just like the realtime synthesizer thread.
+ */
+public class OfflineRenderer extends MidiReceiver {
+    private static final String TAG = "OfflineRenderer";
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final SynthEngine mEngine;
+    private byte[] mData = new byte[1024];
+    private int mDataSize;
+    private long[] mTimestamps = new long[64];
+    private int[] mOffsets = new int[64];
+    private int[] mCounts = new int[64];
+    private int mNumEvents;
+    private float mMaxTailSeconds = 5.0f;
+    private long mFramesRendered;
+    private double mRealtimeFactor;
+
+    /**
+     * @param engine synthesizer that has not been started
+     */
+    public OfflineRenderer(SynthEngine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Record an event to be rendered.
+     */
+    @Override
+    public void onSend(byte[] data, int offset, int count, long timestamp)
+            throws IOException {
+        if (mNumEvents == mTimestamps.length) {
+            int capacity = mNumEvents * 2;
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+        }
+        if (mDataSize + count > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2,
+                    mDataSize + count));
+        }
+        System.arraycopy(data, offset, mData, mDataSize, count);
+        mTimestamps[mNumEvents] = timestamp;
+        mOffsets[mNumEvents] = mDataSize;
+        mCounts[mNumEvents] = count;
+        mNumEvents++;
+        mDataSize += count;
+    }
+
+    /**
+     * Record every event in a Standard MIDI File.
+     *
+     * @param input
+     * @throws IOException
+     */
+    public void readMidiFile(InputStream input) throws IOException {
+        MidiFileParser.parse(input, this);
+    }
+
+    /**
+     * Forget all recorded events.
+     */
+    public void clear() {
+        mNumEvents = 0;
+        mDataSize = 0;
+    }
+
+    public int getEventCount() {
+        return mNumEvents;
+    }
+
+    /**
+     * Set how long to keep rendering after the last event while notes
+     * are still releasing.
+     *
+     * @param seconds
+     */
+    public void setMaxTailSeconds(float seconds) {
+        mMaxTailSeconds = seconds;
+    }
+
+    /**
+     * Render the recorded events. Time zero is the earliest event.
+     * The output is started and stopped by this method.
+     *
+     * @param audioOutput
+     * @return number of frames rendered
+     * @throws IOException
+     */
+    public long render(SimpleAudioOutput audioOutput) throws IOException {
+        final int numEvents = mNumEvents;
+        Integer[] order = new Integer[numEvents];
+        for (int i = 0; i < numEvents; i++) {
+            order[i] = i;
+        }
+        // Stable sort so events with the same time keep their order.
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ta = mTimestamps[a];
+                long tb = mTimestamps[b];
+                return (ta < tb) ? -1 : ((ta == tb) ? 0 : 1);
+            }
+        });
+        long origin = (numEvents > 0) ? mTimestamps[order[0]] : 0;
+        long lastEventFrame = (numEvents > 0)
+                ? nanosToFrames(mTimestamps[order[numEvents - 1]] - origin) : 0;
+        long endFrame = lastEventFrame
+                + (long) (mMaxTailSeconds * SynthEngine.FRAME_RATE);
+
+        audioOutput.start(SynthEngine.FRAME_RATE);
+        long startNanos = System.nanoTime();
+        long frame = 0;
+        int next = 0;
+        try {
+            while (next < numEvents || (frame < endFrame
+                    && mEngine.getActiveVoiceCount() > 0)) {
+                long bufferEnd = frame + mEngine.getFramesPerBuffer();
+                while (next < numEvents && nanosToFrames(
+                        mTimestamps[order[next]] - origin) < bufferEnd) {
+                    int index = order[next++];
+                    mEngine.sendImmediate(mData, mOffsets[index], mCounts[index]);
+                }
+                frame += mEngine.renderBuffer(audioOutput);
+            }
+        } finally {
+            audioOutput.stop();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        mFramesRendered = frame;
+        double audioSeconds = (double) frame / SynthEngine.FRAME_RATE;
+        mRealtimeFactor = (elapsedNanos > 0)
+                ? audioSeconds * NANOS_PER_SECOND / elapsedNanos : 0.0;
+        Log.i(TAG, "Rendered " + audioSeconds + " seconds in "
+                + (elapsedNanos / 1000000) + " msec, " + mRealtimeFactor
+                + " x realtime");
+        return frame;
+    }
+
+    /**
+     * @return number of frames written by the last render()
+     */
+    public long getFramesRendered() {
+        return mFramesRendered;
+    }
+
+    /**
+     * @return seconds of audio rendered per second of wall clock time
+     *         in the last render()
+     */
+    public double getRealtimeFactor() {
+        return mRealtimeFactor;
+    }
+
+    private static long nanosToFrames(long nanos) {
+        return nanos * SynthEngine.FRAME_RATE / NANOS_PER_SECOND;
+    }
+}
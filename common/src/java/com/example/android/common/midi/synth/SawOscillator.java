@@ -65,9 +65,37 @@ public class SawOscillator extends SynthUnit {
         return mPhase;
     }
 
+    /**
+     * Write the raw phase for a block of frames.
+     * Assumes the phase increment is less than 2.0 so that one wrap is enough.
+     */
+    void renderPhaseBlock(float[] output, int numFrames) {
+        float phase = mPhase;
+        final float increment = mPhaseIncrement;
+        for (int i = 0; i < numFrames; i++) {
+            phase += increment;
+            if (phase > 1.0f) {
+                phase -= 2.0f;
+            } else if (phase < -1.0f) {
+                phase += 2.0f;
+            }
+            output[i] = phase;
+        }
+        mPhase = phase;
+    }
+
     @Override
     public float render() {
         return incrementWrapPhase() * mAmplitude;
     }
 
+    @Override
+    public void renderBlock(float[] output, int numFrames) {
+        renderPhaseBlock(output, numFrames);
+        final float amplitude = mAmplitude;
+        for (int i = 0; i < numFrames; i++) {
+            output[i] *= amplitude;
+        }
+    }
+
 }
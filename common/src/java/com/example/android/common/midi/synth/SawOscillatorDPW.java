@@ -49,4 +49,21 @@ public class SawOscillatorDPW extends SawOscillator {
         return diffed * mScaler * getAmplitude();
     }
 
+    @Override
+    public void renderBlock(float[] output, int numFrames) {
+        renderPhaseBlock(output, numFrames);
+        final float gain = mScaler * getAmplitude();
+        float z1 = mZ1;
+        float z2 = mZ2;
+        for (int i = 0; i < numFrames; i++) {
+            float phase = output[i];
+            float squared = phase * phase;
+            output[i] = (squared - z2) * gain;
+            z2 = z1;
+            z1 = squared;
+        }
+        mZ1 = z1;
+        mZ2 = z2;
+    }
+
 }
@@ -22,6 +22,7 @@ package com.example.android.common.midi.synth;
 public class SawVoice extends SynthVoice {
     private SawOscillator mOscillator;
     private EnvelopeADSR mEnvelope;
+    private float[] mEnvelopeBuffer = new float[0];
 
     public SawVoice() {
         mOscillator = createOscillator();
@@ -57,6 +58,24 @@ public class SawVoice extends SynthVoice {
         return output;
     }
 
+    @Override
+    public void renderBlock(float[] output, int numFrames) {
+        if (mEnvelopeBuffer.length < numFrames) {
+            mEnvelopeBuffer = new float[numFrames];
+        }
+        float[] envelope = mEnvelopeBuffer;
+        mOscillator.renderBlock(output, numFrames);
+        mEnvelope.renderBlock(envelope, numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            output[i] *= envelope[i];
+        }
+    }
+
+    @Override
+    public float getLevel() {
+        return getAmplitude() * mEnvelope.getLevel();
+    }
+
     @Override
     public boolean isDone() {
         return mEnvelope.isDone();
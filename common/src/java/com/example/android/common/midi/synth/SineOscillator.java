@@ -51,4 +51,13 @@ public class SineOscillator extends SawOscillator {
         return fastSin(phase) * getAmplitude();
     }
 
+    @Override
+    public void renderBlock(float[] output, int numFrames) {
+        renderPhaseBlock(output, numFrames);
+        final float amplitude = getAmplitude();
+        for (int i = 0; i < numFrames; i++) {
+            output[i] = fastSin(output[i]) * amplitude;
+        }
+    }
+
 }
@@ -23,15 +23,24 @@ import com.example.android.common.midi.MidiConstants;
 import com.example.android.common.midi.MidiEventScheduler;
 import com.example.android.common.midi.MidiEventScheduler.MidiEvent;
 import com.example.android.common.midi.MidiFramer;
+import com.example.android.common.midi.TimingWheelEventBuffer;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * Very simple polyphonic, single channel synthesizer. It runs a background
+ * Very simple polyphonic, multi-timbral synthesizer. It runs a background
  * thread that processes MIDI events and synthesizes audio.
+ *
+ * Each of the 16 MIDI channels has its own program, pitch bend and group of
+ * voices. The groups can be rendered in parallel by calling
+ * setRenderThreads(). Groups are always summed in channel order so the
+ * output is the same no matter how many threads are used.
+ *
+ * For offline rendering do not call start(). Instead call sendImmediate()
+ * to play notes and renderBuffer() to synthesize audio, for example into a
+ * {@link FileAudioOutput}.
  */
 public class SynthEngine extends MidiReceiver {
 
@@ -40,17 +49,22 @@ public class SynthEngine extends MidiReceiver {
     public static final int FRAME_RATE = 48000;
     private static final int FRAMES_PER_BUFFER = 240;
     private static final int SAMPLES_PER_FRAME = 2;
+    public static final int DEFAULT_MAX_VOICES = 64;
+    public static final int NUM_CHANNELS = 16;
+    private static final float VOICE_LEVEL = 0.25f;
+    // Most MIDI events that can be waiting to be played at once.
+    private static final int EVENT_SLAB_CAPACITY = 2048;
 
     private boolean go;
     private Thread mThread;
     private float[] mBuffer = new float[FRAMES_PER_BUFFER * SAMPLES_PER_FRAME];
-    private float mFrequencyScaler = 1.0f;
     private float mBendRange = 2.0f; // semitones
-    private int mProgram;
 
-    private ArrayList<SynthVoice> mFreeVoices = new ArrayList<SynthVoice>();
-    private Hashtable<Integer, SynthVoice>
-            mVoices = new Hashtable<Integer, SynthVoice>();
+    private final VoiceGroup[] mVoiceGroups = new VoiceGroup[NUM_CHANNELS];
+    // Channels that were rendered for the current buffer.
+    private final int[] mRenderedChannels = new int[NUM_CHANNELS];
+    private int mRenderThreads = 1;
+    private ForkJoinPool mRenderPool;
     private MidiEventScheduler mEventScheduler;
     private MidiFramer mFramer;
     private MidiReceiver mReceiver = new MyReceiver();
@@ -61,6 +75,19 @@ public class SynthEngine extends MidiReceiver {
     }
 
     public SynthEngine(SimpleAudioOutput audioOutput) {
+        this(audioOutput, DEFAULT_MAX_VOICES);
+    }
+
+    /**
+     * @param audioOutput
+     * @param maxVoices maximum number of notes that can sound at once
+     *        on each channel
+     */
+    public SynthEngine(SimpleAudioOutput audioOutput, int maxVoices) {
+        for (int i = 0; i < NUM_CHANNELS; i++) {
+            mVoiceGroups[i] = new VoiceGroup(this, maxVoices,
+                    FRAMES_PER_BUFFER, SAMPLES_PER_FRAME, VOICE_LEVEL);
+        }
         mReceiver = new MyReceiver();
         mFramer = new MidiFramer(mReceiver);
         mAudioOutput = audioOutput;
@@ -81,22 +108,21 @@ public class SynthEngine extends MidiReceiver {
         @Override
         public void onSend(byte[] data, int offset, int count, long timestamp)
                 throws IOException {
-            byte command = (byte) (data[0] & MidiConstants.STATUS_COMMAND_MASK);
-            int channel = (byte) (data[0] & MidiConstants.STATUS_CHANNEL_MASK);
+            byte command = (byte) (data[offset] & MidiConstants.STATUS_COMMAND_MASK);
+            int channel = (byte) (data[offset] & MidiConstants.STATUS_CHANNEL_MASK);
             switch (command) {
             case MidiConstants.STATUS_NOTE_OFF:
-                noteOff(channel, data[1], data[2]);
+                noteOff(channel, data[offset + 1], data[offset + 2]);
                 break;
             case MidiConstants.STATUS_NOTE_ON:
-                noteOn(channel, data[1], data[2]);
+                noteOn(channel, data[offset + 1], data[offset + 2]);
                 break;
             case MidiConstants.STATUS_PITCH_BEND:
-                int bend = (data[2] << 7) + data[1];
+                int bend = (data[offset + 2] << 7) + data[offset + 1];
                 pitchBend(channel, bend);
                 break;
             case MidiConstants.STATUS_PROGRAM_CHANGE:
-                mProgram = data[1];
-                mFreeVoices.clear();
+                programChange(channel, data[offset + 1]);
                 break;
             default:
                 logMidiMessage(data, offset, count);
@@ -169,46 +195,115 @@ public class SynthEngine extends MidiReceiver {
         long now = System.nanoTime(); // TODO use audio presentation time
         MidiEvent event = (MidiEvent) mEventScheduler.getNextEvent(now);
         while (event != null) {
-            mFramer.send(event.data, 0, event.count, event.getTimestamp());
+            mFramer.send(event.data, event.offset, event.count, event.getTimestamp());
             mEventScheduler.addEventToPool(event);
             event = (MidiEvent) mEventScheduler.getNextEvent(now);
         }
     }
 
     /**
-     *
+     * Render every active voice group then sum them in channel order.
      */
     private void generateBuffer() {
-        for (int i = 0; i < mBuffer.length; i++) {
-            mBuffer[i] = 0.0f;
+        int numRendered = 0;
+        for (int i = 0; i < NUM_CHANNELS; i++) {
+            if (mVoiceGroups[i].isActive()) {
+                mRenderedChannels[numRendered++] = i;
+            }
+        }
+
+        ForkJoinPool pool = mRenderPool;
+        if (pool == null || numRendered < 2) {
+            for (int i = 0; i < numRendered; i++) {
+                mVoiceGroups[mRenderedChannels[i]].render();
+            }
+        } else {
+            // Fork all but the last group and render that one here.
+            for (int i = 0; i < numRendered - 1; i++) {
+                VoiceGroup group = mVoiceGroups[mRenderedChannels[i]];
+                group.reinitialize();
+                pool.execute(group);
+            }
+            mVoiceGroups[mRenderedChannels[numRendered - 1]].render();
+            for (int i = 0; i < numRendered - 1; i++) {
+                mVoiceGroups[mRenderedChannels[i]].join();
+            }
         }
-        Iterator<SynthVoice> iterator = mVoices.values().iterator();
-        while (iterator.hasNext()) {
-            SynthVoice voice = iterator.next();
-            if (voice.isDone()) {
-                iterator.remove();
-                // mFreeVoices.add(voice);
-            } else {
-                voice.mix(mBuffer, SAMPLES_PER_FRAME, 0.25f);
+
+        Arrays.fill(mBuffer, 0.0f);
+        for (int i = 0; i < numRendered; i++) {
+            float[] groupBuffer = mVoiceGroups[mRenderedChannels[i]].getBuffer();
+            for (int j = 0; j < mBuffer.length; j++) {
+                mBuffer[j] += groupBuffer[j];
             }
         }
     }
 
-    public void noteOff(int channel, int noteIndex, int velocity) {
-        SynthVoice voice = mVoices.get(noteIndex);
-        if (voice != null) {
-            voice.noteOff();
+    /**
+     * Send a MIDI message directly to the synthesizer, bypassing the
+     * scheduler. Use this with renderBuffer() when rendering offline.
+     */
+    public void sendImmediate(byte[] data, int offset, int count)
+            throws IOException {
+        mFramer.send(data, offset, count, 0);
+    }
+
+    /**
+     * Synthesize one buffer and write it to the output.
+     * This is for offline rendering and must not be called while the
+     * synthesizer thread is running.
+     *
+     * @param audioOutput
+     * @return number of frames rendered
+     */
+    public int renderBuffer(SimpleAudioOutput audioOutput) {
+        generateBuffer();
+        audioOutput.write(mBuffer, 0, mBuffer.length);
+        return FRAMES_PER_BUFFER;
+    }
+
+    public int getFramesPerBuffer() {
+        return FRAMES_PER_BUFFER;
+    }
+
+    /**
+     * Render voice groups in parallel using a pool of threads.
+     * Call this before starting the synthesizer. The pool is created now
+     * and again by each start(), and stop() shuts it down.
+     *
+     * @param numThreads number of threads, or 1 to render on the
+     *        synthesizer thread only
+     */
+    public void setRenderThreads(int numThreads) {
+        mRenderThreads = numThreads;
+        shutdownRenderPool();
+        if (numThreads > 1) {
+            mRenderPool = new ForkJoinPool(numThreads);
+        }
+    }
+
+    private void shutdownRenderPool() {
+        ForkJoinPool pool = mRenderPool;
+        if (pool != null) {
+            mRenderPool = null;
+            pool.shutdown();
         }
     }
 
+    public void noteOff(int channel, int noteIndex, int velocity) {
+        mVoiceGroups[channel].getVoices().noteOff(noteIndex);
+    }
+
     public void allNotesOff() {
-        Iterator<SynthVoice> iterator = mVoices.values().iterator();
-        while (iterator.hasNext()) {
-            SynthVoice voice = iterator.next();
-            voice.noteOff();
+        for (VoiceGroup group : mVoiceGroups) {
+            group.getVoices().allNotesOff();
         }
     }
 
+    public void programChange(int channel, int program) {
+        mVoiceGroups[channel].setProgram(program);
+    }
+
     /**
      * Create a SynthVoice.
      */
@@ -231,37 +326,75 @@ public class SynthEngine extends MidiReceiver {
         if (velocity == 0) {
             noteOff(channel, noteIndex, velocity);
         } else {
-            mVoices.remove(noteIndex);
-            SynthVoice voice;
-            if (mFreeVoices.size() > 0) {
-                voice = mFreeVoices.remove(mFreeVoices.size() - 1);
-            } else {
-                voice = createVoice(mProgram);
-            }
-            voice.setFrequencyScaler(mFrequencyScaler);
-            voice.noteOn(noteIndex, velocity);
-            mVoices.put(noteIndex, voice);
+            VoiceGroup group = mVoiceGroups[channel];
+            group.getVoices().noteOn(group.getProgram(), noteIndex, velocity,
+                    group.getFrequencyScaler());
         }
     }
 
     public void pitchBend(int channel, int bend) {
         double semitones = (mBendRange * (bend - 0x2000)) / 0x2000;
-        mFrequencyScaler = (float) Math.pow(2.0, semitones / 12.0);
-        Iterator<SynthVoice> iterator = mVoices.values().iterator();
-        while (iterator.hasNext()) {
-            SynthVoice voice = iterator.next();
-            voice.setFrequencyScaler(mFrequencyScaler);
+        mVoiceGroups[channel].setFrequencyScaler(
+                (float) Math.pow(2.0, semitones / 12.0));
+    }
+
+    /**
+     * Choose which voice is taken over when all of them are busy.
+     * Call this before starting the synthesizer.
+     *
+     * @param policy for example VoiceAllocator.STEAL_OLDEST
+     */
+    public void setStealingPolicy(VoiceAllocator.StealingPolicy policy) {
+        for (VoiceGroup group : mVoiceGroups) {
+            group.getVoices().setStealingPolicy(policy);
         }
     }
 
+    /**
+     * @return number of voices that are playing or releasing a note
+     */
+    public int getActiveVoiceCount() {
+        int count = 0;
+        for (VoiceGroup group : mVoiceGroups) {
+            count += group.getVoices().getActiveVoiceCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of times a voice was taken from another note
+     */
+    public long getStolenVoiceCount() {
+        long count = 0;
+        for (VoiceGroup group : mVoiceGroups) {
+            count += group.getVoices().getStolenVoiceCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of MIDI messages dropped because too many were waiting
+     *         to be played
+     */
+    public long getDroppedEventCount() {
+        MidiEventScheduler scheduler = mEventScheduler;
+        return (scheduler == null) ? 0 : scheduler.getDropCount();
+    }
+
     /**
      * Start the synthesizer.
      */
     public void start() {
         stop();
         go = true;
+        if (mRenderThreads > 1) {
+            mRenderPool = new ForkJoinPool(mRenderThreads);
+        }
         mThread = new Thread(new MyRunnable());
-        mEventScheduler = new MidiEventScheduler();
+        // Events are kept in a timing wheel with preallocated events, so
+        // the synthesizer thread does not allocate or take locks for them.
+        mEventScheduler = new MidiEventScheduler(new TimingWheelEventBuffer(),
+                EVENT_SLAB_CAPACITY);
         mThread.start();
     }
 
@@ -280,5 +413,7 @@ public class SynthEngine extends MidiReceiver {
             mThread = null;
             mEventScheduler = null;
         }
+        // After the synthesizer thread, which forks work onto the pool.
+        shutdownRenderPool();
     }
 }
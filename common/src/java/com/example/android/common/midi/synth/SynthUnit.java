@@ -32,4 +32,17 @@ public abstract class SynthUnit {
     }
 
     public abstract float render();
+
+    /**
+     * Render a block of values. Subclasses should override this with a
+     * tight loop that does not make a call per sample.
+     *
+     * @param output buffer to write into
+     * @param numFrames number of values to write
+     */
+    public void renderBlock(float[] output, int numFrames) {
+        for (int i = 0; i < numFrames; i++) {
+            output[i] = render();
+        }
+    }
 }
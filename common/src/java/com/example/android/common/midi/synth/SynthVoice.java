@@ -25,6 +25,7 @@ public abstract class SynthVoice {
     public static final int STATE_OFF = 0;
     public static final int STATE_ON = 1;
     private int mState = STATE_OFF;
+    private float[] mBlockBuffer = new float[0];
 
     public SynthVoice() {
         mNoteIndex = -1;
@@ -49,17 +50,42 @@ public abstract class SynthVoice {
      */
     public void mix(float[] outputBuffer, int samplesPerFrame, float level) {
         int numFrames = outputBuffer.length / samplesPerFrame;
-        for (int i = 0; i < numFrames; i++) {
-            float output = render();
-            int offset = i * samplesPerFrame;
-            for (int jf = 0; jf < samplesPerFrame; jf++) {
-                outputBuffer[offset + jf] += output * level;
+        if (mBlockBuffer.length < numFrames) {
+            mBlockBuffer = new float[numFrames];
+        }
+        float[] block = mBlockBuffer;
+        renderBlock(block, numFrames);
+        if (samplesPerFrame == 2) {
+            for (int i = 0; i < numFrames; i++) {
+                float output = block[i] * level;
+                outputBuffer[2 * i] += output;
+                outputBuffer[2 * i + 1] += output;
+            }
+        } else {
+            for (int i = 0; i < numFrames; i++) {
+                float output = block[i] * level;
+                int offset = i * samplesPerFrame;
+                for (int jf = 0; jf < samplesPerFrame; jf++) {
+                    outputBuffer[offset + jf] += output;
+                }
             }
         }
     }
 
     public abstract float render();
 
+    /**
+     * Render a block of mono frames. The default calls render() per frame.
+     *
+     * @param output buffer to write into
+     * @param numFrames number of frames to write
+     */
+    public void renderBlock(float[] output, int numFrames) {
+        for (int i = 0; i < numFrames; i++) {
+            output[i] = render();
+        }
+    }
+
     public boolean isDone() {
         return mState == STATE_OFF;
     }
@@ -68,6 +94,16 @@ public abstract class SynthVoice {
         return mNoteIndex;
     }
 
+    /**
+     * Estimate of how loud the voice is right now.
+     * This is used to pick a voice to steal.
+     *
+     * @return current level
+     */
+    public float getLevel() {
+        return (mState == STATE_ON) ? mAmplitude : 0.0f;
+    }
+
     public float getAmplitude() {
         return mAmplitude;
     }
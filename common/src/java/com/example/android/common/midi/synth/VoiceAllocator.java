@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi.synth;
+
+/**
+ * Fixed number of voice slots that are reused from note to note.
+ *
+ * Voices are only created when a slot is used for the first time or when the
+ * program changes, so steady playing does not allocate. When every slot is
+ * busy a StealingPolicy picks a voice to take over.
+ *
+ * This class is not thread safe. It should only be used by the synthesis
+ * thread.
+ */
+public class VoiceAllocator {
+    private static final int NO_NOTE = -1;
+
+    private final SynthEngine mEngine;
+    private final SynthVoice[] mVoices;
+    private final int[] mNotes; // NO_NOTE if the slot is free
+    private final int[] mPrograms;
+    private final long[] mStartOrders;
+    private long mNextStartOrder;
+    private StealingPolicy mStealingPolicy = STEAL_SAME_NOTE;
+    private volatile int mActiveCount;
+    private volatile long mStolenCount;
+
+    /**
+     * Choose the slot to use for a new note.
+     */
+    public interface StealingPolicy {
+        /**
+         * @param allocator
+         * @param noteIndex note about to be played
+         * @return slot index, which may be a free or a busy slot
+         */
+        int chooseSlot(VoiceAllocator allocator, int noteIndex);
+    }
+
+    /** Use a free slot or else steal the voice that started first. */
+    public static final StealingPolicy STEAL_OLDEST = new StealingPolicy() {
+        @Override
+        public int chooseSlot(VoiceAllocator allocator, int noteIndex) {
+            int slot = allocator.findFreeSlot();
+            return (slot >= 0) ? slot : allocator.findOldestSlot();
+        }
+    };
+
+    /** Use a free slot or else steal the voice with the lowest level. */
+    public static final StealingPolicy STEAL_QUIETEST = new StealingPolicy() {
+        @Override
+        public int chooseSlot(VoiceAllocator allocator, int noteIndex) {
+            int slot = allocator.findFreeSlot();
+            return (slot >= 0) ? slot : allocator.findQuietestSlot();
+        }
+    };
+
+    /**
+     * Retrigger the voice already playing this note. Otherwise use a free
+     * slot or else steal the oldest voice.
+     */
+    public static final StealingPolicy STEAL_SAME_NOTE = new StealingPolicy() {
+        @Override
+        public int chooseSlot(VoiceAllocator allocator, int noteIndex) {
+            int slot = allocator.findNoteSlot(noteIndex);
+            if (slot < 0) {
+                slot = STEAL_OLDEST.chooseSlot(allocator, noteIndex);
+            }
+            return slot;
+        }
+    };
+
+    /**
+     * @param engine used to create voices for a program
+     * @param maxVoices number of slots
+     */
+    public VoiceAllocator(SynthEngine engine, int maxVoices) {
+        if (maxVoices <= 0) {
+            throw new IllegalArgumentException("maxVoices must be positive");
+        }
+        mEngine = engine;
+        mVoices = new SynthVoice[maxVoices];
+        mNotes = new int[maxVoices];
+        mPrograms = new int[maxVoices];
+        mStartOrders = new long[maxVoices];
+        for (int i = 0; i < maxVoices; i++) {
+            mNotes[i] = NO_NOTE;
+        }
+    }
+
+    public void setStealingPolicy(StealingPolicy policy) {
+        mStealingPolicy = policy;
+    }
+
+    public StealingPolicy getStealingPolicy() {
+        return mStealingPolicy;
+    }
+
+    /**
+     * Start a note on a free or stolen voice.
+     *
+     * @return the voice that is playing the note
+     */
+    public SynthVoice noteOn(int program, int noteIndex, int velocity,
+            float frequencyScaler) {
+        int slot = mStealingPolicy.chooseSlot(this, noteIndex);
+        if (mNotes[slot] == NO_NOTE) {
+            mActiveCount++;
+        } else if (mNotes[slot] != noteIndex) {
+            mStolenCount++;
+        }
+        SynthVoice voice = mVoices[slot];
+        if (voice == null || mPrograms[slot] != program) {
+            voice = mEngine.createVoice(program);
+            mVoices[slot] = voice;
+            mPrograms[slot] = program;
+        }
+        mNotes[slot] = noteIndex;
+        mStartOrders[slot] = mNextStartOrder++;
+        voice.setFrequencyScaler(frequencyScaler);
+        voice.noteOn(noteIndex, velocity);
+        return voice;
+    }
+
+    /**
+     * Release every voice that is playing this note.
+     */
+    public void noteOff(int noteIndex) {
+        for (int i = 0; i < mNotes.length; i++) {
+            if (mNotes[i] == noteIndex) {
+                mVoices[i].noteOff();
+            }
+        }
+    }
+
+    public void allNotesOff() {
+        for (int i = 0; i < mNotes.length; i++) {
+            if (mNotes[i] != NO_NOTE) {
+                mVoices[i].noteOff();
+            }
+        }
+    }
+
+    public void setFrequencyScaler(float scaler) {
+        for (int i = 0; i < mNotes.length; i++) {
+            if (mNotes[i] != NO_NOTE) {
+                mVoices[i].setFrequencyScaler(scaler);
+            }
+        }
+    }
+
+    /**
+     * Mix every active voice into the buffer and free the ones that are done.
+     */
+    public void mix(float[] outputBuffer, int samplesPerFrame, float level) {
+        for (int i = 0; i < mNotes.length; i++) {
+            if (mNotes[i] == NO_NOTE) {
+                continue;
+            }
+            SynthVoice voice = mVoices[i];
+            if (voice.isDone()) {
+                mNotes[i] = NO_NOTE;
+                mActiveCount--;
+            } else {
+                voice.mix(outputBuffer, samplesPerFrame, level);
+            }
+        }
+    }
+
+    /**
+     * @return slot index of a free slot, or -1
+     */
+    public int findFreeSlot() {
+        for (int i = 0; i < mNotes.length; i++) {
+            if (mNotes[i] == NO_NOTE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return slot index of a voice playing this note, or -1
+     */
+    public int findNoteSlot(int noteIndex) {
+        for (int i = 0; i < mNotes.length; i++) {
+            if (mNotes[i] == noteIndex) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return slot index of the voice that was started first
+     */
+    public int findOldestSlot() {
+        int oldest = 0;
+        for (int i = 1; i < mStartOrders.length; i++) {
+            if (mStartOrders[i] < mStartOrders[oldest]) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * @return slot index of the voice with the lowest level
+     */
+    public int findQuietestSlot() {
+        int quietest = 0;
+        float lowestLevel = Float.MAX_VALUE;
+        for (int i = 0; i < mVoices.length; i++) {
+            SynthVoice voice = mVoices[i];
+            float level = (voice == null) ? 0.0f : voice.getLevel();
+            if (level < lowestLevel) {
+                lowestLevel = level;
+                quietest = i;
+            }
+        }
+        return quietest;
+    }
+
+    public int getMaxVoices() {
+        return mVoices.length;
+    }
+
+    /**
+     * @return number of slots that are playing or releasing a note
+     */
+    public int getActiveVoiceCount() {
+        return mActiveCount;
+    }
+
+    /**
+     * @return number of times a voice was taken from another note
+     */
+    public long getStolenVoiceCount() {
+        return mStolenCount;
+    }
+}
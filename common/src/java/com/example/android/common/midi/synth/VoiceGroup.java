@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi.synth;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Voices and settings for one MIDI channel.
+ *
+ * Each group renders into its own buffer so that groups can be rendered in
+ * parallel on a ForkJoinPool. The task is reinitialized and reused for
+ * every buffer.
+ */
+class VoiceGroup extends RecursiveAction {
+    private final VoiceAllocator mVoices;
+    private final float[] mBuffer;
+    private final int mSamplesPerFrame;
+    private final float mLevel;
+    private int mProgram;
+    private float mFrequencyScaler = 1.0f;
+
+    VoiceGroup(SynthEngine engine, int maxVoices, int framesPerBuffer,
+            int samplesPerFrame, float level) {
+        mVoices = new VoiceAllocator(engine, maxVoices);
+        mBuffer = new float[framesPerBuffer * samplesPerFrame];
+        mSamplesPerFrame = samplesPerFrame;
+        mLevel = level;
+    }
+
+    VoiceAllocator getVoices() {
+        return mVoices;
+    }
+
+    float[] getBuffer() {
+        return mBuffer;
+    }
+
+    int getProgram() {
+        return mProgram;
+    }
+
+    void setProgram(int program) {
+        mProgram = program;
+    }
+
+    float getFrequencyScaler() {
+        return mFrequencyScaler;
+    }
+
+    void setFrequencyScaler(float scaler) {
+        mFrequencyScaler = scaler;
+        mVoices.setFrequencyScaler(scaler);
+    }
+
+    boolean isActive() {
+        return mVoices.getActiveVoiceCount() > 0;
+    }
+
+    /**
+     * Replace the contents of the group buffer with the mix of its voices.
+     */
+    void render() {
+        Arrays.fill(mBuffer, 0.0f);
+        mVoices.mix(mBuffer, mSamplesPerFrame, mLevel);
+    }
+
+    @Override
+    protected void compute() {
+        render();
+    }
+}
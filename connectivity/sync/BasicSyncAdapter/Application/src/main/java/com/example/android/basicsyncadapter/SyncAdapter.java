@@ -21,8 +21,11 @@ import android.annotation.TargetApi;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.database.Cursor;
@@ -37,15 +40,24 @@ import com.example.android.basicsyncadapter.provider.FeedContract;
 
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Define a sync adapter for the app.
@@ -77,6 +89,47 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
      */
     private static final int NET_READ_TIMEOUT_MILLIS = 10000;  // 10 seconds
 
+    /**
+     * Preferences file that holds the validators and content hash of the last feed that was
+     * merged, and the statistics of the last sync. Keys are followed by the feed URL.
+     */
+    private static final String PREFS_SYNC_STATE = "sync_state";
+    private static final String PREF_ETAG = "etag:";
+    private static final String PREF_LAST_MODIFIED = "last_modified:";
+    private static final String PREF_CONTENT_HASH = "content_hash:";
+
+    /**
+     * Statistics of the last sync, also in the sync state preferences.
+     */
+    public static final String STAT_BYTES_READ = "last_sync_bytes_read";
+    public static final String STAT_PARSE_MILLIS = "last_sync_parse_millis";
+    public static final String STAT_MERGE_MILLIS = "last_sync_merge_millis";
+    public static final String STAT_OPS_APPLIED = "last_sync_ops_applied";
+    public static final String STAT_RESULT = "last_sync_result";
+
+    // Values of STAT_RESULT
+    public static final int RESULT_MERGED = 0;
+    public static final int RESULT_NOT_MODIFIED = 1;
+    public static final int RESULT_UNCHANGED = 2;
+
+    /**
+     * File in the cache directory that the feed is downloaded to before it is merged.
+     */
+    private static final String FEED_SPOOL_FILE = "feed.xml";
+
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Number of feed entries merged at a time, and the most operations applied in one batch.
+     * Also limits the number of arguments of the entry ID lookup, which SQLite limits to 999.
+     */
+    private static final int MERGE_CHUNK_SIZE = 200;
+
+    /**
+     * Number of operations in a batch between points where the database may be yielded.
+     */
+    private static final int YIELD_INTERVAL = 50;
+
     /**
      * Content resolver, for performing database operations.
      */
@@ -135,21 +188,10 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
     public void onPerformSync(Account account, Bundle extras, String authority,
                               ContentProviderClient provider, SyncResult syncResult) {
         Log.i(TAG, "Beginning network synchronization");
+        final SyncStatistics statistics = new SyncStatistics();
         try {
             final URL location = new URL(FEED_URL);
-            InputStream stream = null;
-
-            try {
-                Log.i(TAG, "Streaming data from network: " + location);
-                stream = downloadUrl(location);
-                updateLocalFeedData(stream, syncResult);
-                // Makes sure that the InputStream is closed after the app is
-                // finished using it.
-            } finally {
-                if (stream != null) {
-                    stream.close();
-                }
-            }
+            syncFeed(location, syncResult, statistics);
         } catch (MalformedURLException e) {
             Log.e(TAG, "Feed URL is malformed", e);
             syncResult.stats.numParseExceptions++;
@@ -175,7 +217,161 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
             syncResult.databaseError = true;
             return;
         }
-        Log.i(TAG, "Network synchronization complete");
+        Log.i(TAG, "Network synchronization complete: " + statistics);
+        statistics.save(getContext().getSharedPreferences(PREFS_SYNC_STATE,
+                Context.MODE_PRIVATE));
+    }
+
+    /**
+     * Sync with the feed at a URL, for tests that serve it locally.
+     *
+     * @return One of the RESULT_ values
+     */
+    int syncFeed(final URL location, final SyncResult syncResult) throws IOException,
+            XmlPullParserException, RemoteException, OperationApplicationException,
+            ParseException {
+        final SyncStatistics statistics = new SyncStatistics();
+        syncFeed(location, syncResult, statistics);
+        return statistics.result;
+    }
+
+    /**
+     * Download a feed and merge it with the local data, unless it has not changed since the last
+     * sync.
+     *
+     * <p>The server is asked to send the feed only if it has changed, using the ETag and
+     * Last-Modified validators of the last feed that was merged. If the server sends it anyway,
+     * it is written to a file while its hash is computed. If the hash is the same as the last
+     * feed, the merge is skipped. The validators and the hash are saved only after a
+     * successful merge, and are not used when there is no local data, so a failed merge or a
+     * deleted database is always fixed by the next sync.
+     */
+    private void syncFeed(final URL location, final SyncResult syncResult,
+            final SyncStatistics statistics) throws IOException, XmlPullParserException,
+            RemoteException, OperationApplicationException, ParseException {
+        final SharedPreferences prefs =
+                getContext().getSharedPreferences(PREFS_SYNC_STATE, Context.MODE_PRIVATE);
+        final String feed = location.toString();
+        final boolean haveLocalData = hasLocalEntries();
+
+        HttpURLConnection conn = null;
+        final File spool = new File(getContext().getCacheDir(), FEED_SPOOL_FILE);
+        try {
+            Log.i(TAG, "Streaming data from network: " + location);
+            conn = openConnection(location,
+                    haveLocalData ? prefs.getString(PREF_ETAG + feed, null) : null,
+                    haveLocalData ? prefs.getString(PREF_LAST_MODIFIED + feed, null) : null);
+            final int responseCode = conn.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.i(TAG, "Feed not modified since last sync");
+                statistics.result = RESULT_NOT_MODIFIED;
+                return;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + responseCode);
+            }
+
+            final String hash = download(conn.getInputStream(), spool, statistics);
+            if (haveLocalData && hash.equals(prefs.getString(PREF_CONTENT_HASH + feed, null))) {
+                Log.i(TAG, "Feed content unchanged since last sync");
+                statistics.result = RESULT_UNCHANGED;
+            } else {
+                final InputStream stream =
+                        new BufferedInputStream(new FileInputStream(spool), IO_BUFFER_SIZE);
+                // The stream is closed by the parser
+                updateLocalFeedData(stream, syncResult, statistics);
+            }
+
+            prefs.edit()
+                    .putString(PREF_ETAG + feed, conn.getHeaderField("ETag"))
+                    .putString(PREF_LAST_MODIFIED + feed, conn.getHeaderField("Last-Modified"))
+                    .putString(PREF_CONTENT_HASH + feed, hash)
+                    .commit();
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+            spool.delete();
+        }
+    }
+
+    /**
+     * Returns true if there is at least one entry in the content provider.
+     */
+    private boolean hasLocalEntries() {
+        final Cursor c = mContentResolver.query(FeedContract.Entry.CONTENT_URI,
+                new String[] {FeedContract.Entry._ID}, null, null, null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Copy a response body to a file.
+     *
+     * @return Hex SHA-1 hash of the body
+     */
+    private static String download(final InputStream in, final File file,
+            final SyncStatistics statistics) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+                out.write(buffer, 0, count);
+                statistics.bytesRead += count;
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        final StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * The cost of a sync. Saved to the sync state preferences, as SyncResult can only hold the
+     * counts in its SyncStats.
+     */
+    private static class SyncStatistics {
+        long bytesRead;
+        long parseNanos;
+        long mergeNanos;
+        int opsApplied;
+        int result = RESULT_MERGED;
+
+        void save(SharedPreferences prefs) {
+            prefs.edit()
+                    .putLong(STAT_BYTES_READ, bytesRead)
+                    .putLong(STAT_PARSE_MILLIS, parseNanos / 1000000)
+                    .putLong(STAT_MERGE_MILLIS, mergeNanos / 1000000)
+                    .putInt(STAT_OPS_APPLIED, opsApplied)
+                    .putInt(STAT_RESULT, result)
+                    .commit();
+        }
+
+        @Override
+        public String toString() {
+            return "result=" + result + ", bytesRead=" + bytesRead
+                    + ", parseMs=" + (parseNanos / 1000000)
+                    + ", mergeMs=" + (mergeNanos / 1000000) + ", opsApplied=" + opsApplied;
+        }
     }
 
     /**
@@ -186,121 +382,312 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
      * database, and compute a merge. Only changes (insert/update/delete) will result in a database
      * write.
      *
-     * <p>As an additional optimization, we use a batch operation to perform all database writes at
-     * once.
+     * <p>The feed is read one entry at a time, so only a small part of it is ever held in memory,
+     * and database writes are applied in batches of at most {@link #MERGE_CHUNK_SIZE} operations.
      *
      * <p>Merge strategy:
-     * 1. Get cursor to all items in feed<br/>
-     * 2. For each item, check if it's in the incoming data.<br/>
-     *    a. YES: Remove from "incoming" list. Check if data has mutated, if so, perform
-     *            database UPDATE.<br/>
-     *    b. NO: Schedule DELETE from database.<br/>
-     * (At this point, incoming database only contains missing items.)<br/>
-     * 3. For any items remaining in incoming list, ADD to database.
+     * 1. Read the next {@link #MERGE_CHUNK_SIZE} items from the feed.<br/>
+     * 2. Look up the local items with the same entry IDs.<br/>
+     *    a. FOUND: Check if data has mutated, if so, perform database UPDATE.<br/>
+     *    b. NOT FOUND: Perform database INSERT.<br/>
+     * 3. Apply the batch and remember the IDs of the local items that are still in the feed.
+     *    Repeat until the feed ends.<br/>
+     * 4. DELETE every local item that is no longer in the feed.
      */
     public void updateLocalFeedData(final InputStream stream, final SyncResult syncResult)
             throws IOException, XmlPullParserException, RemoteException,
             OperationApplicationException, ParseException {
+        updateLocalFeedData(stream, syncResult, new SyncStatistics());
+    }
+
+    private void updateLocalFeedData(final InputStream stream, final SyncResult syncResult,
+            final SyncStatistics statistics) throws IOException, XmlPullParserException,
+            RemoteException, OperationApplicationException, ParseException {
         final FeedParser feedParser = new FeedParser();
-        final ContentResolver contentResolver = getContext().getContentResolver();
 
         Log.i(TAG, "Parsing stream as Atom feed");
-        final List<FeedParser.Entry> entries = feedParser.parse(stream);
-        Log.i(TAG, "Parsing complete. Found " + entries.size() + " entries");
+        final FeedParser.EntryReader reader = feedParser.open(stream);
+        // Local IDs of the items that are in the feed, so they are not deleted at the end
+        final LocalIds keep = new LocalIds();
+        int entryCount = 0;
+        try {
+            // Incoming entries by ID. The last of several entries with the same ID is used.
+            final LinkedHashMap<String, FeedParser.Entry> chunk =
+                    new LinkedHashMap<String, FeedParser.Entry>();
+            FeedParser.Entry e;
+            do {
+                final long parseStart = System.nanoTime();
+                e = reader.next();
+                statistics.parseNanos += System.nanoTime() - parseStart;
+                if (e != null) {
+                    chunk.put(e.id, e);
+                    entryCount++;
+                }
+                if (chunk.size() == MERGE_CHUNK_SIZE || (e == null && !chunk.isEmpty())) {
+                    final long mergeStart = System.nanoTime();
+                    mergeChunk(chunk, keep, syncResult, statistics);
+                    statistics.mergeNanos += System.nanoTime() - mergeStart;
+                    chunk.clear();
+                }
+            } while (e != null);
+        } finally {
+            reader.close();
+        }
+        Log.i(TAG, "Parsing complete. Found " + entryCount + " entries");
 
+        final long deleteStart = System.nanoTime();
+        deleteStaleEntries(keep, syncResult, statistics);
+        statistics.mergeNanos += System.nanoTime() - deleteStart;
+        Log.i(TAG, "Merge complete");
+        mContentResolver.notifyChange(
+                FeedContract.Entry.CONTENT_URI, // URI where data was modified
+                null,                           // No local observer
+                false);                         // IMPORTANT: Do not sync to network
+        // This sample doesn't support uploads, but if *your* code does, make sure you set
+        // syncToNetwork=false in the line above to prevent duplicate syncs.
+    }
 
-        ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+    /**
+     * Merge a chunk of incoming entries with the local entries that have the same entry IDs, and
+     * apply the changes.
+     *
+     * @param chunk Incoming entries by entry ID
+     * @param keep Receives the local IDs of the merged entries
+     */
+    private void mergeChunk(final Map<String, FeedParser.Entry> chunk, final LocalIds keep,
+            final SyncResult syncResult, final SyncStatistics statistics)
+            throws RemoteException, OperationApplicationException {
+        final ArrayList<ContentProviderOperation> batch =
+                new ArrayList<ContentProviderOperation>(chunk.size());
+        final HashMap<String, FeedParser.Entry> inserts =
+                new HashMap<String, FeedParser.Entry>(chunk);
+        // So the items kept by earlier chunks can be found
+        keep.sort();
 
-        // Build hash table of incoming entries
-        HashMap<String, FeedParser.Entry> entryMap = new HashMap<String, FeedParser.Entry>();
-        for (FeedParser.Entry e : entries) {
-            entryMap.put(e.id, e);
+        // Look up existing items by entry ID. An entry without an ID is always inserted.
+        final ArrayList<String> entryIds = new ArrayList<String>(chunk.size());
+        final StringBuilder selection = new StringBuilder(FeedContract.Entry.COLUMN_NAME_ENTRY_ID)
+                .append(" IN (");
+        for (String entryId : chunk.keySet()) {
+            if (entryId != null) {
+                selection.append(entryIds.isEmpty() ? "?" : ",?");
+                entryIds.add(entryId);
+            }
         }
-
-        // Get list of all items
-        Log.i(TAG, "Fetching local entries for merge");
-        Uri uri = FeedContract.Entry.CONTENT_URI; // Get all entries
-        Cursor c = contentResolver.query(uri, PROJECTION, null, null, null);
-        assert c != null;
-        Log.i(TAG, "Found " + c.getCount() + " local entries. Computing merge solution...");
-
-        // Find stale data
-        int id;
-        String entryId;
-        String title;
-        String link;
-        long published;
-        while (c.moveToNext()) {
-            syncResult.stats.numEntries++;
-            id = c.getInt(COLUMN_ID);
-            entryId = c.getString(COLUMN_ENTRY_ID);
-            title = c.getString(COLUMN_TITLE);
-            link = c.getString(COLUMN_LINK);
-            published = c.getLong(COLUMN_PUBLISHED);
-            FeedParser.Entry match = entryMap.get(entryId);
-            if (match != null) {
-                // Entry exists. Remove from entry map to prevent insert later.
-                entryMap.remove(entryId);
+        selection.append(')');
+        final Cursor c = entryIds.isEmpty() ? null : mContentResolver.query(
+                FeedContract.Entry.CONTENT_URI, PROJECTION, selection.toString(),
+                entryIds.toArray(new String[entryIds.size()]), null);
+        try {
+            while (c != null && c.moveToNext()) {
+                final long id = c.getLong(COLUMN_ID);
+                final String entryId = c.getString(COLUMN_ENTRY_ID);
+                final String title = c.getString(COLUMN_TITLE);
+                final String link = c.getString(COLUMN_LINK);
+                final long published = c.getLong(COLUMN_PUBLISHED);
+                final FeedParser.Entry match = inserts.remove(entryId);
+                if (match == null) {
+                    // A second local item with the same entry ID. Not kept, so it is deleted.
+                    continue;
+                }
+                // The entry ID may also have been in an earlier chunk, which already counted
+                // and kept this item
+                if (!keep.contains(id)) {
+                    syncResult.stats.numEntries++;
+                    keep.add(id);
+                }
                 // Check to see if the entry needs to be updated
-                Uri existingUri = FeedContract.Entry.CONTENT_URI.buildUpon()
-                        .appendPath(Integer.toString(id)).build();
                 if ((match.title != null && !match.title.equals(title)) ||
                         (match.link != null && !match.link.equals(link)) ||
                         (match.published != published)) {
                     // Update existing record
-                    Log.i(TAG, "Scheduling update: " + existingUri);
+                    Uri existingUri = FeedContract.Entry.CONTENT_URI.buildUpon()
+                            .appendPath(Long.toString(id)).build();
+                    Log.v(TAG, "Scheduling update: " + existingUri);
                     batch.add(ContentProviderOperation.newUpdate(existingUri)
                             .withValue(FeedContract.Entry.COLUMN_NAME_TITLE, match.title)
                             .withValue(FeedContract.Entry.COLUMN_NAME_LINK, match.link)
                             .withValue(FeedContract.Entry.COLUMN_NAME_PUBLISHED, match.published)
+                            .withYieldAllowed(isYieldPoint(batch.size()))
                             .build());
                     syncResult.stats.numUpdates++;
-                } else {
-                    Log.i(TAG, "No action: " + existingUri);
                 }
-            } else {
-                // Entry doesn't exist. Remove it from the database.
-                Uri deleteUri = FeedContract.Entry.CONTENT_URI.buildUpon()
-                        .appendPath(Integer.toString(id)).build();
-                Log.i(TAG, "Scheduling delete: " + deleteUri);
-                batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-                syncResult.stats.numDeletes++;
+            }
+        } finally {
+            if (c != null) {
+                c.close();
             }
         }
-        c.close();
 
         // Add new items
-        for (FeedParser.Entry e : entryMap.values()) {
-            Log.i(TAG, "Scheduling insert: entry_id=" + e.id);
+        final int firstInsert = batch.size();
+        for (FeedParser.Entry e : inserts.values()) {
+            Log.v(TAG, "Scheduling insert: entry_id=" + e.id);
             batch.add(ContentProviderOperation.newInsert(FeedContract.Entry.CONTENT_URI)
                     .withValue(FeedContract.Entry.COLUMN_NAME_ENTRY_ID, e.id)
                     .withValue(FeedContract.Entry.COLUMN_NAME_TITLE, e.title)
                     .withValue(FeedContract.Entry.COLUMN_NAME_LINK, e.link)
                     .withValue(FeedContract.Entry.COLUMN_NAME_PUBLISHED, e.published)
+                    .withYieldAllowed(isYieldPoint(batch.size()))
                     .build());
             syncResult.stats.numInserts++;
         }
-        Log.i(TAG, "Merge solution ready. Applying batch update");
-        mContentResolver.applyBatch(FeedContract.CONTENT_AUTHORITY, batch);
-        mContentResolver.notifyChange(
-                FeedContract.Entry.CONTENT_URI, // URI where data was modified
-                null,                           // No local observer
-                false);                         // IMPORTANT: Do not sync to network
-        // This sample doesn't support uploads, but if *your* code does, make sure you set
-        // syncToNetwork=false in the line above to prevent duplicate syncs.
+
+        if (batch.isEmpty()) {
+            return;
+        }
+        final ContentProviderResult[] results = applyBatch(batch, statistics);
+        for (int i = firstInsert; i < results.length; i++) {
+            if (results[i].uri != null) {
+                keep.add(ContentUris.parseId(results[i].uri));
+            }
+        }
+    }
+
+    /**
+     * Delete every local entry that was not in the feed, in batches.
+     *
+     * @param keep Local IDs of the entries that were in the feed
+     */
+    private void deleteStaleEntries(final LocalIds keep, final SyncResult syncResult,
+            final SyncStatistics statistics)
+            throws RemoteException, OperationApplicationException {
+        keep.sort();
+        // Find the stale entries first, as deleting rows while the cursor is open could make it
+        // skip rows when it moves to its next window
+        final LocalIds stale = new LocalIds();
+        final Cursor c = mContentResolver.query(FeedContract.Entry.CONTENT_URI,
+                new String[] {FeedContract.Entry._ID}, null, null, null);
+        assert c != null;
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(0);
+                if (!keep.contains(id)) {
+                    stale.add(id);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        final ArrayList<ContentProviderOperation> batch =
+                new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < stale.size(); i++) {
+            // Entry doesn't exist. Remove it from the database.
+            syncResult.stats.numEntries++;
+            Uri deleteUri = FeedContract.Entry.CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(stale.get(i))).build();
+            Log.v(TAG, "Scheduling delete: " + deleteUri);
+            batch.add(ContentProviderOperation.newDelete(deleteUri)
+                    .withYieldAllowed(isYieldPoint(batch.size()))
+                    .build());
+            syncResult.stats.numDeletes++;
+            if (batch.size() == MERGE_CHUNK_SIZE || i == stale.size() - 1) {
+                applyBatch(batch, statistics);
+                batch.clear();
+            }
+        }
+    }
+
+    private ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> batch,
+            final SyncStatistics statistics)
+            throws RemoteException, OperationApplicationException {
+        statistics.opsApplied += batch.size();
+        return mContentResolver.applyBatch(FeedContract.CONTENT_AUTHORITY, batch);
+    }
+
+    /**
+     * Returns true if the database may be yielded to other threads before an operation, which is
+     * every {@link #YIELD_INTERVAL} operations of a batch.
+     */
+    private static boolean isYieldPoint(int index) {
+        return index > 0 && index % YIELD_INTERVAL == 0;
+    }
+
+    /**
+     * A growable list of local IDs. Sorted after each chunk of IDs has been added, so IDs can be
+     * found by binary search without boxing each one.
+     */
+    private static class LocalIds {
+        private long[] mIds = new long[MERGE_CHUNK_SIZE];
+        private int mSize;
+        // mIds is sorted up to here
+        private int mSortedSize;
+        private long[] mScratch;
+
+        void add(long id) {
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+            }
+            mIds[mSize++] = id;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        long get(int index) {
+            return mIds[index];
+        }
+
+        /**
+         * Sorts the IDs added since the last call and merges them with the rest, so each call
+         * only takes time in proportion to the number of IDs.
+         */
+        void sort() {
+            if (mSortedSize == mSize) {
+                return;
+            }
+            Arrays.sort(mIds, mSortedSize, mSize);
+            if (mSortedSize > 0 && mIds[mSortedSize - 1] > mIds[mSortedSize]) {
+                if (mScratch == null || mScratch.length < mSortedSize) {
+                    mScratch = new long[mIds.length];
+                }
+                System.arraycopy(mIds, 0, mScratch, 0, mSortedSize);
+                int i = 0;
+                int j = mSortedSize;
+                int k = 0;
+                // k never passes j, so the new IDs are read before they are overwritten
+                while (i < mSortedSize && j < mSize) {
+                    mIds[k++] = (mScratch[i] <= mIds[j]) ? mScratch[i++] : mIds[j++];
+                }
+                while (i < mSortedSize) {
+                    mIds[k++] = mScratch[i++];
+                }
+            }
+            mSortedSize = mSize;
+        }
+
+        /**
+         * Only finds the IDs that were added before the last call to {@link #sort()}.
+         */
+        boolean contains(long id) {
+            return Arrays.binarySearch(mIds, 0, mSortedSize, id) >= 0;
+        }
     }
 
     /**
-     * Given a string representation of a URL, sets up a connection and gets an input stream.
+     * Given a string representation of a URL, sets up a connection and sends the request.
+     *
+     * @param etag ETag of the last feed, or null to always get the feed
+     * @param lastModified Last-Modified date of the last feed, or null to always get the feed
      */
-    private InputStream downloadUrl(final URL url) throws IOException {
+    private HttpURLConnection openConnection(final URL url, final String etag,
+            final String lastModified) throws IOException {
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         conn.setReadTimeout(NET_READ_TIMEOUT_MILLIS /* milliseconds */);
         conn.setConnectTimeout(NET_CONNECT_TIMEOUT_MILLIS /* milliseconds */);
         conn.setRequestMethod("GET");
         conn.setDoInput(true);
+        // Ask for the feed only if it has changed
+        if (etag != null) {
+            conn.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            conn.setRequestProperty("If-Modified-Since", lastModified);
+        }
         // Starts the query
         conn.connect();
-        return conn.getInputStream();
+        return conn;
     }
 }
@@ -34,6 +34,9 @@ import java.util.List;
  * <p>Given an InputStream representation of a feed, it returns a List of entries,
  * where each list element represents a single entry (post) in the XML feed.
  *
+ * <p>Large feeds can be read one entry at a time with {@link #open(java.io.InputStream)}, so
+ * that the whole feed never has to be held in memory.
+ *
  * <p>An example of an Atom feed can be found at:
  * http://en.wikipedia.org/w/index.php?title=Atom_(standard)&oldid=560239173#Example_of_an_Atom_1.0_feed
  */
@@ -57,37 +60,102 @@ public class FeedParser {
      */
     public List<Entry> parse(InputStream in)
             throws XmlPullParserException, IOException, ParseException {
+        EntryReader reader = open(in);
+        try {
+            List<Entry> entries = new ArrayList<Entry>();
+            Entry entry;
+            while ((entry = reader.next()) != null) {
+                entries.add(entry);
+            }
+            return entries;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Start reading an Atom feed one entry at a time.
+     *
+     * @param in Atom feed, as a stream. Closed by {@link EntryReader#close()}.
+     * @return Reader positioned before the first entry.
+     * @throws org.xmlpull.v1.XmlPullParserException on error parsing feed.
+     * @throws java.io.IOException on I/O error.
+     */
+    public EntryReader open(InputStream in) throws XmlPullParserException, IOException {
+        boolean opened = false;
         try {
             XmlPullParser parser = Xml.newPullParser();
             parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
             parser.setInput(in, null);
             parser.nextTag();
-            return readFeed(parser);
+            // Search for <feed> tags. These wrap the beginning/end of an Atom document.
+            //
+            // Example:
+            // <?xml version="1.0" encoding="utf-8"?>
+            // <feed xmlns="http://www.w3.org/2005/Atom">
+            // ...
+            // </feed>
+            parser.require(XmlPullParser.START_TAG, ns, "feed");
+            opened = true;
+            return new EntryReader(parser, in);
         } finally {
-            in.close();
+            if (!opened) {
+                in.close();
+            }
         }
     }
 
     /**
-     * Decode a feed attached to an XmlPullParser.
+     * Reads the entries of a feed one at a time, in the order they appear in the feed.
+     */
+    public class EntryReader {
+        private final XmlPullParser mParser;
+        private final InputStream mInput;
+        private boolean mDone;
+
+        EntryReader(XmlPullParser parser, InputStream input) {
+            mParser = parser;
+            mInput = input;
+        }
+
+        /**
+         * Read the next entry.
+         *
+         * @return The next {@link com.example.android.basicsyncadapter.net.FeedParser.Entry}, or
+         *         null at the end of the feed.
+         * @throws org.xmlpull.v1.XmlPullParserException on error parsing feed.
+         * @throws java.io.IOException on I/O error.
+         */
+        public Entry next() throws XmlPullParserException, IOException, ParseException {
+            if (mDone) {
+                return null;
+            }
+            Entry entry = readNextEntry(mParser);
+            if (entry == null) {
+                mDone = true;
+            }
+            return entry;
+        }
+
+        /**
+         * Close the feed stream.
+         */
+        public void close() throws IOException {
+            mDone = true;
+            mInput.close();
+        }
+    }
+
+    /**
+     * Decode the next entry of a feed attached to an XmlPullParser.
      *
-     * @param parser Incoming XMl
-     * @return List of {@link com.example.android.basicsyncadapter.net.FeedParser.Entry} objects.
+     * @param parser Incoming XMl, inside the feed tag
+     * @return The next entry, or null at the end of the feed.
      * @throws org.xmlpull.v1.XmlPullParserException on error parsing feed.
      * @throws java.io.IOException on I/O error.
      */
-    private List<Entry> readFeed(XmlPullParser parser)
+    private Entry readNextEntry(XmlPullParser parser)
             throws XmlPullParserException, IOException, ParseException {
-        List<Entry> entries = new ArrayList<Entry>();
-
-        // Search for <feed> tags. These wrap the beginning/end of an Atom document.
-        //
-        // Example:
-        // <?xml version="1.0" encoding="utf-8"?>
-        // <feed xmlns="http://www.w3.org/2005/Atom">
-        // ...
-        // </feed>
-        parser.require(XmlPullParser.START_TAG, ns, "feed");
         while (parser.next() != XmlPullParser.END_TAG) {
             if (parser.getEventType() != XmlPullParser.START_TAG) {
                 continue;
@@ -111,12 +179,12 @@ public class FeedParser {
             //   </author>
             // </entry>
             if (name.equals("entry")) {
-                entries.add(readEntry(parser));
+                return readEntry(parser);
             } else {
                 skip(parser);
             }
         }
-        return entries;
+        return null;
     }
 
     /**
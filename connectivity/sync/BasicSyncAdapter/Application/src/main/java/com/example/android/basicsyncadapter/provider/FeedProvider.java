@@ -17,19 +17,65 @@
 package com.example.android.basicsyncadapter.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.text.TextUtils;
 
+import com.example.android.common.db.CompiledSelection;
 import com.example.android.common.db.SelectionBuilder;
+import com.example.android.common.db.StatementCache;
+
+import java.util.ArrayList;
 
 public class FeedProvider extends ContentProvider {
     FeedDatabase mDatabaseHelper;
 
+    /**
+     * The batch being applied by the current thread, or null. While a batch is applied, changes
+     * are notified once at the end instead of one by one, and common statements are compiled
+     * once for the whole batch.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    /** SQL to insert an entry, with the columns in the order of ENTRY_COLUMNS. */
+    private static final String SQL_INSERT_ENTRY =
+            "INSERT INTO " + FeedContract.Entry.TABLE_NAME + " (" +
+                    FeedContract.Entry.COLUMN_NAME_ENTRY_ID + "," +
+                    FeedContract.Entry.COLUMN_NAME_TITLE + "," +
+                    FeedContract.Entry.COLUMN_NAME_LINK + "," +
+                    FeedContract.Entry.COLUMN_NAME_PUBLISHED + ") VALUES (?,?,?,?)";
+
+    private static final String[] ENTRY_COLUMNS = new String[] {
+            FeedContract.Entry.COLUMN_NAME_ENTRY_ID,
+            FeedContract.Entry.COLUMN_NAME_TITLE,
+            FeedContract.Entry.COLUMN_NAME_LINK,
+            FeedContract.Entry.COLUMN_NAME_PUBLISHED};
+
+    /**
+     * Compiled selection for route: /entries
+     */
+    private static final CompiledSelection SELECT_ENTRIES = new SelectionBuilder()
+            .table(FeedContract.Entry.TABLE_NAME)
+            .compile();
+
+    /**
+     * Compiled selection for route: /entries/{ID}
+     */
+    private static final CompiledSelection SELECT_ENTRY_BY_ID = new SelectionBuilder()
+            .table(FeedContract.Entry.TABLE_NAME)
+            .where(FeedContract.Entry._ID + "=?")
+            .compile();
+
     /**
      * Content authority for this provider.
      */
@@ -92,27 +138,39 @@ public class FeedProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
         SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
-        SelectionBuilder builder = new SelectionBuilder();
         int uriMatch = sUriMatcher.match(uri);
+        Cursor c;
         switch (uriMatch) {
             case ROUTE_ENTRIES_ID:
                 // Return a single entry, by ID.
                 String id = uri.getLastPathSegment();
-                builder.where(FeedContract.Entry._ID + "=?", id);
+                if (TextUtils.isEmpty(selection)) {
+                    c = SELECT_ENTRY_BY_ID.query(db, projection, sortOrder, id);
+                } else {
+                    c = SELECT_ENTRY_BY_ID.newBuilder(id)
+                            .where(selection, selectionArgs)
+                            .query(db, projection, sortOrder);
+                }
+                break;
             case ROUTE_ENTRIES:
                 // Return all known entries.
-                builder.table(FeedContract.Entry.TABLE_NAME)
-                       .where(selection, selectionArgs);
-                Cursor c = builder.query(db, projection, sortOrder);
-                // Note: Notification URI must be manually set here for loaders to correctly
-                // register ContentObservers.
-                Context ctx = getContext();
-                assert ctx != null;
-                c.setNotificationUri(ctx.getContentResolver(), uri);
-                return c;
+                if (TextUtils.isEmpty(selection)) {
+                    c = SELECT_ENTRIES.query(db, projection, sortOrder);
+                } else {
+                    c = SELECT_ENTRIES.newBuilder()
+                            .where(selection, selectionArgs)
+                            .query(db, projection, sortOrder);
+                }
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        // Note: Notification URI must be manually set here for loaders to correctly
+        // register ContentObservers.
+        Context ctx = getContext();
+        assert ctx != null;
+        c.setNotificationUri(ctx.getContentResolver(), uri);
+        return c;
     }
 
     /**
@@ -126,7 +184,13 @@ public class FeedProvider extends ContentProvider {
         Uri result;
         switch (match) {
             case ROUTE_ENTRIES:
-                long id = db.insertOrThrow(FeedContract.Entry.TABLE_NAME, null, values);
+                final Batch batch = mBatch.get();
+                long id;
+                if (batch != null && values != null && hasOnlyEntryColumns(values)) {
+                    id = batch.insertEntry(values);
+                } else {
+                    id = db.insertOrThrow(FeedContract.Entry.TABLE_NAME, null, values);
+                }
                 result = Uri.parse(FeedContract.Entry.CONTENT_URI + "/" + id);
                 break;
             case ROUTE_ENTRIES_ID:
@@ -135,9 +199,7 @@ public class FeedProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Send broadcast to registered ContentObservers, to refresh UI.
-        Context ctx = getContext();
-        assert ctx != null;
-        ctx.getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return result;
     }
 
@@ -146,30 +208,39 @@ public class FeedProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        SelectionBuilder builder = new SelectionBuilder();
         final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        final Batch batch = mBatch.get();
         final int match = sUriMatcher.match(uri);
         int count;
         switch (match) {
             case ROUTE_ENTRIES:
-                count = builder.table(FeedContract.Entry.TABLE_NAME)
-                        .where(selection, selectionArgs)
-                        .delete(db);
+                if (!TextUtils.isEmpty(selection)) {
+                    count = SELECT_ENTRIES.newBuilder()
+                            .where(selection, selectionArgs)
+                            .delete(db);
+                } else if (batch != null) {
+                    count = SELECT_ENTRIES.delete(batch.statements);
+                } else {
+                    count = SELECT_ENTRIES.delete(db);
+                }
                 break;
             case ROUTE_ENTRIES_ID:
                 String id = uri.getLastPathSegment();
-                count = builder.table(FeedContract.Entry.TABLE_NAME)
-                       .where(FeedContract.Entry._ID + "=?", id)
-                       .where(selection, selectionArgs)
-                       .delete(db);
+                if (!TextUtils.isEmpty(selection)) {
+                    count = SELECT_ENTRY_BY_ID.newBuilder(id)
+                            .where(selection, selectionArgs)
+                            .delete(db);
+                } else if (batch != null) {
+                    count = SELECT_ENTRY_BY_ID.delete(batch.statements, id);
+                } else {
+                    count = SELECT_ENTRY_BY_ID.delete(db, id);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Send broadcast to registered ContentObservers, to refresh UI.
-        Context ctx = getContext();
-        assert ctx != null;
-        ctx.getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return count;
     }
 
@@ -178,30 +249,174 @@ public class FeedProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        SelectionBuilder builder = new SelectionBuilder();
         final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        final Batch batch = mBatch.get();
         final int match = sUriMatcher.match(uri);
         int count;
         switch (match) {
             case ROUTE_ENTRIES:
-                count = builder.table(FeedContract.Entry.TABLE_NAME)
-                        .where(selection, selectionArgs)
-                        .update(db, values);
+                if (!TextUtils.isEmpty(selection)) {
+                    count = SELECT_ENTRIES.newBuilder()
+                            .where(selection, selectionArgs)
+                            .update(db, values);
+                } else if (batch != null) {
+                    count = SELECT_ENTRIES.update(batch.statements, values);
+                } else {
+                    count = SELECT_ENTRIES.update(db, values);
+                }
                 break;
             case ROUTE_ENTRIES_ID:
                 String id = uri.getLastPathSegment();
-                count = builder.table(FeedContract.Entry.TABLE_NAME)
-                        .where(FeedContract.Entry._ID + "=?", id)
-                        .where(selection, selectionArgs)
-                        .update(db, values);
+                if (!TextUtils.isEmpty(selection)) {
+                    count = SELECT_ENTRY_BY_ID.newBuilder(id)
+                            .where(selection, selectionArgs)
+                            .update(db, values);
+                } else if (batch != null) {
+                    count = SELECT_ENTRY_BY_ID.update(batch.statements, values, id);
+                } else {
+                    count = SELECT_ENTRY_BY_ID.update(db, values, id);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        notifyChange(uri);
+        return count;
+    }
+
+    /**
+     * Insert several entries in one transaction, sending one change notification.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != ROUTE_ENTRIES) {
+            return super.bulkInsert(uri, values);
+        }
+        final Batch batch = beginBatch();
+        try {
+            for (ContentValues entry : values) {
+                insert(uri, entry);
+            }
+            batch.db.setTransactionSuccessful();
+        } finally {
+            endBatch(batch);
+        }
+        return values.length;
+    }
+
+    /**
+     * Apply a batch of operations in one transaction, sending one change notification at the
+     * end. Other threads may use the database at operations that allow yielding.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final Batch batch = beginBatch();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                final ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    batch.db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            batch.db.setTransactionSuccessful();
+            return results;
+        } finally {
+            endBatch(batch);
+        }
+    }
+
+    private Batch beginBatch() {
+        if (mBatch.get() != null) {
+            throw new IllegalStateException("Batches cannot be nested");
+        }
+        final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        final Batch batch = new Batch(db);
+        mBatch.set(batch);
+        return batch;
+    }
+
+    private void endBatch(Batch batch) {
+        mBatch.set(null);
+        batch.statements.close();
+        try {
+            batch.db.endTransaction();
+        } finally {
+            // Changes may have been committed before a yield even if the batch failed
+            if (batch.changed) {
+                notifyChange(FeedContract.Entry.CONTENT_URI);
+            }
+        }
+    }
+
+    /**
+     * Send broadcast to registered ContentObservers, or remember to do so at the end of the
+     * current batch.
+     */
+    private void notifyChange(Uri uri) {
+        final Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.changed = true;
+            return;
+        }
         Context ctx = getContext();
         assert ctx != null;
         ctx.getContentResolver().notifyChange(uri, null, false);
-        return count;
+    }
+
+    /**
+     * Returns true if every column in values is one of ENTRY_COLUMNS.
+     */
+    private static boolean hasOnlyEntryColumns(ContentValues values) {
+        for (String key : values.keySet()) {
+            boolean found = false;
+            for (String column : ENTRY_COLUMNS) {
+                if (column.equals(key)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * State of a batch applied by one thread. Statements are compiled when first needed and
+     * reused for the rest of the batch. They belong to this thread only, so they are never
+     * locked while the batch waits for the database.
+     */
+    private static class Batch {
+        final SQLiteDatabase db;
+        final StatementCache statements;
+        boolean changed;
+
+        Batch(SQLiteDatabase db) {
+            this.db = db;
+            this.statements = new StatementCache(db);
+        }
+
+        /**
+         * Insert an entry with a compiled statement.
+         */
+        long insertEntry(ContentValues values) {
+            final SQLiteStatement statement = statements.get(SQL_INSERT_ENTRY);
+            statement.clearBindings();
+            for (int i = 0; i < ENTRY_COLUMNS.length; i++) {
+                CompiledSelection.bind(statement, i + 1, values.get(ENTRY_COLUMNS[i]));
+            }
+            final long id = statement.executeInsert();
+            if (id == -1) {
+                throw new SQLException("Failed to insert entry " + values);
+            }
+            return id;
+        }
     }
 
     /**
@@ -212,7 +427,7 @@ public class FeedProvider extends ContentProvider {
      */
     static class FeedDatabase extends SQLiteOpenHelper {
         /** Schema version. */
-        public static final int DATABASE_VERSION = 1;
+        public static final int DATABASE_VERSION = 2;
         /** Filename for SQLite file. */
         public static final String DATABASE_NAME = "feed.db";
 
@@ -228,6 +443,13 @@ public class FeedProvider extends ContentProvider {
                         FeedContract.Entry.COLUMN_NAME_LINK + TYPE_TEXT + COMMA_SEP +
                         FeedContract.Entry.COLUMN_NAME_PUBLISHED + TYPE_INTEGER + ")";
 
+        /** SQL statement to index "entry" rows by Atom ID, which is how syncs look them up. */
+        private static final String SQL_CREATE_ENTRY_ID_INDEX =
+                "CREATE INDEX IF NOT EXISTS " + FeedContract.Entry.TABLE_NAME + "_" +
+                        FeedContract.Entry.COLUMN_NAME_ENTRY_ID + "_index ON " +
+                        FeedContract.Entry.TABLE_NAME + " (" +
+                        FeedContract.Entry.COLUMN_NAME_ENTRY_ID + ")";
+
         /** SQL statement to drop "entry" table. */
         private static final String SQL_DELETE_ENTRIES =
                 "DROP TABLE IF EXISTS " + FeedContract.Entry.TABLE_NAME;
@@ -239,10 +461,16 @@ public class FeedProvider extends ContentProvider {
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(SQL_CREATE_ENTRIES);
+            db.execSQL(SQL_CREATE_ENTRY_ID_INDEX);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 1 && newVersion == 2) {
+                // Version 2 only adds the entry_id index, so the data can be kept
+                db.execSQL(SQL_CREATE_ENTRY_ID_INDEX);
+                return;
+            }
             // This database is only a cache for online data, so its upgrade policy is
             // to simply to discard the data and start over
             db.execSQL(SQL_DELETE_ENTRIES);
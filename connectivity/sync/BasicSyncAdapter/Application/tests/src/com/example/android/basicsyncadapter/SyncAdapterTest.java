@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.basicsyncadapter;
+
+import android.content.Context;
+import android.content.SyncResult;
+import android.test.InstrumentationTestCase;
+
+import com.example.android.basicsyncadapter.provider.FeedContract;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the conditional download of {@link SyncAdapter} against a feed served on the loopback
+ * interface. The local entries and the sync state are cleared first.
+ */
+public class SyncAdapterTest extends InstrumentationTestCase {
+
+    private static final String ETAG = "\"feed-1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private static final String FEED = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<feed xmlns=\"http://www.w3.org/2005/Atom\">\n"
+            + "  <title>Test feed</title>\n"
+            + "  <entry>\n"
+            + "    <id>urn:test:1</id>\n"
+            + "    <title>First</title>\n"
+            + "    <link rel=\"alternate\" type=\"text/html\" href=\"http://example.com/1\"/>\n"
+            + "    <published>2015-10-21T07:28:00Z</published>\n"
+            + "  </entry>\n"
+            + "  <entry>\n"
+            + "    <id>urn:test:2</id>\n"
+            + "    <title>Second</title>\n"
+            + "    <link rel=\"alternate\" type=\"text/html\" href=\"http://example.com/2\"/>\n"
+            + "    <published>2015-10-22T07:28:00Z</published>\n"
+            + "  </entry>\n"
+            + "</feed>\n";
+
+    private Context mContext;
+    private SyncAdapter mSyncAdapter;
+    private FeedServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mContext.getContentResolver().delete(FeedContract.Entry.CONTENT_URI, null, null);
+        mContext.getSharedPreferences("sync_state", Context.MODE_PRIVATE).edit().clear()
+                .commit();
+        mSyncAdapter = new SyncAdapter(mContext, false);
+        mServer = new FeedServer();
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mContext.getContentResolver().delete(FeedContract.Entry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testConditionalSync() throws Exception {
+        final URL url = mServer.getUrl();
+
+        // First sync, nothing to validate against
+        mServer.respond(200, ETAG, FEED);
+        SyncResult syncResult = new SyncResult();
+        assertEquals(SyncAdapter.RESULT_MERGED, mSyncAdapter.syncFeed(url, syncResult));
+        assertEquals(2, syncResult.stats.numInserts);
+        Map<String, String> request = mServer.takeRequest();
+        assertNull(request.get("if-none-match"));
+        assertNull(request.get("if-modified-since"));
+
+        // The server says the feed has not changed
+        mServer.respond(304, ETAG, null);
+        syncResult = new SyncResult();
+        assertEquals(SyncAdapter.RESULT_NOT_MODIFIED, mSyncAdapter.syncFeed(url, syncResult));
+        request = mServer.takeRequest();
+        assertEquals(ETAG, request.get("if-none-match"));
+        assertEquals(LAST_MODIFIED, request.get("if-modified-since"));
+        assertEquals(0, syncResult.stats.numInserts);
+
+        // The server sends the same feed anyway, so it is not merged again
+        mServer.respond(200, "\"feed-2\"", FEED);
+        syncResult = new SyncResult();
+        assertEquals(SyncAdapter.RESULT_UNCHANGED, mSyncAdapter.syncFeed(url, syncResult));
+        request = mServer.takeRequest();
+        assertEquals(ETAG, request.get("if-none-match"));
+        assertEquals(0, syncResult.stats.numEntries);
+        assertEquals(0, syncResult.stats.numInserts);
+        assertEquals(0, syncResult.stats.numUpdates);
+        assertEquals(0, syncResult.stats.numDeletes);
+
+        // The new validators were saved after the unchanged feed
+        mServer.respond(304, "\"feed-2\"", null);
+        assertEquals(SyncAdapter.RESULT_NOT_MODIFIED,
+                mSyncAdapter.syncFeed(url, new SyncResult()));
+        assertEquals("\"feed-2\"", mServer.takeRequest().get("if-none-match"));
+    }
+
+    /**
+     * Serves one queued response per connection on the loopback interface, and records the
+     * headers of each request with lower case names.
+     */
+    private static class FeedServer extends Thread {
+        private final ServerSocket mSocket;
+        private final LinkedBlockingQueue<String> mResponses = new LinkedBlockingQueue<String>();
+        private final LinkedBlockingQueue<Map<String, String>> mRequests =
+                new LinkedBlockingQueue<Map<String, String>>();
+
+        FeedServer() throws IOException {
+            super("FeedServer");
+            mSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        }
+
+        URL getUrl() throws IOException {
+            return new URL("http://127.0.0.1:" + mSocket.getLocalPort() + "/atom.xml");
+        }
+
+        void respond(int code, String etag, String body) throws IOException {
+            final StringBuilder response = new StringBuilder();
+            response.append("HTTP/1.1 ").append(code)
+                    .append(code == 200 ? " OK" : " Not Modified").append("\r\n");
+            response.append("ETag: ").append(etag).append("\r\n");
+            response.append("Last-Modified: ").append(LAST_MODIFIED).append("\r\n");
+            response.append("Connection: close\r\n");
+            if (body != null) {
+                response.append("Content-Type: application/atom+xml\r\n");
+                response.append("Content-Length: ").append(body.getBytes("UTF-8").length)
+                        .append("\r\n");
+            }
+            response.append("\r\n");
+            if (body != null) {
+                response.append(body);
+            }
+            mResponses.add(response.toString());
+        }
+
+        Map<String, String> takeRequest() throws InterruptedException {
+            final Map<String, String> request = mRequests.poll(10, TimeUnit.SECONDS);
+            assertNotNull("no request", request);
+            return request;
+        }
+
+        void close() throws IOException, InterruptedException {
+            mSocket.close();
+            join();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = mSocket.accept();
+                } catch (IOException e) {
+                    // Closed
+                    return;
+                }
+                try {
+                    serve(socket);
+                } catch (IOException e) {
+                    // The test fails when the request is not recorded
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            final BufferedReader in =
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            final Map<String, String> headers = new HashMap<String, String>();
+            // Skip the request line
+            in.readLine();
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            final String response = mResponses.poll();
+            final OutputStream out = socket.getOutputStream();
+            out.write((response != null ? response
+                    : "HTTP/1.1 500 No response queued\r\nConnection: close\r\n\r\n")
+                    .getBytes("UTF-8"));
+            out.flush();
+            mRequests.add(headers);
+        }
+    }
+}
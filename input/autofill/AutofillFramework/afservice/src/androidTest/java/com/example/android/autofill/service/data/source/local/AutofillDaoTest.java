@@ -92,4 +92,28 @@ public class AutofillDaoTest {
         assertThat(loadedDatasets, contains(datasetWithFilledAutofillFields));
         assertThat(loadedDatasets, hasSize(1));
     }
+
+    @Test
+    public void insertDatasetsWithFieldsAndGet() {
+        DatasetWithFilledAutofillFields datasetWithFilledAutofillFields =
+                new DatasetWithFilledAutofillFields();
+        datasetWithFilledAutofillFields.autofillDataset = mDataset;
+        datasetWithFilledAutofillFields.filledAutofillFields =
+                Arrays.asList(mUsernameField, mPasswordField);
+        datasetWithFilledAutofillFields.filledAutofillFields
+                .sort(Comparator.comparing(FilledAutofillField::getFieldTypeName));
+
+        // When inserting the dataset and its fields in one transaction.
+        mDatabase.autofillDao().insertAutofillDatasetsWithFields(
+                ImmutableList.of(mDataset), datasetWithFilledAutofillFields.filledAutofillFields);
+
+        List<String> allHints = ImmutableList.of(View.AUTOFILL_HINT_USERNAME,
+                View.AUTOFILL_HINT_PASSWORD);
+        List<DatasetWithFilledAutofillFields> loadedDatasets = mDatabase.autofillDao()
+                .getDatasets(allHints);
+        loadedDatasets.get(0).filledAutofillFields.sort(
+                Comparator.comparing(FilledAutofillField::getFieldTypeName));
+        assertThat(loadedDatasets, contains(datasetWithFilledAutofillFields));
+        assertThat(loadedDatasets, hasSize(1));
+    }
 }
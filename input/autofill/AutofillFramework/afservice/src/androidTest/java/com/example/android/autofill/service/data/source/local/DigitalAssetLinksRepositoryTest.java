@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.autofill.service.data.source.local;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.autofill.service.data.DataCallback;
+import com.example.android.autofill.service.data.source.DalService;
+import com.example.android.autofill.service.model.DalCheck;
+import com.example.android.autofill.service.model.DalInfo;
+import com.example.android.autofill.service.util.SecurityHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import static com.example.android.autofill.service.data.source.local.DigitalAssetLinksRepository.PERMISSION_GET_LOGIN_CREDS;
+import static com.example.android.autofill.service.data.source.local.DigitalAssetLinksRepository.PERMISSION_HANDLE_ALL_URLS;
+import static com.example.android.autofill.service.data.source.local.DigitalAssetLinksRepository.getCacheKey;
+import static com.example.android.autofill.service.util.Util.DalCheckRequirement.AllUrls;
+import static com.example.android.autofill.service.util.Util.DalCheckRequirement.LoginOnly;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Checks {@link DigitalAssetLinksRepository} against a local stand-in for the DAL endpoint, which
+ * answers each request when the test tells it to.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DigitalAssetLinksRepositoryTest {
+    private final Context mContext = InstrumentationRegistry.getContext();
+    private final DalInfo mDalInfo = new DalInfo("example.com", mContext.getPackageName());
+
+    private SharedPreferences mSharedPrefs;
+    private FakeDalService mDalService;
+    private String mFingerprint;
+
+    @Before
+    public void setup() throws Exception {
+        mSharedPrefs = mContext.getSharedPreferences("DigitalAssetLinksRepositoryTest",
+                Context.MODE_PRIVATE);
+        mSharedPrefs.edit().clear().commit();
+        mDalService = new FakeDalService();
+        String packageName = mContext.getPackageName();
+        mFingerprint = SecurityHelper.getFingerprint(mContext.getPackageManager()
+                .getPackageInfo(packageName, PackageManager.GET_SIGNATURES), packageName);
+    }
+
+    private DigitalAssetLinksRepository newRepository() {
+        return new DigitalAssetLinksRepository(mContext.getPackageManager(), mSharedPrefs,
+                mDalService);
+    }
+
+    @Test
+    public void linkedVerdictIsCached() {
+        DigitalAssetLinksRepository repository = newRepository();
+        RecordingCallback first = new RecordingCallback();
+        repository.checkValid(LoginOnly, mDalInfo, first);
+        assertThat(mDalService.mRequests, hasSize(1));
+        FakeCall request = mDalService.mRequests.get(0);
+        assertThat(request.mPermission, is(PERMISSION_GET_LOGIN_CREDS));
+        assertThat(request.mFingerprint, is(mFingerprint));
+        request.respond(true);
+        assertThat(first.mLinked, contains(true));
+
+        RecordingCallback second = new RecordingCallback();
+        repository.checkValid(LoginOnly, mDalInfo, second);
+        assertThat(second.mLinked, contains(true));
+        assertThat(mDalService.mRequests, hasSize(1));
+
+        // The verdict is also used by a new repository, as after the service is restarted.
+        RecordingCallback third = new RecordingCallback();
+        newRepository().checkValid(LoginOnly, mDalInfo, third);
+        assertThat(third.mLinked, contains(true));
+        assertThat(mDalService.mRequests, hasSize(1));
+    }
+
+    @Test
+    public void verdictForAnotherCertificateIsNotUsed() {
+        // A linked verdict for an app of the same name with a different certificate.
+        String otherKey = getCacheKey(mDalInfo.getWebDomain(), mDalInfo.getPackageName(),
+                "00:11:22:33", PERMISSION_GET_LOGIN_CREDS);
+        mSharedPrefs.edit()
+                .putString(otherKey, "true," + (System.currentTimeMillis() + 60 * 60 * 1000))
+                .commit();
+
+        RecordingCallback callback = new RecordingCallback();
+        newRepository().checkValid(LoginOnly, mDalInfo, callback);
+        assertThat(mDalService.mRequests, hasSize(1));
+        mDalService.mRequests.get(0).respond(false);
+        assertThat(callback.mLinked, contains(false));
+    }
+
+    @Test
+    public void concurrentChecksShareOneRequest() {
+        DigitalAssetLinksRepository repository = newRepository();
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        repository.checkValid(LoginOnly, mDalInfo, first);
+        repository.checkValid(LoginOnly, mDalInfo, second);
+        assertThat(mDalService.mRequests, hasSize(1));
+
+        mDalService.mRequests.get(0).respond(true);
+        assertThat(first.mLinked, contains(true));
+        assertThat(second.mLinked, contains(true));
+    }
+
+    @Test
+    public void allUrlsIsLinkedByEitherPermission() {
+        RecordingCallback callback = new RecordingCallback();
+        newRepository().checkValid(AllUrls, mDalInfo, callback);
+        assertThat(mDalService.mRequests, hasSize(2));
+        for (FakeCall request : mDalService.mRequests) {
+            request.respond(request.mPermission.equals(PERMISSION_HANDLE_ALL_URLS));
+        }
+        assertThat(callback.mLinked, contains(true));
+        assertThat(callback.mError, nullValue());
+    }
+
+    @Test
+    public void failedRequestIsNotCached() {
+        DigitalAssetLinksRepository repository = newRepository();
+        RecordingCallback first = new RecordingCallback();
+        repository.checkValid(LoginOnly, mDalInfo, first);
+        mDalService.mRequests.get(0).fail();
+        assertThat(first.mLinked, hasSize(0));
+        assertThat(first.mError != null, is(true));
+
+        RecordingCallback second = new RecordingCallback();
+        repository.checkValid(LoginOnly, mDalInfo, second);
+        assertThat(mDalService.mRequests, hasSize(2));
+    }
+
+    private static class RecordingCallback implements DataCallback<DalCheck> {
+        final List<Boolean> mLinked = new ArrayList<>();
+        String mError;
+
+        @Override
+        public void onLoaded(DalCheck dalCheck) {
+            mLinked.add(dalCheck.linked);
+        }
+
+        @Override
+        public void onDataNotAvailable(String msg, Object... params) {
+            mError = String.format(msg, params);
+        }
+    }
+
+    /**
+     * Stand-in for the DAL endpoint that keeps each request until the test answers it.
+     */
+    private static class FakeDalService implements DalService {
+        final List<FakeCall> mRequests = new ArrayList<>();
+
+        @Override
+        public Call<DalCheck> check(String webDomain, String permission, String packageName,
+                String fingerprint) {
+            FakeCall call = new FakeCall(permission, fingerprint);
+            mRequests.add(call);
+            return call;
+        }
+    }
+
+    private static class FakeCall implements Call<DalCheck> {
+        final String mPermission;
+        final String mFingerprint;
+        private Callback<DalCheck> mCallback;
+
+        FakeCall(String permission, String fingerprint) {
+            mPermission = permission;
+            mFingerprint = fingerprint;
+        }
+
+        void respond(boolean linked) {
+            DalCheck dalCheck = new DalCheck();
+            dalCheck.linked = linked;
+            dalCheck.maxAge = "3600s";
+            mCallback.onResponse(this, Response.success(dalCheck));
+        }
+
+        void fail() {
+            mCallback.onFailure(this, new IOException("offline"));
+        }
+
+        @Override
+        public Response<DalCheck> execute() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void enqueue(Callback<DalCheck> callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mCallback != null;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public Call<DalCheck> clone() {
+            return new FakeCall(mPermission, mFingerprint);
+        }
+
+        @Override
+        public Request request() {
+            return new Request.Builder().url("https://localhost/v1/assetlinks:check").build();
+        }
+    }
+}
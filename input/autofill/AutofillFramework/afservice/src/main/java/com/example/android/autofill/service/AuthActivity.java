@@ -106,7 +106,7 @@ public class AuthActivity extends AppCompatActivity {
                 defaultFieldTypesSource, new AppExecutors()).autofillDao();
         mLocalAutofillDataSource = LocalAutofillDataSource.getInstance(sharedPreferences,
                 autofillDao, new AppExecutors());
-        mDalRepository = DigitalAssetLinksRepository.getInstance(getPackageManager());
+        mDalRepository = DigitalAssetLinksRepository.getInstance(this);
         mMasterPassword = findViewById(R.id.master_password);
         mPackageName = getPackageName();
         mPreferences = MyPreferences.getInstance(this);
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.autofill.service;
+
+import android.app.assist.AssistStructure;
+import android.app.assist.AssistStructure.ViewNode;
+import android.support.annotation.Nullable;
+import android.view.autofill.AutofillId;
+import android.view.autofill.AutofillValue;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Flat index of the {@link ViewNode}s in one or more {@link AssistStructure}s, built in a single
+ * traversal.
+ * <p>
+ * Node data is kept in parallel arrays in depth-first order, the same order in which
+ * {@link ClientParser} used to visit the nodes. Nodes with autofill hints and focused nodes are
+ * listed separately so consumers do not have to scan every node, and nodes can be found by
+ * {@link AutofillId} in constant time.
+ */
+public final class ClientNodeIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private ViewNode[] mNodes = new ViewNode[INITIAL_CAPACITY];
+    private AutofillId[] mAutofillIds = new AutofillId[INITIAL_CAPACITY];
+    private String[][] mHints = new String[INITIAL_CAPACITY][];
+    private String[] mWebDomains = new String[INITIAL_CAPACITY];
+    private boolean[] mFocused = new boolean[INITIAL_CAPACITY];
+    private AutofillValue[] mValues = new AutofillValue[INITIAL_CAPACITY];
+    private int mSize;
+
+    private int[] mHintedNodes = new int[INITIAL_CAPACITY];
+    private int mHintedCount;
+    private int[] mFocusedNodes = new int[4];
+    private int mFocusedCount;
+    private int[] mWebDomainNodes = new int[4];
+    private int mWebDomainCount;
+
+    private final HashMap<AutofillId, Integer> mPositionsByAutofillId = new HashMap<>();
+
+    ClientNodeIndex(List<AssistStructure> structures) {
+        // An explicit stack, so deep web forms cannot overflow the thread's stack.
+        ArrayDeque<ViewNode> stack = new ArrayDeque<>();
+        for (AssistStructure structure : structures) {
+            int windows = structure.getWindowNodeCount();
+            for (int i = 0; i < windows; i++) {
+                stack.push(structure.getWindowNodeAt(i).getRootViewNode());
+                while (!stack.isEmpty()) {
+                    ViewNode node = stack.pop();
+                    add(node);
+                    for (int child = node.getChildCount() - 1; child >= 0; child--) {
+                        stack.push(node.getChildAt(child));
+                    }
+                }
+            }
+        }
+    }
+
+    private void add(ViewNode node) {
+        if (mSize == mNodes.length) {
+            int capacity = mSize * 2;
+            mNodes = Arrays.copyOf(mNodes, capacity);
+            mAutofillIds = Arrays.copyOf(mAutofillIds, capacity);
+            mHints = Arrays.copyOf(mHints, capacity);
+            mWebDomains = Arrays.copyOf(mWebDomains, capacity);
+            mFocused = Arrays.copyOf(mFocused, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+        int position = mSize++;
+        AutofillId autofillId = node.getAutofillId();
+        String[] hints = node.getAutofillHints();
+        mNodes[position] = node;
+        mAutofillIds[position] = autofillId;
+        mHints[position] = hints;
+        mWebDomains[position] = node.getWebDomain();
+        mFocused[position] = node.isFocused();
+        mValues[position] = node.getAutofillValue();
+
+        if (autofillId != null) {
+            mPositionsByAutofillId.putIfAbsent(autofillId, position);
+        }
+        if (hints != null && hints.length > 0) {
+            mHintedNodes = append(mHintedNodes, mHintedCount++, position);
+        }
+        if (mFocused[position]) {
+            mFocusedNodes = append(mFocusedNodes, mFocusedCount++, position);
+        }
+        if (mWebDomains[position] != null) {
+            mWebDomainNodes = append(mWebDomainNodes, mWebDomainCount++, position);
+        }
+    }
+
+    private static int[] append(int[] array, int count, int value) {
+        if (count == array.length) {
+            array = Arrays.copyOf(array, count * 2);
+        }
+        array[count] = value;
+        return array;
+    }
+
+    /**
+     * @return Number of nodes. Positions range from 0 to this value minus one.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public ViewNode getNode(int position) {
+        return mNodes[position];
+    }
+
+    @Nullable
+    public AutofillId getAutofillId(int position) {
+        return mAutofillIds[position];
+    }
+
+    @Nullable
+    public String[] getHints(int position) {
+        return mHints[position];
+    }
+
+    @Nullable
+    public String getWebDomain(int position) {
+        return mWebDomains[position];
+    }
+
+    public boolean isFocused(int position) {
+        return mFocused[position];
+    }
+
+    @Nullable
+    public AutofillValue getValue(int position) {
+        return mValues[position];
+    }
+
+    /**
+     * Nodes with at least one autofill hint; the position of the i-th one is
+     * {@code getHintedNode(i)}.
+     */
+    public int getHintedNodeCount() {
+        return mHintedCount;
+    }
+
+    public int getHintedNode(int i) {
+        return mHintedNodes[i];
+    }
+
+    public int getFocusedNodeCount() {
+        return mFocusedCount;
+    }
+
+    public int getFocusedNode(int i) {
+        return mFocusedNodes[i];
+    }
+
+    public int getWebDomainNodeCount() {
+        return mWebDomainCount;
+    }
+
+    public int getWebDomainNode(int i) {
+        return mWebDomainNodes[i];
+    }
+
+    /**
+     * @return Position of the first node with this autofill id, or -1 if there is none.
+     */
+    public int indexOf(AutofillId autofillId) {
+        Integer position = mPositionsByAutofillId.get(autofillId);
+        return position != null ? position : -1;
+    }
+
+    @Nullable
+    public ViewNode findNodeByAutofillId(AutofillId autofillId) {
+        int position = indexOf(autofillId);
+        return position >= 0 ? mNodes[position] : null;
+    }
+}
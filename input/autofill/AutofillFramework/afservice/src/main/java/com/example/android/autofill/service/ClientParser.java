@@ -28,9 +28,13 @@ import static android.app.assist.AssistStructure.ViewNode;
 
 /**
  * Wrapper for {@link AssistStructure} to make it easy to parse.
+ * <p>
+ * The structures are traversed once, the first time they are needed, into a
+ * {@link ClientNodeIndex} that every consumer then reads from. Instances are not thread-safe.
  */
 public final class ClientParser {
     private final List<AssistStructure> mStructures;
+    private ClientNodeIndex mNodeIndex;
 
     public ClientParser(@NonNull List<AssistStructure> structures) {
         Preconditions.checkNotNull(structures);
@@ -42,27 +46,25 @@ public final class ClientParser {
     }
 
     /**
-     * Traverses through the {@link AssistStructure} and does something at each {@link ViewNode}.
-     *
-     * @param processor contains action to be performed on each {@link ViewNode}.
+     * Returns the flat index of the {@link ViewNode}s, building it on the first call.
      */
-    public void parse(NodeProcessor processor) {
-        for (AssistStructure structure : mStructures) {
-            int nodes = structure.getWindowNodeCount();
-            for (int i = 0; i < nodes; i++) {
-                AssistStructure.ViewNode viewNode = structure.getWindowNodeAt(i).getRootViewNode();
-                traverseRoot(viewNode, processor);
-            }
+    public ClientNodeIndex getNodeIndex() {
+        if (mNodeIndex == null) {
+            mNodeIndex = new ClientNodeIndex(mStructures);
         }
+        return mNodeIndex;
     }
 
-    private void traverseRoot(AssistStructure.ViewNode viewNode, NodeProcessor processor) {
-        processor.processNode(viewNode);
-        int childrenSize = viewNode.getChildCount();
-        if (childrenSize > 0) {
-            for (int i = 0; i < childrenSize; i++) {
-                traverseRoot(viewNode.getChildAt(i), processor);
-            }
+    /**
+     * Visits each {@link ViewNode} of the {@link AssistStructure} in depth-first order and does
+     * something at each one.
+     *
+     * @param processor contains action to be performed on each {@link ViewNode}.
+     */
+    public void parse(NodeProcessor processor) {
+        ClientNodeIndex index = getNodeIndex();
+        for (int i = 0; i < index.size(); i++) {
+            processor.processNode(index.getNode(i));
         }
     }
 
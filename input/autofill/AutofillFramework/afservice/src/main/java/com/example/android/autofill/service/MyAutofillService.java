@@ -52,6 +52,7 @@ import com.example.android.autofill.service.model.DatasetWithFilledAutofillField
 import com.example.android.autofill.service.model.FieldTypeWithHeuristics;
 import com.example.android.autofill.service.settings.MyPreferences;
 import com.example.android.autofill.service.util.AppExecutors;
+import com.example.android.autofill.service.util.FillLatencyTracker;
 import com.example.android.autofill.service.util.Util;
 import com.google.gson.GsonBuilder;
 
@@ -78,6 +79,7 @@ public class MyAutofillService extends AutofillService {
     private ResponseAdapter mResponseAdapter;
     private ClientViewMetadata mClientViewMetadata;
     private MyPreferences mPreferences;
+    private final FillLatencyTracker mFillLatencyTracker = new FillLatencyTracker();
 
     @Override
     public void onCreate() {
@@ -93,18 +95,22 @@ public class MyAutofillService extends AutofillService {
                 defaultFieldTypesSource, new AppExecutors()).autofillDao();
         mLocalAutofillDataSource = LocalAutofillDataSource.getInstance(localAfDataSourceSharedPrefs,
                 autofillDao, new AppExecutors());
-        mDalRepository = DigitalAssetLinksRepository.getInstance(getPackageManager());
+        mDalRepository = DigitalAssetLinksRepository.getInstance(this);
         mPackageVerificationRepository = SharedPrefsPackageVerificationRepository.getInstance(this);
     }
 
     @Override
     public void onFillRequest(@NonNull FillRequest request,
             @NonNull CancellationSignal cancellationSignal, @NonNull FillCallback callback) {
+        FillLatencyTracker.Sample latency = mFillLatencyTracker.start();
         List<FillContext> fillContexts = request.getFillContexts();
         List<AssistStructure> structures =
                 fillContexts.stream().map(FillContext::getStructure).collect(toList());
         AssistStructure latestStructure = fillContexts.get(fillContexts.size() - 1).getStructure();
         ClientParser parser = new ClientParser(structures);
+        // Traverse the structures before looking anything up so that the parse phase covers it.
+        parser.getNodeIndex();
+        latency.mark(FillLatencyTracker.PHASE_PARSE);
 
         // Check user's settings for authenticating Responses and Datasets.
         boolean responseAuth = mPreferences.isResponseAuth();
@@ -114,15 +120,20 @@ public class MyAutofillService extends AutofillService {
                 new DataCallback<HashMap<String, FieldTypeWithHeuristics>>() {
                     @Override
                     public void onLoaded(HashMap<String, FieldTypeWithHeuristics> fieldTypesByAutofillHint) {
+                        // Includes waiting for the disk executor if the field types are
+                        // not loaded yet.
+                        latency.mark(FillLatencyTracker.PHASE_LOOKUP);
                         DatasetAdapter datasetAdapter = new DatasetAdapter(parser);
                         ClientViewMetadataBuilder clientViewMetadataBuilder =
                                 new ClientViewMetadataBuilder(parser, fieldTypesByAutofillHint);
                         mClientViewMetadata = clientViewMetadataBuilder.buildClientViewMetadata();
+                        latency.mark(FillLatencyTracker.PHASE_PARSE);
                         mResponseAdapter = new ResponseAdapter(MyAutofillService.this,
                                 mClientViewMetadata, getPackageName(), datasetAdapter);
                         String packageName = latestStructure.getActivityComponent().getPackageName();
                         if (!mPackageVerificationRepository.putPackageSignatures(packageName)) {
                             callback.onFailure(getString(R.string.invalid_package_signature));
+                            mFillLatencyTracker.finish(latency);
                             return;
                         }
                         if (logVerboseEnabled()) {
@@ -134,19 +145,23 @@ public class MyAutofillService extends AutofillService {
                                 logw("Cancel autofill not implemented in this sample.")
                         );
                         fetchDataAndGenerateResponse(fieldTypesByAutofillHint, responseAuth,
-                                datasetAuth, manual, callback);
+                                datasetAuth, manual, callback, latency);
                     }
 
                     @Override
                     public void onDataNotAvailable(String msg, Object... params) {
-
+                        latency.mark(FillLatencyTracker.PHASE_LOOKUP);
+                        logw(msg, params);
+                        callback.onFailure(String.format(msg, params));
+                        mFillLatencyTracker.finish(latency);
                     }
                 });
     }
 
     private void fetchDataAndGenerateResponse(
             HashMap<String, FieldTypeWithHeuristics> fieldTypesByAutofillHint, boolean responseAuth,
-            boolean datasetAuth, boolean manual, FillCallback callback) {
+            boolean datasetAuth, boolean manual, FillCallback callback,
+            FillLatencyTracker.Sample latency) {
         if (responseAuth) {
             // If the entire Autofill Response is authenticated, AuthActivity is used
             // to generate Response.
@@ -154,14 +169,17 @@ public class MyAutofillService extends AutofillService {
             RemoteViews remoteViews = RemoteViewsHelper.viewsWithAuth(getPackageName(),
                     getString(R.string.autofill_sign_in_prompt));
             FillResponse response = mResponseAdapter.buildResponse(sender, remoteViews);
+            latency.mark(FillLatencyTracker.PHASE_BUILD);
             if (response != null) {
                 callback.onSuccess(response);
             }
+            mFillLatencyTracker.finish(latency);
         } else {
             mLocalAutofillDataSource.getAutofillDatasets(mClientViewMetadata.getAllHints(),
                     new DataCallback<List<DatasetWithFilledAutofillFields>>() {
                         @Override
                         public void onLoaded(List<DatasetWithFilledAutofillFields> datasets) {
+                            latency.mark(FillLatencyTracker.PHASE_LOOKUP);
                             if ((datasets == null || datasets.isEmpty()) && manual) {
                                 IntentSender sender = ManualActivity
                                         .getManualIntentSenderForResponse(MyAutofillService.this);
@@ -170,20 +188,25 @@ public class MyAutofillService extends AutofillService {
                                         getString(R.string.autofill_manual_prompt));
                                 FillResponse response = mResponseAdapter.buildManualResponse(sender,
                                         remoteViews);
+                                latency.mark(FillLatencyTracker.PHASE_BUILD);
                                 if (response != null) {
                                     callback.onSuccess(response);
                                 }
                             } else {
                                 FillResponse response = mResponseAdapter.buildResponse(
                                         fieldTypesByAutofillHint, datasets, datasetAuth);
+                                latency.mark(FillLatencyTracker.PHASE_BUILD);
                                 callback.onSuccess(response);
                             }
+                            mFillLatencyTracker.finish(latency);
                         }
 
                         @Override
                         public void onDataNotAvailable(String msg, Object... params) {
+                            latency.mark(FillLatencyTracker.PHASE_LOOKUP);
                             logw(msg, params);
                             callback.onFailure(String.format(msg, params));
+                            mFillLatencyTracker.finish(latency);
                         }
                     });
         }
@@ -273,6 +296,8 @@ public class MyAutofillService extends AutofillService {
     @Override
     public void onConnected() {
         logd("onConnected");
+        // Load the field types now rather than on the first fill request.
+        mLocalAutofillDataSource.preloadFieldTypeIndex();
     }
 
     @Override
@@ -16,12 +16,12 @@
 
 package com.example.android.autofill.service.data;
 
-import android.app.assist.AssistStructure;
 import android.support.annotation.NonNull;
 import android.view.View;
 import android.view.autofill.AutofillValue;
 
 import com.example.android.autofill.service.AutofillHints;
+import com.example.android.autofill.service.ClientNodeIndex;
 import com.example.android.autofill.service.ClientParser;
 import com.example.android.autofill.service.model.AutofillDataset;
 import com.example.android.autofill.service.model.DatasetWithFilledAutofillFields;
@@ -75,20 +75,19 @@ public class ClientAutofillDataBuilder implements AutofillDataBuilder {
         DatasetWithFilledAutofillFields datasetWithFilledAutofillFields =
                 new DatasetWithFilledAutofillFields();
         datasetWithFilledAutofillFields.autofillDataset = dataset;
-        mClientParser.parse((node) ->
-                parseAutofillFields(node, datasetWithFilledAutofillFields, partition)
-        );
+        ClientNodeIndex index = mClientParser.getNodeIndex();
+        for (int i = 0; i < index.getHintedNodeCount(); i++) {
+            parseAutofillFields(index, index.getHintedNode(i), datasetWithFilledAutofillFields,
+                    partition);
+        }
         return datasetWithFilledAutofillFields;
 
     }
 
-    private void parseAutofillFields(AssistStructure.ViewNode viewNode,
+    private void parseAutofillFields(ClientNodeIndex index, int position,
             DatasetWithFilledAutofillFields datasetWithFilledAutofillFields, int partition) {
-        String[] hints = viewNode.getAutofillHints();
-        if (hints == null || hints.length == 0) {
-            return;
-        }
-        AutofillValue autofillValue = viewNode.getAutofillValue();
+        String[] hints = index.getHints(position);
+        AutofillValue autofillValue = index.getValue(position);
         String textValue = null;
         Long dateValue = null;
         Boolean toggleValue = null;
@@ -102,7 +101,7 @@ public class ClientAutofillDataBuilder implements AutofillDataBuilder {
             } else if (autofillValue.isDate()) {
                 dateValue = autofillValue.getDateValue();
             } else if (autofillValue.isList()) {
-                autofillOptions = viewNode.getAutofillOptions();
+                autofillOptions = index.getNode(position).getAutofillOptions();
                 listIndex = autofillValue.getListValue();
             } else if (autofillValue.isToggle()) {
                 toggleValue = autofillValue.getToggleValue();
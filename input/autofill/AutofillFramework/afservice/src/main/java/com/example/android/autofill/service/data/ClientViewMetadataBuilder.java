@@ -17,12 +17,10 @@
 package com.example.android.autofill.service.data;
 
 
-import android.app.assist.AssistStructure;
-import android.util.MutableInt;
 import android.view.autofill.AutofillId;
 
+import com.example.android.autofill.service.ClientNodeIndex;
 import com.example.android.autofill.service.ClientParser;
-import com.example.android.autofill.service.model.FieldType;
 import com.example.android.autofill.service.model.FieldTypeWithHeuristics;
 
 import java.util.ArrayList;
@@ -42,50 +40,44 @@ public class ClientViewMetadataBuilder {
     }
 
     public ClientViewMetadata buildClientViewMetadata() {
+        ClientNodeIndex index = mClientParser.getNodeIndex();
         List<String> allHints = new ArrayList<>();
-        MutableInt saveType = new MutableInt(0);
+        int saveType = 0;
         List<AutofillId> autofillIds = new ArrayList<>();
-        StringBuilder webDomainBuilder = new StringBuilder();
-        List<AutofillId> focusedAutofillIds = new ArrayList<>();
-        mClientParser.parse((node) -> parseNode(node, allHints, saveType, autofillIds, focusedAutofillIds));
-        mClientParser.parse((node) -> parseWebDomain(node, webDomainBuilder));
-        String webDomain = webDomainBuilder.toString();
+        for (int i = 0; i < index.getHintedNodeCount(); i++) {
+            int position = index.getHintedNode(i);
+            for (String hint : index.getHints(position)) {
+                FieldTypeWithHeuristics fieldTypeWithHints = mFieldTypesByAutofillHint.get(hint);
+                if (fieldTypeWithHints != null && fieldTypeWithHints.fieldType != null) {
+                    allHints.add(hint);
+                    saveType |= fieldTypeWithHints.fieldType.getSaveInfo();
+                    autofillIds.add(index.getAutofillId(position));
+                }
+            }
+        }
+        AutofillId[] focusedIds = new AutofillId[index.getFocusedNodeCount()];
+        for (int i = 0; i < focusedIds.length; i++) {
+            focusedIds[i] = index.getAutofillId(index.getFocusedNode(i));
+        }
+        String webDomain = getWebDomain(index);
         AutofillId[] autofillIdsArray = autofillIds.toArray(new AutofillId[autofillIds.size()]);
-        AutofillId[] focusedIds = focusedAutofillIds.toArray(new AutofillId[focusedAutofillIds.size()]);
-        return new ClientViewMetadata(allHints, saveType.value, autofillIdsArray, focusedIds, webDomain);
+        return new ClientViewMetadata(allHints, saveType, autofillIdsArray, focusedIds, webDomain);
     }
 
-    private void parseWebDomain(AssistStructure.ViewNode viewNode, StringBuilder validWebDomain) {
-        String webDomain = viewNode.getWebDomain();
-        if (webDomain != null) {
+    private String getWebDomain(ClientNodeIndex index) {
+        String validWebDomain = null;
+        for (int i = 0; i < index.getWebDomainNodeCount(); i++) {
+            String webDomain = index.getWebDomain(index.getWebDomainNode(i));
             logd("child web domain: %s", webDomain);
-            if (validWebDomain.length() > 0) {
-                if (!webDomain.equals(validWebDomain.toString())) {
+            if (validWebDomain != null && validWebDomain.length() > 0) {
+                if (!webDomain.equals(validWebDomain)) {
                     throw new SecurityException("Found multiple web domains: valid= "
                             + validWebDomain + ", child=" + webDomain);
                 }
             } else {
-                validWebDomain.append(webDomain);
-            }
-        }
-    }
-
-    private void parseNode(AssistStructure.ViewNode root, List<String> allHints,
-            MutableInt autofillSaveType, List<AutofillId> autofillIds,
-            List<AutofillId> focusedAutofillIds) {
-        String[] hints = root.getAutofillHints();
-        if (hints != null) {
-            for (String hint : hints) {
-                FieldTypeWithHeuristics fieldTypeWithHints = mFieldTypesByAutofillHint.get(hint);
-                if (fieldTypeWithHints != null && fieldTypeWithHints.fieldType != null) {
-                    allHints.add(hint);
-                    autofillSaveType.value |= fieldTypeWithHints.fieldType.getSaveInfo();
-                    autofillIds.add(root.getAutofillId());
-                }
+                validWebDomain = webDomain;
             }
         }
-        if (root.isFocused()) {
-            focusedAutofillIds.add(root.getAutofillId());
-        }
+        return validWebDomain != null ? validWebDomain : "";
     }
 }
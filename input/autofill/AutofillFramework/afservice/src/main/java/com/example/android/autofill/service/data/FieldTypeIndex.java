@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.autofill.service.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.example.android.autofill.service.model.AutofillHint;
+import com.example.android.autofill.service.model.FieldTypeWithHeuristics;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Immutable in-memory index of the stored field types, built once from
+ * {@link FieldTypeWithHeuristics} so that fill and save requests do not have to query the database.
+ * <p>
+ * Field types are looked up by autofill hint.
+ */
+public final class FieldTypeIndex {
+    private final HashMap<String, FieldTypeWithHeuristics> mFieldTypesByAutofillHint;
+    private final int mFieldTypeCount;
+
+    private FieldTypeIndex(HashMap<String, FieldTypeWithHeuristics> fieldTypesByAutofillHint,
+            int fieldTypeCount) {
+        mFieldTypesByAutofillHint = fieldTypesByAutofillHint;
+        mFieldTypeCount = fieldTypeCount;
+    }
+
+    public static FieldTypeIndex build(@NonNull List<FieldTypeWithHeuristics> fieldTypes) {
+        HashMap<String, FieldTypeWithHeuristics> byAutofillHint = new HashMap<>();
+        for (FieldTypeWithHeuristics fieldType : fieldTypes) {
+            if (fieldType.autofillHints != null) {
+                for (AutofillHint hint : fieldType.autofillHints) {
+                    byAutofillHint.put(hint.mAutofillHint, fieldType);
+                }
+            }
+        }
+        return new FieldTypeIndex(byAutofillHint, fieldTypes.size());
+    }
+
+    /**
+     * Returns the field types keyed by autofill hint. The map is shared and must not be modified.
+     */
+    public HashMap<String, FieldTypeWithHeuristics> getFieldTypesByAutofillHint() {
+        return mFieldTypesByAutofillHint;
+    }
+
+    @Nullable
+    public FieldTypeWithHeuristics getFieldTypeForAutofillHint(String autofillHint) {
+        return mFieldTypesByAutofillHint.get(autofillHint);
+    }
+
+    public int getFieldTypeCount() {
+        return mFieldTypeCount;
+    }
+
+    public boolean isEmpty() {
+        return mFieldTypeCount == 0;
+    }
+}
@@ -26,6 +26,7 @@ import android.view.autofill.AutofillValue;
 import android.widget.RemoteViews;
 
 import com.example.android.autofill.service.AutofillHints;
+import com.example.android.autofill.service.ClientNodeIndex;
 import com.example.android.autofill.service.ClientParser;
 import com.example.android.autofill.service.model.DatasetWithFilledAutofillFields;
 import com.example.android.autofill.service.model.FieldType;
@@ -38,13 +39,17 @@ import java.util.Map;
 import java.util.function.Function;
 
 import static com.example.android.autofill.service.util.Util.indexOf;
-import static com.example.android.autofill.service.util.Util.logv;
 import static com.example.android.autofill.service.util.Util.logw;
 import static java.util.stream.Collectors.toMap;
 
 public class DatasetAdapter {
     private final ClientParser mClientParser;
 
+    // Field type name of each node with hints, worked out once for all of the datasets built
+    // with the same field type map.
+    private HashMap<String, FieldTypeWithHeuristics> mResolvedFieldTypes;
+    private String[] mFieldTypeNames;
+
     public DatasetAdapter(ClientParser clientParser) {
         mClientParser = clientParser;
     }
@@ -99,43 +104,47 @@ public class DatasetAdapter {
         Map<String, FilledAutofillField> filledAutofillFieldsByTypeName =
                 datasetWithFilledAutofillFields.filledAutofillFields.stream()
                         .collect(toMap(FilledAutofillField::getFieldTypeName, Function.identity()));
-        mClientParser.parse((node) ->
-                parseAutofillFields(node, fieldTypesByAutofillHint, filledAutofillFieldsByTypeName,
-                        datasetBuilder, setValueAtLeastOnce)
-        );
+        ClientNodeIndex index = mClientParser.getNodeIndex();
+        String[] fieldTypeNames = getFieldTypeNames(index, fieldTypesByAutofillHint);
+        for (int i = 0; i < fieldTypeNames.length; i++) {
+            if (fieldTypeNames[i] == null) {
+                continue;
+            }
+            FilledAutofillField field = filledAutofillFieldsByTypeName.get(fieldTypeNames[i]);
+            if (field != null) {
+                bindValueToNode(index.getNode(index.getHintedNode(i)), field, datasetBuilder,
+                        setValueAtLeastOnce);
+            }
+        }
         return setValueAtLeastOnce.value;
     }
 
+    private String[] getFieldTypeNames(ClientNodeIndex index,
+            HashMap<String, FieldTypeWithHeuristics> fieldTypesByAutofillHint) {
+        if (mFieldTypeNames == null || mResolvedFieldTypes != fieldTypesByAutofillHint) {
+            String[] fieldTypeNames = new String[index.getHintedNodeCount()];
+            for (int i = 0; i < fieldTypeNames.length; i++) {
+                fieldTypeNames[i] = AutofillHints.getFieldTypeNameFromAutofillHints(
+                        fieldTypesByAutofillHint,
+                        Arrays.asList(index.getHints(index.getHintedNode(i))));
+            }
+            mFieldTypeNames = fieldTypeNames;
+            mResolvedFieldTypes = fieldTypesByAutofillHint;
+        }
+        return mFieldTypeNames;
+    }
+
     private boolean bindDatasetToFocusedNode(FilledAutofillField field,
             FieldType fieldType, Dataset.Builder builder) {
         MutableBoolean setValueAtLeastOnce = new MutableBoolean(false);
-        mClientParser.parse((node) -> {
-            if (node.isFocused() && node.getAutofillId() != null) {
-                bindValueToNode(node, field, builder, setValueAtLeastOnce);
+        ClientNodeIndex index = mClientParser.getNodeIndex();
+        for (int i = 0; i < index.getFocusedNodeCount(); i++) {
+            int position = index.getFocusedNode(i);
+            if (index.getAutofillId(position) != null) {
+                bindValueToNode(index.getNode(position), field, builder, setValueAtLeastOnce);
             }
-        });
-        return setValueAtLeastOnce.value;
-    }
-
-    private void parseAutofillFields(AssistStructure.ViewNode viewNode,
-            HashMap<String, FieldTypeWithHeuristics> fieldTypesByAutofillHint,
-            Map<String, FilledAutofillField> filledAutofillFieldsByTypeName,
-            Dataset.Builder builder, MutableBoolean setValueAtLeastOnce) {
-        String[] rawHints = viewNode.getAutofillHints();
-        if (rawHints == null || rawHints.length == 0) {
-            logv("No af hints at ViewNode - %s", viewNode.getIdEntry());
-            return;
-        }
-        String fieldTypeName = AutofillHints.getFieldTypeNameFromAutofillHints(
-                fieldTypesByAutofillHint, Arrays.asList(rawHints));
-        if (fieldTypeName == null) {
-            return;
-        }
-        FilledAutofillField field = filledAutofillFieldsByTypeName.get(fieldTypeName);
-        if (field == null) {
-            return;
         }
-        bindValueToNode(viewNode, field, builder, setValueAtLeastOnce);
+        return setValueAtLeastOnce.value;
     }
 
     void bindValueToNode(AssistStructure.ViewNode viewNode,
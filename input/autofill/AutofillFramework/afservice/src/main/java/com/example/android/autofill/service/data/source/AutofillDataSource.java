@@ -15,7 +15,10 @@
  */
 package com.example.android.autofill.service.data.source;
 
+import android.support.annotation.Nullable;
+
 import com.example.android.autofill.service.data.DataCallback;
+import com.example.android.autofill.service.data.SaveProgressCallback;
 import com.example.android.autofill.service.model.DatasetWithFilledAutofillFields;
 import com.example.android.autofill.service.model.FieldType;
 import com.example.android.autofill.service.model.FieldTypeWithHeuristics;
@@ -51,6 +54,14 @@ public interface AutofillDataSource {
     void saveAutofillDatasets(List<DatasetWithFilledAutofillFields>
             datasetsWithFilledAutofillFields);
 
+    /**
+     * Stores several groups of datasets at once, each group as if it had been passed to
+     * {@link #saveAutofillDatasets(List)}. Large imports are written in chunks, one transaction
+     * per chunk, and {@code progressCallback} is told about each chunk.
+     */
+    void saveAutofillDatasetGroups(List<List<DatasetWithFilledAutofillFields>> datasetGroups,
+            @Nullable SaveProgressCallback progressCallback);
+
     void saveResourceIdHeuristic(ResourceIdHeuristic resourceIdHeuristic);
 
     /**
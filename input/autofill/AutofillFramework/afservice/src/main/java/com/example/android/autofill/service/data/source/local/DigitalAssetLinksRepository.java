@@ -15,9 +15,12 @@
  */
 package com.example.android.autofill.service.data.source.local;
 
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 
 import com.example.android.autofill.service.data.DataCallback;
 import com.example.android.autofill.service.data.source.DalService;
@@ -27,7 +30,12 @@ import com.example.android.autofill.service.model.DalInfo;
 import com.example.android.autofill.service.util.SecurityHelper;
 import com.google.common.net.InternetDomainName;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import retrofit2.Call;
 import retrofit2.Callback;
@@ -35,37 +43,78 @@ import retrofit2.Response;
 import retrofit2.Retrofit;
 
 import static com.example.android.autofill.service.util.Util.DalCheckRequirement;
-import static com.example.android.autofill.service.util.Util.DalCheckRequirement.AllUrls;
 import static com.example.android.autofill.service.util.Util.DalCheckRequirement.Disabled;
 import static com.example.android.autofill.service.util.Util.DalCheckRequirement.LoginOnly;
 import static com.example.android.autofill.service.util.Util.logd;
+import static com.example.android.autofill.service.util.Util.logw;
 
 
 /**
  * Singleton repository that caches the result of Digital Asset Links checks.
+ * <p>
+ * Each permission is checked and cached separately, so a verdict for one
+ * {@link DalCheckRequirement} is never reused for a stricter one. The cache holds at most
+ * {@link #MAX_CACHE_ENTRIES} verdicts in least recently used order, each until the max age the
+ * server gave it (capped at a day), and is kept in {@link SharedPreferences} so it survives the
+ * service process. Verdicts are keyed by the signing certificate fingerprint as well as the domain
+ * and package, so an app that is reinstalled with another certificate is checked again.
+ * Concurrent checks of the same permission for the same domain, package and certificate share one
+ * request.
  */
 public class DigitalAssetLinksRepository implements DigitalAssetLinksDataSource {
     private static final String DAL_BASE_URL = "https://digitalassetlinks.googleapis.com";
-    private static final String PERMISSION_GET_LOGIN_CREDS = "common.get_login_creds";
-    private static final String PERMISSION_HANDLE_ALL_URLS = "common.handle_all_urls";
+    @VisibleForTesting
+    static final String PERMISSION_GET_LOGIN_CREDS = "common.get_login_creds";
+    @VisibleForTesting
+    static final String PERMISSION_HANDLE_ALL_URLS = "common.handle_all_urls";
+    private static final String SHARED_PREF_KEY = "com.example.android.autofill.service"
+            + ".datasource.DigitalAssetLinksRepository";
+    private static final int MAX_CACHE_ENTRIES = 128;
+    private static final int CACHE_KEY_PARTS = 4;
+    private static final long MAX_TTL_MILLIS = 24 * 60 * 60 * 1000;
+    // Links are often being set up when a check fails, so don't trust a failure for long.
+    private static final long NOT_LINKED_TTL_MILLIS = 10 * 60 * 1000;
     private static DigitalAssetLinksRepository sInstance;
 
     private final PackageManager mPackageManager;
     private final DalService mDalService;
-    private final HashMap<DalInfo, DalCheck> mCache;
+    private final SharedPreferences mSharedPrefs;
 
-    private DigitalAssetLinksRepository(PackageManager packageManager) {
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private final LinkedHashMap<String, CacheEntry> mCache =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<String, List<DataCallback<DalCheck>>> mPendingChecks = new HashMap<>();
+
+    private static class CacheEntry {
+        final boolean linked;
+        final long expiresAt;
+
+        CacheEntry(boolean linked, long expiresAt) {
+            this.linked = linked;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @VisibleForTesting
+    DigitalAssetLinksRepository(PackageManager packageManager, SharedPreferences sharedPrefs,
+            DalService dalService) {
         mPackageManager = packageManager;
-        mCache = new HashMap<>();
-        mDalService = new Retrofit.Builder()
-                .baseUrl(DAL_BASE_URL)
-                .build()
-                .create(DalService.class);
+        mSharedPrefs = sharedPrefs;
+        mDalService = dalService;
+        loadCache();
     }
 
-    public static DigitalAssetLinksRepository getInstance(PackageManager packageManager) {
+    public static DigitalAssetLinksRepository getInstance(Context context) {
         if (sInstance == null) {
-            sInstance = new DigitalAssetLinksRepository(packageManager);
+            Context appContext = context.getApplicationContext();
+            DalService dalService = new Retrofit.Builder()
+                    .baseUrl(DAL_BASE_URL)
+                    .build()
+                    .create(DalService.class);
+            sInstance = new DigitalAssetLinksRepository(appContext.getPackageManager(),
+                    appContext.getSharedPreferences(SHARED_PREF_KEY, Context.MODE_PRIVATE),
+                    dalService);
         }
         return sInstance;
     }
@@ -80,80 +129,248 @@ public class DigitalAssetLinksRepository implements DigitalAssetLinksDataSource
 
     @Override
     public void clear() {
-        mCache.clear();
+        synchronized (mLock) {
+            mCache.clear();
+        }
+        mSharedPrefs.edit().clear().apply();
     }
 
     public void checkValid(DalCheckRequirement dalCheckRequirement, DalInfo dalInfo,
             DataCallback<DalCheck> dalCheckDataCallback) {
         if (dalCheckRequirement.equals(Disabled)) {
-            DalCheck dalCheck = new DalCheck();
-            dalCheck.linked = true;
-            dalCheckDataCallback.onLoaded(dalCheck);
-            return;
-        }
-
-        DalCheck dalCheck = mCache.get(dalInfo);
-        if (dalCheck != null) {
-            dalCheckDataCallback.onLoaded(dalCheck);
+            dalCheckDataCallback.onLoaded(newDalCheck(true));
             return;
         }
         String packageName = dalInfo.getPackageName();
         String webDomain = dalInfo.getWebDomain();
+        if (dalCheckRequirement.equals(LoginOnly)) {
+            checkPermission(webDomain, packageName, PERMISSION_GET_LOGIN_CREDS,
+                    dalCheckDataCallback);
+        } else {
+            // Either permission is enough, so check both at once and answer with the first
+            // one that is linked.
+            DataCallback<DalCheck> eitherCallback = new EitherLinkedCallback(dalCheckDataCallback);
+            checkPermission(webDomain, packageName, PERMISSION_GET_LOGIN_CREDS, eitherCallback);
+            checkPermission(webDomain, packageName, PERMISSION_HANDLE_ALL_URLS, eitherCallback);
+        }
+    }
 
+    /**
+     * Checks a single permission, from the cache if possible. Only the first caller for a
+     * domain, package, certificate and permission makes a request; later callers wait for its
+     * answer.
+     */
+    private void checkPermission(String webDomain, String packageName, String permission,
+            DataCallback<DalCheck> callback) {
+        // The fingerprint is part of the key, so work it out before looking at the cache.
         final String fingerprint;
         try {
             PackageInfo packageInfo = mPackageManager.getPackageInfo(packageName,
                     PackageManager.GET_SIGNATURES);
             fingerprint = SecurityHelper.getFingerprint(packageInfo, packageName);
         } catch (Exception e) {
-            dalCheckDataCallback.onDataNotAvailable("Error getting fingerprint for %s",
-                    packageName);
+            callback.onDataNotAvailable("Error getting fingerprint for %s", packageName);
+            return;
+        }
+        String key = getCacheKey(webDomain, packageName, fingerprint, permission);
+        CacheEntry cached;
+        synchronized (mLock) {
+            cached = mCache.get(key);
+            if (cached == null || cached.expiresAt <= System.currentTimeMillis()) {
+                cached = null;
+                List<DataCallback<DalCheck>> pending = mPendingChecks.get(key);
+                if (pending != null) {
+                    pending.add(callback);
+                    return;
+                }
+                pending = new ArrayList<>();
+                pending.add(callback);
+                mPendingChecks.put(key, pending);
+            }
+        }
+        if (cached != null) {
+            logd("DAL: cached %s for %s", permission, webDomain);
+            callback.onLoaded(newDalCheck(cached.linked));
             return;
         }
+
         logd("validating domain %s for pkg %s and fingerprint %s.", webDomain,
                 packageName, fingerprint);
-        mDalService.check(webDomain, PERMISSION_GET_LOGIN_CREDS, packageName, fingerprint).enqueue(
+        mDalService.check(webDomain, permission, packageName, fingerprint).enqueue(
                 new Callback<DalCheck>() {
                     @Override
                     public void onResponse(@NonNull Call<DalCheck> call,
                             @NonNull Response<DalCheck> response) {
                         DalCheck dalCheck = response.body();
-                        if (dalCheck == null || !dalCheck.linked) {
-                            // get_login_creds check failed, so try handle_all_urls check
-                            if (dalCheckRequirement.equals(LoginOnly)) {
-                                dalCheckDataCallback.onDataNotAvailable(
-                                        "DAL: Login creds check failed.");
-                            } else if (dalCheckRequirement.equals(AllUrls)) {
-                                mDalService.check(webDomain, PERMISSION_HANDLE_ALL_URLS,
-                                        packageName, fingerprint).enqueue(new Callback<DalCheck>() {
-                                    @Override
-                                    public void onResponse(@NonNull Call<DalCheck> call,
-                                            @NonNull Response<DalCheck> response) {
-                                        DalCheck dalCheck = response.body();
-                                        mCache.put(dalInfo, dalCheck);
-                                        dalCheckDataCallback.onLoaded(dalCheck);
-                                    }
-
-                                    @Override
-                                    public void onFailure(@NonNull Call<DalCheck> call,
-                                            @NonNull Throwable t) {
-                                        dalCheckDataCallback.onDataNotAvailable(t.getMessage());
-                                    }
-                                });
-                            }
-                        } else {
-                            // get_login_creds check succeeded, so we're finished.
-                            mCache.put(dalInfo, dalCheck);
-                            dalCheckDataCallback.onLoaded(dalCheck);
+                        if (dalCheck == null) {
+                            finishCheck(key, null, "DAL: " + permission + " check failed: "
+                                    + response.code());
+                            return;
                         }
+                        putCache(key, dalCheck);
+                        finishCheck(key, dalCheck, null);
                     }
 
                     @Override
                     public void onFailure(@NonNull Call<DalCheck> call, @NonNull Throwable t) {
-                        // get_login_creds check failed, so try handle_all_urls check.
-                        mDalService.check(webDomain, PERMISSION_HANDLE_ALL_URLS, packageName,
-                                fingerprint);
+                        finishCheck(key, null, "DAL: " + permission + " check failed: "
+                                + t.getMessage());
                     }
                 });
     }
+
+    private void finishCheck(String key, DalCheck dalCheck, String error) {
+        List<DataCallback<DalCheck>> callbacks;
+        synchronized (mLock) {
+            callbacks = mPendingChecks.remove(key);
+        }
+        if (callbacks == null) {
+            return;
+        }
+        for (DataCallback<DalCheck> callback : callbacks) {
+            if (dalCheck != null) {
+                callback.onLoaded(dalCheck);
+            } else {
+                callback.onDataNotAvailable(error);
+            }
+        }
+    }
+
+    private void putCache(String key, DalCheck dalCheck) {
+        long ttl = dalCheck.linked ? parseMaxAge(dalCheck.maxAge) : NOT_LINKED_TTL_MILLIS;
+        CacheEntry entry = new CacheEntry(dalCheck.linked, System.currentTimeMillis() + ttl);
+        SharedPreferences.Editor editor = mSharedPrefs.edit();
+        synchronized (mLock) {
+            mCache.put(key, entry);
+            trimCache(editor);
+        }
+        editor.putString(key, entry.linked + "," + entry.expiresAt).apply();
+    }
+
+    /**
+     * Drops the least recently used verdicts until the cache is no larger than
+     * {@link #MAX_CACHE_ENTRIES}. Must be called with mLock held.
+     */
+    private void trimCache(SharedPreferences.Editor editor) {
+        Iterator<String> keys = mCache.keySet().iterator();
+        while (mCache.size() > MAX_CACHE_ENTRIES && keys.hasNext()) {
+            editor.remove(keys.next());
+            keys.remove();
+        }
+    }
+
+    private void loadCache() {
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = mSharedPrefs.edit();
+        synchronized (mLock) {
+            for (Map.Entry<String, ?> pref : mSharedPrefs.getAll().entrySet()) {
+                CacheEntry entry = parseCacheEntry(pref.getValue());
+                // Keys saved before the fingerprint was part of the key are dropped too.
+                if (entry != null && entry.expiresAt > now
+                        && pref.getKey().split("\\|").length == CACHE_KEY_PARTS) {
+                    mCache.put(pref.getKey(), entry);
+                } else {
+                    editor.remove(pref.getKey());
+                }
+            }
+            trimCache(editor);
+            logd("DAL: loaded %d cached verdicts", mCache.size());
+        }
+        editor.apply();
+    }
+
+    private static CacheEntry parseCacheEntry(Object value) {
+        if (!(value instanceof String)) {
+            return null;
+        }
+        String[] parts = ((String) value).split(",");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            return new CacheEntry(Boolean.parseBoolean(parts[0]), Long.parseLong(parts[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param maxAge Duration from the DAL API, for example {@code "3599.999s"}.
+     * @return How long to cache a verdict, in milliseconds.
+     */
+    private static long parseMaxAge(String maxAge) {
+        if (maxAge == null || !maxAge.endsWith("s")) {
+            return MAX_TTL_MILLIS;
+        }
+        try {
+            double seconds = Double.parseDouble(maxAge.substring(0, maxAge.length() - 1));
+            return Math.max(0, Math.min(MAX_TTL_MILLIS, (long) (seconds * 1000)));
+        } catch (NumberFormatException e) {
+            logw("DAL: invalid maxAge %s", maxAge);
+            return MAX_TTL_MILLIS;
+        }
+    }
+
+    @VisibleForTesting
+    static String getCacheKey(String webDomain, String packageName, String fingerprint,
+            String permission) {
+        return permission + "|" + webDomain + "|" + packageName + "|" + fingerprint;
+    }
+
+    private static DalCheck newDalCheck(boolean linked) {
+        DalCheck dalCheck = new DalCheck();
+        dalCheck.linked = linked;
+        return dalCheck;
+    }
+
+    /**
+     * Combines two permission checks: linked as soon as either one is, otherwise not linked once
+     * both have answered. Fails only if neither check got an answer.
+     */
+    private static class EitherLinkedCallback implements DataCallback<DalCheck> {
+        private final DataCallback<DalCheck> mCallback;
+        private int mRemaining = 2;
+        private boolean mDone;
+        private DalCheck mNotLinked;
+
+        EitherLinkedCallback(DataCallback<DalCheck> callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onLoaded(DalCheck dalCheck) {
+            synchronized (this) {
+                mRemaining--;
+                if (mDone) {
+                    return;
+                }
+                if (!dalCheck.linked) {
+                    mNotLinked = dalCheck;
+                    if (mRemaining > 0) {
+                        return;
+                    }
+                }
+                mDone = true;
+            }
+            mCallback.onLoaded(dalCheck);
+        }
+
+        @Override
+        public void onDataNotAvailable(String msg, Object... params) {
+            DalCheck notLinked;
+            synchronized (this) {
+                mRemaining--;
+                if (mDone || mRemaining > 0) {
+                    return;
+                }
+                mDone = true;
+                notLinked = mNotLinked;
+            }
+            if (notLinked != null) {
+                mCallback.onLoaded(notLinked);
+            } else {
+                mCallback.onDataNotAvailable(msg, params);
+            }
+        }
+    }
 }
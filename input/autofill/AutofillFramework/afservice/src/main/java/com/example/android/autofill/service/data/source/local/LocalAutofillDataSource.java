@@ -17,13 +17,16 @@
 package com.example.android.autofill.service.data.source.local;
 
 import android.content.SharedPreferences;
+import android.os.Looper;
 import android.service.autofill.Dataset;
+import android.support.annotation.Nullable;
 
 import com.example.android.autofill.service.data.DataCallback;
+import com.example.android.autofill.service.data.FieldTypeIndex;
+import com.example.android.autofill.service.data.SaveProgressCallback;
 import com.example.android.autofill.service.data.source.AutofillDataSource;
 import com.example.android.autofill.service.data.source.local.dao.AutofillDao;
 import com.example.android.autofill.service.model.AutofillDataset;
-import com.example.android.autofill.service.model.AutofillHint;
 import com.example.android.autofill.service.model.DatasetWithFilledAutofillFields;
 import com.example.android.autofill.service.model.FieldType;
 import com.example.android.autofill.service.model.FieldTypeWithHeuristics;
@@ -31,16 +34,19 @@ import com.example.android.autofill.service.model.FilledAutofillField;
 import com.example.android.autofill.service.model.ResourceIdHeuristic;
 import com.example.android.autofill.service.util.AppExecutors;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
 
+import static com.example.android.autofill.service.util.Util.logd;
 import static com.example.android.autofill.service.util.Util.logw;
 
 public class LocalAutofillDataSource implements AutofillDataSource {
     public static final String SHARED_PREF_KEY = "com.example.android.autofill"
             + ".service.datasource.LocalAutofillDataSource";
     private static final String DATASET_NUMBER_KEY = "datasetNumber";
+    private static final int MAX_FIELDS_PER_TRANSACTION = 2000;
     private static final Object sLock = new Object();
 
     private static LocalAutofillDataSource sInstance;
@@ -49,6 +55,12 @@ public class LocalAutofillDataSource implements AutofillDataSource {
     private final SharedPreferences mSharedPreferences;
     private final AppExecutors mAppExecutors;
 
+    // Field types only change when heuristics are saved, so they are read from the database once
+    // and kept in memory until then. Guarded by mIndexLock.
+    private final Object mIndexLock = new Object();
+    private FieldTypeIndex mFieldTypeIndex;
+    private int mIndexGeneration;
+
     private LocalAutofillDataSource(SharedPreferences sharedPreferences, AutofillDao autofillDao,
             AppExecutors appExecutors) {
         mSharedPreferences = sharedPreferences;
@@ -77,11 +89,14 @@ public class LocalAutofillDataSource implements AutofillDataSource {
     public void getAutofillDatasets(List<String> allAutofillHints,
             DataCallback<List<DatasetWithFilledAutofillFields>> datasetsCallback) {
         mAppExecutors.diskIO().execute(() -> {
-            final List<String> typeNames = getFieldTypesForAutofillHints(allAutofillHints)
-                    .stream()
-                    .map(FieldTypeWithHeuristics::getFieldType)
-                    .map(FieldType::getTypeName)
-                    .collect(Collectors.toList());
+            FieldTypeIndex index = getFieldTypeIndex();
+            final List<String> typeNames = new ArrayList<>();
+            for (String hint : allAutofillHints) {
+                FieldTypeWithHeuristics fieldType = index.getFieldTypeForAutofillHint(hint);
+                if (fieldType != null && !typeNames.contains(fieldType.fieldType.getTypeName())) {
+                    typeNames.add(fieldType.fieldType.getTypeName());
+                }
+            }
             List<DatasetWithFilledAutofillFields> datasetsWithFilledAutofillFields =
                     mAutofillDao.getDatasets(typeNames);
             mAppExecutors.mainThread().execute(() ->
@@ -130,23 +145,53 @@ public class LocalAutofillDataSource implements AutofillDataSource {
     @Override
     public void saveAutofillDatasets(List<DatasetWithFilledAutofillFields>
             datasetsWithFilledAutofillFields) {
+        saveAutofillDatasetGroups(Collections.singletonList(datasetsWithFilledAutofillFields),
+                null);
+    }
+
+    @Override
+    public void saveAutofillDatasetGroups(
+            List<List<DatasetWithFilledAutofillFields>> datasetGroups,
+            @Nullable SaveProgressCallback progressCallback) {
+        List<DatasetWithFilledAutofillFields> datasets = new ArrayList<>();
+        for (List<DatasetWithFilledAutofillFields> group : datasetGroups) {
+            datasets.addAll(group);
+        }
         mAppExecutors.diskIO().execute(() -> {
-            for (DatasetWithFilledAutofillFields datasetWithFilledAutofillFields :
-                    datasetsWithFilledAutofillFields) {
-                List<FilledAutofillField> filledAutofillFields =
-                        datasetWithFilledAutofillFields.filledAutofillFields;
-                AutofillDataset autofillDataset = datasetWithFilledAutofillFields.autofillDataset;
-                mAutofillDao.insertAutofillDataset(autofillDataset);
-                mAutofillDao.insertFilledAutofillFields(filledAutofillFields);
+            int total = datasets.size();
+            int saved = 0;
+            while (saved < total) {
+                // Each chunk is one transaction; keep chunks small enough that a huge import
+                // doesn't hold the database lock for too long.
+                List<AutofillDataset> chunkDatasets = new ArrayList<>();
+                List<FilledAutofillField> chunkFields = new ArrayList<>();
+                while (saved < total && chunkFields.size() < MAX_FIELDS_PER_TRANSACTION) {
+                    DatasetWithFilledAutofillFields dataset = datasets.get(saved++);
+                    chunkDatasets.add(dataset.autofillDataset);
+                    if (dataset.filledAutofillFields != null) {
+                        chunkFields.addAll(dataset.filledAutofillFields);
+                    }
+                }
+                mAutofillDao.insertAutofillDatasetsWithFields(chunkDatasets, chunkFields);
+                if (progressCallback != null) {
+                    final int savedDatasets = saved;
+                    mAppExecutors.mainThread().execute(() ->
+                            progressCallback.onProgress(savedDatasets, total)
+                    );
+                }
+            }
+            if (total == 0 && progressCallback != null) {
+                mAppExecutors.mainThread().execute(() -> progressCallback.onProgress(0, 0));
             }
         });
-        incrementDatasetNumber();
+        incrementDatasetNumber(datasetGroups.size());
     }
 
     @Override
     public void saveResourceIdHeuristic(ResourceIdHeuristic resourceIdHeuristic) {
         mAppExecutors.diskIO().execute(() -> {
             mAutofillDao.insertResourceIdHeuristic(resourceIdHeuristic);
+            invalidateFieldTypeIndex();
         });
     }
 
@@ -167,18 +212,31 @@ public class LocalAutofillDataSource implements AutofillDataSource {
     @Override
     public void getFieldTypeByAutofillHints(
             DataCallback<HashMap<String, FieldTypeWithHeuristics>> fieldTypeMapCallback) {
+        FieldTypeIndex cachedIndex;
+        synchronized (mIndexLock) {
+            cachedIndex = mFieldTypeIndex;
+        }
+        if (cachedIndex != null && Looper.getMainLooper().isCurrentThread()) {
+            // Already on the thread the callback expects; skip both executor hops.
+            fieldTypeMapCallback.onLoaded(cachedIndex.getFieldTypesByAutofillHint());
+            return;
+        }
         mAppExecutors.diskIO().execute(() -> {
-            HashMap<String, FieldTypeWithHeuristics> hintMap = getFieldTypeByAutofillHints();
-            mAppExecutors.mainThread().execute(() -> {
-                if (hintMap != null) {
-                    fieldTypeMapCallback.onLoaded(hintMap);
-                } else {
-                    fieldTypeMapCallback.onDataNotAvailable("FieldTypes not found");
-                }
-            });
+            HashMap<String, FieldTypeWithHeuristics> hintMap =
+                    getFieldTypeIndex().getFieldTypesByAutofillHint();
+            mAppExecutors.mainThread().execute(() ->
+                    fieldTypeMapCallback.onLoaded(hintMap)
+            );
         });
     }
 
+    /**
+     * Asynchronously loads the field type index so the next fill request does not have to.
+     */
+    public void preloadFieldTypeIndex() {
+        mAppExecutors.diskIO().execute(this::getFieldTypeIndex);
+    }
+
     @Override
     public void getFilledAutofillField(String datasetId, String fieldTypeName, DataCallback<FilledAutofillField> fieldCallback) {
         mAppExecutors.diskIO().execute(() -> {
@@ -210,24 +268,37 @@ public class LocalAutofillDataSource implements AutofillDataSource {
         });
     }
 
-    private HashMap<String, FieldTypeWithHeuristics> getFieldTypeByAutofillHints() {
-        HashMap<String, FieldTypeWithHeuristics> hintMap = new HashMap<>();
-        List<FieldTypeWithHeuristics> fieldTypeWithHints =
-                mAutofillDao.getFieldTypesWithHints();
-        if (fieldTypeWithHints != null) {
-            for (FieldTypeWithHeuristics fieldType : fieldTypeWithHints) {
-                for (AutofillHint hint : fieldType.autofillHints) {
-                    hintMap.put(hint.mAutofillHint, fieldType);
-                }
+    /**
+     * Returns the field type index, loading it from the database if needed. Must be called on the
+     * disk executor.
+     */
+    private FieldTypeIndex getFieldTypeIndex() {
+        int generation;
+        synchronized (mIndexLock) {
+            if (mFieldTypeIndex != null) {
+                return mFieldTypeIndex;
             }
-            return hintMap;
-        } else {
-            return null;
+            generation = mIndexGeneration;
         }
+        List<FieldTypeWithHeuristics> fieldTypes = mAutofillDao.getFieldTypesWithHints();
+        FieldTypeIndex index = FieldTypeIndex.build(
+                fieldTypes != null ? fieldTypes : new ArrayList<>());
+        synchronized (mIndexLock) {
+            // Don't keep an empty index: the default field types may not have been written yet.
+            // Also drop it if it was invalidated while it was being loaded.
+            if (!index.isEmpty() && generation == mIndexGeneration) {
+                mFieldTypeIndex = index;
+                logd("Loaded %d field types", index.getFieldTypeCount());
+            }
+        }
+        return index;
     }
 
-    private List<FieldTypeWithHeuristics> getFieldTypesForAutofillHints(List<String> autofillHints) {
-        return mAutofillDao.getFieldTypesForAutofillHints(autofillHints);
+    private void invalidateFieldTypeIndex() {
+        synchronized (mIndexLock) {
+            mFieldTypeIndex = null;
+            mIndexGeneration++;
+        }
     }
 
     @Override
@@ -248,10 +319,11 @@ public class LocalAutofillDataSource implements AutofillDataSource {
     }
 
     /**
-     * Every time a dataset is saved, this should be called to increment the dataset number.
+     * Every time a group of datasets is saved, this should be called to increment the dataset
+     * number.
      * (only important for this service's dataset naming scheme).
      */
-    private void incrementDatasetNumber() {
-        mSharedPreferences.edit().putInt(DATASET_NUMBER_KEY, getDatasetNumber() + 1).apply();
+    private void incrementDatasetNumber(int count) {
+        mSharedPreferences.edit().putInt(DATASET_NUMBER_KEY, getDatasetNumber() + count).apply();
     }
 }
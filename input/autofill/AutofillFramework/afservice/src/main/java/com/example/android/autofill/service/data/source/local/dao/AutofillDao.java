@@ -76,18 +76,6 @@ public interface AutofillDao {
             " WHERE FieldType.typeName = ResourceIdHeuristic.fieldTypeName")
     List<FieldTypeWithHeuristics> getFieldTypesWithHints();
 
-    @Query("SELECT DISTINCT typeName, autofillTypes, saveInfo, partition, strictExampleSet, " +
-            "textTemplate, dateTemplate" +
-            " FROM FieldType, AutofillHint" +
-            " WHERE FieldType.typeName = AutofillHint.fieldTypeName" +
-            " AND AutofillHint.autofillHint IN (:autofillHints)" +
-            " UNION " +
-            "SELECT DISTINCT typeName, autofillTypes, saveInfo, partition, strictExampleSet, " +
-            "textTemplate, dateTemplate" +
-            " FROM FieldType, ResourceIdHeuristic" +
-            " WHERE FieldType.typeName = ResourceIdHeuristic.fieldTypeName")
-    List<FieldTypeWithHeuristics> getFieldTypesForAutofillHints(List<String> autofillHints);
-
     @Query("SELECT DISTINCT id, datasetName FROM FilledAutofillField, AutofillDataset" +
             " WHERE AutofillDataset.id = FilledAutofillField.datasetId" +
             " AND AutofillDataset.id = (:datasetId)")
@@ -111,6 +99,14 @@ public interface AutofillDao {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     void insertAutofillDataset(AutofillDataset datasets);
 
+    /**
+     * Saves datasets and their fields in a single transaction. Datasets are inserted first, so
+     * {@code autofillFields} may refer to any of {@code datasets}.
+     */
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertAutofillDatasetsWithFields(List<AutofillDataset> datasets,
+            List<FilledAutofillField> autofillFields);
+
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     void insertAutofillHints(List<AutofillHint> autofillHints);
 
@@ -21,6 +21,7 @@ import android.arch.persistence.room.Database;
 import android.arch.persistence.room.Room;
 import android.arch.persistence.room.RoomDatabase;
 import android.arch.persistence.room.TypeConverters;
+import android.arch.persistence.room.migration.Migration;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
@@ -47,13 +48,22 @@ import static java.util.stream.Collectors.toList;
         FieldType.class,
         AutofillHint.class,
         ResourceIdHeuristic.class
-}, version = 1)
+}, version = 2)
 @TypeConverters({Converters.class})
 public abstract class AutofillDatabase extends RoomDatabase {
 
     private static final Object sLock = new Object();
     private static AutofillDatabase sInstance;
 
+    private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS"
+                    + " `index_FilledAutofillField_fieldTypeName_datasetId`"
+                    + " ON `FilledAutofillField` (`fieldTypeName`, `datasetId`)");
+        }
+    };
+
     public static AutofillDatabase getInstance(Context context,
             DefaultFieldTypesSource defaultFieldTypesSource,
             AppExecutors appExecutors) {
@@ -80,6 +90,7 @@ public abstract class AutofillDatabase extends RoomDatabase {
                                     super.onOpen(db);
                                 }
                             })
+                            .addMigrations(MIGRATION_1_2)
                             .build();
                 }
             }
@@ -19,11 +19,15 @@ import android.arch.persistence.room.ColumnInfo;
 import android.arch.persistence.room.Entity;
 import android.arch.persistence.room.ForeignKey;
 import android.arch.persistence.room.Ignore;
+import android.arch.persistence.room.Index;
 import android.support.annotation.NonNull;
 
 import javax.annotation.Nullable;
 
-@Entity(primaryKeys = {"datasetId", "fieldTypeName"}, foreignKeys = {
+// The primary key already indexes (datasetId, fieldTypeName). The second index serves lookups by
+// field type, such as the join in AutofillDao.getDatasets.
+@Entity(primaryKeys = {"datasetId", "fieldTypeName"},
+        indices = {@Index({"fieldTypeName", "datasetId"})}, foreignKeys = {
         @ForeignKey(entity = AutofillDataset.class, parentColumns = "id",
                 childColumns = "datasetId", onDelete = ForeignKey.CASCADE),
         @ForeignKey(entity = FieldType.class, parentColumns = "typeName",
@@ -54,6 +54,7 @@ import com.example.android.autofill.service.util.AppExecutors;
 import com.example.android.autofill.service.util.Util;
 import com.google.gson.GsonBuilder;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static com.example.android.autofill.service.util.Util.DalCheckRequirement.AllUrls;
@@ -236,15 +237,17 @@ public class SettingsActivity extends AppCompatActivity {
         if (numOfDatasets < 0 || numOfDatasets > 10) {
             logw("Number of Datasets (%d) out of range.", numOfDatasets);
         }
+        int firstDatasetNumber = mLocalAutofillDataSource.getDatasetNumber();
+        List<List<DatasetWithFilledAutofillFields>> datasetGroups = new ArrayList<>();
         for (int i = 0; i < numOfDatasets; i++) {
-            int datasetNumber = mLocalAutofillDataSource.getDatasetNumber();
+            int datasetNumber = firstDatasetNumber + i;
             AutofillDataBuilder autofillDataBuilder =
                     new FakeAutofillDataBuilder(fieldTypes, mPackageName, datasetNumber);
-            List<DatasetWithFilledAutofillFields> datasetsWithFilledAutofillFields =
-                    autofillDataBuilder.buildDatasetsByPartition(datasetNumber);
-            // Save datasets to database.
-            mLocalAutofillDataSource.saveAutofillDatasets(datasetsWithFilledAutofillFields);
+            datasetGroups.add(autofillDataBuilder.buildDatasetsByPartition(datasetNumber));
         }
+        // Save all of the datasets to the database at once.
+        mLocalAutofillDataSource.saveAutofillDatasetGroups(datasetGroups,
+                (saved, total) -> logd("Saved %d of %d datasets", saved, total));
         return true;
     }
 
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.autofill.service.util;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+import static com.example.android.autofill.service.util.Util.logDebugEnabled;
+import static com.example.android.autofill.service.util.Util.logd;
+
+/**
+ * Keeps the latency of recent fill requests, split into phases, and reports the 50th and 99th
+ * percentiles of each phase.
+ * <p>
+ * A request is timed with a {@link Sample}: each call to {@link Sample#mark(int)} adds the time
+ * since the previous mark to a phase, so a phase may be marked more than once per request.
+ * Parse is the traversal of the structure and the building of the client view metadata, lookup
+ * is loading field types and datasets, including the wait for the disk executor, and build is
+ * creating the response.
+ */
+public class FillLatencyTracker {
+    public static final int PHASE_PARSE = 0;
+    public static final int PHASE_LOOKUP = 1;
+    public static final int PHASE_BUILD = 2;
+    private static final int PHASE_TOTAL = 3;
+    private static final int PHASE_COUNT = 4;
+    private static final String[] PHASE_NAMES = {"parse", "lookup", "build", "total"};
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final Object mLock = new Object();
+    private final long[][] mSamples;
+    private final int mCapacity;
+    private int mNext;
+    private int mCount;
+    private long mRequestCount;
+
+    public FillLatencyTracker() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of recent requests used for the percentiles.
+     */
+    public FillLatencyTracker(int capacity) {
+        mCapacity = capacity;
+        mSamples = new long[PHASE_COUNT][capacity];
+    }
+
+    public Sample start() {
+        return new Sample();
+    }
+
+    /**
+     * Records a finished request and logs its latency.
+     */
+    public void finish(Sample sample) {
+        sample.mPhaseNanos[PHASE_TOTAL] = SystemClock.elapsedRealtimeNanos() - sample.mStart;
+        synchronized (mLock) {
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                mSamples[phase][mNext] = sample.mPhaseNanos[phase];
+            }
+            mNext = (mNext + 1) % mCapacity;
+            mCount = Math.min(mCount + 1, mCapacity);
+            mRequestCount++;
+        }
+        if (logDebugEnabled()) {
+            logd("Fill latency: %s; %s", sample, this);
+        }
+    }
+
+    /**
+     * @return The given percentile of a phase over the recent requests, in nanoseconds.
+     */
+    public long getPercentileNanos(int phase, int percentile) {
+        long[] sorted;
+        synchronized (mLock) {
+            if (mCount == 0) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(mSamples[phase], mCount);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public long getRequestCount() {
+        synchronized (mLock) {
+            return mRequestCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("requests=").append(getRequestCount());
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            builder.append(", ").append(PHASE_NAMES[phase])
+                    .append(" p50=").append(toMillis(getPercentileNanos(phase, 50)))
+                    .append("ms p99=").append(toMillis(getPercentileNanos(phase, 99)))
+                    .append("ms");
+        }
+        return builder.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    /**
+     * Latency of a single request.
+     */
+    public static final class Sample {
+        private final long[] mPhaseNanos = new long[PHASE_COUNT];
+        private final long mStart;
+        private long mLastMark;
+
+        private Sample() {
+            mStart = SystemClock.elapsedRealtimeNanos();
+            mLastMark = mStart;
+        }
+
+        /**
+         * Adds the time since the previous mark, or since the request started, to a phase.
+         */
+        public void mark(int phase) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            mPhaseNanos[phase] += now - mLastMark;
+            mLastMark = now;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                if (phase > 0) {
+                    builder.append(", ");
+                }
+                builder.append(PHASE_NAMES[phase]).append('=')
+                        .append(toMillis(mPhaseNanos[phase])).append("ms");
+            }
+            return builder.toString();
+        }
+    }
+}
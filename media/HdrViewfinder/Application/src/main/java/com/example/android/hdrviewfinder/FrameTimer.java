@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Keeps track of how long each frame takes to process, to tell whether processing keeps up with
+ * the camera. Averages and maximums are over a window of recent frames.
+ */
+public class FrameTimer {
+
+    /**
+     * Time available for a frame at 30 fps.
+     */
+    public static final long BUDGET_30FPS_NANOS = 1000000000L / 30;
+
+    private final long mBudgetNanos;
+    private final long[] mWindow;
+
+    private int mNext = 0;
+    private int mCount = 0;
+    private long mFrameCount = 0;
+    private long mOverBudgetCount = 0;
+    private long mLastNanos = 0;
+
+    public FrameTimer(long budgetNanos, int windowSize) {
+        mBudgetNanos = budgetNanos;
+        mWindow = new long[windowSize];
+    }
+
+    /**
+     * Record the time taken by one frame.
+     */
+    public synchronized void addFrame(long nanos) {
+        mWindow[mNext] = nanos;
+        mNext = (mNext + 1) % mWindow.length;
+        mCount = Math.min(mCount + 1, mWindow.length);
+        mFrameCount++;
+        if (nanos > mBudgetNanos) {
+            mOverBudgetCount++;
+        }
+        mLastNanos = nanos;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The number of frames, since the start, that took longer than the budget
+     */
+    public synchronized long getOverBudgetCount() {
+        return mOverBudgetCount;
+    }
+
+    public synchronized long getLastNanos() {
+        return mLastNanos;
+    }
+
+    public synchronized long getAverageNanos() {
+        if (mCount == 0) return 0;
+        long total = 0;
+        for (int i = 0; i < mCount; i++) {
+            total += mWindow[i];
+        }
+        return total / mCount;
+    }
+
+    public synchronized long getMaxNanos() {
+        long max = 0;
+        for (int i = 0; i < mCount; i++) {
+            max = Math.max(max, mWindow[i]);
+        }
+        return max;
+    }
+
+    /**
+     * @return True if the recent frames take less than the budget on average
+     */
+    public boolean isKeepingUp() {
+        return getAverageNanos() <= mBudgetNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("frames=%d avg=%.2fms max=%.2fms over budget=%d",
+                mFrameCount, getAverageNanos() / 1e6, getMaxNanos() / 1e6, mOverBudgetCount);
+    }
+}
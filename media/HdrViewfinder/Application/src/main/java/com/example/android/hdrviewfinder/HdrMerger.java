@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CPU version of the merge and YUV to RGB stage of hdr_merge.rs.
+ *
+ * <p>Frames are passed in as the planes of a YUV_420_888 image, for example from an
+ * {@link android.media.Image} or from a recorded dump, and kept in a ring of preallocated frames.
+ * Instead of only merging with the previous frame, the fusion mode blends the newest frames of the
+ * ring with a weight for each frame, optionally favoring well exposed pixels. Rows are processed in
+ * parallel.
+ *
+ * <p>The output is ARGB_8888 pixels packed into ints, as taken by
+ * {@link android.graphics.Bitmap#setPixels}. The class only uses plain Java, so it can also be run
+ * off the device. It is not thread safe; frames should be added and processed on one thread.
+ */
+public class HdrMerger {
+
+    /**
+     * Output the newest frame.
+     */
+    public static final int MODE_PASSTHROUGH = 0;
+    /**
+     * Output the newest and previous frames side by side, swapping sides every frame.
+     */
+    public static final int MODE_SPLIT = 1;
+    /**
+     * Output a weighted blend of the newest frames.
+     */
+    public static final int MODE_FUSION = 2;
+
+    private static final int MIN_BAND_ROWS = 16;
+
+    // Keeps the weighted sums of a pixel from overflowing an int
+    private static final int MAX_FUSION_FRAMES = 64;
+
+    // How much pixels far from mid-gray are weighted down when favoring well exposed pixels
+    private static final double EXPOSURE_SIGMA = 0.2;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final ForkJoinPool mPool;
+
+    // Each frame has one int per pixel: Y << 16 | U << 8 | V
+    private final int[][] mRing;
+    private int mNewest = -1;
+    private int mAvailable = 0;
+    private int mProcessedCount = 0;
+
+    private int mCutPointX;
+    private int[] mFrameWeights = {256, 256};
+    private boolean mExposureWeighting = false;
+    private final int[] mExposureWeights = new int[256];
+
+    private final FrameTimer mTimer = new FrameTimer(FrameTimer.BUDGET_30FPS_NANOS, 30);
+    private long mFrameStartNanos = -1;
+
+    /**
+     * @param ringSize The number of frames kept, at least 2
+     */
+    public HdrMerger(int width, int height, int ringSize) {
+        this(width, height, ringSize, new ForkJoinPool());
+    }
+
+    public HdrMerger(int width, int height, int ringSize, ForkJoinPool pool) {
+        if (ringSize < 2) {
+            throw new IllegalArgumentException("Need room for at least 2 frames");
+        }
+        mWidth = width;
+        mHeight = height;
+        mPool = pool;
+        mRing = new int[ringSize][width * height];
+        mCutPointX = width / 2;
+
+        for (int y = 0; y < 256; y++) {
+            double d = y / 255.0 - 0.5;
+            double weight = Math.exp(-d * d / (2 * EXPOSURE_SIGMA * EXPOSURE_SIGMA));
+            mExposureWeights[y] = Math.max(1, (int) Math.round(weight * 256));
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getRingSize() {
+        return mRing.length;
+    }
+
+    /**
+     * @return The number of frames in the ring, up to the ring size
+     */
+    public int getAvailableFrames() {
+        return mAvailable;
+    }
+
+    /**
+     * Set the column where {@link #MODE_SPLIT} switches between frames.
+     */
+    public void setCutPointX(int cutPointX) {
+        mCutPointX = cutPointX;
+    }
+
+    /**
+     * Set the weight of each frame in {@link #MODE_FUSION}, newest frame first. The default of
+     * {1, 1} averages the newest two frames, like hdr_merge.rs. Only the ratios between the
+     * weights matter.
+     */
+    public void setFusionWeights(float... weights) {
+        int maxWeights = Math.min(mRing.length, MAX_FUSION_FRAMES);
+        if (weights.length == 0 || weights.length > maxWeights) {
+            throw new IllegalArgumentException("Need 1 to " + maxWeights + " weights");
+        }
+        float max = 0;
+        for (float weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight " + weight);
+            }
+            max = Math.max(max, weight);
+        }
+        if (max == 0) {
+            throw new IllegalArgumentException("All weights are 0");
+        }
+        int[] frameWeights = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            frameWeights[i] = Math.round(weights[i] / max * 256);
+        }
+        mFrameWeights = frameWeights;
+    }
+
+    /**
+     * Set whether {@link #MODE_FUSION} also weights each pixel by how well exposed it is, so
+     * that dark or blown out pixels of one exposure give way to the same pixel of another.
+     */
+    public void setExposureWeighting(boolean enabled) {
+        mExposureWeighting = enabled;
+    }
+
+    /**
+     * @return The time taken by each frame, from {@link #addFrame} to the end of
+     * {@link #process}
+     */
+    public FrameTimer getFrameTimer() {
+        return mTimer;
+    }
+
+    /**
+     * Copy a YUV_420_888 frame into the ring, replacing the oldest frame if the ring is full.
+     * Only absolute reads are done on the buffers, so their positions are left alone.
+     */
+    public void addFrame(final ByteBuffer yPlane, final int yRowStride,
+                         final ByteBuffer uPlane, final ByteBuffer vPlane,
+                         final int uvRowStride, final int uvPixelStride) {
+        if (mFrameStartNanos < 0) {
+            mFrameStartNanos = System.nanoTime();
+        }
+        mNewest = (mNewest + 1) % mRing.length;
+        mAvailable = Math.min(mAvailable + 1, mRing.length);
+        final int[] frame = mRing[mNewest];
+
+        forEachBand(new Band() {
+            @Override
+            public void run(int startRow, int endRow) {
+                for (int y = startRow; y < endRow; y++) {
+                    final int yRow = y * yRowStride;
+                    final int uvRow = (y >> 1) * uvRowStride;
+                    final int offset = y * mWidth;
+                    for (int x = 0; x < mWidth; x++) {
+                        final int uv = uvRow + (x >> 1) * uvPixelStride;
+                        frame[offset + x] = (yPlane.get(yRow + x) & 0xff) << 16
+                                | (uPlane.get(uv) & 0xff) << 8
+                                | (vPlane.get(uv) & 0xff);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Merge the frames in the ring and convert the result to RGB.
+     *
+     * @param mode One of {@link #MODE_PASSTHROUGH}, {@link #MODE_SPLIT} or {@link #MODE_FUSION}
+     * @param out  Width * height pixels
+     */
+    public void process(int mode, final int[] out) {
+        if (mAvailable == 0) {
+            throw new IllegalStateException("No frames added");
+        }
+        if (out.length < mWidth * mHeight) {
+            throw new IllegalArgumentException("Output is smaller than " + mWidth + "x" + mHeight);
+        }
+        if (mFrameStartNanos < 0) {
+            mFrameStartNanos = System.nanoTime();
+        }
+
+        final int[] current = mRing[mNewest];
+        switch (mode) {
+            case MODE_PASSTHROUGH:
+                forEachBand(new Band() {
+                    @Override
+                    public void run(int startRow, int endRow) {
+                        for (int i = startRow * mWidth, end = endRow * mWidth; i < end; i++) {
+                            out[i] = yuvToRgb(current[i]);
+                        }
+                    }
+                });
+                break;
+            case MODE_SPLIT: {
+                final int[] previous = getFrame(1);
+                final boolean swap = (mProcessedCount & 0x1) != 0;
+                forEachBand(new Band() {
+                    @Override
+                    public void run(int startRow, int endRow) {
+                        for (int y = startRow; y < endRow; y++) {
+                            final int offset = y * mWidth;
+                            for (int x = 0; x < mWidth; x++) {
+                                final int[] frame = ((x < mCutPointX) ^ swap) ? current : previous;
+                                out[offset + x] = yuvToRgb(frame[offset + x]);
+                            }
+                        }
+                    }
+                });
+                break;
+            }
+            case MODE_FUSION:
+                fuse(out);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+
+        mProcessedCount++;
+        mTimer.addFrame(System.nanoTime() - mFrameStartNanos);
+        mFrameStartNanos = -1;
+    }
+
+    private void fuse(final int[] out) {
+        final int count = Math.min(mFrameWeights.length, mAvailable);
+        final int[][] frames = new int[count][];
+        for (int i = 0; i < count; i++) {
+            frames[i] = getFrame(i);
+        }
+        final int[] frameWeights = mFrameWeights;
+        final int[] exposureWeights = mExposureWeighting ? mExposureWeights : null;
+
+        forEachBand(new Band() {
+            @Override
+            public void run(int startRow, int endRow) {
+                for (int i = startRow * mWidth, end = endRow * mWidth; i < end; i++) {
+                    int weightSum = 0, ySum = 0, uSum = 0, vSum = 0;
+                    for (int f = 0; f < count; f++) {
+                        final int p = frames[f][i];
+                        final int y = (p >> 16) & 0xff;
+                        int weight = frameWeights[f];
+                        if (exposureWeights != null) {
+                            weight *= exposureWeights[y];
+                        }
+                        weightSum += weight;
+                        ySum += y * weight;
+                        uSum += ((p >> 8) & 0xff) * weight;
+                        vSum += (p & 0xff) * weight;
+                    }
+                    if (weightSum == 0) {
+                        // Every frame that is in the ring has a weight of 0
+                        out[i] = yuvToRgb(frames[0][i]);
+                        continue;
+                    }
+                    final int half = weightSum >> 1;
+                    out[i] = yuvToRgb((ySum + half) / weightSum << 16
+                            | (uSum + half) / weightSum << 8
+                            | (vSum + half) / weightSum);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param age 0 for the newest frame, 1 for the one before it, and so on. Frames older than
+     *            the oldest one in the ring give the oldest one.
+     */
+    private int[] getFrame(int age) {
+        age = Math.min(age, mAvailable - 1);
+        return mRing[(mNewest - age + mRing.length) % mRing.length];
+    }
+
+    /**
+     * Convert YUV to RGB, JFIF transform with the same fixed-point math as hdr_merge.rs
+     * R = Y + 1.402 * (V - 128)
+     * G = Y - 0.34414 * (U - 128) - 0.71414 * (V - 128)
+     * B = Y + 1.772 * (U - 128)
+     */
+    static int yuvToRgb(int yuv) {
+        final int y = (yuv >> 16) & 0xff;
+        final int u = (yuv >> 8) & 0xff;
+        final int v = yuv & 0xff;
+        final int r = y + v * 1436 / 1024 - 179;
+        final int g = y - u * 46549 / 131072 + 44 - v * 93604 / 131072 + 91;
+        final int b = y + u * 1814 / 1024 - 227;
+        return 0xff000000 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Work done on a band of rows.
+     */
+    private interface Band {
+        void run(int startRow, int endRow);
+    }
+
+    private void forEachBand(Band band) {
+        mPool.invoke(new BandTask(band, 0, mHeight));
+    }
+
+    private static class BandTask extends RecursiveAction {
+        private final Band mBand;
+        private final int mStartRow;
+        private final int mEndRow;
+
+        BandTask(Band band, int startRow, int endRow) {
+            mBand = band;
+            mStartRow = startRow;
+            mEndRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEndRow - mStartRow <= MIN_BAND_ROWS) {
+                mBand.run(mStartRow, mEndRow);
+                return;
+            }
+            final int middle = (mStartRow + mEndRow) >>> 1;
+            invokeAll(new BandTask(mBand, mStartRow, middle),
+                    new BandTask(mBand, middle, mEndRow));
+        }
+    }
+}
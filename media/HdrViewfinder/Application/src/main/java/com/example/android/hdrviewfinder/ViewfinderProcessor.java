@@ -19,10 +19,12 @@ package com.example.android.hdrviewfinder;
 import android.graphics.ImageFormat;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RenderScript;
 import android.renderscript.Type;
+import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
@@ -31,11 +33,17 @@ import android.view.Surface;
  */
 public class ViewfinderProcessor {
 
+    private static final String TAG = "ViewfinderProcessor";
+
+    // How often the frame timing is logged, in frames
+    private static final int TIMING_LOG_INTERVAL = 30;
+
     private Allocation mInputHdrAllocation;
     private Allocation mInputNormalAllocation;
     private Allocation mPrevAllocation;
     private Allocation mOutputAllocation;
 
+    private RenderScript mRS;
     private Handler mProcessingHandler;
     private ScriptC_hdr_merge mHdrMergeScript;
 
@@ -48,6 +56,8 @@ public class ViewfinderProcessor {
     public final static int MODE_HDR = 2;
 
     public ViewfinderProcessor(RenderScript rs, Size dimensions) {
+        mRS = rs;
+
         Type.Builder yuvTypeBuilder = new Type.Builder(rs, Element.YUV(rs));
         yuvTypeBuilder.setX(dimensions.getWidth());
         yuvTypeBuilder.setY(dimensions.getHeight());
@@ -104,6 +114,9 @@ public class ViewfinderProcessor {
         private int mFrameCounter = 0;
         private int mCutPointX;
         private boolean mCheckMerge;
+        private int mDroppedFrames = 0;
+        private final FrameTimer mTimer = new FrameTimer(FrameTimer.BUDGET_30FPS_NANOS,
+                TIMING_LOG_INTERVAL);
 
         private Allocation mInputAllocation;
 
@@ -135,10 +148,15 @@ public class ViewfinderProcessor {
                 mProcessingHandler.removeCallbacks(this);
             }
 
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+
             // Get to newest input
             for (int i = 0; i < pendingFrames; i++) {
                 mInputAllocation.ioReceive();
             }
+            if (pendingFrames > 1) {
+                mDroppedFrames += pendingFrames - 1;
+            }
 
             mHdrMergeScript.set_gFrameCounter(mFrameCounter++);
             mHdrMergeScript.set_gCurrentFrame(mInputAllocation);
@@ -152,6 +170,19 @@ public class ViewfinderProcessor {
             // Run processing pass
             mHdrMergeScript.forEach_mergeHdrFrames(mPrevAllocation, mOutputAllocation);
             mOutputAllocation.ioSend();
+            // Kernel launches are asynchronous, so wait for the frame to be done or the timer
+            // would only measure how long it takes to queue the work
+            mRS.finish();
+
+            mTimer.addFrame(SystemClock.elapsedRealtimeNanos() - startNanos);
+            if (mTimer.getFrameCount() % TIMING_LOG_INTERVAL == 0) {
+                Log.v(TAG, (mCheckMerge ? "HDR " : "Normal ") + mTimer
+                        + " dropped=" + mDroppedFrames);
+            }
+        }
+
+        public FrameTimer getFrameTimer() {
+            return mTimer;
         }
     }
 
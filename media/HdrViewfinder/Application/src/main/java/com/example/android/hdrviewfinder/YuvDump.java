@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes recorded YUV_420_888 frames, so that {@link HdrMerger} can be run and checked
+ * off the device.
+ *
+ * <p>A dump is a sequence of frames. Each frame is a header of ints for the magic number, the
+ * width, the height, the Y row stride, the U and V row stride and the U and V pixel stride,
+ * followed by the Y, U and V planes, each as an int length and then the bytes. This is what
+ * {@link android.media.Image#getPlanes()} gives for the frame.
+ *
+ * <p>Run {@link #main} with a dump file to merge its frames on the CPU and print the timing.
+ */
+public class YuvDump {
+
+    private static final int MAGIC = 0x59555644; // "YUVD"
+
+    /**
+     * One YUV_420_888 frame.
+     */
+    public static class Frame {
+        public final int width;
+        public final int height;
+        public final ByteBuffer yPlane;
+        public final int yRowStride;
+        public final ByteBuffer uPlane;
+        public final ByteBuffer vPlane;
+        public final int uvRowStride;
+        public final int uvPixelStride;
+
+        public Frame(int width, int height, ByteBuffer yPlane, int yRowStride,
+                     ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride) {
+            this.width = width;
+            this.height = height;
+            this.yPlane = yPlane;
+            this.yRowStride = yRowStride;
+            this.uPlane = uPlane;
+            this.vPlane = vPlane;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+        }
+
+        /**
+         * Copy this frame into the ring of a merger of the same size.
+         */
+        public void addTo(HdrMerger merger) {
+            if (merger.getWidth() != width || merger.getHeight() != height) {
+                throw new IllegalArgumentException("Frame is " + width + "x" + height
+                        + ", merger is " + merger.getWidth() + "x" + merger.getHeight());
+            }
+            merger.addFrame(yPlane, yRowStride, uPlane, vPlane, uvRowStride, uvPixelStride);
+        }
+    }
+
+    /**
+     * Append a frame to a dump. Only absolute reads are done on the planes.
+     */
+    public static void write(DataOutputStream out, Frame frame) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(frame.width);
+        out.writeInt(frame.height);
+        out.writeInt(frame.yRowStride);
+        out.writeInt(frame.uvRowStride);
+        out.writeInt(frame.uvPixelStride);
+        writePlane(out, frame.yPlane);
+        writePlane(out, frame.uPlane);
+        writePlane(out, frame.vPlane);
+    }
+
+    private static void writePlane(DataOutputStream out, ByteBuffer plane) throws IOException {
+        final int length = plane.limit();
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeByte(plane.get(i));
+        }
+    }
+
+    /**
+     * @return The next frame of a dump, or null at the end of it
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        final int magic;
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (magic != MAGIC) {
+            throw new IOException("Not a YUV dump frame");
+        }
+        final int width = in.readInt();
+        final int height = in.readInt();
+        final int yRowStride = in.readInt();
+        final int uvRowStride = in.readInt();
+        final int uvPixelStride = in.readInt();
+        if (width <= 0 || height <= 0 || yRowStride < width || uvPixelStride <= 0
+                || uvRowStride < ((width + 1) / 2 - 1) * uvPixelStride + 1) {
+            throw new IOException("Bad frame header " + width + "x" + height);
+        }
+        final ByteBuffer yPlane = readPlane(in, (height - 1) * yRowStride + width);
+        final int uvLength = ((height + 1) / 2 - 1) * uvRowStride
+                + ((width + 1) / 2 - 1) * uvPixelStride + 1;
+        final ByteBuffer uPlane = readPlane(in, uvLength);
+        final ByteBuffer vPlane = readPlane(in, uvLength);
+        return new Frame(width, height, yPlane, yRowStride, uPlane, vPlane, uvRowStride,
+                uvPixelStride);
+    }
+
+    private static ByteBuffer readPlane(DataInputStream in, int minLength) throws IOException {
+        final int length = in.readInt();
+        if (length < minLength) {
+            throw new IOException("Plane has " + length + " bytes, needs " + minLength);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Merge every frame of a dump with {@link HdrMerger#MODE_FUSION} and print the timing.
+     *
+     * @param args The dump file, and optionally the number of frames in the ring
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: YuvDump <dump file> [ring size]");
+            return;
+        }
+        final int ringSize = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+        try {
+            HdrMerger merger = null;
+            int[] out = null;
+            Frame frame;
+            while ((frame = read(in)) != null) {
+                if (merger == null) {
+                    merger = new HdrMerger(frame.width, frame.height, ringSize);
+                    out = new int[frame.width * frame.height];
+                }
+                frame.addTo(merger);
+                merger.process(HdrMerger.MODE_FUSION, out);
+            }
+            System.out.println(merger != null ? merger.getFrameTimer() : "No frames");
+        } finally {
+            in.close();
+        }
+    }
+}
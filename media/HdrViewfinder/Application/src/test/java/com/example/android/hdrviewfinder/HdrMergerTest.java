@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link HdrMerger} against the math of hdr_merge.rs, on frames read back from a
+ * {@link YuvDump}. Set the system property {@code hdrviewfinder.dump} to the path of a recorded
+ * dump to also check it.
+ */
+public class HdrMergerTest {
+
+    // Odd sizes, so the last column and row have their own chroma sample
+    private static final int WIDTH = 67;
+    private static final int HEIGHT = 45;
+    private static final int FRAMES = 4;
+
+    private ForkJoinPool mPool;
+    private List<YuvDump.Frame> mFrames;
+
+    @Before
+    public void setUp() throws IOException {
+        mPool = new ForkJoinPool();
+        final Random random = new Random(1234);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < FRAMES; i++) {
+            // Alternate planar and semi-planar chroma, with padded rows
+            YuvDump.write(out, createFrame(random, WIDTH, HEIGHT, (i & 1) + 1));
+        }
+        out.close();
+        mFrames = readDump(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(FRAMES, mFrames.size());
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    private static YuvDump.Frame createFrame(Random random, int width, int height,
+                                             int uvPixelStride) {
+        final int yRowStride = width + 5;
+        final int uvRowStride = ((width + 1) / 2) * uvPixelStride + 3;
+        final byte[] y = new byte[height * yRowStride];
+        final byte[] uv = new byte[((height + 1) / 2) * uvRowStride + 1];
+        random.nextBytes(y);
+        random.nextBytes(uv);
+        final ByteBuffer uvPlane = ByteBuffer.wrap(uv);
+        final ByteBuffer vPlane;
+        if (uvPixelStride == 2) {
+            // Interleaved, V follows U, like NV12
+            uvPlane.position(1);
+            vPlane = uvPlane.slice();
+            uvPlane.position(0);
+        } else {
+            final byte[] v = new byte[uv.length];
+            random.nextBytes(v);
+            vPlane = ByteBuffer.wrap(v);
+        }
+        return new YuvDump.Frame(width, height, ByteBuffer.wrap(y), yRowStride, uvPlane,
+                vPlane, uvRowStride, uvPixelStride);
+    }
+
+    private static List<YuvDump.Frame> readDump(DataInputStream in) throws IOException {
+        final List<YuvDump.Frame> frames = new ArrayList<YuvDump.Frame>();
+        YuvDump.Frame frame;
+        while ((frame = YuvDump.read(in)) != null) {
+            frames.add(frame);
+        }
+        assertNull(YuvDump.read(in));
+        return frames;
+    }
+
+    @Test
+    public void passthroughMatchesScript() {
+        checkModes(mFrames, false);
+    }
+
+    @Test
+    public void splitAndFusionMatchScript() {
+        checkModes(mFrames, true);
+    }
+
+    @Test
+    public void recordedDumpMatchesScript() throws IOException {
+        final String path = System.getProperty("hdrviewfinder.dump");
+        if (path == null) {
+            return;
+        }
+        final DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            checkModes(readDump(in), true);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Feed the frames through a merger and compare each output with the script. The script's
+     * frame counter is the number of frames processed, as in ViewfinderProcessor.
+     */
+    private void checkModes(List<YuvDump.Frame> frames, boolean merge) {
+        final YuvDump.Frame first = frames.get(0);
+        final int width = first.width;
+        final int height = first.height;
+        final HdrMerger merger = new HdrMerger(width, height, 3, mPool);
+        final int cutPointX = width / 2;
+        merger.setCutPointX(cutPointX);
+        final int[] out = new int[width * height];
+
+        YuvDump.Frame previous = null;
+        for (int i = 0; i < frames.size(); i++) {
+            final YuvDump.Frame frame = frames.get(i);
+            frame.addTo(merger);
+            // Before the second frame, the previous frame is the first one
+            final YuvDump.Frame prev = previous != null ? previous : frame;
+            if (!merge) {
+                merger.process(HdrMerger.MODE_PASSTHROUGH, out);
+                checkFrame("passthrough", out, frame, prev, i, 0, false);
+            } else if ((i & 1) == 0) {
+                merger.process(HdrMerger.MODE_SPLIT, out);
+                checkFrame("split", out, frame, prev, i, cutPointX, false);
+            } else {
+                merger.process(HdrMerger.MODE_FUSION, out);
+                checkFrame("fusion", out, frame, prev, i, 0, true);
+            }
+            previous = frame;
+        }
+        assertEquals(frames.size(), merger.getFrameTimer().getFrameCount());
+    }
+
+    private static void checkFrame(String mode, int[] out, YuvDump.Frame current,
+                                   YuvDump.Frame previous, int frameCounter, int cutPointX,
+                                   boolean doMerge) {
+        for (int y = 0; y < current.height; y++) {
+            for (int x = 0; x < current.width; x++) {
+                final int[] cur = getYuv(current, x, y);
+                final int[] prev = getYuv(previous, x, y);
+                final int actual = out[y * current.width + x];
+                if (doMerge) {
+                    // The script halves each frame before adding them, which truncates. The
+                    // merger rounds the average instead, so each channel may be 1 higher.
+                    final int[] merged = new int[3];
+                    for (int c = 0; c < 3; c++) {
+                        merged[c] = cur[c] / 2 + prev[c] / 2;
+                    }
+                    if (!matchesRoundedUp(actual, merged)) {
+                        fail(String.format("%s: pixel %d,%d of frame %d is %08x, expected %08x",
+                                mode, x, y, frameCounter, actual, scriptYuvToRgb(merged)));
+                    }
+                } else {
+                    final int[] merged;
+                    if (cutPointX > 0) {
+                        merged = ((x < cutPointX) ^ ((frameCounter & 0x1) != 0)) ? cur : prev;
+                    } else {
+                        merged = cur;
+                    }
+                    assertPixel(mode, x, y, frameCounter, scriptYuvToRgb(merged), actual);
+                }
+            }
+        }
+    }
+
+    private static boolean matchesRoundedUp(int actual, int[] yuv) {
+        for (int dy = 0; dy <= 1; dy++) {
+            for (int du = 0; du <= 1; du++) {
+                for (int dv = 0; dv <= 1; dv++) {
+                    final int[] rounded = {yuv[0] + dy, yuv[1] + du, yuv[2] + dv};
+                    if (scriptYuvToRgb(rounded) == actual) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void assertPixel(String mode, int x, int y, int frame, int expected,
+                                    int actual) {
+        if (expected != actual) {
+            fail(String.format("%s: pixel %d,%d of frame %d is %08x, expected %08x", mode, x, y,
+                    frame, actual, expected));
+        }
+    }
+
+    /**
+     * rsGetElementAtYuv_uchar_Y, _U and _V.
+     */
+    private static int[] getYuv(YuvDump.Frame frame, int x, int y) {
+        final int uv = (y >> 1) * frame.uvRowStride + (x >> 1) * frame.uvPixelStride;
+        return new int[]{
+                frame.yPlane.get(y * frame.yRowStride + x) & 0xff,
+                frame.uPlane.get(uv) & 0xff,
+                frame.vPlane.get(uv) & 0xff,
+        };
+    }
+
+    /**
+     * The YUV to RGB conversion of hdr_merge.rs, as ARGB.
+     */
+    private static int scriptYuvToRgb(int[] yuv) {
+        final int r = yuv[0] + yuv[2] * 1436 / 1024 - 179;
+        final int g = yuv[0] - yuv[1] * 46549 / 131072 + 44 - yuv[2] * 93604 / 131072 + 91;
+        final int b = yuv[0] + yuv[1] * 1814 / 1024 - 227;
+        return 0xff000000 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.midiscope;
+
+import android.media.midi.MidiReceiver;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link MidiCaptureLog} with synthetic streams. They do not need
+ * a MIDI device or an Activity.
+ */
+public class MidiCaptureLogTest extends TestCase {
+    // Small segments so that the streams use many of them.
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File mDirectory;
+    private MidiCaptureLog mLog;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(System.getProperty("java.io.tmpdir"),
+                "MidiCaptureLogTest-" + System.nanoTime());
+        mLog = new MidiCaptureLog(mDirectory, SEGMENT_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLog.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static class Record {
+        final byte[] data;
+        final long timestamp;
+
+        Record(byte[] data, int offset, int count, long timestamp) {
+            this.data = Arrays.copyOfRange(data, offset, offset + count);
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class RecordingReceiver extends MidiReceiver {
+        final List<Record> records = new ArrayList<Record>();
+
+        @Override
+        public void onSend(byte[] data, int offset, int count, long timestamp) {
+            records.add(new Record(data, offset, count, timestamp));
+        }
+    }
+
+    /**
+     * Note On and Off messages with increasing timestamps.
+     */
+    private static List<Record> createStream(Random random, int numRecords) {
+        List<Record> records = new ArrayList<Record>();
+        long timestamp = 1000;
+        for (int i = 0; i < numRecords; i++) {
+            byte[] data = { (byte) (random.nextBoolean() ? 0x90 : 0x80),
+                    (byte) random.nextInt(0x80), (byte) random.nextInt(0x80) };
+            timestamp += random.nextInt(1000);
+            records.add(new Record(data, 0, data.length, timestamp));
+        }
+        return records;
+    }
+
+    private static void assertRecords(List<Record> expected, int first,
+            List<Record> actual) {
+        for (int i = 0; i < actual.size(); i++) {
+            Record record = expected.get(first + i);
+            assertEquals("timestamp " + i, record.timestamp, actual.get(i).timestamp);
+            assertTrue("data " + i, Arrays.equals(record.data, actual.get(i).data));
+        }
+    }
+
+    public void testReadBackAcrossSegments() throws IOException {
+        List<Record> stream = createStream(new Random(1), 2000);
+        for (Record record : stream) {
+            mLog.getReceiver().send(record.data, 0, record.data.length, record.timestamp);
+        }
+        assertEquals(stream.size(), mLog.getRecordCount());
+
+        RecordingReceiver receiver = new RecordingReceiver();
+        assertEquals(stream.size(), mLog.read(0, stream.size(), receiver));
+        assertEquals(stream.size(), receiver.records.size());
+        assertRecords(stream, 0, receiver.records);
+
+        // Start in the middle of an index interval and of a segment.
+        receiver = new RecordingReceiver();
+        assertEquals(100, mLog.read(777, 100, receiver));
+        assertRecords(stream, 777, receiver.records);
+
+        // Past the end.
+        assertEquals(10, mLog.read(stream.size() - 10, 100, new RecordingReceiver()));
+        assertEquals(0, mLog.read(stream.size(), 100, new RecordingReceiver()));
+    }
+
+    public void testLargeMessageIsSplit() throws IOException {
+        byte[] sysEx = new byte[SEGMENT_SIZE * 3];
+        sysEx[0] = (byte) 0xF0;
+        for (int i = 1; i < sysEx.length - 1; i++) {
+            sysEx[i] = (byte) (i & 0x7F);
+        }
+        sysEx[sysEx.length - 1] = (byte) 0xF7;
+        mLog.getReceiver().send(sysEx, 0, sysEx.length, 5);
+        assertTrue(mLog.getRecordCount() > 1);
+
+        RecordingReceiver receiver = new RecordingReceiver();
+        mLog.read(0, (int) mLog.getRecordCount(), receiver);
+        int offset = 0;
+        for (Record record : receiver.records) {
+            assertEquals(5, record.timestamp);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(sysEx, offset,
+                    offset + record.data.length), record.data));
+            offset += record.data.length;
+        }
+        assertEquals(sysEx.length, offset);
+    }
+
+    public void testReplayTimeRange() throws IOException {
+        List<Record> stream = createStream(new Random(2), 3000);
+        for (Record record : stream) {
+            mLog.append(record.data, 0, record.data.length, record.timestamp);
+        }
+        long startTime = stream.get(1234).timestamp;
+        long endTime = stream.get(2345).timestamp;
+        List<Record> expected = new ArrayList<Record>();
+        for (Record record : stream) {
+            if (record.timestamp >= startTime && record.timestamp <= endTime) {
+                expected.add(record);
+            }
+        }
+
+        RecordingReceiver receiver = new RecordingReceiver();
+        assertEquals(expected.size(), mLog.replay(startTime, endTime, receiver));
+        assertEquals(expected.size(), receiver.records.size());
+        assertRecords(expected, 0, receiver.records);
+    }
+
+    /**
+     * Read while another thread is writing. Every record that is counted
+     * must be complete.
+     */
+    public void testReadWhileWriting() throws Exception {
+        final List<Record> stream = createStream(new Random(3), 20000);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Record record : stream) {
+                        mLog.getReceiver().send(record.data, 0, record.data.length,
+                                record.timestamp);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            long count = mLog.getRecordCount();
+            long first = Math.max(0, count - 100);
+            RecordingReceiver receiver = new RecordingReceiver();
+            mLog.read(first, (int) (count - first), receiver);
+            assertEquals(count - first, receiver.records.size());
+            assertRecords(stream, (int) first, receiver.records);
+        }
+        writer.join();
+        assertNull(error.get());
+        assertEquals(stream.size(), mLog.getRecordCount());
+    }
+
+    /**
+     * Close while another thread is still sending. Nothing is written after
+     * close() returns and what was written can still be read.
+     */
+    public void testCloseWhileWriting() throws Exception {
+        final byte[] data = { (byte) 0x90, 0x3C, 0x40 };
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final MidiReceiver receiver = mLog.getReceiver();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (long i = 0; !Thread.interrupted(); i++) {
+                        receiver.send(data, 0, data.length, i);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        writer.start();
+        while (mLog.getRecordCount() < 1000) {
+            Thread.yield();
+        }
+        mLog.close();
+        long count = mLog.getRecordCount();
+        Thread.sleep(20);
+        assertEquals(count, mLog.getRecordCount());
+        writer.interrupt();
+        writer.join();
+        assertNull(error.get());
+        assertEquals(count, mLog.getRecordCount());
+
+        RecordingReceiver reader = new RecordingReceiver();
+        assertEquals((int) count, mLog.read(0, (int) count, reader));
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, reader.records.get(i).timestamp);
+        }
+    }
+}
@@ -44,20 +44,30 @@ public class LoggingReceiver extends MidiReceiver {
     @Override
     public void onSend(byte[] data, int offset, int count, long timestamp)
             throws IOException {
+        String text = formatLine(data, offset, count, timestamp, mStartTime);
+        mLogger.log(text);
+        Log.i(TAG, text);
+    }
+
+    /**
+     * Format one framed message as a line of the log.
+     *
+     * @param startTime timestamp that is shown as zero seconds
+     */
+    public static String formatLine(byte[] data, int offset, int count,
+            long timestamp, long startTime) {
         StringBuilder sb = new StringBuilder();
         if (timestamp == 0) {
             sb.append("-----0----: ");
         } else {
-            long monoTime = timestamp - mStartTime;
+            long monoTime = timestamp - startTime;
             double seconds = (double) monoTime / NANOS_PER_SECOND;
             sb.append(String.format(Locale.US, "%10.3f: ", seconds));
         }
         sb.append(MidiPrinter.formatBytes(data, offset, count));
         sb.append(": ");
         sb.append(MidiPrinter.formatMessage(data, offset));
-        String text = sb.toString();
-        mLogger.log(text);
-        Log.i(TAG, text);
+        return sb.toString();
     }
 
 }
\ No newline at end of file
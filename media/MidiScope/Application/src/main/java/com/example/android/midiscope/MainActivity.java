@@ -20,6 +20,9 @@ import android.media.midi.MidiDeviceInfo;
 import android.media.midi.MidiManager;
 import android.media.midi.MidiReceiver;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -30,10 +33,13 @@ import android.view.WindowManager;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
+import com.example.android.common.midi.MidiDispatcher;
 import com.example.android.common.midi.MidiFramer;
 import com.example.android.common.midi.MidiOutputPortSelector;
 import com.example.android.common.midi.MidiPortWrapper;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.LinkedList;
 
 /**
@@ -41,12 +47,24 @@ import java.util.LinkedList;
  */
 public class MainActivity extends AppCompatActivity implements ScopeLogger {
 
+    private static final String TAG = "MidiScope";
     private static final int MAX_LINES = 100;
+    private static final int CAPTURE_REFRESH_MSEC = 200;
 
     private final LinkedList<String> mLogLines = new LinkedList<>();
     private TextView mLog;
     private ScrollView mScroller;
     private MidiOutputPortSelector mLogSenderSelector;
+    // Delivers to the log and the capture on their own threads.
+    private MidiDispatcher mDispatcher;
+    private MidiFramer mConnectFramer;
+    // Read by the capture thread.
+    private volatile MidiCaptureLog mCaptureLog;
+    private long mCaptureStartTime;
+    // Reads and formats the captured lines, and closes the log.
+    private HandlerThread mCaptureThread;
+    private Handler mCaptureHandler;
+    private CaptureRefresher mCaptureRefresher;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -69,10 +87,17 @@ public class MainActivity extends AppCompatActivity implements ScopeLogger {
         MidiReceiver loggingReceiver = new LoggingReceiver(this);
 
         // Receiver that parses raw data into complete messages.
-        MidiFramer connectFramer = new MidiFramer(loggingReceiver);
+        mConnectFramer = new MidiFramer(loggingReceiver);
+
+        // Formatting the log is slow, so don't make the port wait for it.
+        // The scope should show every message, so a burst waits for room
+        // in the queue instead of being dropped.
+        mDispatcher = new MidiDispatcher(MidiDispatcher.DEFAULT_QUEUE_CAPACITY,
+                MidiDispatcher.DEFAULT_ARENA_SIZE, MidiDispatcher.OVERFLOW_BLOCK);
 
         // Setup a menu to select an input source.
-        mLogSenderSelector = new MidiOutputPortSelector(midiManager, this, R.id.spinner_senders) {
+        mLogSenderSelector = new MidiOutputPortSelector(midiManager, this, R.id.spinner_senders,
+                mDispatcher) {
             @Override
             public void onPortSelected(final MidiPortWrapper wrapper) {
                 super.onPortSelected(wrapper);
@@ -87,7 +112,7 @@ public class MainActivity extends AppCompatActivity implements ScopeLogger {
                 }
             }
         };
-        mLogSenderSelector.getSender().connect(connectFramer);
+        mLogSenderSelector.getSender().connect(mConnectFramer);
 
         // Tell the virtual device to log its messages here..
         MidiScope.setScopeLogger(this);
@@ -95,7 +120,9 @@ public class MainActivity extends AppCompatActivity implements ScopeLogger {
 
     @Override
     public void onDestroy() {
+        stopCapture();
         mLogSenderSelector.onClose();
+        mDispatcher.close();
         // The scope will live on as a service so we need to tell it to stop
         // writing log messages to this Activity.
         MidiScope.setScopeLogger(null);
@@ -121,10 +148,119 @@ public class MainActivity extends AppCompatActivity implements ScopeLogger {
                 setKeepScreenOn(checked);
                 item.setChecked(checked);
                 break;
+            case R.id.action_capture_to_file:
+                boolean capture = !item.isChecked();
+                if (capture) {
+                    startCapture();
+                } else {
+                    stopCapture();
+                }
+                item.setChecked(mCaptureLog != null);
+                break;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Write raw messages to a binary log instead of formatting each one.
+     * Only the lines on screen are formatted, a few times per second.
+     */
+    private void startCapture() {
+        try {
+            mCaptureLog = new MidiCaptureLog(new File(getFilesDir(), "capture"));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start capture.", e);
+            return;
+        }
+        mCaptureStartTime = System.nanoTime();
+        mCaptureThread = new HandlerThread("MidiCapture");
+        mCaptureThread.start();
+        mCaptureHandler = new Handler(mCaptureThread.getLooper());
+        mCaptureRefresher = new CaptureRefresher(mCaptureLog, mCaptureHandler);
+        mLogSenderSelector.getSender().disconnect(mConnectFramer);
+        mLogSenderSelector.getSender().connect(mCaptureLog.getReceiver());
+        mCaptureHandler.postDelayed(mCaptureRefresher, CAPTURE_REFRESH_MSEC);
+    }
+
+    private void stopCapture() {
+        final MidiCaptureLog captureLog = mCaptureLog;
+        if (captureLog != null) {
+            mCaptureLog = null;
+            mLogSenderSelector.getSender().disconnect(captureLog.getReceiver());
+            mLogSenderSelector.getSender().connect(mConnectFramer);
+            // Close on the capture thread after any refresh that is running.
+            // close() waits for a message that is still being written.
+            mCaptureHandler.removeCallbacks(mCaptureRefresher);
+            mCaptureHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    captureLog.close();
+                }
+            });
+            mCaptureThread.quitSafely();
+            mCaptureThread = null;
+            mCaptureHandler = null;
+            mCaptureRefresher = null;
+        }
+    }
+
+    /**
+     * Shows the captured lines a few times per second, on the capture thread.
+     */
+    private class CaptureRefresher implements Runnable {
+        private final MidiCaptureLog mCapture;
+        private final Handler mHandler;
+
+        CaptureRefresher(MidiCaptureLog capture, Handler handler) {
+            mCapture = capture;
+            mHandler = handler;
+        }
+
+        @Override
+        public void run() {
+            if (mCaptureLog != mCapture) {
+                return;
+            }
+            final String text = formatCapturedLines(mCapture);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    // Capture may have stopped while the lines were read.
+                    if (mCaptureLog == mCapture) {
+                        mLog.setText(text);
+                        mScroller.fullScroll(View.FOCUS_DOWN);
+                    }
+                }
+            });
+            mHandler.postDelayed(this, CAPTURE_REFRESH_MSEC);
+        }
+    }
+
+    /**
+     * Format the most recent captured messages.
+     * This is called from the capture thread because it reads the files.
+     */
+    private String formatCapturedLines(MidiCaptureLog captureLog) {
+        final long startTime = mCaptureStartTime;
+        final StringBuilder sb = new StringBuilder();
+        MidiFramer framer = new MidiFramer(new MidiReceiver() {
+            @Override
+            public void onSend(byte[] data, int offset, int count,
+                    long timestamp) {
+                sb.append(LoggingReceiver.formatLine(data, offset, count,
+                        timestamp, startTime)).append('\n');
+            }
+        });
+        long count = captureLog.getRecordCount();
+        try {
+            captureLog.read(Math.max(0, count - MAX_LINES), MAX_LINES, framer);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read capture.", e);
+        }
+        sb.append(count).append(" records captured\n");
+        return sb.toString();
+    }
+
     private void setKeepScreenOn(boolean keepScreenOn) {
         if (keepScreenOn) {
             getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.midiscope;
+
+import android.media.midi.MidiReceiver;
+import android.util.Log;
+
+import com.example.android.common.midi.MidiFramer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Binary capture of raw MIDI data to a series of memory mapped files.
+ *
+ * Each record is a timestamp, a byte count and the raw bytes. Nothing is
+ * formatted when capturing so the MIDI thread only copies bytes. When a
+ * segment file is full a new one is started. A sparse index holds the
+ * position and time of every 256th record, so records can be found by
+ * number or by time without keeping them in memory.
+ *
+ * One thread writes through getReceiver(). Other threads may read records
+ * that have already been written. close() waits for a write in progress to
+ * finish and anything sent after it is dropped, so it is safe to close the
+ * log while a sender may still be delivering to it.
+ */
+public class MidiCaptureLog {
+    private static final String TAG = "MidiCaptureLog";
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "capture-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final int RECORD_HEADER_SIZE = 8 + 2; // timestamp, count
+    private static final int MAX_RECORD_DATA = 0xFFFF;
+    private static final int INDEX_INTERVAL = 256; // records per index entry
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final MidiReceiver mReceiver = new CaptureReceiver();
+
+    // Guarded by mWriteLock. It is only contended when closing.
+    private final Object mWriteLock = new Object();
+    private MappedByteBuffer mWriteBuffer;
+    private long mMaxTimestamp = Long.MIN_VALUE;
+    private boolean mClosed;
+
+    // Guarded by mIndexLock. The writer only takes it at each index entry
+    // and when it starts a new segment.
+    private final Object mIndexLock = new Object();
+    private int[] mSegmentLengths = new int[16];
+    private int mNumSegments;
+    private long[] mIndexTimestamps = new long[64];
+    private int[] mIndexSegments = new int[64];
+    private int[] mIndexOffsets = new int[64];
+    private int mIndexSize;
+
+    private volatile long mRecordCount;
+
+    // Used by readers, guarded by mReadLock.
+    private final Object mReadLock = new Object();
+    private int mReadSegment = -1;
+    private MappedByteBuffer mReadBuffer;
+
+    /**
+     * Start a new capture. Old segment files in the directory are deleted.
+     *
+     * @param directory where to write the segment files
+     * @param segmentSize size of each segment file in bytes
+     * @throws IOException
+     */
+    public MidiCaptureLog(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize too small");
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(SEGMENT_PREFIX)) {
+                    file.delete();
+                }
+            }
+        }
+        startSegment();
+    }
+
+    public MidiCaptureLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @return receiver that appends everything it receives to the log
+     */
+    public MidiReceiver getReceiver() {
+        return mReceiver;
+    }
+
+    /**
+     * @return number of records that can be read
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    private class CaptureReceiver extends MidiReceiver {
+        @Override
+        public void onSend(byte[] data, int offset, int count, long timestamp)
+                throws IOException {
+            append(data, offset, count, timestamp);
+        }
+    }
+
+    /**
+     * Append raw data. Large messages are split into several records with
+     * the same timestamp. Data is dropped after the log is closed.
+     */
+    public void append(byte[] data, int offset, int count, long timestamp)
+            throws IOException {
+        synchronized (mWriteLock) {
+            if (!mClosed) {
+                appendLocked(data, offset, count, timestamp);
+            }
+        }
+    }
+
+    private void appendLocked(byte[] data, int offset, int count,
+            long timestamp) throws IOException {
+        while (count > 0) {
+            int maxData = Math.min(MAX_RECORD_DATA, mSegmentSize - RECORD_HEADER_SIZE);
+            int chunk = Math.min(count, maxData);
+            if (mWriteBuffer.remaining() < RECORD_HEADER_SIZE + chunk) {
+                finishSegment();
+                startSegment();
+            }
+            long recordNumber = mRecordCount;
+            if ((recordNumber % INDEX_INTERVAL) == 0) {
+                // Keep the index sorted even if timestamps go backwards.
+                mMaxTimestamp = Math.max(mMaxTimestamp, timestamp);
+                addIndexEntry(mMaxTimestamp, mNumSegments - 1,
+                        mWriteBuffer.position());
+            }
+            mWriteBuffer.putLong(timestamp);
+            mWriteBuffer.putShort((short) chunk);
+            mWriteBuffer.put(data, offset, chunk);
+            mMaxTimestamp = Math.max(mMaxTimestamp, timestamp);
+            // Publish the record after its bytes have been written.
+            mRecordCount = recordNumber + 1;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(mDirectory, String.format(Locale.US,
+                "%s%05d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer mapSegment(int segment, FileChannel.MapMode mode)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment),
+                (mode == FileChannel.MapMode.READ_ONLY) ? "r" : "rw");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(mode, 0, mSegmentSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } finally {
+            // The mapping stays valid after the file is closed.
+            file.close();
+        }
+    }
+
+    private void startSegment() throws IOException {
+        synchronized (mIndexLock) {
+            if (mNumSegments == mSegmentLengths.length) {
+                mSegmentLengths = Arrays.copyOf(mSegmentLengths, mNumSegments * 2);
+            }
+            mSegmentLengths[mNumSegments] = -1; // still being written
+            mWriteBuffer = mapSegment(mNumSegments, FileChannel.MapMode.READ_WRITE);
+            mNumSegments++;
+        }
+    }
+
+    private void finishSegment() {
+        synchronized (mIndexLock) {
+            mSegmentLengths[mNumSegments - 1] = mWriteBuffer.position();
+        }
+    }
+
+    private void addIndexEntry(long timestamp, int segment, int offset) {
+        synchronized (mIndexLock) {
+            if (mIndexSize == mIndexTimestamps.length) {
+                int capacity = mIndexSize * 2;
+                mIndexTimestamps = Arrays.copyOf(mIndexTimestamps, capacity);
+                mIndexSegments = Arrays.copyOf(mIndexSegments, capacity);
+                mIndexOffsets = Arrays.copyOf(mIndexOffsets, capacity);
+            }
+            mIndexTimestamps[mIndexSize] = timestamp;
+            mIndexSegments[mIndexSize] = segment;
+            mIndexOffsets[mIndexSize] = offset;
+            mIndexSize++;
+        }
+    }
+
+    /**
+     * Send records to a receiver, starting at a record number.
+     * The raw data is sent as it was captured so it may need to go
+     * through a MidiFramer.
+     *
+     * @param firstRecord number of the first record to read
+     * @param maxRecords maximum number of records to read
+     * @param receiver
+     * @return number of records sent
+     * @throws IOException
+     */
+    public int read(long firstRecord, int maxRecords, MidiReceiver receiver)
+            throws IOException {
+        long end = Math.min(mRecordCount, firstRecord + maxRecords);
+        if (firstRecord < 0 || firstRecord >= end) {
+            return 0;
+        }
+        int entry = (int) (firstRecord / INDEX_INTERVAL);
+        int segment;
+        int offset;
+        synchronized (mIndexLock) {
+            segment = mIndexSegments[entry];
+            offset = mIndexOffsets[entry];
+        }
+        long record = (long) entry * INDEX_INTERVAL;
+        byte[] data = new byte[256];
+        synchronized (mReadLock) {
+            while (record < end) {
+                int segmentLength;
+                synchronized (mIndexLock) {
+                    segmentLength = mSegmentLengths[segment];
+                }
+                if (segmentLength >= 0 && offset >= segmentLength) {
+                    segment++;
+                    offset = 0;
+                    continue;
+                }
+                MappedByteBuffer buffer = getReadBuffer(segment);
+                long timestamp = buffer.getLong(offset);
+                int count = buffer.getShort(offset + 8) & 0xFFFF;
+                if (record >= firstRecord) {
+                    if (count > data.length) {
+                        data = new byte[count];
+                    }
+                    buffer.position(offset + RECORD_HEADER_SIZE);
+                    buffer.get(data, 0, count);
+                    receiver.send(data, 0, count, timestamp);
+                }
+                offset += RECORD_HEADER_SIZE + count;
+                record++;
+            }
+        }
+        return (int) (end - firstRecord);
+    }
+
+    private MappedByteBuffer getReadBuffer(int segment) throws IOException {
+        if (segment != mReadSegment) {
+            mReadBuffer = mapSegment(segment, FileChannel.MapMode.READ_ONLY);
+            mReadSegment = segment;
+        }
+        return mReadBuffer;
+    }
+
+    /**
+     * Find where to start reading to get every record at or after a time.
+     *
+     * @param timestamp
+     * @return number of a record at or before the first record with this
+     *         timestamp
+     */
+    public long findRecord(long timestamp) {
+        synchronized (mIndexLock) {
+            // Find the first entry at or after the time.
+            int low = 0;
+            int high = mIndexSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mIndexTimestamps[mid] < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            // Records just before that entry may also be at or after the time.
+            int entry = Math.max(0, low - 1);
+            return (long) entry * INDEX_INTERVAL;
+        }
+    }
+
+    /**
+     * Replay captured data between two times through a MidiFramer.
+     *
+     * @param startTime first timestamp to replay
+     * @param endTime replay stops at the first record after this time
+     * @param receiver receives complete messages
+     * @return number of records replayed
+     * @throws IOException
+     */
+    public long replay(final long startTime, final long endTime,
+            MidiReceiver receiver) throws IOException {
+        final MidiFramer framer = new MidiFramer(receiver);
+        final long[] replayed = new long[1];
+        final boolean[] done = new boolean[1];
+        MidiReceiver filter = new MidiReceiver() {
+            @Override
+            public void onSend(byte[] data, int offset, int count,
+                    long timestamp) throws IOException {
+                if (timestamp > endTime) {
+                    done[0] = true;
+                } else if (!done[0] && timestamp >= startTime) {
+                    framer.send(data, offset, count, timestamp);
+                    replayed[0]++;
+                }
+            }
+        };
+        long record = findRecord(startTime);
+        while (!done[0] && record < mRecordCount) {
+            record += read(record, INDEX_INTERVAL, filter);
+        }
+        return replayed[0];
+    }
+
+    /**
+     * Stop capturing and write everything to storage. This waits for a
+     * write in progress, so disconnect the receiver from its sender first.
+     * Records can still be read after the log is closed.
+     */
+    public void close() {
+        synchronized (mWriteLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mWriteBuffer != null) {
+                mWriteBuffer.force();
+                finishSegment();
+            }
+        }
+        Log.i(TAG, "Captured " + mRecordCount + " records in " + mNumSegments
+                + " segments");
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi;
+
+import android.media.midi.MidiReceiver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link MidiDispatcher} in asynchronous mode, with each overflow policy.
+ */
+public class MidiDispatcherTest extends TestCase {
+    private static final long TIMEOUT_MSEC = 5000;
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int NUM_MESSAGES = 100;
+
+    private MidiDispatcher mDispatcher;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mDispatcher != null) {
+            mDispatcher.close();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Keeps every message. Holds the delivery thread in the first one until
+     * {@link #release()} is called.
+     */
+    private static class GatedReceiver extends MidiReceiver {
+        private final CountDownLatch mEntered = new CountDownLatch(1);
+        private final CountDownLatch mGate;
+        private final List<byte[]> mMessages = new ArrayList<byte[]>();
+
+        GatedReceiver(boolean gated) {
+            mGate = new CountDownLatch(gated ? 1 : 0);
+        }
+
+        @Override
+        public void onSend(byte[] msg, int offset, int count, long timestamp) {
+            synchronized (mMessages) {
+                mMessages.add(Arrays.copyOfRange(msg, offset, offset + count));
+            }
+            mEntered.countDown();
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void awaitFirst() throws InterruptedException {
+            assertTrue(mEntered.await(TIMEOUT_MSEC, TimeUnit.MILLISECONDS));
+        }
+
+        void release() {
+            mGate.countDown();
+        }
+
+        List<byte[]> getMessages() {
+            synchronized (mMessages) {
+                return new ArrayList<byte[]>(mMessages);
+            }
+        }
+    }
+
+    private static byte[] controlChange(int value) {
+        return new byte[] { MidiConstants.STATUS_CONTROL_CHANGE, 7, (byte) value };
+    }
+
+    private static byte[] noteOn(int note) {
+        return new byte[] { MidiConstants.STATUS_NOTE_ON, (byte) note, 100 };
+    }
+
+    private static void send(MidiReceiver receiver, byte[] msg, long timestamp)
+            throws Exception {
+        receiver.send(msg, 0, msg.length, timestamp);
+    }
+
+    private static void awaitDelivered(MidiDispatcher.AsyncReceiver asyncReceiver,
+            long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MSEC;
+        while (asyncReceiver.getDeliveredCount() < count) {
+            assertTrue("delivered " + asyncReceiver.getDeliveredCount() + " of " + count,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private MidiDispatcher.AsyncReceiver connect(GatedReceiver receiver) {
+        mDispatcher.getSender().connect(receiver);
+        for (MidiDispatcher.AsyncReceiver asyncReceiver : mDispatcher.getAsyncReceivers()) {
+            if (asyncReceiver.getReceiver() == receiver) {
+                return asyncReceiver;
+            }
+        }
+        fail("receiver was not connected");
+        return null;
+    }
+
+    private static List<Thread> getDeliveryThreads() {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("MidiDispatcher ") && thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    public void testAsyncDeliversInOrder() throws Exception {
+        mDispatcher = new MidiDispatcher(QUEUE_CAPACITY, 64,
+                MidiDispatcher.OVERFLOW_BLOCK);
+        assertTrue(mDispatcher.isAsync());
+        GatedReceiver first = new GatedReceiver(false);
+        GatedReceiver second = new GatedReceiver(false);
+        MidiDispatcher.AsyncReceiver firstQueue = connect(first);
+        MidiDispatcher.AsyncReceiver secondQueue = connect(second);
+        for (int i = 0; i < NUM_MESSAGES; i++) {
+            send(mDispatcher, noteOn(i), i);
+        }
+        awaitDelivered(firstQueue, NUM_MESSAGES);
+        awaitDelivered(secondQueue, NUM_MESSAGES);
+        for (GatedReceiver receiver : new GatedReceiver[] { first, second }) {
+            List<byte[]> messages = receiver.getMessages();
+            assertEquals(NUM_MESSAGES, messages.size());
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                assertTrue(Arrays.equals(noteOn(i), messages.get(i)));
+            }
+        }
+    }
+
+    public void testDropOldest() throws Exception {
+        mDispatcher = new MidiDispatcher(QUEUE_CAPACITY, 4096,
+                MidiDispatcher.OVERFLOW_DROP_OLDEST);
+        GatedReceiver receiver = new GatedReceiver(true);
+        MidiDispatcher.AsyncReceiver queue = connect(receiver);
+        send(mDispatcher, noteOn(0), 0);
+        receiver.awaitFirst();
+        for (int i = 1; i < NUM_MESSAGES; i++) {
+            send(mDispatcher, noteOn(i), i);
+        }
+        assertEquals(QUEUE_CAPACITY, queue.getQueueDepth());
+        receiver.release();
+        awaitDelivered(queue, 1 + QUEUE_CAPACITY);
+
+        // The first one was being delivered, then only the newest are left.
+        List<byte[]> messages = receiver.getMessages();
+        assertEquals(1 + QUEUE_CAPACITY, messages.size());
+        assertTrue(Arrays.equals(noteOn(0), messages.get(0)));
+        for (int i = 1; i <= QUEUE_CAPACITY; i++) {
+            assertTrue(Arrays.equals(noteOn(NUM_MESSAGES - 1 - QUEUE_CAPACITY + i),
+                    messages.get(i)));
+        }
+        assertEquals(NUM_MESSAGES - 1 - QUEUE_CAPACITY, queue.getDroppedCount());
+    }
+
+    public void testCoalesce() throws Exception {
+        mDispatcher = new MidiDispatcher(QUEUE_CAPACITY, 4096,
+                MidiDispatcher.OVERFLOW_COALESCE);
+        GatedReceiver receiver = new GatedReceiver(true);
+        MidiDispatcher.AsyncReceiver queue = connect(receiver);
+        send(mDispatcher, controlChange(0), 0);
+        receiver.awaitFirst();
+        for (int i = 1; i < NUM_MESSAGES; i++) {
+            send(mDispatcher, controlChange(i), i);
+        }
+        receiver.release();
+        // The queued ones, then the latest value that did not fit.
+        awaitDelivered(queue, 2 + QUEUE_CAPACITY);
+
+        List<byte[]> messages = receiver.getMessages();
+        assertEquals(2 + QUEUE_CAPACITY, messages.size());
+        for (int i = 0; i <= QUEUE_CAPACITY; i++) {
+            assertTrue(Arrays.equals(controlChange(i), messages.get(i)));
+        }
+        assertTrue(Arrays.equals(controlChange(NUM_MESSAGES - 1),
+                messages.get(messages.size() - 1)));
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(NUM_MESSAGES - 2 - QUEUE_CAPACITY, queue.getCoalescedCount());
+    }
+
+    /**
+     * The writer parks while the receiver is slow, then everything arrives.
+     * A small arena makes the writer wait for the arena as well as the queue.
+     */
+    public void testBlock() throws Exception {
+        mDispatcher = new MidiDispatcher(QUEUE_CAPACITY, 16,
+                MidiDispatcher.OVERFLOW_BLOCK);
+        GatedReceiver receiver = new GatedReceiver(true);
+        MidiDispatcher.AsyncReceiver queue = connect(receiver);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < NUM_MESSAGES; i++) {
+                        send(mDispatcher, noteOn(i), i);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        writer.start();
+        receiver.awaitFirst();
+
+        // The writer waits without spinning and without holding the lock.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MSEC;
+        while (writer.getState() != Thread.State.WAITING) {
+            assertTrue("writer state " + writer.getState(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertTrue(writer.isAlive());
+        mDispatcher.flush();
+
+        receiver.release();
+        writer.join(TIMEOUT_MSEC);
+        assertFalse(writer.isAlive());
+        assertNull(error.get());
+        deadline = System.currentTimeMillis() + TIMEOUT_MSEC;
+        while (queue.getQueueDepth() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        mDispatcher.close();
+
+        List<byte[]> messages = receiver.getMessages();
+        assertEquals(0, queue.getDroppedCount());
+        // The flush discarded what was queued at that time, but the rest
+        // arrives in order.
+        int previous = -1;
+        for (byte[] message : messages) {
+            assertTrue(message[1] > previous);
+            previous = message[1];
+        }
+        assertEquals(NUM_MESSAGES - 1, previous);
+    }
+
+    /**
+     * A writer that is waiting for room returns when the dispatcher is closed.
+     */
+    public void testCloseStopsThreads() throws Exception {
+        mDispatcher = new MidiDispatcher(QUEUE_CAPACITY, 64,
+                MidiDispatcher.OVERFLOW_BLOCK);
+        GatedReceiver receiver = new GatedReceiver(true);
+        connect(receiver);
+        connect(new GatedReceiver(false));
+        List<Thread> threads = getDeliveryThreads();
+        assertEquals(2, threads.size());
+        for (Thread thread : threads) {
+            assertTrue(thread.isDaemon());
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < NUM_MESSAGES; i++) {
+                        send(mDispatcher, noteOn(i), i);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+        receiver.awaitFirst();
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDispatcher.close();
+            }
+        });
+        closer.start();
+        // close() waits for the gated delivery thread, but not the writer.
+        writer.join(TIMEOUT_MSEC);
+        assertFalse(writer.isAlive());
+        assertTrue(closer.isAlive());
+        receiver.release();
+        closer.join(TIMEOUT_MSEC);
+        assertFalse(closer.isAlive());
+        for (Thread thread : threads) {
+            assertFalse(thread.isAlive());
+        }
+        assertTrue(getDeliveryThreads().isEmpty());
+    }
+}
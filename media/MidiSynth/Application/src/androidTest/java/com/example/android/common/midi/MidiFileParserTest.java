@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi;
+
+import android.media.midi.MidiReceiver;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link MidiFileParser} with files built in memory.
+ */
+public class MidiFileParserTest extends TestCase {
+    private static final long NANOS_PER_MSEC = 1000000;
+    // Ticks are converted with floating point.
+    private static final long TOLERANCE_NANOS = 1000;
+
+    private static class Event {
+        final byte[] data;
+        final long timestamp;
+
+        Event(byte[] data, long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class EventRecorder extends MidiReceiver {
+        final List<Event> events = new ArrayList<Event>();
+
+        @Override
+        public void onSend(byte[] data, int offset, int count, long timestamp) {
+            events.add(new Event(Arrays.copyOfRange(data, offset, offset + count), timestamp));
+        }
+    }
+
+    /**
+     * Builds the bytes of a Standard MIDI File.
+     */
+    private static class FileBuilder {
+        private final ByteArrayOutputStream mFile = new ByteArrayOutputStream();
+        private ByteArrayOutputStream mTrack;
+
+        FileBuilder(int format, int numTracks, int division) {
+            writeId("MThd");
+            writeInt(mFile, 6, 4);
+            writeInt(mFile, format, 2);
+            writeInt(mFile, numTracks, 2);
+            writeInt(mFile, division, 2);
+        }
+
+        FileBuilder startTrack() {
+            mTrack = new ByteArrayOutputStream();
+            return this;
+        }
+
+        /**
+         * Add an event after a delta time, as the bytes stored in the file.
+         */
+        FileBuilder event(int delta, int... bytes) {
+            writeVariableLength(mTrack, delta);
+            for (int b : bytes) {
+                mTrack.write(b);
+            }
+            return this;
+        }
+
+        FileBuilder tempo(int delta, int microsPerBeat) {
+            return event(delta, 0xFF, 0x51, 3, microsPerBeat >> 16,
+                    (microsPerBeat >> 8) & 0xFF, microsPerBeat & 0xFF);
+        }
+
+        FileBuilder endTrack() {
+            event(0, 0xFF, 0x2F, 0);
+            return addTrack(mTrack.toByteArray());
+        }
+
+        /**
+         * Add a chunk with any contents.
+         */
+        FileBuilder addChunk(String id, byte[] data, int length) {
+            writeId(id);
+            writeInt(mFile, length, 4);
+            mFile.write(data, 0, data.length);
+            return this;
+        }
+
+        FileBuilder addTrack(byte[] track) {
+            return addChunk("MTrk", track, track.length);
+        }
+
+        byte[] toByteArray() {
+            return mFile.toByteArray();
+        }
+
+        private void writeId(String id) {
+            for (int i = 0; i < 4; i++) {
+                mFile.write(id.charAt(i));
+            }
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int value, int numBytes) {
+            for (int shift = (numBytes - 1) * 8; shift >= 0; shift -= 8) {
+                out.write(value >> shift);
+            }
+        }
+
+        private static void writeVariableLength(ByteArrayOutputStream out, int value) {
+            int shift = 21;
+            while (shift > 0 && (value >> shift) == 0) {
+                shift -= 7;
+            }
+            for (; shift > 0; shift -= 7) {
+                out.write(0x80 | ((value >> shift) & 0x7F));
+            }
+            out.write(value & 0x7F);
+        }
+    }
+
+    private static List<Event> parse(byte[] file, long expectedDurationNanos)
+            throws IOException {
+        EventRecorder recorder = new EventRecorder();
+        long duration = MidiFileParser.parse(new ByteArrayInputStream(file), recorder);
+        assertEquals(expectedDurationNanos, duration, TOLERANCE_NANOS);
+        return recorder.events;
+    }
+
+    private static void assertEvent(Event event, long timestamp, int... bytes) {
+        assertEquals(timestamp, event.timestamp, TOLERANCE_NANOS);
+        byte[] expected = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            expected[i] = (byte) bytes[i];
+        }
+        assertTrue(Arrays.toString(event.data), Arrays.equals(expected, event.data));
+    }
+
+    private static void assertParseFails(byte[] file) {
+        try {
+            MidiFileParser.parse(new ByteArrayInputStream(file), new EventRecorder());
+            fail("parsed a bad file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testFormat0() throws IOException {
+        // 480 ticks per beat at the default 120 BPM, so a beat is 500 msec.
+        byte[] file = new FileBuilder(0, 1, 480)
+                .startTrack()
+                .event(0, 0x90, 0x3C, 0x40)
+                .event(480, 0x80, 0x3C, 0x00)
+                .endTrack()
+                .toByteArray();
+        List<Event> events = parse(file, 500 * NANOS_PER_MSEC);
+        assertEquals(2, events.size());
+        assertEvent(events.get(0), 0, 0x90, 0x3C, 0x40);
+        assertEvent(events.get(1), 500 * NANOS_PER_MSEC, 0x80, 0x3C, 0x00);
+    }
+
+    /**
+     * The tempo track changes the tempo for the other tracks, and the tracks
+     * are merged in time order. Events at the same time keep the track order.
+     */
+    public void testFormat1() throws IOException {
+        byte[] file = new FileBuilder(1, 3, 480)
+                .startTrack()
+                .tempo(0, 1000000) // 60 BPM
+                .tempo(960, 250000) // 240 BPM after two beats
+                .endTrack()
+                .startTrack()
+                .event(480, 0x90, 0x3C, 0x40)
+                .event(960, 0x80, 0x3C, 0x00)
+                .endTrack()
+                .startTrack()
+                .event(480, 0x91, 0x40, 0x40)
+                .event(480, 0x81, 0x40, 0x00)
+                .endTrack()
+                .toByteArray();
+        List<Event> events = parse(file, 2250 * NANOS_PER_MSEC);
+        assertEquals(4, events.size());
+        assertEvent(events.get(0), 1000 * NANOS_PER_MSEC, 0x90, 0x3C, 0x40);
+        assertEvent(events.get(1), 1000 * NANOS_PER_MSEC, 0x91, 0x40, 0x40);
+        assertEvent(events.get(2), 2000 * NANOS_PER_MSEC, 0x81, 0x40, 0x00);
+        assertEvent(events.get(3), 2250 * NANOS_PER_MSEC, 0x80, 0x3C, 0x00);
+    }
+
+    public void testRunningStatus() throws IOException {
+        byte[] file = new FileBuilder(0, 1, 96)
+                .startTrack()
+                .event(0, 0x90, 0x3C, 0x40)
+                .event(0, 0x40, 0x40) // running status
+                .event(96, 0x3C, 0x00)
+                .event(0, 0xC0, 0x05) // program change, one data byte
+                .event(0, 0x06)
+                .endTrack()
+                .toByteArray();
+        List<Event> events = parse(file, 500 * NANOS_PER_MSEC);
+        assertEquals(5, events.size());
+        assertEvent(events.get(0), 0, 0x90, 0x3C, 0x40);
+        assertEvent(events.get(1), 0, 0x90, 0x40, 0x40);
+        assertEvent(events.get(2), 500 * NANOS_PER_MSEC, 0x90, 0x3C, 0x00);
+        assertEvent(events.get(3), 500 * NANOS_PER_MSEC, 0xC0, 0x05);
+        assertEvent(events.get(4), 500 * NANOS_PER_MSEC, 0xC0, 0x06);
+    }
+
+    /**
+     * Meta events are not sent. SysEx is sent with its F0, and an F7
+     * escape sends its bytes as they are.
+     */
+    public void testMetaAndSysExEvents() throws IOException {
+        byte[] file = new FileBuilder(0, 1, 480)
+                .startTrack()
+                .event(0, 0xFF, 0x03, 4, 'N', 'a', 'm', 'e') // track name
+                .event(0, 0xF0, 4, 0x7E, 0x09, 0x01, 0xF7)
+                .event(480, 0xF7, 2, 0xF3, 0x01) // song select
+                .event(0, 0xFF, 0x7F, 0) // sequencer specific, empty
+                .endTrack()
+                .toByteArray();
+        List<Event> events = parse(file, 500 * NANOS_PER_MSEC);
+        assertEquals(2, events.size());
+        assertEvent(events.get(0), 0, 0xF0, 0x7E, 0x09, 0x01, 0xF7);
+        assertEvent(events.get(1), 500 * NANOS_PER_MSEC, 0xF3, 0x01);
+    }
+
+    public void testMetaEventCancelsRunningStatus() {
+        byte[] file = new FileBuilder(0, 1, 480)
+                .startTrack()
+                .event(0, 0x90, 0x3C, 0x40)
+                .event(0, 0xFF, 0x01, 1, 'x') // text
+                .event(0, 0x3C, 0x00)
+                .endTrack()
+                .toByteArray();
+        assertParseFails(file);
+    }
+
+    public void testUnknownChunkIsSkipped() throws IOException {
+        byte[] file = new FileBuilder(0, 1, 480)
+                .addChunk("XFIH", new byte[] { 1, 2, 3 }, 3)
+                .startTrack()
+                .event(0, 0x90, 0x3C, 0x40)
+                .endTrack()
+                .toByteArray();
+        List<Event> events = parse(file, 0);
+        assertEquals(1, events.size());
+    }
+
+    public void testTruncatedChunks() {
+        // Header only
+        assertParseFails(Arrays.copyOf(new FileBuilder(0, 1, 480).toByteArray(), 10));
+        // No track chunk
+        assertParseFails(new FileBuilder(0, 1, 480).toByteArray());
+        // The chunk is shorter than its length
+        assertParseFails(new FileBuilder(0, 1, 480)
+                .addChunk("MTrk", new byte[] { 0, (byte) 0x90, 0x3C, 0x40 }, 100)
+                .toByteArray());
+        // A message is cut off by the end of the chunk
+        assertParseFails(new FileBuilder(0, 1, 480)
+                .addTrack(new byte[] { 0, (byte) 0x90, 0x3C })
+                .toByteArray());
+        // A SysEx is longer than the chunk
+        assertParseFails(new FileBuilder(0, 1, 480)
+                .addTrack(new byte[] { 0, (byte) 0xF0, 10, 0x7E, (byte) 0xF7 })
+                .toByteArray());
+        // A delta time is cut off
+        assertParseFails(new FileBuilder(0, 1, 480)
+                .addTrack(new byte[] { (byte) 0x81 })
+                .toByteArray());
+        // The second of two tracks is missing
+        assertParseFails(new FileBuilder(1, 2, 480)
+                .startTrack()
+                .event(0, 0x90, 0x3C, 0x40)
+                .endTrack()
+                .toByteArray());
+    }
+
+    public void testSmpteDivision() throws IOException {
+        // 25 frames per second with 40 ticks per frame, so a tick is 1 msec.
+        // The tempo does not change the time.
+        byte[] file = new FileBuilder(0, 1, ((-25 & 0xFF) << 8) | 40)
+                .startTrack()
+                .tempo(0, 1000000)
+                .event(1000, 0x90, 0x3C, 0x40)
+                .endTrack()
+                .toByteArray();
+        List<Event> events = parse(file, 1000 * NANOS_PER_MSEC);
+        assertEquals(1, events.size());
+        assertEvent(events.get(0), 1000 * NANOS_PER_MSEC, 0x90, 0x3C, 0x40);
+    }
+
+    public void testZeroDivisionFails() {
+        // Zero ticks per beat
+        assertParseFails(new FileBuilder(0, 1, 0)
+                .startTrack()
+                .event(0, 0x90, 0x3C, 0x40)
+                .endTrack()
+                .toByteArray());
+        // Zero ticks per SMPTE frame
+        assertParseFails(new FileBuilder(0, 1, (-30 & 0xFF) << 8)
+                .startTrack()
+                .event(0, 0x90, 0x3C, 0x40)
+                .endTrack()
+                .toByteArray());
+    }
+}
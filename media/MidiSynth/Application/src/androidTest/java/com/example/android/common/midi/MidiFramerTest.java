@@ -0,0 +1,385 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi;
+
+import android.media.midi.MidiReceiver;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link MidiFramer}.
+ */
+public class MidiFramerTest extends TestCase {
+    private static final String TAG = "MidiFramerTest";
+
+    // Kinds of bytes in a generated stream.
+    private static final int BYTE_NORMAL = 0;
+    // Data byte that does not follow a status byte.
+    private static final int BYTE_STRAY = 1;
+    private static final int BYTE_TUNE_REQUEST = 2;
+
+    /**
+     * The framer before it was table driven. It fails on data bytes that
+     * do not follow a status byte and never delivers Tune Request.
+     */
+    private static class LegacyMidiFramer extends MidiReceiver {
+        private MidiReceiver mReceiver;
+        private byte[] mBuffer = new byte[3];
+        private int mCount;
+        private byte mRunningStatus;
+        private int mNeeded;
+        private boolean mInSysEx;
+
+        public LegacyMidiFramer(MidiReceiver receiver) {
+            mReceiver = receiver;
+        }
+
+        @Override
+        public void onSend(byte[] data, int offset, int count, long timestamp)
+                throws IOException {
+            int sysExStartOffset = (mInSysEx ? offset : -1);
+
+            for (int i = 0; i < count; i++) {
+                final byte currentByte = data[offset];
+                final int currentInt = currentByte & 0xFF;
+                if (currentInt >= 0x80) { // status byte?
+                    if (currentInt < 0xF0) { // channel message?
+                        mRunningStatus = currentByte;
+                        mCount = 1;
+                        mNeeded = MidiConstants.getBytesPerMessage(currentByte) - 1;
+                    } else if (currentInt < 0xF8) { // system common?
+                        if (currentInt == 0xF0 /* SysEx Start */) {
+                            mInSysEx = true;
+                            sysExStartOffset = offset;
+                        } else if (currentInt == 0xF7 /* SysEx End */) {
+                            if (mInSysEx) {
+                                mReceiver.send(data, sysExStartOffset,
+                                    offset - sysExStartOffset + 1, timestamp);
+                                mInSysEx = false;
+                                sysExStartOffset = -1;
+                            }
+                        } else {
+                            mBuffer[0] = currentByte;
+                            mRunningStatus = 0;
+                            mCount = 1;
+                            mNeeded = MidiConstants.getBytesPerMessage(currentByte) - 1;
+                        }
+                    } else { // real-time?
+                        if (mInSysEx) {
+                            mReceiver.send(data, sysExStartOffset,
+                                    offset - sysExStartOffset, timestamp);
+                            sysExStartOffset = offset + 1;
+                        }
+                        mReceiver.send(data, offset, 1, timestamp);
+                    }
+                } else { // data byte
+                    if (!mInSysEx) {
+                        mBuffer[mCount++] = currentByte;
+                        if (--mNeeded == 0) {
+                            if (mRunningStatus != 0) {
+                                mBuffer[0] = mRunningStatus;
+                            }
+                            mReceiver.send(mBuffer, 0, mCount, timestamp);
+                            mNeeded = MidiConstants.getBytesPerMessage(mBuffer[0]) - 1;
+                            mCount = 1;
+                        }
+                    }
+                }
+                ++offset;
+            }
+
+            if (sysExStartOffset >= 0 && sysExStartOffset < offset) {
+                mReceiver.send(data, sysExStartOffset,
+                        offset - sysExStartOffset, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Records every message as text.
+     */
+    private static class MessageRecorder extends MidiReceiver
+            implements MidiFramer.MessageBatchReceiver {
+        final List<String> messages = new ArrayList<String>();
+
+        @Override
+        public void onSend(byte[] data, int offset, int count, long timestamp) {
+            StringBuilder text = new StringBuilder();
+            text.append(timestamp).append(':');
+            for (int i = 0; i < count; i++) {
+                text.append(String.format(" %02X", data[offset + i] & 0xFF));
+            }
+            messages.add(text.toString());
+        }
+
+        @Override
+        public void onMessages(byte[] data, int[] offsets, int[] counts,
+                int numMessages, long timestamp) {
+            for (int i = 0; i < numMessages; i++) {
+                onSend(data, offsets[i], counts[i], timestamp);
+            }
+        }
+    }
+
+    private static class CountingReceiver extends MidiReceiver {
+        long count;
+
+        @Override
+        public void onSend(byte[] data, int offset, int count, long timestamp) {
+            this.count += count;
+        }
+    }
+
+    /**
+     * A random MIDI stream, with the kind of each byte.
+     */
+    private static class Stream {
+        byte[] data = new byte[256];
+        int[] kinds = new int[256];
+        int size;
+
+        void add(int value, int kind) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+                kinds = Arrays.copyOf(kinds, size * 2);
+            }
+            data[size] = (byte) value;
+            kinds[size] = kind;
+            size++;
+        }
+    }
+
+    private static void addData(Stream stream, Random random, int numBytes,
+            boolean realTime) {
+        for (int i = 0; i < numBytes; i++) {
+            if (realTime && random.nextInt(20) == 0) {
+                stream.add(0xF8 + random.nextInt(8), BYTE_NORMAL);
+            }
+            stream.add(random.nextInt(0x80), BYTE_NORMAL);
+        }
+    }
+
+    /**
+     * Create a stream of channel messages with and without running status,
+     * system common messages, SysEx and interleaved real-time messages.
+     *
+     * @param extras also add data bytes that do not follow a status byte
+     *        and Tune Requests, which the legacy framer cannot handle
+     */
+    private static Stream createStream(Random random, int numMessages,
+            boolean extras) {
+        return createStream(random, numMessages, extras, true);
+    }
+
+    /**
+     * @param realTime interleave real-time messages with the data bytes
+     */
+    private static Stream createStream(Random random, int numMessages,
+            boolean extras, boolean realTime) {
+        Stream stream = new Stream();
+        int runningStatus = 0;
+        // Data bytes are only stray when no message has been started.
+        boolean strayAllowed = true;
+        for (int m = 0; m < numMessages; m++) {
+            if (extras && strayAllowed && random.nextInt(3) == 0) {
+                // Data bytes before any status byte or after a Tune Request
+                for (int i = random.nextInt(4); i >= 0; i--) {
+                    stream.add(random.nextInt(0x80), BYTE_STRAY);
+                }
+            }
+            int choice = random.nextInt(20);
+            if (choice < 13) {
+                int status = 0x80 + (random.nextInt(7) << 4) + random.nextInt(16);
+                if (status != runningStatus || random.nextInt(4) == 0) {
+                    stream.add(status, BYTE_NORMAL);
+                }
+                runningStatus = status;
+                strayAllowed = false;
+                addData(stream, random,
+                        MidiConstants.getBytesPerMessage((byte) status) - 1, realTime);
+            } else if (choice < 15) {
+                int status = 0xF1 + random.nextInt(3);
+                stream.add(status, BYTE_NORMAL);
+                runningStatus = 0;
+                strayAllowed = false;
+                addData(stream, random,
+                        MidiConstants.getBytesPerMessage((byte) status) - 1, realTime);
+            } else if (choice < 17) {
+                // SysEx does not change the running status.
+                stream.add(0xF0, BYTE_NORMAL);
+                addData(stream, random, random.nextInt(40), realTime);
+                stream.add(0xF7, BYTE_NORMAL);
+            } else if (choice < 19) {
+                stream.add(0xF8 + random.nextInt(8), BYTE_NORMAL);
+            } else if (extras) {
+                stream.add(0xF6, BYTE_TUNE_REQUEST);
+                runningStatus = 0;
+                strayAllowed = true;
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * Feed the stream in random pieces to the new framer, in plain and batch
+     * mode, and to the legacy framer, and compare the messages. The legacy
+     * framer is not sent the extra bytes, and Tune Requests are recorded for
+     * it, because the new framer must handle them like that.
+     */
+    private static void checkStream(Stream stream, Random random) throws IOException {
+        MessageRecorder expected = new MessageRecorder();
+        MessageRecorder actual = new MessageRecorder();
+        MessageRecorder batched = new MessageRecorder();
+        LegacyMidiFramer legacyFramer = new LegacyMidiFramer(expected);
+        MidiFramer framer = new MidiFramer((MidiReceiver) actual);
+        MidiFramer batchFramer = new MidiFramer((MidiFramer.MessageBatchReceiver) batched);
+
+        int offset = 0;
+        long timestamp = 0;
+        while (offset < stream.size) {
+            int count = Math.min(1 + random.nextInt(64), stream.size - offset);
+            framer.send(stream.data, offset, count, timestamp);
+            batchFramer.send(stream.data, offset, count, timestamp);
+
+            int runStart = offset;
+            for (int i = offset; i < offset + count; i++) {
+                if (stream.kinds[i] != BYTE_NORMAL) {
+                    if (i > runStart) {
+                        legacyFramer.send(stream.data, runStart, i - runStart, timestamp);
+                    }
+                    if (stream.kinds[i] == BYTE_TUNE_REQUEST) {
+                        expected.send(stream.data, i, 1, timestamp);
+                    }
+                    runStart = i + 1;
+                }
+            }
+            if (offset + count > runStart) {
+                legacyFramer.send(stream.data, runStart, offset + count - runStart, timestamp);
+            }
+            offset += count;
+            timestamp++;
+        }
+
+        assertMessages(expected.messages, actual.messages);
+        assertMessages(expected.messages, batched.messages);
+    }
+
+    private static void assertMessages(List<String> expected, List<String> actual) {
+        int size = Math.min(expected.size(), actual.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals("message " + i, expected.get(i), actual.get(i));
+        }
+        assertEquals("number of messages", expected.size(), actual.size());
+    }
+
+    public void testMatchesLegacyFramer() throws IOException {
+        Random random = new Random(1234);
+        for (int i = 0; i < 200; i++) {
+            checkStream(createStream(random, 1 + random.nextInt(200), false), random);
+        }
+    }
+
+    public void testMatchesLegacyFramerWithExtras() throws IOException {
+        Random random = new Random(5678);
+        for (int i = 0; i < 200; i++) {
+            checkStream(createStream(random, 1 + random.nextInt(200), true), random);
+        }
+    }
+
+    public void testDataBeforeStatusIsIgnored() throws IOException {
+        MessageRecorder recorder = new MessageRecorder();
+        MidiFramer framer = new MidiFramer((MidiReceiver) recorder);
+        // More stray bytes than a message can hold.
+        byte[] data = { 0x10, 0x20, 0x30, 0x40, 0x50, (byte) 0x90, 0x3C, 0x40 };
+        framer.send(data, 0, data.length, 0);
+        assertMessages(Arrays.asList("0: 90 3C 40"), recorder.messages);
+    }
+
+    public void testTuneRequestIsSentImmediately() throws IOException {
+        MessageRecorder recorder = new MessageRecorder();
+        MidiFramer framer = new MidiFramer((MidiReceiver) recorder);
+        byte[] data = { (byte) 0x90, 0x3C, 0x40, (byte) 0xF6 };
+        framer.send(data, 0, data.length, 0);
+        // Delivered at the end of the buffer without waiting for more bytes.
+        assertMessages(Arrays.asList("0: 90 3C 40", "0: F6"), recorder.messages);
+
+        // Tune Request cancels running status.
+        byte[] more = { 0x3E, 0x40, (byte) 0x80, 0x3C, 0x00 };
+        framer.send(more, 0, more.length, 1);
+        assertMessages(Arrays.asList("0: 90 3C 40", "0: F6", "1: 80 3C 00"),
+                recorder.messages);
+    }
+
+    /**
+     * Log how long each framer takes for a large stream, with and without
+     * real-time messages between the data bytes. Without them the new
+     * framer sends most messages from runs of data bytes and skips SysEx
+     * data in bulk, so it must be faster there.
+     */
+    public void testBenchmark() throws IOException {
+        Random random = new Random(42);
+        benchmark("interleaved", createStream(random, 200000, false, true));
+        double speedup = benchmark("dense", createStream(random, 200000, false, false));
+        assertTrue("no faster than the legacy framer", speedup > 1.0);
+    }
+
+    /**
+     * Time both framers in turn, so that they see the same conditions.
+     *
+     * @return How many times faster the new framer is
+     */
+    private static double benchmark(String name, Stream stream) throws IOException {
+        final int runs = 15;
+        double legacy = Double.MAX_VALUE;
+        double bulk = Double.MAX_VALUE;
+        // The first runs warm up the JIT
+        for (int run = -3; run < runs; run++) {
+            double legacyRun = time(stream, true);
+            double bulkRun = time(stream, false);
+            if (run >= 0) {
+                legacy = Math.min(legacy, legacyRun);
+                bulk = Math.min(bulk, bulkRun);
+            }
+        }
+        Log.i(TAG, String.format("%s, %d bytes: legacy %.2fms, bulk %.2fms, %.2fx",
+                name, stream.size, legacy, bulk, legacy / bulk));
+        return legacy / bulk;
+    }
+
+    /**
+     * @return The time to frame the stream in 64 byte buffers, in milliseconds
+     */
+    private static double time(Stream stream, boolean legacy) throws IOException {
+        CountingReceiver receiver = new CountingReceiver();
+        MidiReceiver framer = legacy ? new LegacyMidiFramer(receiver)
+                : new MidiFramer(receiver);
+        final long start = System.nanoTime();
+        for (int offset = 0; offset < stream.size; offset += 64) {
+            framer.send(stream.data, offset, Math.min(64, stream.size - offset), 0);
+        }
+        final long nanos = System.nanoTime() - start;
+        assertTrue(receiver.count > 0);
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi;
+
+import android.util.Log;
+
+import com.example.android.common.midi.EventScheduler.EventBuffer;
+import com.example.android.common.midi.EventScheduler.SchedulableEvent;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Tests for {@link TimingWheelEventBuffer}.
+ */
+public class TimingWheelEventBufferTest extends TestCase {
+    private static final String TAG = "TimingWheelTest";
+    private static final int TICK_SHIFT = 16;
+
+    private static long toTime(long tick) {
+        return tick << TICK_SHIFT;
+    }
+
+    /**
+     * An event still in level 1 is due before a later event that is already in level 0, so the
+     * reader must wake up for the cascade instead of sleeping until the level 0 event.
+     */
+    public void testWakeTimeIncludesCascade() {
+        TimingWheelEventBuffer buffer = new TimingWheelEventBuffer();
+        SchedulableEvent early = new SchedulableEvent(toTime(0x200));
+        SchedulableEvent late = new SchedulableEvent(toTime(0x210));
+
+        // Added at tick 0xF0, so the early event goes into level 1.
+        buffer.add(early);
+        assertNull(buffer.getNextEvent(toTime(0xF0)));
+        // Move to tick 0x150, then add the late event, which goes into level 0.
+        assertNull(buffer.getNextEvent(toTime(0x150)));
+        buffer.add(late);
+        assertNull(buffer.getNextEvent(toTime(0x150)));
+
+        assertEquals(toTime(0x200), buffer.findWakeTime());
+        assertSame(early, buffer.getNextEvent(toTime(0x200)));
+        assertNull(buffer.getNextEvent(toTime(0x20F)));
+        assertSame(late, buffer.getNextEvent(toTime(0x210)));
+        assertEquals(0, buffer.size());
+    }
+
+    public void testWakeTimeIsLevelZeroEventWhenSooner() {
+        TimingWheelEventBuffer buffer = new TimingWheelEventBuffer();
+        buffer.add(new SchedulableEvent(toTime(0x120)));
+        buffer.add(new SchedulableEvent(toTime(0x300)));
+        assertNull(buffer.getNextEvent(toTime(0x110)));
+        assertEquals(toTime(0x120), buffer.findWakeTime());
+    }
+
+    public void testSameTimestampKeepsOrder() {
+        TimingWheelEventBuffer buffer = new TimingWheelEventBuffer();
+        SchedulableEvent[] events = new SchedulableEvent[10];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new SchedulableEvent(toTime(0x500));
+            buffer.add(events[i]);
+        }
+        assertNull(buffer.getNextEvent(toTime(0x100)));
+        for (SchedulableEvent event : events) {
+            assertSame(event, buffer.getNextEvent(toTime(0x500)));
+        }
+    }
+
+    /**
+     * Compare the timing wheel with the default TreeMap buffer at 1k, 10k and 100k events per
+     * second, the way the synthesizer uses them. Both must return the same events in the same
+     * order.
+     */
+    public void testBenchmark() {
+        for (int eventsPerSecond : new int[] {1000, 10000, 100000}) {
+            benchmark(eventsPerSecond);
+        }
+    }
+
+    private static void benchmark(int eventsPerSecond) {
+        final long seconds = 4;
+        final int numEvents = (int) (eventsPerSecond * seconds);
+        // Events are scheduled up to 20 ms ahead and read every 5 ms, like one audio buffer.
+        final long lookahead = 20000000L;
+        final long bufferPeriod = 5000000L;
+        final long[] arrivals = new long[numEvents];
+        final long[] timestamps = new long[numEvents];
+        final Random random = new Random(eventsPerSecond);
+        final long interval = 1000000000L / eventsPerSecond;
+        for (int i = 0; i < numEvents; i++) {
+            arrivals[i] = i * interval;
+            timestamps[i] = arrivals[i] + (long) (random.nextDouble() * lookahead);
+        }
+
+        SchedulableEvent[] wheelOrder = new SchedulableEvent[numEvents];
+        SchedulableEvent[] sortedOrder = new SchedulableEvent[numEvents];
+        long wheelNanos = Long.MAX_VALUE;
+        long sortedNanos = Long.MAX_VALUE;
+        // Keep the best of a few runs, the first ones warm up the JIT.
+        for (int run = 0; run < 5; run++) {
+            wheelNanos = Math.min(wheelNanos, run(new TimingWheelEventBuffer(), arrivals,
+                    timestamps, bufferPeriod, wheelOrder));
+            sortedNanos = Math.min(sortedNanos, run(new EventScheduler.SortedEventBuffer(),
+                    arrivals, timestamps, bufferPeriod, sortedOrder));
+        }
+        for (int i = 0; i < numEvents; i++) {
+            assertEquals("event " + i, sortedOrder[i].getTimestamp(),
+                    wheelOrder[i].getTimestamp());
+        }
+        Log.i(TAG, String.format("%d events/s: timing wheel %d ns/event, TreeMap %d ns/event",
+                eventsPerSecond, wheelNanos / numEvents, sortedNanos / numEvents));
+    }
+
+    /**
+     * Add each event when it arrives and read the due events at the end of every buffer period.
+     *
+     * @return nanoseconds spent in the buffer
+     */
+    private static long run(EventBuffer buffer, long[] arrivals, long[] timestamps,
+            long bufferPeriod, SchedulableEvent[] order) {
+        SchedulableEvent[] events = new SchedulableEvent[timestamps.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            events[i] = new SchedulableEvent(timestamps[i]);
+        }
+        int added = 0;
+        int count = 0;
+        long start = System.nanoTime();
+        for (long time = 0; count < events.length; time += bufferPeriod) {
+            while (added < events.length && arrivals[added] <= time) {
+                buffer.add(events[added++]);
+            }
+            SchedulableEvent event;
+            while ((event = buffer.getNextEvent(time)) != null) {
+                order[count++] = event;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        for (int i = 1; i < count; i++) {
+            assertTrue(order[i - 1].getTimestamp() <= order[i].getTimestamp());
+        }
+        return elapsed;
+    }
+}
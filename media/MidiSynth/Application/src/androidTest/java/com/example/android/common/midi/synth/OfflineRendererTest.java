@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi.synth;
+
+import com.example.android.common.midi.MidiConstants;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tests for {@link OfflineRenderer} writing to a {@link FileAudioOutput}.
+ */
+public class OfflineRendererTest extends TestCase {
+    private static final int WAV_HEADER_SIZE = 58;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("OfflineRendererTest", ".wav");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Render one note of half a second, with a short release tail.
+     *
+     * @return number of frames rendered
+     */
+    private long renderNote(FileAudioOutput output) throws IOException {
+        SynthEngine engine = new SynthEngine(output);
+        OfflineRenderer renderer = new OfflineRenderer(engine);
+        renderer.setMaxTailSeconds(0.5f);
+        byte[] noteOn = { MidiConstants.STATUS_NOTE_ON, 60, 100 };
+        byte[] noteOff = { MidiConstants.STATUS_NOTE_OFF, 60, 0 };
+        renderer.send(noteOn, 0, noteOn.length, 0);
+        renderer.send(noteOff, 0, noteOff.length, NANOS_PER_SECOND / 2);
+        assertEquals(2, renderer.getEventCount());
+
+        long frames = renderer.render(output);
+        assertEquals(frames, renderer.getFramesRendered());
+        assertEquals(frames, output.getFramesWritten());
+        // Whole buffers, from the first event to the end of the tail at most.
+        assertEquals(0, frames % engine.getFramesPerBuffer());
+        assertTrue(frames >= SynthEngine.FRAME_RATE / 2);
+        assertTrue(frames <= SynthEngine.FRAME_RATE + engine.getFramesPerBuffer());
+        return frames;
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] data = new byte[(int) mFile.length()];
+        InputStream in = new FileInputStream(mFile);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = in.read(data, offset, data.length - offset);
+                assertTrue(count > 0);
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void assertChunkId(String expected, ByteBuffer buffer) {
+        byte[] id = new byte[4];
+        buffer.get(id);
+        assertEquals(expected, new String(id));
+    }
+
+    /**
+     * Check the samples after the header. They must be finite and not all
+     * silent, as a note was played.
+     */
+    private static void assertSamples(ByteBuffer buffer, long frames) {
+        assertEquals(frames * SimpleAudioOutput.SAMPLES_PER_FRAME,
+                buffer.remaining() / SimpleAudioOutput.BYTES_PER_SAMPLE);
+        boolean silent = true;
+        while (buffer.hasRemaining()) {
+            float sample = buffer.getFloat();
+            assertFalse(Float.isNaN(sample) || Float.isInfinite(sample));
+            if (sample != 0.0f) {
+                silent = false;
+            }
+        }
+        assertFalse("render was silent", silent);
+    }
+
+    public void testWaveHeader() throws IOException {
+        long frames = renderNote(new FileAudioOutput(mFile, true));
+        long dataSize = frames * SimpleAudioOutput.BYTES_PER_FRAME;
+        byte[] file = readFile();
+        assertEquals(WAV_HEADER_SIZE + dataSize, file.length);
+
+        ByteBuffer header = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        assertChunkId("RIFF", header);
+        assertEquals(file.length - 8, header.getInt());
+        assertChunkId("WAVE", header);
+
+        assertChunkId("fmt ", header);
+        assertEquals(18, header.getInt());
+        assertEquals(3, header.getShort()); // WAVE_FORMAT_IEEE_FLOAT
+        assertEquals(SimpleAudioOutput.SAMPLES_PER_FRAME, header.getShort());
+        assertEquals(SynthEngine.FRAME_RATE, header.getInt());
+        assertEquals(SynthEngine.FRAME_RATE * SimpleAudioOutput.BYTES_PER_FRAME,
+                header.getInt());
+        assertEquals(SimpleAudioOutput.BYTES_PER_FRAME, header.getShort());
+        assertEquals(32, header.getShort());
+        assertEquals(0, header.getShort());
+
+        assertChunkId("fact", header);
+        assertEquals(4, header.getInt());
+        assertEquals(frames, header.getInt());
+
+        assertChunkId("data", header);
+        assertEquals(dataSize, header.getInt());
+        assertEquals(WAV_HEADER_SIZE, header.position());
+        assertSamples(header, frames);
+    }
+
+    public void testRawOutput() throws IOException {
+        long frames = renderNote(new FileAudioOutput(mFile));
+        byte[] file = readFile();
+        assertEquals(frames * SimpleAudioOutput.BYTES_PER_FRAME, file.length);
+        assertSamples(ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN), frames);
+    }
+}
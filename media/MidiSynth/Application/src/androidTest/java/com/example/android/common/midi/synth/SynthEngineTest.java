@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi.synth;
+
+import com.example.android.common.midi.MidiConstants;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link SynthEngine}.
+ */
+public class SynthEngineTest extends TestCase {
+    private static final int NUM_BUFFERS = 1000;
+    private static final long SEED = 42;
+
+    /**
+     * Collects everything that is written instead of playing it.
+     */
+    private static class CaptureAudioOutput extends SimpleAudioOutput {
+        private float[] mSamples = new float[1024];
+        private int mNumSamples;
+
+        @Override
+        public void start(int frameRate) {
+        }
+
+        @Override
+        public int write(float[] buffer, int offset, int length) {
+            if (mNumSamples + length > mSamples.length) {
+                mSamples = Arrays.copyOf(mSamples,
+                        Math.max(mSamples.length * 2, mNumSamples + length));
+            }
+            System.arraycopy(buffer, offset, mSamples, mNumSamples, length);
+            mNumSamples += length;
+            return length;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        float[] getSamples() {
+            return Arrays.copyOf(mSamples, mNumSamples);
+        }
+    }
+
+    /**
+     * Render a fixed, pseudo-random stream of events on every channel.
+     * The same seed always gives the same stream.
+     */
+    private static float[] render(int numThreads) throws IOException {
+        CaptureAudioOutput output = new CaptureAudioOutput();
+        SynthEngine engine = new SynthEngine(output, 8);
+        engine.setRenderThreads(numThreads);
+        Random random = new Random(SEED);
+        byte[] message = new byte[3];
+        try {
+            for (int i = 0; i < NUM_BUFFERS; i++) {
+                int numEvents = random.nextInt(4);
+                for (int e = 0; e < numEvents; e++) {
+                    int channel = random.nextInt(SynthEngine.NUM_CHANNELS);
+                    int kind = random.nextInt(10);
+                    if (kind < 5) {
+                        message[0] = (byte) (MidiConstants.STATUS_NOTE_ON + channel);
+                        message[1] = (byte) (36 + random.nextInt(60));
+                        message[2] = (byte) (1 + random.nextInt(127));
+                        engine.sendImmediate(message, 0, 3);
+                    } else if (kind < 8) {
+                        message[0] = (byte) (MidiConstants.STATUS_NOTE_OFF + channel);
+                        message[1] = (byte) (36 + random.nextInt(60));
+                        message[2] = 0;
+                        engine.sendImmediate(message, 0, 3);
+                    } else if (kind < 9) {
+                        int bend = random.nextInt(0x4000);
+                        message[0] = (byte) (MidiConstants.STATUS_PITCH_BEND + channel);
+                        message[1] = (byte) (bend & 0x7F);
+                        message[2] = (byte) (bend >> 7);
+                        engine.sendImmediate(message, 0, 3);
+                    } else {
+                        message[0] = (byte) (MidiConstants.STATUS_PROGRAM_CHANGE + channel);
+                        message[1] = (byte) random.nextInt(128);
+                        engine.sendImmediate(message, 0, 2);
+                    }
+                }
+                engine.renderBuffer(output);
+            }
+        } finally {
+            engine.stop();
+        }
+        return output.getSamples();
+    }
+
+    /**
+     * Groups are summed in channel order, so the pool must give exactly
+     * the same samples as rendering on one thread.
+     */
+    public void testRenderThreadsGiveSameSamples() throws IOException {
+        float[] expected = render(1);
+        assertEquals(NUM_BUFFERS * new SynthEngine(new CaptureAudioOutput()).getFramesPerBuffer()
+                * SimpleAudioOutput.SAMPLES_PER_FRAME, expected.length);
+        boolean silent = true;
+        for (float sample : expected) {
+            if (sample != 0.0f) {
+                silent = false;
+                break;
+            }
+        }
+        assertFalse("render was silent", silent);
+
+        for (int numThreads = 2; numThreads <= 4; numThreads++) {
+            float[] actual = render(numThreads);
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                if (Float.floatToIntBits(expected[i]) != Float.floatToIntBits(actual[i])) {
+                    fail("sample " + i + " differs with " + numThreads + " threads: "
+                            + expected[i] + " != " + actual[i]);
+                }
+            }
+        }
+    }
+
+    private static List<Thread> getRenderPoolThreads() {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            // Not the common pool, which is named "ForkJoinPool.commonPool-...".
+            if (thread.getName().startsWith("ForkJoinPool-") && thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    public void testStopShutsDownRenderPool() throws IOException, InterruptedException {
+        List<Thread> before = getRenderPoolThreads();
+        CaptureAudioOutput output = new CaptureAudioOutput();
+        SynthEngine engine = new SynthEngine(output, 8);
+        engine.setRenderThreads(4);
+        byte[] message = new byte[3];
+        for (int channel = 0; channel < 4; channel++) {
+            message[0] = (byte) (MidiConstants.STATUS_NOTE_ON + channel);
+            message[1] = 60;
+            message[2] = 100;
+            engine.sendImmediate(message, 0, 3);
+        }
+        engine.renderBuffer(output);
+        List<Thread> threads = getRenderPoolThreads();
+        threads.removeAll(before);
+        assertFalse("no render threads were started", threads.isEmpty());
+
+        engine.stop();
+        for (Thread thread : threads) {
+            thread.join(5000);
+            assertFalse(thread.getName() + " is still running", thread.isAlive());
+        }
+    }
+}
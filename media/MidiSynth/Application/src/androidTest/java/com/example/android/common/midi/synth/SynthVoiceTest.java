@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.midi.synth;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link SynthVoice#renderBlock(float[], int)} against per-sample
+ * {@link SynthVoice#render()}. Runs without an audio device.
+ */
+public class SynthVoiceTest extends TestCase {
+    private static final String TAG = "SynthVoiceTest";
+    // Same as SynthEngine.
+    private static final int FRAMES_PER_BUFFER = 240;
+    private static final int SAMPLES_PER_FRAME = 2;
+    private static final float LEVEL = 0.25f;
+    private static final int BUFFERS_PER_SECOND = SynthEngine.FRAME_RATE / FRAMES_PER_BUFFER;
+
+    /**
+     * Half saw and half sine voices, like a mix of the engine's programs,
+     * each playing a different note.
+     */
+    private static SynthVoice[] createVoices(int numVoices) {
+        SynthVoice[] voices = new SynthVoice[numVoices];
+        for (int i = 0; i < numVoices; i++) {
+            voices[i] = ((i & 1) == 0) ? new SawVoice() : new SineVoice();
+            voices[i].noteOn(36 + (i % 48), 100);
+        }
+        return voices;
+    }
+
+    /**
+     * How SynthVoice.mix() worked before renderBlock(), one render() call
+     * per frame.
+     */
+    private static void mixPerSample(SynthVoice voice, float[] buffer) {
+        int numFrames = buffer.length / SAMPLES_PER_FRAME;
+        for (int i = 0; i < numFrames; i++) {
+            float output = voice.render() * LEVEL;
+            buffer[2 * i] += output;
+            buffer[2 * i + 1] += output;
+        }
+    }
+
+    public void testRenderBlockMatchesRender() {
+        SynthVoice[] block = createVoices(8);
+        SynthVoice[] perSample = createVoices(8);
+        float[] expected = new float[FRAMES_PER_BUFFER * SAMPLES_PER_FRAME];
+        float[] actual = new float[expected.length];
+        // Long enough to get through the attack and decay of the envelope.
+        for (int buffer = 0; buffer < BUFFERS_PER_SECOND; buffer++) {
+            for (int i = 0; i < block.length; i++) {
+                if (buffer == BUFFERS_PER_SECOND / 2) {
+                    block[i].noteOff();
+                    perSample[i].noteOff();
+                }
+                Arrays.fill(expected, 0.0f);
+                Arrays.fill(actual, 0.0f);
+                mixPerSample(perSample[i], expected);
+                block[i].mix(actual, SAMPLES_PER_FRAME, LEVEL);
+                for (int s = 0; s < expected.length; s++) {
+                    if (Float.floatToIntBits(expected[s]) != Float.floatToIntBits(actual[s])) {
+                        fail("voice " + i + ", buffer " + buffer + ", sample " + s + ": "
+                                + expected[s] + " != " + actual[s]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Log how many voices one core can render in real time with each
+     * method, for 64 to 256 voices. It does not fail.
+     */
+    public void testBenchmark() {
+        for (int numVoices = 64; numVoices <= 256; numVoices += 64) {
+            double[] voicesPerCore = getVoicesPerCore(numVoices);
+            double perSample = voicesPerCore[0];
+            double block = voicesPerCore[1];
+            Log.i(TAG, String.format("%d voices: per sample %.0f, block %.0f voices per core,"
+                    + " %.2fx", numVoices, perSample, block, block / perSample));
+        }
+    }
+
+    /**
+     * Render one second of audio with each method, several times, and keep
+     * the best time of each. The methods take turns so that neither one gets
+     * the JIT to itself, and each has its own voices.
+     *
+     * @return voices that one core could render in real time, per sample
+     *         then block
+     */
+    private static double[] getVoicesPerCore(int numVoices) {
+        final int runs = 7;
+        SynthVoice[] perSampleVoices = createVoices(numVoices);
+        SynthVoice[] blockVoices = createVoices(numVoices);
+        float[] buffer = new float[FRAMES_PER_BUFFER * SAMPLES_PER_FRAME];
+        long bestPerSample = Long.MAX_VALUE;
+        long bestBlock = Long.MAX_VALUE;
+        // The first runs warm up the JIT.
+        for (int run = -3; run < runs; run++) {
+            long start = System.nanoTime();
+            for (int b = 0; b < BUFFERS_PER_SECOND; b++) {
+                mixPerSample(perSampleVoices, buffer);
+            }
+            long middle = System.nanoTime();
+            for (int b = 0; b < BUFFERS_PER_SECOND; b++) {
+                mixBlocks(blockVoices, buffer);
+            }
+            long end = System.nanoTime();
+            if (run >= 0) {
+                bestPerSample = Math.min(bestPerSample, middle - start);
+                bestBlock = Math.min(bestBlock, end - middle);
+            }
+        }
+        // One second of audio was rendered.
+        return new double[] {
+                numVoices * 1e9 / bestPerSample, numVoices * 1e9 / bestBlock
+        };
+    }
+
+    private static void mixPerSample(SynthVoice[] voices, float[] buffer) {
+        Arrays.fill(buffer, 0.0f);
+        for (SynthVoice voice : voices) {
+            mixPerSample(voice, buffer);
+        }
+    }
+
+    private static void mixBlocks(SynthVoice[] voices, float[] buffer) {
+        Arrays.fill(buffer, 0.0f);
+        for (SynthVoice voice : voices) {
+            voice.mix(buffer, SAMPLES_PER_FRAME, LEVEL);
+        }
+    }
+}
@@ -19,14 +19,19 @@ package com.example.android.basicrenderscript;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.support.annotation.RequiresApi;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.RSRuntimeException;
 import android.support.v8.renderscript.RenderScript;
 import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 
+import com.example.android.common.imaging.ImageKernels;
+
 public class MainActivity extends AppCompatActivity {
 
     /**
@@ -41,6 +46,14 @@ public class MainActivity extends AppCompatActivity {
     private Allocation mInAllocation;
     private Allocation[] mOutAllocations;
     private ScriptC_saturation mScript;
+
+    /**
+     * Adjusts the saturation on the CPU instead, when RenderScript cannot be used on this device.
+     */
+    private ImageKernels mKernels;
+    private int[] mPixelsIn;
+    private int[] mPixelsOut;
+
     private RenderScriptTask mCurrentTask;
 
     @Override
@@ -81,8 +94,15 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        // Create renderScript
-        createScript();
+        // Create renderScript, or fall back to the CPU
+        try {
+            createScript();
+        } catch (RSRuntimeException e) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                throw e;
+            }
+            createKernels();
+        }
 
         // Invoke renderScript kernel and update imageView
         updateImage(1.0f);
@@ -108,6 +128,18 @@ public class MainActivity extends AppCompatActivity {
         mScript = new ScriptC_saturation(rs);
     }
 
+    /**
+     * Initialize the CPU kernels, which do the same as saturation.rs.
+     */
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private void createKernels() {
+        mKernels = new ImageKernels();
+        mPixelsIn = new int[mBitmapIn.getWidth() * mBitmapIn.getHeight()];
+        mBitmapIn.getPixels(mPixelsIn, 0, mBitmapIn.getWidth(), 0, 0,
+                mBitmapIn.getWidth(), mBitmapIn.getHeight());
+        mPixelsOut = new int[mPixelsIn.length];
+    }
+
     /*
      * In the AsyncTask, it invokes RenderScript intrinsics to do a filtering.
      * After the filtering is done, an operation blocks at Allocation.copyTo() in AsyncTask thread.
@@ -123,6 +155,16 @@ public class MainActivity extends AppCompatActivity {
                 issued = true;
                 index = mCurrentBitmap;
 
+                if (mKernels != null) {
+                    Bitmap bitmapOut = mBitmapsOut[index];
+                    mKernels.saturation(mPixelsIn, mPixelsOut, bitmapOut.getWidth(),
+                            bitmapOut.getHeight(), values[0]);
+                    bitmapOut.setPixels(mPixelsOut, 0, bitmapOut.getWidth(), 0, 0,
+                            bitmapOut.getWidth(), bitmapOut.getHeight());
+                    mCurrentBitmap = (mCurrentBitmap + 1) % NUM_BITMAPS;
+                    return index;
+                }
+
                 // Set global variable in RS
                 mScript.set_saturationValue(values[0]);
 
@@ -19,12 +19,15 @@ package com.example.android.renderscriptintrinsic;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.support.annotation.RequiresApi;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.support.v8.renderscript.Allocation;
 import android.support.v8.renderscript.Element;
 import android.support.v8.renderscript.Matrix3f;
+import android.support.v8.renderscript.RSRuntimeException;
 import android.support.v8.renderscript.RenderScript;
 import android.support.v8.renderscript.ScriptIntrinsicBlur;
 import android.support.v8.renderscript.ScriptIntrinsicColorMatrix;
@@ -36,6 +39,8 @@ import android.widget.RadioButton;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 
+import com.example.android.common.imaging.ImageKernels;
+
 public class MainActivity extends AppCompatActivity {
 
     /**
@@ -55,6 +60,13 @@ public class MainActivity extends AppCompatActivity {
     private ScriptIntrinsicConvolve5x5 mScriptConvolve;
     private ScriptIntrinsicColorMatrix mScriptMatrix;
 
+    /**
+     * Filters on the CPU instead, when RenderScript cannot be used on this device.
+     */
+    private ImageKernels mKernels;
+    private int[] mPixelsIn;
+    private int[] mPixelsOut;
+
     private final int MODE_BLUR = 0;
     private final int MODE_CONVOLVE = 1;
     private final int MODE_COLORMATRIX = 2;
@@ -134,8 +146,15 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        // Create renderScript
-        createScript();
+        // Create renderScript, or fall back to filtering on the CPU
+        try {
+            createScript();
+        } catch (RSRuntimeException e) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                throw e;
+            }
+            createKernels();
+        }
 
         // Create thumbnails
         createThumbnail();
@@ -167,6 +186,15 @@ public class MainActivity extends AppCompatActivity {
                 Element.U8_4(mRS));
     }
 
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private void createKernels() {
+        mKernels = new ImageKernels();
+        mPixelsIn = new int[mBitmapIn.getWidth() * mBitmapIn.getHeight()];
+        mBitmapIn.getPixels(mPixelsIn, 0, mBitmapIn.getWidth(), 0, 0,
+                mBitmapIn.getWidth(), mBitmapIn.getHeight());
+        mPixelsOut = new int[mPixelsIn.length];
+    }
+
     private void performFilter(Allocation inAllocation,
                                Allocation outAllocation, Bitmap bitmapOut, float value) {
         switch (mFilterMode) {
@@ -179,16 +207,8 @@ public class MainActivity extends AppCompatActivity {
                 mScriptBlur.forEach(outAllocation);
                 break;
             case MODE_CONVOLVE: {
-                @SuppressWarnings("UnnecessaryLocalVariable")
-                float f1 = value;
-                float f2 = 1.0f - f1;
-
-                // Emboss filter kernel
-                float coefficients[] = {-f1 * 2, 0, -f1, 0, 0, 0, -f2 * 2, -f2, 0,
-                        0, -f1, -f2, 1, f2, f1, 0, 0, f2, f2 * 2, 0, 0, 0, f1, 0,
-                        f1 * 2,};
                 // Set kernel parameter
-                mScriptConvolve.setCoefficients(coefficients);
+                mScriptConvolve.setCoefficients(getEmbossCoefficients(value));
 
                 // Invoke filter kernel
                 mScriptConvolve.setInput(inAllocation);
@@ -197,20 +217,13 @@ public class MainActivity extends AppCompatActivity {
             }
             case MODE_COLORMATRIX: {
                 // Set HUE rotation matrix
-                // The matrix below performs a combined operation of,
-                // RGB->HSV transform * HUE rotation * HSV->RGB transform
-                float cos = (float) Math.cos((double) value);
-                float sin = (float) Math.sin((double) value);
+                float[] hue = getHueRotation(value);
                 Matrix3f mat = new Matrix3f();
-                mat.set(0, 0, (float) (.299 + .701 * cos + .168 * sin));
-                mat.set(1, 0, (float) (.587 - .587 * cos + .330 * sin));
-                mat.set(2, 0, (float) (.114 - .114 * cos - .497 * sin));
-                mat.set(0, 1, (float) (.299 - .299 * cos - .328 * sin));
-                mat.set(1, 1, (float) (.587 + .413 * cos + .035 * sin));
-                mat.set(2, 1, (float) (.114 - .114 * cos + .292 * sin));
-                mat.set(0, 2, (float) (.299 - .3 * cos + 1.25 * sin));
-                mat.set(1, 2, (float) (.587 - .588 * cos - 1.05 * sin));
-                mat.set(2, 2, (float) (.114 + .886 * cos - .203 * sin));
+                for (int row = 0; row < 3; row++) {
+                    for (int column = 0; column < 3; column++) {
+                        mat.set(column, row, hue[row * 3 + column]);
+                    }
+                }
                 mScriptMatrix.setColorMatrix(mat);
 
                 // Invoke filter kernel
@@ -223,6 +236,62 @@ public class MainActivity extends AppCompatActivity {
         outAllocation.copyTo(bitmapOut);
     }
 
+    /**
+     * Same as {@link #performFilter(Allocation, Allocation, Bitmap, float)}, with the CPU kernels.
+     */
+    private void performFilterOnCpu(int[] pixelsIn, int[] pixelsOut, Bitmap bitmapOut,
+                                    float value) {
+        int width = bitmapOut.getWidth();
+        int height = bitmapOut.getHeight();
+        switch (mFilterMode) {
+            case MODE_BLUR:
+                mKernels.blur(pixelsIn, pixelsOut, width, height, value);
+                break;
+            case MODE_CONVOLVE:
+                mKernels.convolve5x5(pixelsIn, pixelsOut, width, height,
+                        getEmbossCoefficients(value));
+                break;
+            case MODE_COLORMATRIX:
+                mKernels.colorMatrix3(pixelsIn, pixelsOut, width, height, getHueRotation(value));
+                break;
+        }
+        bitmapOut.setPixels(pixelsOut, 0, width, 0, 0, width, height);
+    }
+
+    /**
+     * Emboss filter kernel.
+     */
+    private static float[] getEmbossCoefficients(float value) {
+        @SuppressWarnings("UnnecessaryLocalVariable")
+        float f1 = value;
+        float f2 = 1.0f - f1;
+
+        return new float[]{-f1 * 2, 0, -f1, 0, 0, 0, -f2 * 2, -f2, 0,
+                0, -f1, -f2, 1, f2, f1, 0, 0, f2, f2 * 2, 0, 0, 0, f1, 0,
+                f1 * 2,};
+    }
+
+    /**
+     * HUE rotation matrix, row by row.
+     * The matrix below performs a combined operation of,
+     * RGB->HSV transform * HUE rotation * HSV->RGB transform
+     */
+    private static float[] getHueRotation(float value) {
+        float cos = (float) Math.cos((double) value);
+        float sin = (float) Math.sin((double) value);
+        return new float[]{
+                (float) (.299 + .701 * cos + .168 * sin),
+                (float) (.587 - .587 * cos + .330 * sin),
+                (float) (.114 - .114 * cos - .497 * sin),
+                (float) (.299 - .299 * cos - .328 * sin),
+                (float) (.587 + .413 * cos + .035 * sin),
+                (float) (.114 - .114 * cos + .292 * sin),
+                (float) (.299 - .3 * cos + 1.25 * sin),
+                (float) (.587 - .588 * cos - 1.05 * sin),
+                (float) (.114 + .886 * cos - .203 * sin),
+        };
+    }
+
     /**
      * Convert seekBar progress parameter (0-100 in range) to parameter for each intrinsic filter.
      * (e.g. 1.0-25.0 in Blur filter)
@@ -270,7 +339,12 @@ public class MainActivity extends AppCompatActivity {
                 mIssued = true;
                 index = mCurrentBitmap;
 
-                performFilter(mInAllocation, mOutAllocations[index], mBitmapsOut[index], values[0]);
+                if (mKernels != null) {
+                    performFilterOnCpu(mPixelsIn, mPixelsOut, mBitmapsOut[index], values[0]);
+                } else {
+                    performFilter(mInAllocation, mOutAllocations[index], mBitmapsOut[index],
+                            values[0]);
+                }
                 mCurrentBitmap = (mCurrentBitmap + 1) % NUM_BITMAPS;
             }
             return index;
@@ -333,7 +407,14 @@ public class MainActivity extends AppCompatActivity {
 
         // Temporary image
         Bitmap tempBitmap = Bitmap.createScaledBitmap(mBitmapIn, pixelsWidth, pixelsHeight, false);
-        Allocation inAllocation = Allocation.createFromBitmap(mRS, tempBitmap);
+        Allocation inAllocation = null;
+        int[] pixelsIn = null;
+        if (mKernels != null) {
+            pixelsIn = new int[pixelsWidth * pixelsHeight];
+            tempBitmap.getPixels(pixelsIn, 0, pixelsWidth, 0, 0, pixelsWidth, pixelsHeight);
+        } else {
+            inAllocation = Allocation.createFromBitmap(mRS, tempBitmap);
+        }
 
         // Create thumbnail with each RS intrinsic and set it to radio buttons
         int[] modes = {MODE_BLUR, MODE_CONVOLVE, MODE_COLORMATRIX};
@@ -345,8 +426,12 @@ public class MainActivity extends AppCompatActivity {
 
             Bitmap destBitmap = Bitmap.createBitmap(tempBitmap.getWidth(),
                     tempBitmap.getHeight(), tempBitmap.getConfig());
-            Allocation outAllocation = Allocation.createFromBitmap(mRS, destBitmap);
-            performFilter(inAllocation, outAllocation, destBitmap, f);
+            if (mKernels != null) {
+                performFilterOnCpu(pixelsIn, new int[pixelsIn.length], destBitmap, f);
+            } else {
+                Allocation outAllocation = Allocation.createFromBitmap(mRS, destBitmap);
+                performFilter(inAllocation, outAllocation, destBitmap, f);
+            }
 
             ThumbnailRadioButton button = (ThumbnailRadioButton) findViewById(ids[mode]);
             button.setThumbnail(destBitmap);
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscriptintrinsic.tests;
+
+import android.util.Log;
+
+import com.example.android.common.imaging.ImageKernels;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks {@link ImageKernels} against floating point versions of the RenderScript kernels and
+ * intrinsics they replace, and times them.
+ */
+public class ImageKernelsTest extends TestCase {
+
+    private static final String TAG = "ImageKernelsTest";
+
+    // Odd sizes, so that bands and edges do not line up with anything
+    private static final int WIDTH = 157;
+    private static final int HEIGHT = 211;
+
+    private final ImageKernels mKernels = new ImageKernels();
+    private int[] mImage;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mImage = createImage(WIDTH, HEIGHT, 42);
+    }
+
+    /**
+     * Random noise over smooth gradients, with a range of alpha values.
+     */
+    private static int[] createImage(int width, int height, long seed) {
+        final Random random = new Random(seed);
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int noise = random.nextInt(64) - 32;
+                pixels[y * width + x] = clamp(255 - y) << 24
+                        | clamp(x * 255 / width + noise) << 16
+                        | clamp(y * 255 / height - noise) << 8
+                        | random.nextInt(256);
+            }
+        }
+        return pixels;
+    }
+
+    public void testSaturation() {
+        for (float saturation : new float[]{0.f, 0.5f, 1.f, 1.7f, 2.f}) {
+            final int[] out = new int[mImage.length];
+            mKernels.saturation(mImage, out, WIDTH, HEIGHT, saturation);
+
+            final double[][] expected = new double[4][mImage.length];
+            for (int i = 0; i < mImage.length; i++) {
+                final int p = mImage[i];
+                final double r = channel(p, 16), g = channel(p, 8), b = channel(p, 0);
+                final double mono = 0.299 * r + 0.587 * g + 0.114 * b;
+                expected[0][i] = channel(p, 24);
+                expected[1][i] = mono + (r - mono) * saturation;
+                expected[2][i] = mono + (g - mono) * saturation;
+                expected[3][i] = mono + (b - mono) * saturation;
+            }
+            assertClose("saturation " + saturation, expected, out);
+        }
+    }
+
+    public void testBlur() {
+        for (float radius : new float[]{0.5f, 1.f, 3.3f, 10.f, ImageKernels.MAX_BLUR_RADIUS}) {
+            final int[] out = new int[mImage.length];
+            mKernels.blur(mImage, out, WIDTH, HEIGHT, radius);
+            assertClose("blur " + radius, referenceBlur(mImage, WIDTH, HEIGHT, radius), out);
+        }
+    }
+
+    public void testBlurInPlace() {
+        final int[] out = new int[mImage.length];
+        mKernels.blur(mImage, out, WIDTH, HEIGHT, 7.f);
+        final int[] inPlace = Arrays.copyOf(mImage, mImage.length);
+        mKernels.blur(inPlace, inPlace, WIDTH, HEIGHT, 7.f);
+        assertTrue(Arrays.equals(out, inPlace));
+    }
+
+    public void testBlurKeepsFlatImage() {
+        final int[] flat = new int[WIDTH * HEIGHT];
+        Arrays.fill(flat, 0x80402010);
+        final int[] out = new int[flat.length];
+        mKernels.blur(flat, out, WIDTH, HEIGHT, ImageKernels.MAX_BLUR_RADIUS);
+        assertTrue(Arrays.equals(flat, out));
+    }
+
+    public void testConvolve5x5() {
+        final float[][] coefficientSets = {
+                // Identity
+                {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                // Box blur
+                fill(new float[25], 1.f / 25),
+                // Emboss, as used by MainActivity
+                getEmbossCoefficients(0.3f),
+                getEmbossCoefficients(0.8f),
+        };
+        for (float[] coefficients : coefficientSets) {
+            final int[] out = new int[mImage.length];
+            mKernels.convolve5x5(mImage, out, WIDTH, HEIGHT, coefficients);
+
+            final double[][] expected = new double[4][mImage.length];
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    for (int ky = 0; ky < 5; ky++) {
+                        for (int kx = 0; kx < 5; kx++) {
+                            final int p = mImage[clampIndex(y + ky - 2, HEIGHT) * WIDTH
+                                    + clampIndex(x + kx - 2, WIDTH)];
+                            final double w = coefficients[ky * 5 + kx];
+                            for (int c = 0; c < 4; c++) {
+                                expected[c][y * WIDTH + x] += channel(p, 24 - c * 8) * w;
+                            }
+                        }
+                    }
+                }
+            }
+            assertClose("convolve " + Arrays.toString(coefficients), expected, out);
+        }
+    }
+
+    public void testColorMatrix() {
+        final float[] matrix = {
+                0.9f, 0.2f, -0.1f, 0.05f,
+                0.1f, 0.7f, 0.3f, 0.f,
+                -0.2f, 0.4f, 1.1f, 0.f,
+                0.f, 0.f, 0.f, 0.8f,
+        };
+        final float[] add = {0.1f, -0.05f, 0.f, 0.2f};
+        final int[] out = new int[mImage.length];
+        mKernels.colorMatrix(mImage, out, WIDTH, HEIGHT, matrix, add);
+
+        final double[][] expected = new double[4][mImage.length];
+        for (int i = 0; i < mImage.length; i++) {
+            final int p = mImage[i];
+            final double[] rgba = {channel(p, 16), channel(p, 8), channel(p, 0), channel(p, 24)};
+            // Row 3 gives alpha, which is channel 0 of the packed pixel
+            for (int row = 0; row < 4; row++) {
+                double value = add[row] * 255;
+                for (int column = 0; column < 4; column++) {
+                    value += matrix[row * 4 + column] * rgba[column];
+                }
+                expected[(row + 1) % 4][i] = value;
+            }
+        }
+        assertClose("color matrix", expected, out);
+
+        final int[] inPlace = Arrays.copyOf(mImage, mImage.length);
+        mKernels.colorMatrix(inPlace, inPlace, WIDTH, HEIGHT, matrix, add);
+        assertTrue(Arrays.equals(out, inPlace));
+    }
+
+    public void testColorMatrix3KeepsAlpha() {
+        final int[] out = new int[mImage.length];
+        mKernels.colorMatrix3(mImage, out, WIDTH, HEIGHT, new float[]{0, 0, 1, 0, 1, 0, 1, 0, 0});
+        for (int i = 0; i < mImage.length; i++) {
+            // Red and blue swapped, green and alpha left alone
+            final int p = mImage[i];
+            assertEquals(p & 0xff00ff00 | (p >> 16) & 0xff | (p & 0xff) << 16, out[i]);
+        }
+    }
+
+    /**
+     * Logs how long each filter takes on a large image, on all cores and on one thread.
+     */
+    public void testBenchmark() {
+        final int width = 1024;
+        final int height = 1024;
+        final int[] in = createImage(width, height, 7);
+        final int[] out = new int[in.length];
+        final ForkJoinPool singleThread = new ForkJoinPool(1);
+        try {
+            for (ImageKernels kernels : new ImageKernels[]{
+                    mKernels, new ImageKernels(singleThread)}) {
+                final String name = (kernels == mKernels) ? "parallel" : "one thread";
+                Log.i(TAG, String.format("%s: saturation %.1fms, blur %.1fms, convolve %.1fms,"
+                                + " color matrix %.1fms", name,
+                        time(kernels, in, out, width, height, 0),
+                        time(kernels, in, out, width, height, 1),
+                        time(kernels, in, out, width, height, 2),
+                        time(kernels, in, out, width, height, 3)));
+            }
+        } finally {
+            singleThread.shutdown();
+        }
+    }
+
+    /**
+     * @return The median time of a filter, in milliseconds
+     */
+    private static double time(ImageKernels kernels, int[] in, int[] out, int width,
+            int height, int filter) {
+        final int runs = 7;
+        final long[] nanos = new long[runs];
+        final float[] emboss = getEmbossCoefficients(0.5f);
+        for (int run = -2; run < runs; run++) {
+            final long start = System.nanoTime();
+            switch (filter) {
+                case 0:
+                    kernels.saturation(in, out, width, height, 1.5f);
+                    break;
+                case 1:
+                    kernels.blur(in, out, width, height, 10.f);
+                    break;
+                case 2:
+                    kernels.convolve5x5(in, out, width, height, emboss);
+                    break;
+                default:
+                    kernels.colorMatrix3(in, out, width, height,
+                            new float[]{0.5f, 0.3f, 0.2f, 0.2f, 0.5f, 0.3f, 0.3f, 0.2f, 0.5f});
+                    break;
+            }
+            // The first runs warm up the JIT
+            if (run >= 0) {
+                nanos[run] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        return nanos[runs / 2] / 1e6;
+    }
+
+    /**
+     * Separable Gaussian blur with the weights of ScriptIntrinsicBlur, without any rounding.
+     */
+    private static double[][] referenceBlur(int[] in, int width, int height, float radius) {
+        final int r = (int) Math.ceil(radius);
+        final double sigma = 0.4 * radius + 0.6;
+        final double[] weights = new double[2 * r + 1];
+        double total = 0;
+        for (int k = -r; k <= r; k++) {
+            weights[k + r] = Math.exp(-(k * k) / (2 * sigma * sigma));
+            total += weights[k + r];
+        }
+        for (int k = 0; k < weights.length; k++) {
+            weights[k] /= total;
+        }
+
+        final double[][] rows = new double[4][in.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int k = -r; k <= r; k++) {
+                    final int p = in[y * width + clampIndex(x + k, width)];
+                    for (int c = 0; c < 4; c++) {
+                        rows[c][y * width + x] += channel(p, 24 - c * 8) * weights[k + r];
+                    }
+                }
+            }
+        }
+        final double[][] out = new double[4][in.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int k = -r; k <= r; k++) {
+                    final int i = clampIndex(y + k, height) * width + x;
+                    for (int c = 0; c < 4; c++) {
+                        out[c][y * width + x] += rows[c][i] * weights[k + r];
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Asserts that every channel of every pixel is within 1 of the expected value, after that is
+     * rounded and clamped to 0..255.
+     *
+     * @param expected Alpha, red, green and blue planes
+     */
+    private static void assertClose(String message, double[][] expected, int[] actual) {
+        for (int i = 0; i < actual.length; i++) {
+            for (int c = 0; c < 4; c++) {
+                final int want = clamp((int) Math.round(expected[c][i]));
+                final int got = channel(actual[i], 24 - c * 8);
+                if (Math.abs(want - got) > 1) {
+                    fail(String.format("%s: pixel %d channel %d is %d, expected %d", message,
+                            i, c, got, want));
+                }
+            }
+        }
+    }
+
+    private static float[] getEmbossCoefficients(float f1) {
+        final float f2 = 1.0f - f1;
+        return new float[]{-f1 * 2, 0, -f1, 0, 0, 0, -f2 * 2, -f2, 0,
+                0, -f1, -f2, 1, f2, f1, 0, 0, f2, f2 * 2, 0, 0, 0, f1, 0,
+                f1 * 2,};
+    }
+
+    private static float[] fill(float[] values, float value) {
+        Arrays.fill(values, value);
+        return values;
+    }
+
+    private static int channel(int pixel, int shift) {
+        return (pixel >>> shift) & 0xff;
+    }
+
+    private static int clampIndex(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
@@ -43,6 +44,7 @@ import com.example.android.common.logger.Log;
 import com.example.android.displayingbitmaps.BuildConfig;
 import com.example.android.displayingbitmaps.R;
 import com.example.android.displayingbitmaps.provider.Images;
+import com.example.android.displayingbitmaps.util.FrameTimeTracker;
 import com.example.android.displayingbitmaps.util.ImageCache;
 import com.example.android.displayingbitmaps.util.ImageFetcher;
 import com.example.android.displayingbitmaps.util.Utils;
@@ -58,10 +60,20 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     private static final String TAG = "ImageGridFragment";
     private static final String IMAGE_CACHE_DIR = "thumbs";
 
+    // How far ahead of the scroll to prefetch, in seconds of scrolling
+    private static final float PREFETCH_SECONDS = 0.5f;
+    private static final int MAX_PREFETCH_ROWS = 6;
+
     private int mImageThumbSize;
     private int mImageThumbSpacing;
     private ImageAdapter mAdapter;
     private ImageFetcher mImageFetcher;
+    private final FrameTimeTracker mFrameTimeTracker = new FrameTimeTracker();
+
+    // Used to work out the scroll velocity in positions per second
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+    private float mScrollVelocity;
 
     /**
      * Empty constructor as per the Fragment documentation
@@ -109,11 +121,32 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                 } else {
                     mImageFetcher.setPauseWork(false);
                 }
+
+                if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+                    mScrollVelocity = 0;
+                    mFrameTimeTracker.stop();
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Scroll frames: " + mFrameTimeTracker
+                                + ", average time to image: "
+                                + mImageFetcher.getAverageTimeToImageMillis() + "ms, "
+                                + mImageFetcher.getExecutors());
+                    }
+                    mFrameTimeTracker.reset();
+                } else {
+                    mFrameTimeTracker.start();
+                }
             }
 
             @Override
             public void onScroll(AbsListView absListView, int firstVisibleItem,
                     int visibleItemCount, int totalItemCount) {
+                if (visibleItemCount == 0) {
+                    return;
+                }
+                updateScrollVelocity(firstVisibleItem);
+                final int lastVisibleItem = firstVisibleItem + visibleItemCount - 1;
+                mImageFetcher.setViewport(firstVisibleItem, lastVisibleItem, mScrollVelocity);
+                prefetchAhead(firstVisibleItem, lastVisibleItem);
             }
         });
 
@@ -152,6 +185,44 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         return v;
     }
 
+    /**
+     * Smooth the number of positions scrolled per second.
+     */
+    private void updateScrollVelocity(int firstVisibleItem) {
+        final long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible >= 0 && firstVisibleItem != mLastFirstVisible) {
+            final long elapsed = Math.max(1, now - mLastScrollTime);
+            final float velocity = (firstVisibleItem - mLastFirstVisible) * 1000f / elapsed;
+            mScrollVelocity = 0.5f * mScrollVelocity + 0.5f * velocity;
+        }
+        if (firstVisibleItem != mLastFirstVisible) {
+            mLastFirstVisible = firstVisibleItem;
+            mLastScrollTime = now;
+        }
+    }
+
+    /**
+     * Start loading the thumbnails the grid is scrolling towards, at least a row and at most
+     * MAX_PREFETCH_ROWS rows ahead.
+     */
+    private void prefetchAhead(int firstVisibleItem, int lastVisibleItem) {
+        final int numColumns = mAdapter.getNumColumns();
+        if (numColumns == 0 || mScrollVelocity == 0) {
+            return;
+        }
+        final int count = Math.min(MAX_PREFETCH_ROWS * numColumns,
+                Math.max(numColumns, (int) (Math.abs(mScrollVelocity) * PREFETCH_SECONDS)));
+        final int step = mScrollVelocity > 0 ? 1 : -1;
+        int position = mScrollVelocity > 0 ? lastVisibleItem + 1 : firstVisibleItem - 1;
+        for (int i = 0; i < count; i++, position += step) {
+            final int index = position - numColumns;
+            if (index < 0 || index >= Images.imageThumbUrls.length) {
+                break;
+            }
+            mImageFetcher.prefetch(Images.imageThumbUrls[index], position);
+        }
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -164,6 +235,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         super.onPause();
         mImageFetcher.setPauseWork(false);
         mImageFetcher.setExitTasksEarly(true);
+        mFrameTimeTracker.stop();
         mImageFetcher.flushCache();
     }
 
@@ -303,7 +375,8 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
 
             // Finally load the image asynchronously into the ImageView, this also takes care of
             // setting a placeholder image while the background thread runs
-            mImageFetcher.loadImage(Images.imageThumbUrls[position - mNumColumns], imageView);
+            mImageFetcher.loadImage(Images.imageThumbUrls[position - mNumColumns], imageView,
+                    null, position);
             return imageView;
             //END_INCLUDE(load_gridview_item)
         }
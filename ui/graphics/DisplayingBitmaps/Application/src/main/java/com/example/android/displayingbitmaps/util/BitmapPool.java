@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.displayingbitmaps.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build.VERSION_CODES;
+
+import java.util.HashMap;
+
+/**
+ * A pool of mutable bitmaps that can be used for inBitmap when decoding. Bitmaps are held by
+ * strong references and grouped by {@link Config} and size, so a suitable bitmap is found
+ * without scanning the whole pool. The total size of the pooled bitmaps is limited and the
+ * least recently added bitmaps are dropped first when the limit is reached.
+ *
+ * From KitKat onward a bitmap only needs to be large enough, so bitmaps are grouped into size
+ * classes of a quarter of a power of two. Before KitKat the dimensions must match exactly, so
+ * bitmaps are grouped by width and height.
+ */
+public class BitmapPool {
+    // Sub-steps per power of two for the size classes
+    private static final int CLASS_STEPS_SHIFT = 2;
+    private static final int CLASS_STEPS = 1 << CLASS_STEPS_SHIFT;
+
+    // How many size classes above the requested size to search. Four classes is a factor of two,
+    // so a small image never takes a much larger bitmap.
+    private static final int MAX_CLASS_SEARCH = CLASS_STEPS;
+
+    private static final long EXACT_SIZE_KEY = 1L << 62;
+
+    /**
+     * A pooled bitmap. Entries are linked into a list for their group and a list for the
+     * whole pool in the order they were added.
+     */
+    private static class Entry {
+        final Bitmap bitmap;
+        final long key;
+        final int size;
+        Entry groupPrevious;
+        Entry groupNext;
+        Entry lruPrevious;
+        Entry lruNext;
+
+        Entry(Bitmap bitmap, long key, int size) {
+            this.bitmap = bitmap;
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    private final HashMap<Long, Entry> mGroups = new HashMap<Long, Entry>();
+    private final int mMaxSize;
+    private int mSize;
+    private int mCount;
+
+    // Least recently added entry is the head
+    private Entry mLruHead;
+    private Entry mLruTail;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize The maximum total size in bytes of the pooled bitmaps
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Add a bitmap to the pool. Bitmaps that are immutable, recycled or larger than the whole
+     * pool are ignored.
+     *
+     * @param bitmap The bitmap that is no longer used
+     * @return true if the bitmap was added
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return false;
+        }
+        final int size = getAllocationSize(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+        final long key;
+        if (Utils.hasKitKat()) {
+            final int sizeClass = floorSizeClass(size);
+            if (sizeClass < 0) {
+                return false;
+            }
+            key = getKey(bitmap.getConfig(), sizeClass);
+        } else {
+            key = getKey(bitmap.getConfig(), bitmap.getWidth(), bitmap.getHeight());
+        }
+
+        final Entry entry = new Entry(bitmap, key, size);
+        final Entry head = mGroups.put(key, entry);
+        if (head != null) {
+            entry.groupNext = head;
+            head.groupPrevious = entry;
+        }
+        entry.lruPrevious = mLruTail;
+        if (mLruTail != null) {
+            mLruTail.lruNext = entry;
+        } else {
+            mLruHead = entry;
+        }
+        mLruTail = entry;
+        mSize += size;
+        mCount++;
+        mPutCount++;
+
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Take a bitmap out of the pool that can be used for inBitmap with the given options.
+     *
+     * @param options BitmapFactory.Options with out* options populated
+     * @return A bitmap that can be used for inBitmap, or null if none was found
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        //BEGIN_INCLUDE(get_bitmap_from_pool)
+        final Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Config.ARGB_8888;
+        Bitmap bitmap = null;
+
+        if (mCount > 0) {
+            if (Utils.hasKitKat()) {
+                final int width = options.outWidth / options.inSampleSize;
+                final int height = options.outHeight / options.inSampleSize;
+                final int firstClass =
+                        ceilSizeClass(width * height * getBytesPerPixel(config));
+                for (int sizeClass = firstClass;
+                        bitmap == null && sizeClass < firstClass + MAX_CLASS_SEARCH;
+                        sizeClass++) {
+                    bitmap = takeFromGroup(getKey(config, sizeClass), options);
+                }
+            } else if (options.inSampleSize == 1) {
+                bitmap = takeFromGroup(
+                        getKey(config, options.outWidth, options.outHeight), options);
+            }
+        }
+
+        if (bitmap != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return bitmap;
+        //END_INCLUDE(get_bitmap_from_pool)
+    }
+
+    private Bitmap takeFromGroup(long key, BitmapFactory.Options options) {
+        Entry entry = mGroups.get(key);
+        while (entry != null) {
+            final Entry next = entry.groupNext;
+            if (entry.bitmap.isRecycled()) {
+                remove(entry);
+            } else if (canUseForInBitmap(entry.bitmap, options)) {
+                remove(entry);
+                return entry.bitmap;
+            }
+            entry = next;
+        }
+        return null;
+    }
+
+    private void remove(Entry entry) {
+        if (entry.groupPrevious != null) {
+            entry.groupPrevious.groupNext = entry.groupNext;
+        } else if (entry.groupNext != null) {
+            mGroups.put(entry.key, entry.groupNext);
+        } else {
+            mGroups.remove(entry.key);
+        }
+        if (entry.groupNext != null) {
+            entry.groupNext.groupPrevious = entry.groupPrevious;
+        }
+
+        if (entry.lruPrevious != null) {
+            entry.lruPrevious.lruNext = entry.lruNext;
+        } else {
+            mLruHead = entry.lruNext;
+        }
+        if (entry.lruNext != null) {
+            entry.lruNext.lruPrevious = entry.lruPrevious;
+        } else {
+            mLruTail = entry.lruPrevious;
+        }
+
+        mSize -= entry.size;
+        mCount--;
+    }
+
+    /**
+     * Drop the least recently added bitmaps until the pool is no larger than maxSize.
+     *
+     * @param maxSize The maximum total size in bytes, or -1 to empty the pool
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize && mLruHead != null) {
+            remove(mLruHead);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Empty the pool.
+     */
+    public void clear() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getBitmapCount() {
+        return mCount;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "BitmapPool[size=" + mSize + ",maxSize=" + mMaxSize + ",bitmaps=" + mCount
+                + ",hits=" + mHitCount + ",misses=" + mMissCount + ",hitRate=" + hitPercent
+                + "%,evictions=" + mEvictionCount + "]";
+    }
+
+    private static long getKey(Config config, int sizeClass) {
+        return ((long) getConfigIndex(config) << 32) | sizeClass;
+    }
+
+    private static long getKey(Config config, int width, int height) {
+        return EXACT_SIZE_KEY | ((long) getConfigIndex(config) << 48)
+                | ((long) width << 24) | height;
+    }
+
+    private static int getConfigIndex(Config config) {
+        return config != null ? config.ordinal() : 0xFF;
+    }
+
+    /**
+     * @return The largest size class that is no larger than size, or -1 if size is too small
+     *         to be pooled
+     */
+    static int floorSizeClass(int size) {
+        if (size < CLASS_STEPS) {
+            return -1;
+        }
+        final int exponent = 31 - Integer.numberOfLeadingZeros(size);
+        final int step = (size >> (exponent - CLASS_STEPS_SHIFT)) & (CLASS_STEPS - 1);
+        return ((exponent - CLASS_STEPS_SHIFT) << CLASS_STEPS_SHIFT) + step;
+    }
+
+    /**
+     * @return The smallest size class that is no smaller than size
+     */
+    static int ceilSizeClass(int size) {
+        if (size <= CLASS_STEPS) {
+            return 0;
+        }
+        final int sizeClass = floorSizeClass(size);
+        return getClassSize(sizeClass) == size ? sizeClass : sizeClass + 1;
+    }
+
+    /**
+     * @return The smallest size in bytes of the bitmaps in a size class
+     */
+    static int getClassSize(int sizeClass) {
+        final int exponent = sizeClass >> CLASS_STEPS_SHIFT;
+        final int step = sizeClass & (CLASS_STEPS - 1);
+        return (CLASS_STEPS + step) << exponent;
+    }
+
+    /**
+     * @param candidate - Bitmap to check
+     * @param targetOptions - Options that have the out* value populated
+     * @return true if <code>candidate</code> can be used for inBitmap re-use with
+     *      <code>targetOptions</code>
+     */
+    @TargetApi(VERSION_CODES.KITKAT)
+    static boolean canUseForInBitmap(
+            Bitmap candidate, BitmapFactory.Options targetOptions) {
+        //BEGIN_INCLUDE(can_use_for_inbitmap)
+        if (!Utils.hasKitKat()) {
+            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
+            return candidate.getWidth() == targetOptions.outWidth
+                    && candidate.getHeight() == targetOptions.outHeight
+                    && targetOptions.inSampleSize == 1;
+        }
+
+        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
+        // is smaller than the reusable bitmap candidate allocation byte count.
+        int width = targetOptions.outWidth / targetOptions.inSampleSize;
+        int height = targetOptions.outHeight / targetOptions.inSampleSize;
+        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
+        return byteCount <= candidate.getAllocationByteCount();
+        //END_INCLUDE(can_use_for_inbitmap)
+    }
+
+    /**
+     * Return the byte usage per pixel of a bitmap based on its configuration.
+     * @param config The bitmap configuration.
+     * @return The byte usage per pixel.
+     */
+    static int getBytesPerPixel(Config config) {
+        if (config == Config.ARGB_8888) {
+            return 4;
+        } else if (config == Config.RGB_565) {
+            return 2;
+        } else if (config == Config.ARGB_4444) {
+            return 2;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        }
+        return 1;
+    }
+
+    /**
+     * Get the size in bytes of the memory allocated for a bitmap.
+     */
+    @TargetApi(VERSION_CODES.KITKAT)
+    static int getAllocationSize(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        if (Utils.hasHoneycombMR1()) {
+            return bitmap.getByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
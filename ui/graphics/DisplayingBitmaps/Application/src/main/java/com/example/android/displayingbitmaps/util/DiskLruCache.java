@@ -17,6 +17,7 @@
 package com.example.android.displayingbitmaps.util;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
@@ -34,7 +35,10 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -42,10 +46,13 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  ******************************************************************************
@@ -108,6 +115,28 @@ public final class DiskLruCache implements Closeable {
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    /** Journal formats for {@link #open(File, int, int, long, int)}. */
+    public static final int JOURNAL_FORMAT_TEXT = 0;
+    public static final int JOURNAL_FORMAT_BINARY = 1;
+
+    static final String BINARY_JOURNAL_PREFIX = "journal.";
+    static final String INDEX_PREFIX = "index.";
+    static final String BINARY_SUFFIX = ".bin";
+    static final String TMP_SUFFIX = ".tmp";
+    static final int BINARY_MAGIC = 0x444c5243; // "DLRC"
+    static final int BINARY_VERSION = 1;
+    static final int BINARY_HEADER_SIZE = 16;
+    static final int MAX_BINARY_KEY_LENGTH = 64;
+    private static final byte OP_CLEAN = 1;
+    private static final byte OP_DIRTY = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_READ = 4;
+
+    /** Reads recorded without the lock before they are written to the journal. */
+    private static final int READ_BATCH_SIZE = 128;
+    /** Entries evicted each time the background thread takes the lock. */
+    private static final int TRIM_BATCH_SIZE = 16;
+
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
@@ -149,6 +178,20 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * With JOURNAL_FORMAT_BINARY the same records are written in binary instead.
+     * Each file starts with a 16 byte header: a magic number, the format
+     * version, the application's version and the value count. Every record
+     * then has the same size: an op byte, the key length, the UTF-8 key padded
+     * to 64 bytes and one length per value, so records are read without any
+     * parsing or splitting.
+     *
+     * The binary journal is split into generations. "index.N.bin" is a
+     * snapshot of every entry in LRU order when generation N was started, and
+     * "journal.N.bin" has the operations since then. Opening the cache loads
+     * the newest index and replays the journals from its generation onward.
+     * Compaction starts a new journal generation while holding the lock, then
+     * writes the new index in the background and deletes the old generation.
      */
 
     private final File directory;
@@ -157,12 +200,28 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final int journalFormat;
+    private final int recordSize;
     private long size = 0;
-    private Writer journalWriter;
+    private volatile Writer journalWriter;
+    private volatile OutputStream binaryJournal;
+    private long journalGeneration;
+    private final byte[] recordBuffer;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
 
+    /*
+     * With concurrent reads, get() finds readable entries in this map without
+     * taking the lock. The reads are queued and applied to the LRU order and
+     * the journal in batches, so the LRU order is approximate.
+     */
+    private volatile boolean concurrentReads;
+    private final ConcurrentHashMap<String, Entry> readableEntries
+            = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentLinkedQueue<Entry> pendingReads = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -271,27 +330,53 @@ public final class DiskLruCache implements Closeable {
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            if (concurrentReads) {
+                // Evict a few entries at a time so edits are not held up by a long trim
+                boolean trimmed = false;
+                while (!trimmed) {
+                    synchronized (DiskLruCache.this) {
+                        if (isClosed()) {
+                            return null; // closed
+                        }
+                        trimmed = trimToSize(TRIM_BATCH_SIZE);
+                    }
+                }
+            }
+
+            IndexSnapshot snapshot = null;
             synchronized (DiskLruCache.this) {
-                if (journalWriter == null) {
+                if (isClosed()) {
                     return null; // closed
                 }
                 trimToSize();
                 if (journalRebuildRequired()) {
-                    rebuildJournal();
+                    if (binaryJournal != null) {
+                        snapshot = startJournalGeneration();
+                    } else {
+                        rebuildJournal();
+                    }
                     redundantOpCount = 0;
                 }
             }
+            if (snapshot != null) {
+                // Written without holding the lock so the cache stays usable
+                writeIndex(snapshot);
+            }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            int journalFormat) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.journalFormat = journalFormat;
+        this.recordSize = 2 + MAX_BINARY_KEY_LENGTH + 8 * valueCount;
+        this.recordBuffer = new byte[recordSize];
     }
 
     /**
@@ -306,21 +391,64 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, JOURNAL_FORMAT_TEXT);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. A cache written with the other journal format is converted.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param journalFormat {@link #JOURNAL_FORMAT_TEXT} or {@link #JOURNAL_FORMAT_BINARY}
+     * @throws java.io.IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            int journalFormat) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         if (valueCount <= 0) {
             throw new IllegalArgumentException("valueCount <= 0");
         }
+        if (journalFormat != JOURNAL_FORMAT_TEXT && journalFormat != JOURNAL_FORMAT_BINARY) {
+            throw new IllegalArgumentException("unknown journal format " + journalFormat);
+        }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                journalFormat);
+        boolean hasText = cache.journalFile.exists();
+        boolean hasBinary = cache.listGenerations(BINARY_JOURNAL_PREFIX).length > 0;
+        if (hasText || hasBinary) {
             try {
-                cache.readJournal();
+                // If both exist a conversion was interrupted, so use the requested format
+                boolean readBinary = hasBinary
+                        && (journalFormat == JOURNAL_FORMAT_BINARY || !hasText);
+                if (readBinary) {
+                    cache.readBinaryJournal();
+                } else {
+                    cache.readJournal();
+                }
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (journalFormat == JOURNAL_FORMAT_BINARY) {
+                    if (readBinary) {
+                        cache.openBinaryJournal();
+                    } else {
+                        cache.writeIndex(cache.startJournalGeneration());
+                    }
+                    deleteIfExists(cache.journalFile);
+                } else {
+                    if (readBinary) {
+                        cache.rebuildJournal();
+                    } else {
+                        cache.journalWriter = new BufferedWriter(
+                                new FileWriter(cache.journalFile, true), IO_BUFFER_SIZE);
+                    }
+                    cache.deleteGenerationsBefore(Long.MAX_VALUE);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -331,8 +459,12 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        cache.rebuildJournal();
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, journalFormat);
+        if (journalFormat == JOURNAL_FORMAT_BINARY) {
+            cache.writeIndex(cache.startJournalGeneration());
+        } else {
+            cache.rebuildJournal();
+        }
         return cache;
     }
 
@@ -396,6 +528,279 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Loads the newest binary index and replays the binary journals written
+     * since it was taken.
+     */
+    private void readBinaryJournal() throws IOException {
+        long[] indexes = listGenerations(INDEX_PREFIX);
+        long indexGeneration = indexes.length > 0 ? indexes[indexes.length - 1] : -1;
+        if (indexGeneration >= 0) {
+            readBinaryFile(getIndexFile(indexGeneration));
+        }
+        journalGeneration = Math.max(indexGeneration, 0);
+        for (long generation : listGenerations(BINARY_JOURNAL_PREFIX)) {
+            if (generation >= indexGeneration) {
+                readBinaryFile(getBinaryJournalFile(generation));
+                journalGeneration = generation;
+            }
+        }
+    }
+
+    private void readBinaryFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < BINARY_HEADER_SIZE
+                    || buffer.getInt() != BINARY_MAGIC
+                    || buffer.getInt() != BINARY_VERSION
+                    || buffer.getInt() != appVersion
+                    || buffer.getInt() != valueCount) {
+                throw new IOException("unexpected journal header in " + file);
+            }
+
+            byte[] keyBytes = new byte[MAX_BINARY_KEY_LENGTH];
+            // A partial record at the end was being written when the process died
+            while (buffer.remaining() >= recordSize) {
+                byte op = buffer.get();
+                int keyLength = buffer.get() & 0xFF;
+                if (keyLength == 0 || keyLength > MAX_BINARY_KEY_LENGTH) {
+                    throw new IOException("unexpected key length in " + file);
+                }
+                buffer.get(keyBytes);
+                String key = new String(keyBytes, 0, keyLength, UTF_8);
+                readBinaryRecord(op, key, buffer);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void readBinaryRecord(byte op, String key, ByteBuffer buffer) throws IOException {
+        if (op == OP_REMOVE) {
+            lruEntries.remove(key);
+            buffer.position(buffer.position() + 8 * valueCount);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op == OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            for (int i = 0; i < valueCount; i++) {
+                entry.lengths[i] = buffer.getLong();
+            }
+            return;
+        }
+        buffer.position(buffer.position() + 8 * valueCount);
+        if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        } else if (op != OP_READ) {
+            // READ was already done by calling lruEntries.get()
+            throw new IOException("unexpected journal op " + op + " for " + key);
+        }
+    }
+
+    /**
+     * Appends to the current binary journal after dropping any partial record
+     * at its end.
+     */
+    private void openBinaryJournal() throws IOException {
+        File file = getBinaryJournalFile(journalGeneration);
+        if (!file.exists()) {
+            binaryJournal = createBinaryJournal(journalGeneration);
+            deleteGenerationsBefore(journalGeneration);
+            return;
+        }
+        RandomAccessFile journal = new RandomAccessFile(file, "rw");
+        try {
+            long records = (journal.length() - BINARY_HEADER_SIZE) / recordSize;
+            journal.setLength(BINARY_HEADER_SIZE + records * recordSize);
+        } finally {
+            closeQuietly(journal);
+        }
+        binaryJournal = new BufferedOutputStream(new FileOutputStream(file, true),
+                IO_BUFFER_SIZE);
+        deleteIfExists(new File(directory, getIndexFile(journalGeneration).getName()
+                + TMP_SUFFIX));
+    }
+
+    private OutputStream createBinaryJournal(long generation) throws IOException {
+        OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(getBinaryJournalFile(generation)), IO_BUFFER_SIZE);
+        writeBinaryHeader(out);
+        // make sure the header is complete before any record is appended
+        out.flush();
+        return out;
+    }
+
+    private void writeBinaryHeader(OutputStream out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_SIZE);
+        header.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(appVersion).putInt(valueCount);
+        out.write(header.array());
+    }
+
+    /**
+     * Writes one fixed size record into {@code record}.
+     *
+     * @param lengths the value lengths, or null to write zeros
+     */
+    private static void encodeRecord(byte[] record, byte op, String key, long[] lengths) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.put(op).put((byte) keyBytes.length).put(keyBytes);
+        Arrays.fill(record, buffer.position(), 2 + MAX_BINARY_KEY_LENGTH, (byte) 0);
+        buffer.position(2 + MAX_BINARY_KEY_LENGTH);
+        while (buffer.hasRemaining()) {
+            buffer.putLong(0);
+        }
+        if (lengths != null) {
+            buffer.position(2 + MAX_BINARY_KEY_LENGTH);
+            for (long length : lengths) {
+                buffer.putLong(length);
+            }
+        }
+    }
+
+    /** The entries of the cache at the start of a journal generation. */
+    private static final class IndexSnapshot {
+        private final long generation;
+        private final byte[] records;
+
+        private IndexSnapshot(long generation, byte[] records) {
+            this.generation = generation;
+            this.records = records;
+        }
+    }
+
+    /**
+     * Starts a new binary journal and copies the entries for its index. The
+     * index itself is written later by {@link #writeIndex}.
+     */
+    private synchronized IndexSnapshot startJournalGeneration() throws IOException {
+        long generation = journalGeneration + 1;
+        OutputStream journal = createBinaryJournal(generation);
+        if (binaryJournal != null) {
+            binaryJournal.close();
+        }
+        binaryJournal = journal;
+        journalGeneration = generation;
+
+        byte[] records = new byte[lruEntries.size() * recordSize];
+        int offset = 0;
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor != null) {
+                encodeRecord(recordBuffer, OP_DIRTY, entry.key, null);
+            } else {
+                encodeRecord(recordBuffer, OP_CLEAN, entry.key, entry.lengths);
+            }
+            System.arraycopy(recordBuffer, 0, records, offset, recordSize);
+            offset += recordSize;
+        }
+        return new IndexSnapshot(generation, records);
+    }
+
+    /**
+     * Writes the index for a journal generation, then deletes the journals
+     * and indexes of earlier generations which it replaces.
+     */
+    private void writeIndex(IndexSnapshot snapshot) throws IOException {
+        File index = getIndexFile(snapshot.generation);
+        File indexTmp = new File(directory, index.getName() + TMP_SUFFIX);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(indexTmp),
+                IO_BUFFER_SIZE);
+        try {
+            writeBinaryHeader(out);
+            out.write(snapshot.records);
+        } finally {
+            out.close();
+        }
+        if (!indexTmp.renameTo(index)) {
+            throw new IOException("failed to rename " + indexTmp);
+        }
+        deleteGenerationsBefore(snapshot.generation);
+    }
+
+    private void deleteGenerationsBefore(long generation) throws IOException {
+        for (long old : listGenerations(BINARY_JOURNAL_PREFIX)) {
+            if (old < generation) {
+                deleteIfExists(getBinaryJournalFile(old));
+            }
+        }
+        for (long old : listGenerations(INDEX_PREFIX)) {
+            if (old < generation) {
+                deleteIfExists(getIndexFile(old));
+            }
+        }
+    }
+
+    /**
+     * Returns the generations of the binary files with {@code prefix} in
+     * ascending order.
+     */
+    private long[] listGenerations(String prefix) {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] generations = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(BINARY_SUFFIX)) {
+                try {
+                    generations[count] = Long.parseLong(name.substring(prefix.length(),
+                            name.length() - BINARY_SUFFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        generations = Arrays.copyOf(generations, count);
+        Arrays.sort(generations);
+        return generations;
+    }
+
+    private File getBinaryJournalFile(long generation) {
+        return new File(directory, BINARY_JOURNAL_PREFIX + generation + BINARY_SUFFIX);
+    }
+
+    private File getIndexFile(long generation) {
+        return new File(directory, INDEX_PREFIX + generation + BINARY_SUFFIX);
+    }
+
+    /**
+     * Appends a record to the journal in the current format.
+     */
+    private void writeJournal(byte op, Entry entry) throws IOException {
+        if (binaryJournal != null) {
+            encodeRecord(recordBuffer, op, entry.key, op == OP_CLEAN ? entry.lengths : null);
+            binaryJournal.write(recordBuffer);
+        } else if (op == OP_CLEAN) {
+            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        } else if (op == OP_DIRTY) {
+            journalWriter.write(DIRTY + ' ' + entry.key + '\n');
+        } else if (op == OP_REMOVE) {
+            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        } else {
+            journalWriter.write(READ + ' ' + entry.key + '\n');
+        }
+    }
+
+    private void flushJournal() throws IOException {
+        if (binaryJournal != null) {
+            binaryJournal.flush();
+        } else {
+            journalWriter.flush();
+        }
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
@@ -470,7 +875,61 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
+        if (concurrentReads) {
+            return getConcurrent(key);
+        }
+        return getLocked(key);
+    }
+
+    /**
+     * Reads a committed entry without taking the lock. If the entry is being
+     * committed at the same time this falls back to {@link #getLocked}.
+     */
+    private Snapshot getConcurrent(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = readableEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        // An odd count means a commit is renaming the files right now
+        int publishCount = entry.publishCount;
+        if ((publishCount & 1) != 0) {
+            return getLocked(key);
+        }
+        long sequenceNumber = entry.sequenceNumber;
+        InputStream[] ins = new InputStream[valueCount];
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            }
+        } catch (FileNotFoundException e) {
+            // removed or evicted while we were opening it
+            closeAll(ins);
+            return null;
+        }
+        if (entry.publishCount != publishCount) {
+            // the streams may come from different edits
+            closeAll(ins);
+            return getLocked(key);
+        }
+
+        pendingReads.add(entry);
+        if (pendingReadCount.incrementAndGet() % READ_BATCH_SIZE == 0) {
+            executorService.submit(cleanupCallable);
+        }
+        return new Snapshot(key, sequenceNumber, ins);
+    }
+
+    private static void closeAll(InputStream[] ins) {
+        for (InputStream in : ins) {
+            closeQuietly(in);
+        }
+    }
+
+    private synchronized Snapshot getLocked(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -498,7 +957,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+        writeJournal(OP_READ, entry);
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
@@ -533,8 +992,8 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = editor;
 
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        writeJournal(OP_DIRTY, entry);
+        flushJournal();
         return editor;
     }
 
@@ -578,6 +1037,8 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        // Let concurrent readers know the files are changing
+        entry.publishCount++;
         for (int i = 0; i < valueCount; i++) {
             File dirty = entry.getDirtyFile(i);
             if (success) {
@@ -596,15 +1057,23 @@ public final class DiskLruCache implements Closeable {
 
         redundantOpCount++;
         entry.currentEditor = null;
-        if (entry.readable | success) {
+        final boolean readable = entry.readable | success;
+        if (readable) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
+        }
+        // Every field that concurrent readers see must be set before this
+        entry.publishCount++;
+        if (readable) {
+            writeJournal(OP_CLEAN, entry);
+            if (concurrentReads) {
+                readableEntries.put(entry.key, entry);
+            }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            writeJournal(OP_REMOVE, entry);
         }
 
         if (size > maxSize || journalRebuildRequired()) {
@@ -646,8 +1115,9 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        writeJournal(OP_REMOVE, entry);
         lruEntries.remove(key);
+        readableEntries.remove(key);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -660,11 +1130,11 @@ public final class DiskLruCache implements Closeable {
      * Returns true if this cache has been closed.
      */
     public boolean isClosed() {
-        return journalWriter == null;
+        return journalWriter == null && binaryJournal == null;
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (isClosed()) {
             throw new IllegalStateException("cache is closed");
         }
     }
@@ -675,14 +1145,14 @@ public final class DiskLruCache implements Closeable {
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        flushJournal();
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
     public synchronized void close() throws IOException {
-        if (journalWriter == null) {
+        if (isClosed()) {
             return; // already closed
         }
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
@@ -691,16 +1161,81 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        if (binaryJournal != null) {
+            binaryJournal.close();
+            binaryJournal = null;
+        } else {
+            journalWriter.close();
+            journalWriter = null;
+        }
     }
 
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
+        trimToSize(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Evicts up to {@code maxEvictions} entries.
+     *
+     * @return true if the cache is no longer over its maximum size
+     */
+    private boolean trimToSize(int maxEvictions) throws IOException {
+        // reads since the last trim affect which entries are the eldest
+        applyPendingReads();
+        while (size > maxSize && maxEvictions-- > 0) {
 //            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
             final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
             remove(toEvict.getKey());
         }
+        return size <= maxSize;
+    }
+
+    /**
+     * Moves the entries read without the lock to the head of the LRU queue
+     * and writes their READ records.
+     */
+    private void applyPendingReads() throws IOException {
+        Entry entry;
+        while ((entry = pendingReads.poll()) != null) {
+            pendingReadCount.decrementAndGet();
+            // get() moves the entry in the access ordered map
+            if (lruEntries.get(entry.key) == entry) {
+                redundantOpCount++;
+                writeJournal(OP_READ, entry);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables concurrent reads. When enabled, {@link #get} reads
+     * committed entries without waiting for edits, commits or journal writes
+     * on other threads. The LRU order is then updated in batches, so the
+     * entries evicted first may have been read slightly more recently than
+     * others. Evictions after a commit are also made in small batches on the
+     * background thread.
+     */
+    public synchronized void setConcurrentReads(boolean enabled) throws IOException {
+        if (enabled == concurrentReads) {
+            return;
+        }
+        if (enabled) {
+            for (Entry entry : lruEntries.values()) {
+                if (entry.readable) {
+                    readableEntries.put(entry.key, entry);
+                }
+            }
+        } else {
+            applyPendingReads();
+            readableEntries.clear();
+        }
+        concurrentReads = enabled;
+    }
+
+    /**
+     * Returns true if {@link #get} does not take the cache lock.
+     */
+    public boolean isConcurrentReads() {
+        return concurrentReads;
     }
 
     /**
@@ -718,6 +1253,13 @@ public final class DiskLruCache implements Closeable {
             throw new IllegalArgumentException(
                     "keys must not contain spaces or newlines: \"" + key + "\"");
         }
+        if (journalFormat == JOURNAL_FORMAT_BINARY) {
+            int length = key.getBytes(UTF_8).length;
+            if (length == 0 || length > MAX_BINARY_KEY_LENGTH) {
+                throw new IllegalArgumentException("keys must be 1 to "
+                        + MAX_BINARY_KEY_LENGTH + " bytes with a binary journal: \"" + key + "\"");
+            }
+        }
     }
 
     private static String inputStreamToString(InputStream in) throws IOException {
@@ -906,7 +1448,10 @@ public final class DiskLruCache implements Closeable {
         private Editor currentEditor;
 
         /** The sequence number of the most recently committed edit to this entry. */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
+
+        /** Incremented before and after a commit changes the files. */
+        private volatile int publishCount;
 
         private Entry(String key) {
             this.key = key;
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.displayingbitmaps.util;
+
+import android.annotation.TargetApi;
+import android.os.Build.VERSION_CODES;
+import android.view.Choreographer;
+
+/**
+ * Measures the time between frames while it is started, for example while a grid is scrolling.
+ * A frame that takes longer than two refreshes at 60fps is counted as janky. Must be used from
+ * the UI thread.
+ */
+@TargetApi(VERSION_CODES.JELLY_BEAN)
+public class FrameTimeTracker implements Choreographer.FrameCallback {
+    private static final long JANK_NANOS = 2 * 1000000000L / 60;
+
+    private boolean mRunning;
+    private long mLastFrameNanos;
+    private int mFrameCount;
+    private int mJankyFrameCount;
+    private long mTotalFrameNanos;
+    private long mMaxFrameNanos;
+
+    /**
+     * Start measuring frames. Does nothing before Jelly Bean or if already started.
+     */
+    public void start() {
+        if (mRunning || !Utils.hasJellyBean()) {
+            return;
+        }
+        mRunning = true;
+        mLastFrameNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stop measuring frames. The counts are kept until {@link #reset()} is called.
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    public void reset() {
+        mFrameCount = 0;
+        mJankyFrameCount = 0;
+        mTotalFrameNanos = 0;
+        mMaxFrameNanos = 0;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        if (mLastFrameNanos != 0) {
+            final long frameNanos = frameTimeNanos - mLastFrameNanos;
+            mFrameCount++;
+            mTotalFrameNanos += frameNanos;
+            mMaxFrameNanos = Math.max(mMaxFrameNanos, frameNanos);
+            if (frameNanos > JANK_NANOS) {
+                mJankyFrameCount++;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getJankyFrameCount() {
+        return mJankyFrameCount;
+    }
+
+    public float getAverageFrameMillis() {
+        return mFrameCount > 0 ? mTotalFrameNanos / 1000000f / mFrameCount : 0;
+    }
+
+    public float getMaxFrameMillis() {
+        return mMaxFrameNanos / 1000000f;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + mFrameCount + ",janky=" + mJankyFrameCount
+                + ",avgMs=" + getAverageFrameMillis() + ",maxMs=" + getMaxFrameMillis();
+    }
+}
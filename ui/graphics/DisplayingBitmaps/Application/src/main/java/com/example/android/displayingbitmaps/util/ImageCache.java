@@ -20,7 +20,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build.VERSION_CODES;
@@ -40,13 +39,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
@@ -64,6 +58,9 @@ public class ImageCache {
     // Default disk cache size in bytes
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
+    // Default reusable bitmap pool size in kilobytes
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 2; // 2MB
+
     // Compression settings when writing images to disk cache
     private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
@@ -80,7 +77,7 @@ public class ImageCache {
     private final Object mDiskCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private BitmapPool mReusableBitmaps;
 
     /**
      * Create a new ImageCache object using the specified parameters. This should not be
@@ -135,18 +132,15 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
+            // If we're running on Honeycomb or newer, create a pool of reusable bitmaps that can
+            // be populated into the inBitmap field of BitmapFactory.Options. The pool holds
+            // strong references so bitmaps are not lost whenever the garbage collector runs,
+            // and its size is limited separately from the bitmap LruCache. From Honeycomb to
+            // JellyBean the size must be precise, from KitKat onward the size just needs to be
+            // the upper bound (due to changes in how inBitmap can re-use bitmaps), so the pool
+            // groups bitmaps by exact dimensions or by size class accordingly.
             if (Utils.hasHoneycomb()) {
-                mReusableBitmaps =
-                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+                mReusableBitmaps = new BitmapPool(mCacheParams.bitmapPoolSize * 1024);
             }
 
             mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
@@ -164,10 +158,12 @@ public class ImageCache {
                     } else {
                         // The removed entry is a standard BitmapDrawable
 
-                        if (Utils.hasHoneycomb()) {
+                        // If the same bitmap was put again under this key it is still in use.
+                        if (Utils.hasHoneycomb() && (newValue == null
+                                || newValue.getBitmap() != oldValue.getBitmap())) {
                             // We're running on Honeycomb or later, so add the bitmap
-                            // to a SoftReference set for possible use with inBitmap later
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+                            // to the pool for possible use with inBitmap later
+                            mReusableBitmaps.put(oldValue.getBitmap());
                         }
                     }
                 }
@@ -211,7 +207,10 @@ public class ImageCache {
                     if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
                         try {
                             mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize,
+                                    mCacheParams.diskCacheJournalFormat);
+                            // Image workers read from the disk cache in parallel
+                            mDiskLruCache.setConcurrentReads(true);
                             if (BuildConfig.DEBUG) {
                                 Log.d(TAG, "Disk cache initialized");
                             }
@@ -316,42 +315,50 @@ public class ImageCache {
         final String key = hashKeyForDisk(data);
         Bitmap bitmap = null;
 
+        DiskLruCache diskLruCache;
         synchronized (mDiskCacheLock) {
             while (mDiskCacheStarting) {
                 try {
                     mDiskCacheLock.wait();
                 } catch (InterruptedException e) {}
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "Disk cache hit");
-                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
-                        }
+            diskLruCache = mDiskLruCache;
+        }
+
+        // The disk cache is read and decoded without holding the lock so that several
+        // workers can read from it at the same time.
+        if (diskLruCache != null) {
+            InputStream inputStream = null;
+            try {
+                final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    if (inputStream != null) {
+                        FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+
+                        // Decode bitmap, but we don't want to sample so give
+                        // MAX_VALUE as the target dimensions
+                        bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
+                                fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
                     }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {}
                 }
+            } catch (final IOException e) {
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } catch (IllegalStateException e) {
+                // The cache was closed or cleared while we were reading it
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
+                try {
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                } catch (IOException e) {}
             }
-            return bitmap;
         }
+        return bitmap;
         //END_INCLUDE(get_bitmap_from_disk_cache)
     }
 
@@ -363,35 +370,25 @@ public class ImageCache {
         //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
         Bitmap bitmap = null;
 
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
-
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
-
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
-            }
+        if (mReusableBitmaps != null) {
+            // The pool removes the bitmap so it can't be used again
+            bitmap = mReusableBitmaps.get(options);
         }
 
         return bitmap;
         //END_INCLUDE(get_bitmap_from_reusable_set)
     }
 
+    /**
+     * Get the pool of bitmaps that can be re-used for inBitmap, for example to read its
+     * hit and miss counts.
+     *
+     * @return The pool, or null if the memory cache is disabled or inBitmap is not supported
+     */
+    public BitmapPool getReusableBitmapPool() {
+        return mReusableBitmaps;
+    }
+
     /**
      * Clears both the memory and disk cache associated with this ImageCache object. Note that
      * this includes disk access so this should not be executed on the main/UI thread.
@@ -467,6 +464,7 @@ public class ImageCache {
      */
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
         public File diskCacheDir;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
@@ -474,6 +472,7 @@ public class ImageCache {
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        public int diskCacheJournalFormat = DiskLruCache.JOURNAL_FORMAT_TEXT;
 
         /**
          * Create a set of image cache parameters that can be provided to
@@ -510,50 +509,6 @@ public class ImageCache {
         }
     }
 
-    /**
-     * @param candidate - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     *      <code>targetOptions</code>
-     */
-    @TargetApi(VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        //BEGIN_INCLUDE(can_use_for_inbitmap)
-        if (!Utils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-        //END_INCLUDE(can_use_for_inbitmap)
-    }
-
-    /**
-     * Return the byte usage per pixel of a bitmap based on its configuration.
-     * @param config The bitmap configuration.
-     * @return The byte usage per pixel.
-     */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565) {
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
-    }
-
     /**
      * Get a usable cache directory (external if available, internal otherwise).
      *
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.displayingbitmaps.util;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The executors that run image work, one for each kind of work so that slow work of one kind
+ * does not hold up the others:
+ * <ul>
+ *     <li>disk: opening, flushing, clearing and closing the disk caches. This must run work one
+ *     at a time in order, so that a cache is never flushed or closed before it is opened.
+ *     <li>network: downloading images.
+ *     <li>decode: reading images from the disk cache, decoding and resizing them.
+ * </ul>
+ * The default executors are shared by the whole process and sized to the number of cores. Other
+ * executors can be plugged in with {@link ImageWorker#setExecutors(ImageExecutors)}.
+ */
+public class ImageExecutors {
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int NETWORK_THREAD_COUNT = Math.max(2, Math.min(CPU_COUNT, 4));
+    private static final int DECODE_THREAD_COUNT = Math.max(1, Math.min(CPU_COUNT - 1, 4));
+
+    private static ImageExecutors sDefault;
+
+    private final Executor mDiskExecutor;
+    private final Executor mNetworkExecutor;
+    private final Executor mDecodeExecutor;
+
+    /**
+     * @param diskExecutor Runs disk cache maintenance, must run work one at a time in order
+     * @param networkExecutor Runs downloads
+     * @param decodeExecutor Runs decodes
+     */
+    public ImageExecutors(Executor diskExecutor, Executor networkExecutor,
+            Executor decodeExecutor) {
+        mDiskExecutor = diskExecutor;
+        mNetworkExecutor = networkExecutor;
+        mDecodeExecutor = decodeExecutor;
+    }
+
+    /**
+     * @return The executors shared by every ImageWorker that has not been given others.
+     */
+    public static synchronized ImageExecutors getDefault() {
+        if (sDefault == null) {
+            sDefault = new ImageExecutors(
+                    new ImageThreadPool("ImageDisk", 1),
+                    new ImageThreadPool("ImageNetwork", NETWORK_THREAD_COUNT),
+                    new ImageThreadPool("ImageDecode", DECODE_THREAD_COUNT));
+        }
+        return sDefault;
+    }
+
+    public Executor getDiskExecutor() {
+        return mDiskExecutor;
+    }
+
+    public Executor getNetworkExecutor() {
+        return mNetworkExecutor;
+    }
+
+    public Executor getDecodeExecutor() {
+        return mDecodeExecutor;
+    }
+
+    /**
+     * @return The statistics of the executors that are {@link ImageThreadPool}s.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (Executor executor : new Executor[] {
+                mDiskExecutor, mNetworkExecutor, mDecodeExecutor }) {
+            if (executor instanceof ImageThreadPool) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(executor);
+            }
+        }
+        return builder.toString();
+    }
+}
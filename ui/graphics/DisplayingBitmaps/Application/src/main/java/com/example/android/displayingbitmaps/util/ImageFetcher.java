@@ -36,6 +36,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * A simple subclass of {@link ImageResizer} that fetches and resizes images fetched from a URL.
@@ -45,6 +47,7 @@ public class ImageFetcher extends ImageResizer {
     private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
     private static final String HTTP_CACHE_DIR = "http";
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_MAX_DOWNLOADS = 4;
 
     private DiskLruCache mHttpDiskCache;
     private File mHttpCacheDir;
@@ -52,6 +55,46 @@ public class ImageFetcher extends ImageResizer {
     private final Object mHttpDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
 
+    // Downloads in progress by disk cache key, guarded by itself. Requests for a URL that is
+    // already being downloaded join that download instead of starting another one.
+    private final HashMap<String, Download> mDownloads = new HashMap<String, Download>();
+    private int mMaxDownloads = DEFAULT_MAX_DOWNLOADS;
+    private int mActiveDownloads;
+    private int mDownloadCount;
+    private int mSharedDownloadCount;
+
+    /**
+     * A download that other requests for the same URL can join.
+     */
+    private static class Download {
+        private boolean mFinished;
+        private final ArrayList<Runnable> mListeners = new ArrayList<Runnable>();
+
+        /**
+         * @return false if the download has already finished, in which case the listener is
+         *         not run
+         */
+        synchronized boolean addListener(Runnable listener) {
+            if (mFinished) {
+                return false;
+            }
+            mListeners.add(listener);
+            return true;
+        }
+
+        void finish() {
+            final ArrayList<Runnable> listeners;
+            synchronized (this) {
+                mFinished = true;
+                listeners = new ArrayList<Runnable>(mListeners);
+                mListeners.clear();
+            }
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+
     /**
      * Initialize providing a target image width and height for the processing images.
      *
@@ -178,9 +221,56 @@ public class ImageFetcher extends ImageResizer {
         }
     }
 
+    /**
+     * @return The HTTP disk cache once it has been initialized, or null if there is none
+     */
+    private DiskLruCache getHttpDiskCache() {
+        synchronized (mHttpDiskCacheLock) {
+            // Wait for disk cache to initialize
+            while (mHttpDiskCacheStarting) {
+                try {
+                    mHttpDiskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+            return mHttpDiskCache;
+        }
+    }
+
+    /**
+     * Start downloading the URL into the HTTP disk cache on the network executor if it is not
+     * there yet, so that the decode thread does not wait for the network.
+     */
+    @Override
+    protected boolean startFetch(Object data, Runnable onFetched) {
+        final String urlString = String.valueOf(data);
+        final String key = ImageCache.hashKeyForDisk(urlString);
+        final DiskLruCache httpDiskCache = getHttpDiskCache();
+        if (httpDiskCache == null) {
+            return false;
+        }
+        try {
+            final DiskLruCache.Snapshot snapshot = httpDiskCache.get(key);
+            if (snapshot != null) {
+                snapshot.close();
+                return false;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "startFetch - " + e);
+            return false;
+        } catch (IllegalStateException e) {
+            // The cache was closed or cleared while we were using it
+            Log.e(TAG, "startFetch - " + e);
+            return false;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "startFetch, not found in http cache, downloading...");
+        }
+        return downloadUrlToCache(urlString, key, httpDiskCache, onFetched);
+    }
+
     /**
      * The main process method, which will be called by the ImageWorker in the AsyncTask background
-     * thread.
+     * thread once {@link #startFetch(Object, Runnable)} has downloaded the URL.
      *
      * @param data The data to load the bitmap, in this case, a regular http URL
      * @return The downloaded and resized bitmap
@@ -194,47 +284,29 @@ public class ImageFetcher extends ImageResizer {
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
         DiskLruCache.Snapshot snapshot;
-        synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
-                try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
-            }
+        final DiskLruCache httpDiskCache = getHttpDiskCache();
 
-            if (mHttpDiskCache != null) {
-                try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            if (downloadUrlToStream(data,
-                                    editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
-                        }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
-                    if (snapshot != null) {
-                        fileInputStream =
-                                (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {}
-                    }
+        if (httpDiskCache != null) {
+            try {
+                snapshot = httpDiskCache.get(key);
+                if (snapshot == null && BuildConfig.DEBUG) {
+                    Log.d(TAG, "processBitmap, not found in http cache, the download failed");
+                }
+                if (snapshot != null) {
+                    fileInputStream =
+                            (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                    fileDescriptor = fileInputStream.getFD();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "processBitmap - " + e);
+            } catch (IllegalStateException e) {
+                // The cache was closed or cleared while we were using it
+                Log.e(TAG, "processBitmap - " + e);
+            } finally {
+                if (fileDescriptor == null && fileInputStream != null) {
+                    try {
+                        fileInputStream.close();
+                    } catch (IOException e) {}
                 }
             }
         }
@@ -257,6 +329,127 @@ public class ImageFetcher extends ImageResizer {
         return processBitmap(String.valueOf(data));
     }
 
+    /**
+     * Download a URL into the HTTP disk cache on the network executor without waiting for it.
+     * If the URL is already being downloaded then join that download instead.
+     * No more than {@link #setMaxDownloads(int)} different URLs are downloaded at the same time.
+     *
+     * @param urlString The URL to fetch
+     * @param key The disk cache key for the URL
+     * @param httpDiskCache The cache to download into
+     * @param onFinished Run on the network executor when the download has finished
+     * @return false if the download finished before onFinished could be added, in which case
+     *         it is not run
+     */
+    private boolean downloadUrlToCache(final String urlString, final String key,
+            final DiskLruCache httpDiskCache, Runnable onFinished) {
+        final Download download;
+        boolean start = false;
+        synchronized (mDownloads) {
+            Download existing = mDownloads.get(key);
+            if (existing == null) {
+                existing = new Download();
+                mDownloads.put(key, existing);
+                start = true;
+            } else {
+                mSharedDownloadCount++;
+            }
+            download = existing;
+        }
+
+        final boolean added = download.addListener(onFinished);
+        if (start) {
+            // The download finishes even if the task that started it is cancelled, as other
+            // tasks may be waiting for it
+            getExecutors().getNetworkExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        downloadUrlToCacheInternal(urlString, key, httpDiskCache);
+                    } finally {
+                        synchronized (mDownloads) {
+                            mDownloads.remove(key);
+                        }
+                        download.finish();
+                    }
+                }
+            });
+        }
+        return added;
+    }
+
+    private void downloadUrlToCacheInternal(String urlString, String key,
+            DiskLruCache httpDiskCache) {
+        try {
+            // Wait for a free download slot
+            synchronized (mDownloads) {
+                while (mActiveDownloads >= mMaxDownloads) {
+                    mDownloads.wait();
+                }
+                mActiveDownloads++;
+                mDownloadCount++;
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            DiskLruCache.Editor editor = httpDiskCache.edit(key);
+            if (editor != null) {
+                if (downloadUrlToStream(urlString,
+                        editor.newOutputStream(DISK_CACHE_INDEX))) {
+                    editor.commit();
+                } else {
+                    editor.abort();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "downloadUrlToCache - " + e);
+        } catch (IllegalStateException e) {
+            // The cache was closed or cleared while downloading
+            Log.e(TAG, "downloadUrlToCache - " + e);
+        } finally {
+            synchronized (mDownloads) {
+                mActiveDownloads--;
+                mDownloads.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Set how many different URLs may be downloaded at the same time. Requests for a URL
+     * that is already being downloaded share that download and do not count.
+     *
+     * @param maxDownloads
+     */
+    public void setMaxDownloads(int maxDownloads) {
+        if (maxDownloads < 1) {
+            throw new IllegalArgumentException("maxDownloads must be at least 1");
+        }
+        synchronized (mDownloads) {
+            mMaxDownloads = maxDownloads;
+            mDownloads.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of downloads that have been started.
+     */
+    public int getDownloadCount() {
+        synchronized (mDownloads) {
+            return mDownloadCount;
+        }
+    }
+
+    /**
+     * @return The number of requests that joined another request's download of the
+     *         same URL instead of downloading it again.
+     */
+    public int getSharedDownloadCount() {
+        synchronized (mDownloads) {
+            return mSharedDownloadCount;
+        }
+    }
+
     /**
      * Download a bitmap from a URL and write the content to an output stream.
      *
@@ -275,9 +468,10 @@ public class ImageFetcher extends ImageResizer {
             in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
             out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
             }
             return true;
         } catch (final IOException e) {
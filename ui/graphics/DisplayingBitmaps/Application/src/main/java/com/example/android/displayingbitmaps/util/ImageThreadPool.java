@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.displayingbitmaps.util;
+
+import android.annotation.TargetApi;
+import android.os.Build.VERSION_CODES;
+import android.os.SystemClock;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of named threads that run one kind of image work, with statistics about how
+ * long work waits in the queue and how long it runs. Idle threads finish after a while and are
+ * started again when needed. Work is never discarded, because an AsyncTask that never runs
+ * never finishes.
+ */
+public class ImageThreadPool extends ThreadPoolExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    private final String mName;
+    private final Object mStatsLock = new Object();
+    private int mExecutedCount;
+    private int mMaxQueueDepth;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+    private long mTotalRunMillis;
+    private long mMaxRunMillis;
+
+    /**
+     * @param name The name of the pool, used for thread names and statistics
+     * @param threadCount The number of threads that run work at the same time
+     */
+    @TargetApi(VERSION_CODES.GINGERBREAD)
+    public ImageThreadPool(final String name, int threadCount) {
+        super(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name + " #" + mCount.getAndIncrement());
+                    }
+                });
+        mName = name;
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new TimedRunnable(command));
+        final int depth = getQueue().size();
+        synchronized (mStatsLock) {
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, depth);
+        }
+    }
+
+    /**
+     * Records when work was queued and how long it ran.
+     */
+    private class TimedRunnable implements Runnable {
+        private final Runnable mRunnable;
+        private final long mQueueTime = SystemClock.uptimeMillis();
+
+        TimedRunnable(Runnable runnable) {
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            final long startTime = SystemClock.uptimeMillis();
+            try {
+                mRunnable.run();
+            } finally {
+                final long waitMillis = startTime - mQueueTime;
+                final long runMillis = SystemClock.uptimeMillis() - startTime;
+                synchronized (mStatsLock) {
+                    mExecutedCount++;
+                    mTotalWaitMillis += waitMillis;
+                    mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+                    mTotalRunMillis += runMillis;
+                    mMaxRunMillis = Math.max(mMaxRunMillis, runMillis);
+                }
+            }
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return The number of pieces of work waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public int getMaxQueueDepth() {
+        synchronized (mStatsLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    public int getExecutedCount() {
+        synchronized (mStatsLock) {
+            return mExecutedCount;
+        }
+    }
+
+    public long getAverageWaitMillis() {
+        synchronized (mStatsLock) {
+            return mExecutedCount > 0 ? mTotalWaitMillis / mExecutedCount : 0;
+        }
+    }
+
+    public long getMaxWaitMillis() {
+        synchronized (mStatsLock) {
+            return mMaxWaitMillis;
+        }
+    }
+
+    public long getAverageRunMillis() {
+        synchronized (mStatsLock) {
+            return mExecutedCount > 0 ? mTotalRunMillis / mExecutedCount : 0;
+        }
+    }
+
+    public long getMaxRunMillis() {
+        synchronized (mStatsLock) {
+            return mMaxRunMillis;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mStatsLock) {
+            return mName + "[threads=" + getMaximumPoolSize() + ",queued=" + getQueue().size()
+                    + ",maxQueued=" + mMaxQueueDepth + ",executed=" + mExecutedCount
+                    + ",avgWaitMs=" + (mExecutedCount > 0 ? mTotalWaitMillis / mExecutedCount : 0)
+                    + ",maxWaitMs=" + mMaxWaitMillis
+                    + ",avgRunMs=" + (mExecutedCount > 0 ? mTotalRunMillis / mExecutedCount : 0)
+                    + ",maxRunMs=" + mMaxRunMillis + "]";
+        }
+    }
+}
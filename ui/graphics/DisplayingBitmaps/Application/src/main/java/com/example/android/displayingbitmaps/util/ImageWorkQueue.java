@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.displayingbitmaps.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs image work on an {@link Executor}, most important work first. Each piece of work has
+ * the adapter position of the image it loads. Work for visible positions runs first, then work for
+ * the positions that the list is scrolling towards, then everything else. The order is worked out
+ * each time a thread takes new work, so queued work is re-prioritized as soon as
+ * {@link #setViewport(int, int, float)} is called. Prefetch work that falls too far outside the
+ * viewport is cancelled, even if it is already running.
+ */
+public class ImageWorkQueue {
+    public static final int NO_POSITION = -1;
+
+    private static final int DEFAULT_PREFETCH_DISTANCE = 30;
+
+    // Work behind the direction of scrolling comes after all the work ahead of it
+    private static final long BEHIND_PENALTY = 1L << 32;
+
+    private final Object mLock = new Object();
+    private final ArrayList<Work> mPending = new ArrayList<Work>();
+    private final ArrayList<Work> mRunning = new ArrayList<Work>();
+    private final Executor mExecutor;
+    private long mNextSequence;
+
+    private int mFirstVisible = 0;
+    private int mLastVisible = Integer.MAX_VALUE;
+    private float mVelocity;
+    private int mPrefetchDistance = DEFAULT_PREFETCH_DISTANCE;
+    private int mCancelledCount;
+
+    private static class Work {
+        final Runnable runnable;
+        final AsyncTask<?, ?, ?> task;
+        final int position;
+        final boolean prefetch;
+        final long sequence;
+        boolean cancelled;
+
+        Work(Runnable runnable, AsyncTask<?, ?, ?> task, int position, boolean prefetch,
+                long sequence) {
+            this.runnable = runnable;
+            this.task = task;
+            this.position = position;
+            this.prefetch = prefetch;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * @param executor The executor that runs the work
+     */
+    public ImageWorkQueue(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Get an Executor that queues the work of a task, to pass to its
+     * {@link AsyncTask#executeOnExecutor(Executor, Object[])}.
+     *
+     * @param task The task that is cancelled if its prefetch is no longer needed
+     * @param position The adapter position of the image, or {@link #NO_POSITION} if it is not
+     *                 part of a list. Work without a position is treated as visible.
+     * @param prefetch True if the image is not displayed yet and the work may be cancelled when
+     *                 the viewport moves away from it
+     */
+    public Executor getExecutor(final AsyncTask<?, ?, ?> task, final int position,
+            final boolean prefetch) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                enqueue(runnable, task, position, prefetch);
+            }
+        };
+    }
+
+    private void enqueue(Runnable runnable, AsyncTask<?, ?, ?> task, int position,
+            boolean prefetch) {
+        synchronized (mLock) {
+            mPending.add(new Work(runnable, task, position, prefetch, mNextSequence++));
+        }
+        // The executor is only told that there is work. Which work runs is decided when it
+        // gets a thread, so the order is decided as late as possible.
+        mExecutor.execute(mRunNext);
+    }
+
+    /**
+     * Tell the queue which positions are visible and how fast the list is scrolling.
+     *
+     * @param firstVisible The first visible adapter position
+     * @param lastVisible The last visible adapter position
+     * @param velocity Scroll velocity in positions per second, positive when moving towards
+     *                 higher positions
+     */
+    public void setViewport(int firstVisible, int lastVisible, float velocity) {
+        synchronized (mLock) {
+            mFirstVisible = firstVisible;
+            mLastVisible = lastVisible;
+            mVelocity = velocity;
+
+            // Cancel prefetches that are no longer near the viewport
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                final Work work = mPending.get(i);
+                if (work.prefetch && !isNearViewport(work.position)) {
+                    mPending.remove(i);
+                    cancel(work);
+                }
+            }
+            // Running work stays in the list until it returns, so only cancel it once
+            for (Work work : mRunning) {
+                if (work.prefetch && !work.cancelled && !isNearViewport(work.position)) {
+                    cancel(work);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set how many positions outside the viewport prefetch work is kept for.
+     */
+    public void setPrefetchDistance(int distance) {
+        synchronized (mLock) {
+            mPrefetchDistance = distance;
+        }
+    }
+
+    /**
+     * @return The number of pieces of work waiting to run.
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * @return The number of prefetches cancelled because the viewport moved away from them.
+     */
+    public int getCancelledCount() {
+        synchronized (mLock) {
+            return mCancelledCount;
+        }
+    }
+
+    private void cancel(Work work) {
+        // Cancel the task rather than its future, so that isCancelled() is true in the worker
+        work.cancelled = true;
+        work.task.cancel(true);
+        mCancelledCount++;
+    }
+
+    private boolean isNearViewport(int position) {
+        return position == NO_POSITION || (position >= mFirstVisible - mPrefetchDistance
+                && position <= mLastVisible + mPrefetchDistance);
+    }
+
+    /**
+     * Lower is more important.
+     */
+    private long getPriority(Work work) {
+        final int position = work.position;
+        if (position == NO_POSITION || (position >= mFirstVisible && position <= mLastVisible)) {
+            return 0;
+        }
+        final boolean after = position > mLastVisible;
+        final long distance = after ? position - mLastVisible : mFirstVisible - position;
+        final boolean ahead = (after && mVelocity >= 0) || (!after && mVelocity <= 0);
+        return ahead ? distance : BEHIND_PENALTY + distance;
+    }
+
+    /**
+     * Remove and return the most important pending work, or null if there is none.
+     */
+    private Work takeNext() {
+        Work best = null;
+        long bestPriority = Long.MAX_VALUE;
+        int bestIndex = -1;
+        for (int i = 0; i < mPending.size(); i++) {
+            final Work work = mPending.get(i);
+            final long priority = getPriority(work);
+            if (priority < bestPriority
+                    || (priority == bestPriority && work.sequence < best.sequence)) {
+                best = work;
+                bestPriority = priority;
+                bestIndex = i;
+            }
+        }
+        if (best != null) {
+            mPending.remove(bestIndex);
+        }
+        return best;
+    }
+
+    /**
+     * Runs the most important pending work, if there still is any.
+     */
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            final Work work;
+            synchronized (mLock) {
+                work = takeNext();
+                if (work == null) {
+                    // The work was cancelled
+                    return;
+                }
+                mRunning.add(work);
+            }
+            try {
+                work.runnable.run();
+            } finally {
+                synchronized (mLock) {
+                    mRunning.remove(work);
+                }
+                // Clear an interrupt from cancelling a running prefetch
+                Thread.interrupted();
+            }
+        }
+    };
+}
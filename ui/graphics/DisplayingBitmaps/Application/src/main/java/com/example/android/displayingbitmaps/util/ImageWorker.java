@@ -24,6 +24,9 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.widget.ImageView;
@@ -32,6 +35,7 @@ import com.example.android.common.logger.Log;
 import com.example.android.displayingbitmaps.BuildConfig;
 
 import java.lang.ref.WeakReference;
+import java.util.HashSet;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -41,6 +45,7 @@ import java.lang.ref.WeakReference;
 public abstract class ImageWorker {
     private static final String TAG = "ImageWorker";
     private static final int FADE_IN_TIME = 200;
+    private static final int DEFAULT_MAX_PREFETCH = 8;
 
     private ImageCache mImageCache;
     private ImageCache.ImageCacheParams mImageCacheParams;
@@ -52,6 +57,18 @@ public abstract class ImageWorker {
 
     protected Resources mResources;
 
+    private ImageExecutors mExecutors = ImageExecutors.getDefault();
+    private ImageWorkQueue mWorkQueue = new ImageWorkQueue(mExecutors.getDecodeExecutor());
+    private final HashSet<Object> mPrefetching = new HashSet<Object>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private int mMaxPrefetch = DEFAULT_MAX_PREFETCH;
+
+    // Time to image metrics, only used on the UI thread
+    private int mMemoryCacheHitCount;
+    private int mLoadedCount;
+    private long mTotalLoadMillis;
+    private long mMaxLoadMillis;
+
     private static final int MESSAGE_CLEAR = 0;
     private static final int MESSAGE_INIT_DISK_CACHE = 1;
     private static final int MESSAGE_FLUSH = 2;
@@ -74,6 +91,20 @@ public abstract class ImageWorker {
      * @param listener A listener that will be called back once the image has been loaded.
      */
     public void loadImage(Object data, ImageView imageView, OnImageLoadedListener listener) {
+        loadImage(data, imageView, listener, ImageWorkQueue.NO_POSITION);
+    }
+
+    /**
+     * Load an image into an ImageView that is part of a list or grid. Work for visible
+     * positions runs before other work, see {@link #setViewport(int, int, float)}.
+     *
+     * @param data The URL of the image to download.
+     * @param imageView The ImageView to bind the downloaded image to.
+     * @param listener A listener that will be called back once the image has been loaded.
+     * @param position The adapter position of the ImageView.
+     */
+    public void loadImage(Object data, ImageView imageView, OnImageLoadedListener listener,
+            int position) {
         if (data == null) {
             return;
         }
@@ -86,13 +117,15 @@ public abstract class ImageWorker {
 
         if (value != null) {
             // Bitmap found in memory cache
+            mMemoryCacheHitCount++;
             imageView.setImageDrawable(value);
             if (listener != null) {
                 listener.onImageLoaded(true);
             }
         } else if (cancelPotentialWork(data, imageView)) {
             //BEGIN_INCLUDE(execute_background_task)
-            final BitmapWorkerTask task = new BitmapWorkerTask(data, imageView, listener);
+            final BitmapWorkerTask task =
+                    new BitmapWorkerTask(data, imageView, listener, position);
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mResources, mLoadingBitmap, task);
             imageView.setImageDrawable(asyncDrawable);
@@ -100,11 +133,105 @@ public abstract class ImageWorker {
             // NOTE: This uses a custom version of AsyncTask that has been pulled from the
             // framework and slightly modified. Refer to the docs at the top of the class
             // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR);
+            task.executeOnExecutor(mWorkQueue.getExecutor(task, position, false));
             //END_INCLUDE(execute_background_task)
         }
     }
 
+    /**
+     * Load an image into the memory cache before it is displayed, for example for the rows
+     * that a grid is scrolling towards. Nothing is done if the image is already cached or
+     * being prefetched, or if too many prefetches are in progress. The prefetch is cancelled
+     * if the viewport moves away from its position.
+     *
+     * @param data The URL of the image to download.
+     * @param position The adapter position the image will be displayed at.
+     * @return true if a prefetch was started
+     */
+    public boolean prefetch(Object data, int position) {
+        if (data == null || mImageCache == null || mExitTasksEarly
+                || mPrefetching.size() >= mMaxPrefetch || mPrefetching.contains(data)
+                || mImageCache.getBitmapFromMemCache(String.valueOf(data)) != null) {
+            return false;
+        }
+        mPrefetching.add(data);
+        final BitmapWorkerTask task = new BitmapWorkerTask(data, position);
+        task.executeOnExecutor(mWorkQueue.getExecutor(task, position, true));
+        return true;
+    }
+
+    /**
+     * Set the maximum number of prefetches that may be in progress at the same time.
+     */
+    public void setMaxPrefetch(int maxPrefetch) {
+        mMaxPrefetch = maxPrefetch;
+    }
+
+    /**
+     * Tell the worker which adapter positions are visible and how fast they are scrolling,
+     * so that visible images are loaded first, then the images the list is scrolling
+     * towards. Prefetches far from the viewport are cancelled.
+     *
+     * @param firstVisible The first visible adapter position
+     * @param lastVisible The last visible adapter position
+     * @param velocity Scroll velocity in positions per second, positive when scrolling towards
+     *                 higher positions
+     */
+    public void setViewport(int firstVisible, int lastVisible, float velocity) {
+        mWorkQueue.setViewport(firstVisible, lastVisible, velocity);
+    }
+
+    /**
+     * Use other executors for the background work of this worker. Call this before loading
+     * any images.
+     */
+    public void setExecutors(ImageExecutors executors) {
+        mExecutors = executors;
+        mWorkQueue = new ImageWorkQueue(executors.getDecodeExecutor());
+    }
+
+    /**
+     * @return The executors that run the background work of this worker.
+     */
+    public ImageExecutors getExecutors() {
+        return mExecutors;
+    }
+
+    /**
+     * @return The queue that runs the background work of this worker.
+     */
+    public ImageWorkQueue getWorkQueue() {
+        return mWorkQueue;
+    }
+
+    /**
+     * @return The number of images that were found in the memory cache when loaded.
+     */
+    public int getMemoryCacheHitCount() {
+        return mMemoryCacheHitCount;
+    }
+
+    /**
+     * @return The number of images that were loaded in the background and displayed.
+     */
+    public int getLoadedCount() {
+        return mLoadedCount;
+    }
+
+    /**
+     * @return The average time from loadImage() until a background load was displayed.
+     */
+    public long getAverageTimeToImageMillis() {
+        return mLoadedCount > 0 ? mTotalLoadMillis / mLoadedCount : 0;
+    }
+
+    /**
+     * @return The longest time from loadImage() until a background load was displayed.
+     */
+    public long getMaxTimeToImageMillis() {
+        return mMaxLoadMillis;
+    }
+
     /**
      * Load an image specified by the data parameter into an ImageView (override
      * {@link ImageWorker#processBitmap(Object)} to define the processing logic). A memory and
@@ -148,7 +275,8 @@ public abstract class ImageWorker {
             ImageCache.ImageCacheParams cacheParams) {
         mImageCacheParams = cacheParams;
         mImageCache = ImageCache.getInstance(fragmentManager, mImageCacheParams);
-        new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
+        new CacheAsyncTask().executeOnExecutor(mExecutors.getDiskExecutor(),
+                MESSAGE_INIT_DISK_CACHE);
     }
 
     /**
@@ -161,7 +289,8 @@ public abstract class ImageWorker {
     public void addImageCache(FragmentActivity activity, String diskCacheDirectoryName) {
         mImageCacheParams = new ImageCache.ImageCacheParams(activity, diskCacheDirectoryName);
         mImageCache = ImageCache.getInstance(activity.getSupportFragmentManager(), mImageCacheParams);
-        new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
+        new CacheAsyncTask().executeOnExecutor(mExecutors.getDiskExecutor(),
+                MESSAGE_INIT_DISK_CACHE);
     }
 
     /**
@@ -187,6 +316,20 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Subclasses that have to fetch the data before {@link #processBitmap(Object)} can run, for
+     * example from the network, override this to start the fetch on another executor. This is
+     * called on a decode thread and must not wait for the fetch. The background task then ends,
+     * and once onFetched is run a new task calls processBitmap on a decode thread.
+     *
+     * @param data The data to identify which image to process
+     * @param onFetched Run on any thread when the fetch has finished, whether it worked or not
+     * @return true if onFetched will be run, false if processBitmap can be called right away
+     */
+    protected boolean startFetch(Object data, Runnable onFetched) {
+        return false;
+    }
+
     /**
      * @return The {@link ImageCache} object currently being used by this ImageWorker.
      */
@@ -258,17 +401,49 @@ public abstract class ImageWorker {
         private Object mData;
         private final WeakReference<ImageView> imageViewReference;
         private final OnImageLoadedListener mOnImageLoadedListener;
+        private final boolean mPrefetch;
+        private final int mPosition;
+        private long mStartTime = SystemClock.uptimeMillis();
+        // True once startFetch() has been called for the data
+        private boolean mFetched;
+        // Set when this task ended early to let startFetch() finish on another executor
+        private boolean mWaitingForFetch;
 
         public BitmapWorkerTask(Object data, ImageView imageView) {
-            mData = data;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-            mOnImageLoadedListener = null;
+            this(data, imageView, null, ImageWorkQueue.NO_POSITION);
         }
 
-        public BitmapWorkerTask(Object data, ImageView imageView, OnImageLoadedListener listener) {
+        public BitmapWorkerTask(Object data, ImageView imageView, OnImageLoadedListener listener,
+                int position) {
             mData = data;
             imageViewReference = new WeakReference<ImageView>(imageView);
             mOnImageLoadedListener = listener;
+            mPrefetch = false;
+            mPosition = position;
+        }
+
+        /**
+         * A task that only loads the image into the cache.
+         */
+        public BitmapWorkerTask(Object data, int position) {
+            mData = data;
+            imageViewReference = new WeakReference<ImageView>(null);
+            mOnImageLoadedListener = null;
+            mPrefetch = true;
+            mPosition = position;
+        }
+
+        /**
+         * A task that carries on the work of a task that waited for its data to be fetched.
+         */
+        private BitmapWorkerTask(BitmapWorkerTask fetching) {
+            mData = fetching.mData;
+            imageViewReference = fetching.imageViewReference;
+            mOnImageLoadedListener = fetching.mOnImageLoadedListener;
+            mPrefetch = fetching.mPrefetch;
+            mPosition = fetching.mPosition;
+            mStartTime = fetching.mStartTime;
+            mFetched = true;
         }
 
         /**
@@ -298,8 +473,7 @@ public abstract class ImageWorker {
             // thread and the ImageView that was originally bound to this task is still bound back
             // to this task and our "exit early" flag is not set then try and fetch the bitmap from
             // the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
+            if (mImageCache != null && !isCancelled() && isWanted() && !mExitTasksEarly) {
                 bitmap = mImageCache.getBitmapFromDiskCache(dataString);
             }
 
@@ -307,8 +481,25 @@ public abstract class ImageWorker {
             // another thread and the ImageView that was originally bound to this task is still
             // bound back to this task and our "exit early" flag is not set, then call the main
             // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
+            // If the data has to be fetched first then end here instead of holding a decode
+            // thread while waiting for it, and carry on in a new task once it has been fetched
+            if (bitmap == null && !mFetched && !isCancelled() && isWanted() && !mExitTasksEarly
+                    && startFetch(mData, new Runnable() {
+                        @Override
+                        public void run() {
+                            mMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    continueAfterFetch();
+                                }
+                            });
+                        }
+                    })) {
+                mWaitingForFetch = true;
+                return null;
+            }
+
+            if (bitmap == null && !isCancelled() && isWanted() && !mExitTasksEarly) {
                 bitmap = processBitmap(mData);
             }
 
@@ -345,6 +536,15 @@ public abstract class ImageWorker {
         @Override
         protected void onPostExecute(BitmapDrawable value) {
             //BEGIN_INCLUDE(complete_background_work)
+            if (mWaitingForFetch) {
+                // continueAfterFetch() finishes the work
+                return;
+            }
+            if (mPrefetch) {
+                // The image is in the memory cache now, there is nothing to display
+                mPrefetching.remove(mData);
+                return;
+            }
             boolean success = false;
             // if cancel was called on this task or the "exit early" flag is set then we're done
             if (isCancelled() || mExitTasksEarly) {
@@ -358,6 +558,11 @@ public abstract class ImageWorker {
                 }
                 success = true;
                 setImageDrawable(imageView, value);
+
+                final long loadMillis = SystemClock.uptimeMillis() - mStartTime;
+                mLoadedCount++;
+                mTotalLoadMillis += loadMillis;
+                mMaxLoadMillis = Math.max(mMaxLoadMillis, loadMillis);
             }
             if (mOnImageLoadedListener != null) {
                 mOnImageLoadedListener.onImageLoaded(success);
@@ -368,11 +573,40 @@ public abstract class ImageWorker {
         @Override
         protected void onCancelled(BitmapDrawable value) {
             super.onCancelled(value);
+            if (mPrefetch) {
+                mPrefetching.remove(mData);
+            }
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
         }
 
+        /**
+         * Called on the UI thread once the data of a task that was waiting for it has been
+         * fetched. Starts a new task in place of this one to process it.
+         */
+        private void continueAfterFetch() {
+            if (isCancelled() || mExitTasksEarly || !isWanted()) {
+                if (mPrefetch) {
+                    mPrefetching.remove(mData);
+                }
+                return;
+            }
+            final BitmapWorkerTask task = new BitmapWorkerTask(this);
+            final ImageView imageView = getAttachedImageView();
+            if (imageView != null) {
+                ((AsyncDrawable) imageView.getDrawable()).setBitmapWorkerTask(task);
+            }
+            task.executeOnExecutor(mWorkQueue.getExecutor(task, mPosition, mPrefetch));
+        }
+
+        /**
+         * Returns true if the result of this task is still needed.
+         */
+        private boolean isWanted() {
+            return mPrefetch || getAttachedImageView() != null;
+        }
+
         /**
          * Returns the ImageView associated with this task as long as the ImageView's task still
          * points to this task as well. Returns null otherwise.
@@ -409,7 +643,7 @@ public abstract class ImageWorker {
      * independently of the finish order.
      */
     private static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<BitmapWorkerTask> bitmapWorkerTaskReference;
+        private WeakReference<BitmapWorkerTask> bitmapWorkerTaskReference;
 
         public AsyncDrawable(Resources res, Bitmap bitmap, BitmapWorkerTask bitmapWorkerTask) {
             super(res, bitmap);
@@ -420,6 +654,14 @@ public abstract class ImageWorker {
         public BitmapWorkerTask getBitmapWorkerTask() {
             return bitmapWorkerTaskReference.get();
         }
+
+        /**
+         * Hand the work over to a task that carries it on.
+         */
+        public void setBitmapWorkerTask(BitmapWorkerTask bitmapWorkerTask) {
+            bitmapWorkerTaskReference =
+                new WeakReference<BitmapWorkerTask>(bitmapWorkerTask);
+        }
     }
 
     /**
@@ -517,14 +759,14 @@ public abstract class ImageWorker {
     }
 
     public void clearCache() {
-        new CacheAsyncTask().execute(MESSAGE_CLEAR);
+        new CacheAsyncTask().executeOnExecutor(mExecutors.getDiskExecutor(), MESSAGE_CLEAR);
     }
 
     public void flushCache() {
-        new CacheAsyncTask().execute(MESSAGE_FLUSH);
+        new CacheAsyncTask().executeOnExecutor(mExecutors.getDiskExecutor(), MESSAGE_FLUSH);
     }
 
     public void closeCache() {
-        new CacheAsyncTask().execute(MESSAGE_CLOSE);
+        new CacheAsyncTask().executeOnExecutor(mExecutors.getDiskExecutor(), MESSAGE_CLOSE);
     }
 }